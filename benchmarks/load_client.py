@@ -0,0 +1,63 @@
+# Load generator for the proxy, used for the thread mode comparison.
+#
+# Opens <connections> client connections at once. Every connection logs
+# in as u<i> with password p and downloads <file> <rounds> times in text
+# mode. Prints the throughput and the download latencies.
+#
+# usage: python3 load_client.py <connections> <rounds> [<file> [<host> [<port>]]]
+import asyncio
+import sys
+import time
+
+CONNECTIONS = int(sys.argv[1])
+ROUNDS = int(sys.argv[2])
+FILE = sys.argv[3] if len(sys.argv) > 3 else 'c.log'
+HOST = sys.argv[4] if len(sys.argv) > 4 else '127.0.0.1'
+PORT = int(sys.argv[5]) if len(sys.argv) > 5 else 10540
+TIMEOUT = 60
+
+latencies = []
+errors = 0
+
+
+async def read_until(reader, marker):
+    return await asyncio.wait_for(reader.readuntil(marker), TIMEOUT)
+
+
+async def client(i):
+    global errors
+    try:
+        reader, writer = await asyncio.wait_for(
+            asyncio.open_connection(HOST, PORT, limit=1 << 24), TIMEOUT)
+        writer.write(b'!login u%d p\n' % i)
+        await writer.drain()
+        await read_until(reader, b'succesful!')
+        for _ in range(ROUNDS):
+            start = time.perf_counter()
+            writer.write(b'!download ' + FILE.encode() + b'\n')
+            await writer.drain()
+            await read_until(reader, b'!FILE_END')
+            latencies.append(time.perf_counter() - start)
+        writer.close()
+    except Exception:
+        errors += 1
+
+
+def percentile(p):
+    if not latencies:
+        return float('nan')
+    return latencies[min(len(latencies) - 1, int(p * len(latencies)))] * 1000
+
+
+async def main():
+    start = time.perf_counter()
+    await asyncio.gather(*[client(i) for i in range(CONNECTIONS)])
+    elapsed = time.perf_counter() - start
+    latencies.sort()
+    print('conns=%d ok_requests=%d errors=%d total=%.2fs req/s=%.0f '
+          'p50=%.1fms p99=%.1fms max=%.1fms'
+          % (CONNECTIONS, len(latencies), errors, elapsed,
+             len(latencies) / elapsed, percentile(.5), percentile(.99),
+             percentile(1.0)))
+
+asyncio.run(main())
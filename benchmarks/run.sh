@@ -0,0 +1,63 @@
+#!/bin/bash
+# Compares the pooled and the virtual thread mode under many concurrent
+# client connections. Starts a proxy and a fileserver from the build
+# directory, runs load_client.py against them and reports the peak thread
+# counts of both processes.
+#
+# usage: run.sh <pooled|virtual> <connections> <rounds>
+#
+# Build the project with "ant compile" first. The virtual mode needs Java 21
+# or newer, set JAVA_HOME to pick the runtime.
+
+MODE=${1:?usage: run.sh <pooled|virtual> <connections> <rounds>}
+CONNECTIONS=${2:?usage: run.sh <pooled|virtual> <connections> <rounds>}
+ROUNDS=${3:?usage: run.sh <pooled|virtual> <connections> <rounds>}
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+BUILD_DIR=$BENCH_DIR/../build
+WORK_DIR=$(mktemp -d)
+trap 'kill $PROXY_PID $SERVER_PID 2>/dev/null; pkill -P $$ sleep; rm -rf "$WORK_DIR"' EXIT
+
+# one user per connection, the generated properties come first on the
+# class path
+mkdir -p "$WORK_DIR/classes" "$WORK_DIR/files"
+for ((i = 0; i < CONNECTIONS; i++))
+do
+   echo "u$i = p"
+   echo "u$i.credits = 1000000000"
+done > "$WORK_DIR/classes/user.properties"
+
+# a text file of about 108 KB, downloaded in text mode
+for ((i = 0; i < 1700; i++))
+do
+   echo "line $i of the benchmark file, padded to about sixty-four bytes"
+done > "$WORK_DIR/files/c.log"
+
+CP=$WORK_DIR/classes:$BUILD_DIR
+
+# the admission limits are raised, so every connection is accepted
+sleep 3600 | "$JAVA" -cp "$CP" proxy.FDS_Proxy 10540 10540 3000 1000 \
+   "$WORK_DIR/cache" decayed "$MODE" 100000 100000 100000 > "$WORK_DIR/proxy.log" 2>&1 &
+PROXY_PID=$(pgrep -n -f "proxy.FDS_Proxy 10540")
+sleep 1
+sleep 3600 | "$JAVA" -cp "$CP" server.FDS_Server "$WORK_DIR/files" 10541 localhost \
+   10540 1000 0 1 "$MODE" > "$WORK_DIR/server.log" 2>&1 &
+sleep 3
+SERVER_PID=$(pgrep -n -f "server.FDS_Server $WORK_DIR/files")
+
+PROXY_PEAK=0
+SERVER_PEAK=0
+python3 "$BENCH_DIR/load_client.py" "$CONNECTIONS" "$ROUNDS" c.log &
+CLIENT_PID=$!
+while kill -0 $CLIENT_PID 2>/dev/null
+do
+   threads=$(awk '/^Threads/ { print $2 }' /proc/$PROXY_PID/status 2>/dev/null)
+   [ -n "$threads" ] && [ "$threads" -gt "$PROXY_PEAK" ] && PROXY_PEAK=$threads
+   threads=$(awk '/^Threads/ { print $2 }' /proc/$SERVER_PID/status 2>/dev/null)
+   [ -n "$threads" ] && [ "$threads" -gt "$SERVER_PEAK" ] && SERVER_PEAK=$threads
+   sleep 0.2
+done
+wait $CLIENT_PID
+
+echo "mode=$MODE peak threads proxy=$PROXY_PEAK fileserver=$SERVER_PEAK"
@@ -4,6 +4,8 @@ import client.commands.*;
 import commandHandling.*;
 import common.InitFailedException;
 
+import protocols.MessageFileProtocol;
+
 /**
  * The main class for the File Distribution System (FDS) Client.
  * 
@@ -19,6 +21,10 @@ public class FDS_Client
     * Helper class that handles the socket connection.
     */
    private static ProxyConnection connection;
+   /**
+    * Protocol object for all messages sent to the proxy.
+    */
+   private static MessageFileProtocol outgoingProtocol;
 
    /**
     * Main entry point
@@ -37,11 +43,17 @@ public class FDS_Client
          connection = new ProxyConnection(parsedArguments.getHostname(),
                   parsedArguments.getPort());
 
+         outgoingProtocol = new MessageFileProtocol(connection
+                  .GetOutputStream());
+
          // start listening for messages from the proxy
          StartProxyListener(parsedArguments.getDownloadDir());
 
+         // offer binary framing, the proxy listener completes the switch
+         outgoingProtocol.sendBinaryModeOffer();
+
          // register known console commands and start command handling
-         RegisterCommands();
+         RegisterCommands(parsedArguments.getDownloadDir());
          commandHandler.StartListening();
       }
       catch (InitFailedException e)
@@ -69,7 +81,7 @@ public class FDS_Client
    {
       // create a new proxy listener
       ProxyConnectionHandler listener = new ProxyConnectionHandler(
-               commandHandler, connection, fileDirectory);
+               commandHandler, connection, outgoingProtocol, fileDirectory);
       // run as a thread
       Thread listenerThread = new Thread(listener);
       listenerThread.start();
@@ -77,14 +89,20 @@ public class FDS_Client
 
    /**
     * Registers known console commands.
+    * 
+    * @param fileDirectory The directory for downloaded files.
     */
-   private static void RegisterCommands()
+   private static void RegisterCommands(String fileDirectory)
    {
       // register proxy commands as default commands
-      ProxyCommand proxyCommand = new ProxyCommand(connection.GetOutputStream());
+      ProxyCommand proxyCommand = new ProxyCommand(outgoingProtocol);
       commandHandler.RegisterDefaultCommand(proxyCommand);
       // register the exit command - will perform special logic
-      ExitCommand exitCommand = new ExitCommand(commandHandler, connection);
+      ExitCommand exitCommand = new ExitCommand(commandHandler, connection,
+               outgoingProtocol);
       commandHandler.RegisterCommand(exitCommand.getIdentifier(), exitCommand);
+      // register the resume command - turns into a ranged download
+      ResumeCommand resumeCommand = new ResumeCommand(outgoingProtocol, fileDirectory);
+      commandHandler.RegisterCommand(resumeCommand.getIdentifier(), resumeCommand);
    }
 }
@@ -0,0 +1,314 @@
+package client;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import protocols.misc.CatalogChange;
+import protocols.misc.ContentDecoder;
+
+/**
+ * A file that is currently being received from the proxy. The content
+ * is written to disk chunk by chunk as it arrives. A byte range of a
+ * file is written into the existing local file at its position. Until the
+ * file is complete, its size and modification time on the server are
+ * kept in a resume info file next to it, so a resumed download can tell
+ * if the partial copy is still up to date.
+ * 
+ * @author RaphM
+ */
+public class FileDownload
+{
+   /**
+    * Suffix of the resume info file of a partial download.
+    */
+   private static final String RESUME_INFO_SUFFIX = ".resume";
+
+   /**
+    * The file that is being written.
+    */
+   private final File file;
+
+   /**
+    * The (uncompressed) size of the whole file.
+    */
+   private final long fileSize;
+
+   /**
+    * The announced number of content bytes.
+    */
+   private final long expectedSize;
+
+   /**
+    * Position of the received content in the file.
+    */
+   private final long offset;
+
+   /**
+    * Decompresses the received chunks, null for uncompressed files.
+    */
+   private ContentDecoder decoder;
+
+   /**
+    * Stream to the file, null if the file could not be created.
+    */
+   private OutputStream out;
+
+   /**
+    * Number of bytes written so far.
+    */
+   private long writtenBytes;
+
+   /**
+    * Creates the file in the given directory. A whole file replaces an
+    * existing one, a byte range is written into the existing file.
+    * 
+    * @param fileDirectory The download directory.
+    * @param fileName The file name.
+    * @param fileSize The (uncompressed) size of the whole file.
+    * @param encoding Compression codec of the chunks, null if uncompressed.
+    * @param offset Position of the received range in the file.
+    * @param length The announced (uncompressed) length of the range.
+    * @param lastModified The modification time of the file, 0 if unknown.
+    */
+   public FileDownload(String fileDirectory, String fileName, long fileSize, String encoding,
+            long offset, long length, long lastModified)
+   {
+      this.file = new File(fileDirectory + File.separator + fileName);
+      this.fileSize = fileSize;
+      this.expectedSize = length;
+      this.offset = offset;
+      boolean isRange = offset > 0 || length < fileSize;
+
+      // check if the directory exists
+      File directory = new File(fileDirectory);
+
+      if (!directory.exists())
+      {
+         System.out.println("<ProxyConnectionHandler Thread>: Directory does not exist, creating it: " + fileDirectory);
+         directory.mkdir();
+      }
+
+      if (directory.isDirectory())
+      {
+         if (file.exists() && !isRange)
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: File already exists, deleting the old one: " + file);
+            file.delete();
+         }
+
+         try
+         {
+            if (encoding != null)
+            {
+               decoder = new ContentDecoder(encoding);
+            }
+            if (isRange)
+            {
+               // keep the existing content, e.g. to resume a partial download
+               FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+               channel.position(offset);
+               out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            }
+            else
+            {
+               file.createNewFile();
+               out = new BufferedOutputStream(new FileOutputStream(file));
+            }
+
+            WriteResumeInfo(file, new CatalogChange(fileName, fileSize, lastModified));
+         }
+         catch (IOException e)
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: Could not create file: " + file
+                     + " (" + e.getMessage() + ")");
+            if (decoder != null)
+            {
+               decoder.close();
+               decoder = null;
+            }
+         }
+      }
+      else
+      {
+         System.out.println("<ProxyConnectionHandler Thread>: Specified name is no directory: " + fileDirectory);
+      }
+   }
+
+   /**
+    * Appends a chunk of content to the file.
+    * 
+    * @param data The content chunk.
+    */
+   public void Write(byte[] data)
+   {
+      if (out != null)
+      {
+         try
+         {
+            if (decoder != null)
+            {
+               data = decoder.decode(data);
+            }
+            out.write(data);
+            writtenBytes += data.length;
+         }
+         catch (IOException e)
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: Could not write to file: " + file);
+            Close();
+         }
+      }
+   }
+
+   /**
+    * Closes the file and reports the result.
+    */
+   public void Finish()
+   {
+      if (out != null)
+      {
+         Close();
+
+         if (writtenBytes == expectedSize && offset + writtenBytes == fileSize)
+         {
+            // the file is complete, there is nothing left to resume
+            DeleteResumeInfo(file);
+         }
+
+         if (writtenBytes == expectedSize && offset > 0)
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: Succesfully downloaded bytes " + offset
+                     + " to " + (offset + writtenBytes) + " of file: " + file);
+         }
+         else if (writtenBytes == expectedSize)
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: Succesfully downloaded file: " + file);
+         }
+         else
+         {
+            System.out.println("<ProxyConnectionHandler Thread>: Download incomplete (" + writtenBytes
+                     + " of " + expectedSize + " bytes): " + file);
+         }
+      }
+   }
+
+   /**
+    * Closes the underlying stream.
+    */
+   private void Close()
+   {
+      if (decoder != null)
+      {
+         decoder.close();
+         decoder = null;
+      }
+      
+      try
+      {
+         out.close();
+      }
+      catch (IOException e)
+      {
+         System.out.println("<ProxyConnectionHandler Thread>: Could not close file: " + file);
+      }
+      out = null;
+   }
+
+   /**
+    * Reads the size and modification time of the file a partial copy was
+    * downloaded from.
+    * 
+    * @param file The partial copy.
+    * @return The size and modification time, null if the copy has no
+    *         resume info.
+    */
+   public static CatalogChange ReadResumeInfo(File file)
+   {
+      File infoFile = getResumeInfoFile(file);
+      if (!infoFile.isFile())
+      {
+         return null;
+      }
+
+      try
+      {
+         Properties properties = new Properties();
+         InputStream in = new FileInputStream(infoFile);
+         try
+         {
+            properties.load(in);
+         }
+         finally
+         {
+            in.close();
+         }
+
+         return new CatalogChange(file.getName(), Long.parseLong(properties
+                  .getProperty("size")), Long.parseLong(properties
+                  .getProperty("modified")));
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not read resume info: " + infoFile);
+      }
+      catch (NumberFormatException e)
+      {
+         System.out.println("Invalid resume info: " + infoFile);
+      }
+      return null;
+   }
+
+   /**
+    * Deletes the resume info of a file.
+    * 
+    * @param file The file.
+    */
+   public static void DeleteResumeInfo(File file)
+   {
+      getResumeInfoFile(file).delete();
+   }
+
+   /**
+    * Writes the size and modification time of the file a partial copy is
+    * downloaded from.
+    * 
+    * @param file The partial copy.
+    * @param info The size and modification time.
+    */
+   private static void WriteResumeInfo(File file, CatalogChange info)
+   {
+      Properties properties = new Properties();
+      properties.setProperty("size", String.valueOf(info.getSize()));
+      properties.setProperty("modified", String.valueOf(info.getLastModified()));
+
+      try
+      {
+         OutputStream out = new FileOutputStream(getResumeInfoFile(file));
+         try
+         {
+            properties.store(out, null);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("<ProxyConnectionHandler Thread>: Could not write resume info of file: " + file);
+      }
+   }
+
+   /**
+    * Gets the resume info file of a file.
+    * 
+    * @param file The file.
+    * @return The resume info file.
+    */
+   private static File getResumeInfoFile(File file)
+   {
+      return new File(file.getPath() + RESUME_INFO_SUFFIX);
+   }
+}
@@ -1,6 +1,8 @@
 package client;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
 
 import protocols.MessageFileProtocol;
 import protocols.misc.ProtocolMessage;
@@ -32,11 +34,21 @@ public class ProxyConnectionHandler implements Runnable
     */
    private final MessageFileProtocol protocol;
    
+   /**
+    * Protocol object for messages sent to the proxy.
+    */
+   private final MessageFileProtocol outgoingProtocol;
+   
    /**
     * The file directory for downloaded files.
     */
    private final String fileDirectory;
    
+   /**
+    * The files that are currently being received, by request id.
+    */
+   private final Map<Integer, FileDownload> downloads = new HashMap<Integer, FileDownload>();
+   
    /**
     * Indicates if this instance is being run currently.
     */
@@ -50,12 +62,15 @@ public class ProxyConnectionHandler implements Runnable
    /**
     * @param commandHandler The command handler.
     * @param connection The proxy connection.
+    * @param outgoingProtocol Protocol object for messages sent to the proxy.
     * @param directory The directory for downloaded files.
     */
-   public ProxyConnectionHandler(ICommandHandler commandHandler, ProxyConnection connection, String directory)
+   public ProxyConnectionHandler(ICommandHandler commandHandler, ProxyConnection connection,
+            MessageFileProtocol outgoingProtocol, String directory)
    {
       this.commandHandler = commandHandler;
       this.connection = connection;
+      this.outgoingProtocol = outgoingProtocol;
       this.fileDirectory = directory;
       protocol = new MessageFileProtocol(connection.GetInputStream());
    }
@@ -82,6 +97,7 @@ public class ProxyConnectionHandler implements Runnable
          {
             // close resources and let the thread time out
             System.out.println("<ProxyConnectionHandler Thread>: Input stream was closed, terminating!");
+            FinishDownloads();
             connection.Disconnect();
             commandHandler.StopListening();
             isRunning = false;
@@ -104,12 +120,44 @@ public class ProxyConnectionHandler implements Runnable
       }
       else if (type == MessageType.File)
       {
-         WriteToFile(message.getFileName(), message.getContent());
+         downloads.put(message.getRequestId(),
+                  new FileDownload(fileDirectory, message.getFileName(), message.getFileSize(),
+                           message.getEncoding(), message.getRangeOffset(), message.getRangeLength(),
+                           message.getLastModified()));
+      }
+      else if (type == MessageType.FileChunk)
+      {
+         FileDownload download = downloads.get(message.getRequestId());
+         if (download != null)
+         {
+            download.Write(message.getData());
+         }
+      }
+      else if (type == MessageType.FileEnd)
+      {
+         FileDownload download = downloads.remove(message.getRequestId());
+         if (download != null)
+         {
+            download.Finish();
+         }
+      }
+      else if (type == MessageType.BinaryMode)
+      {
+         // the proxy accepted our offer, send binary frames as well
+         outgoingProtocol.switchToBinaryMode();
+         
+         // files can be received compressed from now on
+         outgoingProtocol.sendCompressionOffer();
+      }
+      else if (type == MessageType.Compression)
+      {
+         outgoingProtocol.useCompression(message.getEncoding());
       }
       else if (type == MessageType.ForceLogoff)
       {
          // close resources and let the thread time out
          System.out.println("<ProxyConnectionHandler Thread>: Received force logoff message, terminating!");
+         FinishDownloads();
          connection.Disconnect();
          commandHandler.StopListening();
          isRunning = false;
@@ -117,50 +165,15 @@ public class ProxyConnectionHandler implements Runnable
    }
    
    /**
-    * Writes a new file
-    * 
-    * @param fileName The file name.
-    * @param fileContent The file content.
+    * Closes all files that are still being received, they are reported
+    * as incomplete.
     */
-   private void WriteToFile(String fileName, String fileContent)
+   private void FinishDownloads()
    {
-      // check if the directory exists
-      File directory = new File(fileDirectory);
-      
-      if (!directory.exists())
-      {
-         System.out.println("<ProxyConnectionHandler Thread>: Directory does not exist, creating it: " + fileDirectory);
-         directory.mkdir();
-      }
-      
-      if (directory.isDirectory())
-      {
-         File fileToCreate = new File(fileDirectory + File.separator + fileName);
-         
-         if (fileToCreate.exists())
-         {
-            System.out.println("<ProxyConnectionHandler Thread>: File already exists, deleting the old one: " + fileToCreate);
-            fileToCreate.delete();
-         }
-         
-         try
-         {
-            fileToCreate.createNewFile();
-            
-            BufferedWriter out = new BufferedWriter(new FileWriter(fileToCreate));
-            out.write(fileContent);
-            out.close();
-            
-            System.out.println("<ProxyConnectionHandler Thread>: Succesfully downloaded file: " + fileToCreate);
-         }
-         catch (IOException e)
-         {
-            System.out.println("<ProxyConnectionHandler Thread>: Could not create file: " + fileToCreate);
-         }
-      }
-      else
+      for (FileDownload download : downloads.values())
       {
-         System.out.println("<ProxyConnectionHandler Thread>: Specified name is no directory: " + fileDirectory);
+         download.Finish();
       }
+      downloads.clear();
    }
 }
@@ -42,13 +42,15 @@ public class ExitCommand implements ICommand
     *                      
     * @param connection     The connection that will be closed when this instance
     *                       is executed.
+    *                       
+    * @param protocol       The protocol object used for proxy communication.
     */
-   public ExitCommand(ICommandHandler commandHandler, ProxyConnection connection)
+   public ExitCommand(ICommandHandler commandHandler, ProxyConnection connection,
+            MessageFileProtocol protocol)
    {
       this.commandHandler = commandHandler;
       this.connection = connection;
-      protocol = new MessageFileProtocol(connection.GetOutputStream());
-      
+      this.protocol = protocol;
    }
    
    /**
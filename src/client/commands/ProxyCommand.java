@@ -1,7 +1,5 @@
 package client.commands;
 
-import java.io.*;
-
 import protocols.MessageFileProtocol;
 
 import commandHandling.ICommand;
@@ -26,12 +24,12 @@ public class ProxyCommand implements ICommand
    /**
     * Creates a new ProxyCommand instance.
     * 
-    * @param outputStream
-    *           The stream that will be used for proxy communication.
+    * @param protocol
+    *           The protocol object that will be used for proxy communication.
     */
-   public ProxyCommand(OutputStream outputStream)
+   public ProxyCommand(MessageFileProtocol protocol)
    {
-      protocol = new MessageFileProtocol(outputStream);
+      this.protocol = protocol;
    }
 
    /**
@@ -0,0 +1,109 @@
+package client.commands;
+
+import java.io.File;
+
+import client.FileDownload;
+import protocols.MessageFileProtocol;
+import protocols.misc.CatalogChange;
+
+import commandHandling.ICommand;
+
+/**
+ * Resumes a partial download: requests the rest of a file starting at the
+ * length of the local copy in the download directory. The size and
+ * modification time of the file the copy was downloaded from are sent
+ * along, the proxy sends the whole file again if it changed meanwhile.
+ * 
+ * @author RaphM
+ */
+public class ResumeCommand implements ICommand
+{
+   /**
+    * Command identifier of this instance.
+    */
+   private final String COMMAND = "!resume";
+
+   /**
+    * The proxy download command the request is translated into.
+    */
+   private final String DOWNLOAD_COMMAND = "!download";
+
+   /**
+    * The protocol object.
+    */
+   private final MessageFileProtocol protocol;
+
+   /**
+    * The directory for downloaded files.
+    */
+   private final String fileDirectory;
+
+   /**
+    * Creates a new ResumeCommand instance.
+    * 
+    * @param protocol
+    *           The protocol object that will be used for proxy communication.
+    * @param fileDirectory
+    *           The directory for downloaded files.
+    */
+   public ResumeCommand(MessageFileProtocol protocol, String fileDirectory)
+   {
+      this.protocol = protocol;
+      this.fileDirectory = fileDirectory;
+   }
+
+   /**
+    * Gets the command identifier of this instance.
+    * 
+    * @return Command identifier.
+    */
+   public String getIdentifier()
+   {
+      return COMMAND;
+   }
+
+   /**
+    * Executes this instance.
+    * 
+    * @param parameters
+    *           Raw string parameters (if present).
+    */
+   public void Execute(String[] parameters)
+   {
+      if (parameters.length == 1)
+      {
+         File file = new File(fileDirectory + File.separator + parameters[0]);
+         CatalogChange resumeInfo = FileDownload.ReadResumeInfo(file);
+
+         if (file.isFile() && file.length() > 0 && resumeInfo == null)
+         {
+            // only partial copies keep their resume info
+            System.out.println("File " + parameters[0] + " is already complete");
+         }
+         else if (file.isFile() && resumeInfo != null
+                  && file.length() == resumeInfo.getSize())
+         {
+            System.out.println("File " + parameters[0] + " is already complete");
+            FileDownload.DeleteResumeInfo(file);
+         }
+         else if (file.isFile() && resumeInfo != null && file.length() > 0
+                  && file.length() < resumeInfo.getSize())
+         {
+            System.out.println("Resuming download of " + parameters[0]
+                     + " at byte " + file.length());
+            protocol.writeText(DOWNLOAD_COMMAND + " " + parameters[0] + " "
+                     + file.length() + " -1 " + resumeInfo.getSize() + " "
+                     + resumeInfo.getLastModified());
+         }
+         else
+         {
+            // nothing to resume, download the whole file
+            protocol.writeText(DOWNLOAD_COMMAND + " " + parameters[0]);
+         }
+      }
+      else
+      {
+         System.out.println("Wrong parameters - Usage: !resume <filename>");
+      }
+   }
+}
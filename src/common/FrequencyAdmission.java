@@ -0,0 +1,133 @@
+package common;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Decides which files a size-bounded cache admits. Requests are counted
+ * per file and the counts are halved regularly, so old popularity fades.
+ * A new file is only admitted if it was requested more often than every
+ * entry it would evict, so files that are requested once cannot flush
+ * frequently requested ones.
+ * 
+ * Instances are not thread-safe, the cache guards them with its own lock.
+ * 
+ * @author RaphM
+ */
+public class FrequencyAdmission
+{
+   /**
+    * Number of recorded requests after which all request counts are
+    * halved.
+    */
+   private final int FREQUENCY_AGING_INTERVAL = 10000;
+
+   /**
+    * Files requested less often are never admitted.
+    */
+   private final int minFrequency;
+
+   /**
+    * Request counts by file name.
+    */
+   private final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+
+   /**
+    * Number of requests since the request counts were last halved.
+    */
+   private int recordedRequests;
+
+   /**
+    * Creates a new admission policy.
+    * 
+    * @param minFrequency Files requested less often are never admitted.
+    */
+   public FrequencyAdmission(int minFrequency)
+   {
+      this.minFrequency = minFrequency;
+   }
+
+   /**
+    * Counts a request for a file.
+    * 
+    * @param fileName The file name.
+    */
+   public void RecordRequest(String fileName)
+   {
+      frequencies.put(fileName, getFrequency(fileName) + 1);
+
+      if (++recordedRequests >= FREQUENCY_AGING_INTERVAL)
+      {
+         recordedRequests = 0;
+
+         Iterator<Map.Entry<String, Integer>> iterator = frequencies.entrySet().iterator();
+         while (iterator.hasNext())
+         {
+            Map.Entry<String, Integer> frequency = iterator.next();
+            if (frequency.getValue() <= 1)
+            {
+               iterator.remove();
+            }
+            else
+            {
+               frequency.setValue(frequency.getValue() / 2);
+            }
+         }
+      }
+   }
+
+   /**
+    * Gets the request count of a file.
+    * 
+    * @param fileName The file name.
+    * @return The request count.
+    */
+   public int getFrequency(String fileName)
+   {
+      Integer frequency = frequencies.get(fileName);
+      return frequency == null ? 0 : frequency;
+   }
+
+   /**
+    * Finds the entries that have to be evicted to make room for a new
+    * file.
+    * 
+    * @param entries The entries of the cache, least recently used first.
+    * @param freeSize Number of free bytes in the cache.
+    * @param fileName Name of the new file.
+    * @param size Size of the new file.
+    * @return The entries to evict, null if the new file is not admitted.
+    */
+   public <T extends ICachedFile> Vector<T> FindVictims(Collection<T> entries,
+            long freeSize, String fileName, long size)
+   {
+      Vector<T> victims = new Vector<T>();
+      int frequency = getFrequency(fileName);
+
+      if (frequency < minFrequency)
+      {
+         // not requested often enough to be worth caching
+         return null;
+      }
+
+      Iterator<T> iterator = entries.iterator();
+      while (freeSize < size && iterator.hasNext())
+      {
+         T victim = iterator.next();
+
+         if (getFrequency(victim.getFileName()) >= frequency)
+         {
+            // the new file is not more popular than the ones it would evict
+            return null;
+         }
+
+         victims.add(victim);
+         freeSize += victim.getSize();
+      }
+
+      return freeSize >= size ? victims : null;
+   }
+}
@@ -0,0 +1,19 @@
+package common;
+
+/**
+ * A file held by a cache that is bounded by its size in bytes.
+ * 
+ * @author RaphM
+ */
+public interface ICachedFile
+{
+   /**
+    * @return Name of the cached file.
+    */
+   String getFileName();
+
+   /**
+    * @return Size of the cached file.
+    */
+   long getSize();
+}
@@ -0,0 +1,147 @@
+package common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selects the threads that run connection handlers and request workflows.
+ * 
+ * Virtual threads are only available on Java 21 and newer. The executor is
+ * looked up at runtime, so the project still builds on older versions.
+ * 
+ * @author RaphM
+ */
+public enum ThreadMode
+{
+   /**
+    * Platform threads of thread pools.
+    */
+   Pooled("pooled"),
+
+   /**
+    * One virtual thread per task.
+    */
+   Virtual("virtual");
+
+   /**
+    * Name of the mode on the command line.
+    */
+   private final String identifier;
+
+   /**
+    * Creates a new thread mode.
+    * 
+    * @param identifier Name of the mode on the command line.
+    */
+   private ThreadMode(String identifier)
+   {
+      this.identifier = identifier;
+   }
+
+   /**
+    * Finds the mode with the given name.
+    * 
+    * @param identifier Name of the mode on the command line.
+    * @return The mode, null if unknown.
+    */
+   public static ThreadMode Parse(String identifier)
+   {
+      for (ThreadMode mode : values())
+      {
+         if (mode.identifier.equals(identifier))
+         {
+            return mode;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Gets the name of the mode on the command line.
+    * 
+    * @return The name.
+    */
+   public String getIdentifier()
+   {
+      return identifier;
+   }
+
+   /**
+    * Indicates if the running Java version supports this mode.
+    * 
+    * @return True if supported.
+    */
+   public boolean isSupported()
+   {
+      return this == Pooled || getVirtualExecutorFactory() != null;
+   }
+
+   /**
+    * Creates an executor for tasks that are started on demand, a cached
+    * thread pool or a virtual thread per task.
+    * 
+    * @return The executor.
+    */
+   public ExecutorService CreateExecutor()
+   {
+      return this == Virtual ? CreateVirtualExecutor() : Executors.newCachedThreadPool();
+   }
+
+   /**
+    * Creates an executor that runs a bounded number of tasks at once in
+    * pooled mode. Virtual threads are cheap, so the virtual mode does not
+    * limit them.
+    * 
+    * @param poolSize Number of threads in pooled mode.
+    * @return The executor.
+    */
+   public ExecutorService CreateExecutor(int poolSize)
+   {
+      return this == Virtual ? CreateVirtualExecutor() : Executors.newFixedThreadPool(poolSize);
+   }
+
+   /**
+    * Creates an executor that starts a virtual thread per task. The
+    * arguments only select this mode if it is supported.
+    * 
+    * @return The executor.
+    * @throws UnsupportedOperationException If virtual threads are not
+    *            supported.
+    */
+   private ExecutorService CreateVirtualExecutor()
+   {
+      Method factory = getVirtualExecutorFactory();
+      if (factory == null)
+      {
+         throw new UnsupportedOperationException("Virtual threads are not supported!");
+      }
+
+      try
+      {
+         return (ExecutorService) factory.invoke(null);
+      }
+      catch (Exception e)
+      {
+         throw new UnsupportedOperationException("Cannot create virtual threads: "
+                  + e.getMessage());
+      }
+   }
+
+   /**
+    * Gets the factory method of virtual thread executors.
+    * 
+    * @return The method, null before Java 21.
+    */
+   private static Method getVirtualExecutorFactory()
+   {
+      try
+      {
+         return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      }
+      catch (NoSuchMethodException e)
+      {
+         return null;
+      }
+   }
+}
@@ -4,7 +4,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 import protocols.misc.AlivePacket;
 
@@ -12,6 +15,19 @@ import protocols.misc.AlivePacket;
  * Contains methods for convenient UDP communication between Fileservers and
  * proxy.
  * 
+ * Alive packets are binary and start with their format version:
+ * 
+ * <pre>
+ * version (1 byte) | sequence (4 bytes) | tcp port (2 bytes)
+ *                  | catalog digest (8 bytes) | active connections (4 bytes)
+ *                  | bytes per second (8 bytes) | queue depth (4 bytes)
+ *                  | capacity weight (4 bytes)
+ * </pre>
+ * 
+ * Packets of older fileservers contain the TCP port and optionally the
+ * catalog digest as text, they are still understood. Binary packets are
+ * parsed without allocating memory.
+ * 
  * @author RaphM
  */
 public class AliveProtocol
@@ -21,6 +37,17 @@ public class AliveProtocol
     */
    private final int BUF_SIZE = 256;
 
+   /**
+    * Version of the binary alive packet format. Text packets start with a
+    * digit, so they never start with this byte.
+    */
+   private final byte ALIVE_PACKET_VERSION = 1;
+
+   /**
+    * Size of a binary alive packet.
+    */
+   private final int ALIVE_PACKET_SIZE = 35;
+
    /**
     * Marker element for protocol information.
     */
@@ -32,6 +59,11 @@ public class AliveProtocol
     */
    private final String PROTOCOL_ENCODE_MARKER = PROTOCOL_PLAIN_MARKER + "_";
 
+   /**
+    * Separates the fields of an alive packet.
+    */
+   private final String FIELD_SEPARATOR = " ";
+
    /**
     * Sends an alive packet to target.
     * 
@@ -39,125 +71,196 @@ public class AliveProtocol
     *           Target hostname.
     * @param port
     *           Target port.
+    * @param data
+    *           The content of the packet, with load metrics.
     */
    public void SendAlivePacket(DatagramSocket localSocket, String hostname,
-            int port, int localTcpPort)
+            int port, AlivePacket data)
    {
       // create the data content for the packet
-      byte[] packetData = CreateProtocolMessage(localTcpPort);
+      byte[] packetData = CreateProtocolMessage(data);
 
-      if (packetData.length > BUF_SIZE)
-      {
-         System.out
-                  .println("Could not send outgoing alive packet - string representation of data is to long!");
-      }
-      else
+      try
       {
+         InetAddress targetAddress = InetAddress.getByName(hostname);
+         DatagramPacket packet = new DatagramPacket(packetData,
+                  packetData.length, targetAddress, port);
+
          try
          {
-            InetAddress targetAddress = InetAddress.getByName(hostname);
-            DatagramPacket packet = new DatagramPacket(packetData,
-                     packetData.length, targetAddress, port);
-
-            try
-            {
-               localSocket.send(packet);
-            }
-            catch (IOException e)
-            {
-               System.out.println("Could not send outgoing alive packet!");
-            }
+            localSocket.send(packet);
          }
-         catch (UnknownHostException e)
+         catch (IOException e)
          {
-            System.out.println("Could not get InetAddress for host: "
-                     + hostname);
+            System.out.println("Could not send outgoing alive packet!");
          }
       }
+      catch (UnknownHostException e)
+      {
+         System.out.println("Could not get InetAddress for host: "
+                  + hostname);
+      }
    }
 
    /**
-    * Waits for incoming alive packets (blocking).
+    * Creates a buffer that can be reused for receiving alive packets.
     * 
-    * @param socket
-    *           The UDP socket to wait on.
+    * @return A direct buffer.
+    */
+   public ByteBuffer CreateReceiveBuffer()
+   {
+      return ByteBuffer.allocateDirect(BUF_SIZE);
+   }
+
+   /**
+    * Receives an alive packet if one is waiting (non-blocking).
+    * 
+    * @param channel
+    *           The UDP channel to receive from.
+    * @param buffer
+    *           Receives the packet, see {@link #CreateReceiveBuffer()}. It
+    *           is flipped, so it can be read.
+    * @return The address of the originator, null if no packet was waiting.
     * 
-    * @return The content of the alive packet.
     * @throws IOException
     *            If an IO error occurs.
     */
-   public DatagramPacket ReceivePacket(DatagramSocket socket)
+   public SocketAddress ReceivePacket(DatagramChannel channel, ByteBuffer buffer)
             throws IOException
    {
-      byte[] incomingBuffer = new byte[BUF_SIZE];
+      buffer.clear();
+      SocketAddress address = channel.receive(buffer);
+      buffer.flip();
+
+      return address;
+   }
+
+   /**
+    * Extracts the relevant data from an incoming alive packet.
+    * 
+    * @param data
+    *           The packet content, between position and limit.
+    * @param address
+    *           The address of the originator.
+    * @param result
+    *           Receives the packet data.
+    * @return True if the packet was well-formed.
+    */
+   public boolean ExtractPacketData(ByteBuffer data, InetAddress address, AlivePacket result)
+   {
+      int offset = data.position();
+      int length = data.remaining();
 
-      // prepare the incoming packet
-      DatagramPacket incomingPacket = new DatagramPacket(incomingBuffer,
-               incomingBuffer.length);
+      result.setAddress(address);
 
-      // wait for incoming packets
-      socket.receive(incomingPacket);
+      if (length > 0 && data.get(offset) == ALIVE_PACKET_VERSION)
+      {
+         if (length < ALIVE_PACKET_SIZE)
+         {
+            System.out.println("Received malformed UDP packet! (too short)");
+            return false;
+         }
+
+         // absolute reads, buffers are big endian
+         result.Set(data.getShort(offset + 5) & 0xffff, data.getLong(offset + 7));
+         result.SetMetrics(data.getInt(offset + 1), data.getInt(offset + 15),
+                  data.getLong(offset + 19), data.getInt(offset + 27),
+                  data.getInt(offset + 31));
+         return true;
+      }
 
-      // return the extracted packet data
-      return incomingPacket;
+      return ExtractTextPacketData(data, result);
    }
 
    /**
-    * Extracts the relevant data from an incoming datagram alive packet.
+    * Extracts the data from the text alive packet of an older fileserver.
     * 
-    * @param incomingPacket
-    *           The incoming packet.
-    * @return Created AlivePacket instance.
+    * @param data
+    *           The packet content, between position and limit.
+    * @param result
+    *           Receives the packet data.
+    * @return True if the packet was well-formed.
     */
-   public AlivePacket ExtractPacketData(DatagramPacket incomingPacket)
+   private boolean ExtractTextPacketData(ByteBuffer data, AlivePacket result)
    {
-      AlivePacket returnValue = null;
-
       // extract the raw data as a string
-      String incomingData = new String(incomingPacket.getData());
+      byte[] rawData = new byte[data.remaining()];
+      data.duplicate().get(rawData);
+      String incomingData = new String(rawData);
+      String[] fields = Decode(incomingData).trim().split(FIELD_SEPARATOR);
 
       try
       {
-         int remoteTcpPort = Integer.valueOf(Decode(incomingData).trim())
-                  .intValue();
+         int remoteTcpPort = Integer.valueOf(fields[0]).intValue();
 
-         returnValue = new AlivePacket(incomingPacket.getAddress()
-                  .getHostAddress(), remoteTcpPort);
+         // the digest is missing in packets of older fileservers
+         if (fields.length > 1)
+         {
+            result.Set(remoteTcpPort, Long.valueOf(fields[1]).longValue());
+         }
+         else
+         {
+            result.Set(remoteTcpPort);
+         }
+         return true;
       }
       catch (NumberFormatException e)
       {
          System.out.println("Received malformed UDP packet! (not an integer)");
+         return false;
       }
-
-      return returnValue;
    }
 
    /**
-    * Creates a new protocol message including the encoded data.
+    * Creates a new binary alive packet.
     * 
-    * @param localPort
-    * @return
+    * @param data The content of the packet.
+    * @return The packet data.
     */
-   private byte[] CreateProtocolMessage(int localPort)
+   private byte[] CreateProtocolMessage(AlivePacket data)
    {
-      // create the textual message representation
-      String message = Encode(String.valueOf(localPort));
+      byte[] message = new byte[ALIVE_PACKET_SIZE];
+
+      message[0] = ALIVE_PACKET_VERSION;
+      writeInt(message, 1, data.getSequence());
+      message[5] = (byte) (data.getTcpPort() >>> 8);
+      message[6] = (byte) data.getTcpPort();
+      writeLong(message, 7, data.getCatalogDigest());
+      writeInt(message, 15, data.getActiveConnections());
+      writeLong(message, 19, data.getBytesPerSecond());
+      writeInt(message, 27, data.getQueueDepth());
+      writeInt(message, 31, data.getCapacityWeight());
 
-      // return as byte array
-      return message.getBytes();
+      return message;
    }
 
    /**
-    * Encodes text to avoid conflicting with Protocol constants.
+    * Writes a big endian int.
     * 
-    * @param encodedText
-    *           The plain text.
-    * @return The encoded text.
+    * @param data The target array.
+    * @param offset Position of the first byte.
+    * @param value The value.
+    */
+   private void writeInt(byte[] data, int offset, int value)
+   {
+      for (int i = 3; i >= 0; i--)
+      {
+         data[offset + i] = (byte) value;
+         value >>>= 8;
+      }
+   }
+
+   /**
+    * Writes a big endian long.
+    * 
+    * @param data The target array.
+    * @param offset Position of the first byte.
+    * @param value The value.
     */
-   private String Encode(String plainText)
+   private void writeLong(byte[] data, int offset, long value)
    {
-      return plainText
-               .replaceAll(PROTOCOL_PLAIN_MARKER, PROTOCOL_ENCODE_MARKER);
+      writeInt(data, offset, (int) (value >>> 32));
+      writeInt(data, offset + 4, (int) value);
    }
 
    /**
@@ -1,8 +1,21 @@
 package protocols;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
+import protocols.misc.CatalogChange;
+import protocols.misc.ContentDecoder;
 import protocols.misc.MessageType;
 import protocols.misc.ProtocolMessage;
 
@@ -10,10 +23,62 @@ import protocols.misc.ProtocolMessage;
  * Provides methods for convenient TCP communication between
  * clients, proxy and fileservers.
  * 
+ * Every connection starts in the line based text mode. If both peers
+ * support it, the binary framing mode can be negotiated: the initiator
+ * sends a binary mode offer, the acceptor answers with the binary mode
+ * marker and from then on every message written by a peer that has sent
+ * the marker is a binary frame:
+ * 
+ * <pre>
+ * type (1 byte) | request id (4 bytes) | header count (1 byte)
+ *               | headers (writeUTF each) | payload length (4 bytes)
+ *               | payload (raw bytes)
+ * </pre>
+ * 
+ * The request id allows several requests to share one connection: every
+ * response frame carries the id of its request. Request views created with
+ * {@link #forRequest(int)} write frames with their id; request id 0 is used
+ * for untagged messages and for the text mode.
+ * 
+ * Files are streamed as a file header, any number of content chunks of at
+ * most {@link #FILE_CHUNK_SIZE} bytes and a file trailer. Readers get one
+ * message per part, so no hop has to keep a whole file in memory.
+ * 
+ * In binary mode a peer can offer to receive compressed content. Once the
+ * other peer accepted a codec, it may send file lists compressed and files
+ * as one compressed stream that is split into the content chunks; the file
+ * header names the codec and still carries the uncompressed size.
+ * 
+ * Fileservers also answer requests for the changes of their catalog since
+ * a known catalog version, these exist in binary mode only. In binary mode
+ * file size messages and file headers may carry the SHA-256 checksum of
+ * the whole file for integrity checks.
+ * 
  * @author RaphM
  */
 public class MessageFileProtocol
 {
+   /**
+    * Maximum size of the content chunks a file is split into.
+    */
+   public static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+   /**
+    * Name of the deflate (zlib) compression codec.
+    */
+   public static final String COMPRESSION_DEFLATE = "deflate";
+
+   /**
+    * File lists with a smaller payload are not worth compressing.
+    */
+   private final int MIN_COMPRESSED_PAYLOAD = 512;
+
+   /**
+    * Largest payload a frame other than file data may carry, file lists
+    * and catalogs grow with the number of files.
+    */
+   private final int MAX_FRAME_PAYLOAD = 16 * 1024 * 1024;
+   
    /**
     * Marker element for protocol information.
     */
@@ -85,15 +150,174 @@ public class MessageFileProtocol
     */
    private final String PROT_REQUEST_DOWNLOAD = PROTOCOL_PLAIN_MARKER + "PERFORM_DOWNLOAD";
    
+   /**
+    * Offers the binary framing mode to the remote peer.
+    */
+   private final String PROT_BINARY_OFFER = PROTOCOL_PLAIN_MARKER + "BINARY_OFFER";
+
+   /**
+    * Last text line of a peer, everything after it is binary framed.
+    */
+   private final String PROT_BINARY_MODE = PROTOCOL_PLAIN_MARKER + "BINARY_MODE";
+
+   /**
+    * Binary frame type of a text message.
+    */
+   private final byte FRAME_TEXT = 1;
+
+   /**
+    * Binary frame type of a force logoff message.
+    */
+   private final byte FRAME_FORCE_LOGOFF = 2;
+
+   /**
+    * Binary frame type of a filename list request.
+    */
+   private final byte FRAME_REQUEST_FILENAMES = 3;
+
+   /**
+    * Binary frame type of a filename list.
+    */
+   private final byte FRAME_FILENAMES = 4;
+
+   /**
+    * Binary frame type of a download info request.
+    */
+   private final byte FRAME_REQUEST_DOWNLOADINFO = 5;
+
+   /**
+    * Binary frame type of a file size message (size, modification time
+    * and optional checksum).
+    */
+   private final byte FRAME_FILESIZE = 6;
+
+   /**
+    * Binary frame type of a download request (name, range offset and
+    * range length).
+    */
+   private final byte FRAME_REQUEST_DOWNLOAD = 7;
+
+   /**
+    * Binary frame type of a file header (name, size, codec, range offset,
+    * range length, optional checksum and modification time).
+    */
+   private final byte FRAME_FILE_START = 8;
+
+   /**
+    * Binary frame type of a chunk of file content.
+    */
+   private final byte FRAME_FILE_DATA = 9;
+
+   /**
+    * Binary frame type of a file trailer.
+    */
+   private final byte FRAME_FILE_END = 10;
+
+   /**
+    * Binary frame type of a compression offer (header: offered codecs).
+    */
+   private final byte FRAME_COMPRESSION_OFFER = 11;
+
+   /**
+    * Binary frame type of a compression answer (header: accepted codec,
+    * none if the offer was declined).
+    */
+   private final byte FRAME_COMPRESSION = 12;
+
+   /**
+    * Binary frame type of a catalog changes request (header: catalog epoch,
+    * known catalog version).
+    */
+   private final byte FRAME_REQUEST_CATALOG = 13;
+
+   /**
+    * Binary frame type of catalog changes (header: catalog epoch, catalog
+    * version, 1 for the whole catalog, codec if compressed; payload: the
+    * changes).
+    */
+   private final byte FRAME_CATALOG = 14;
+
+   /**
+    * Payload of frames that carry no payload.
+    */
+   private final byte[] EMPTY_PAYLOAD = new byte[0];
+
    /**
     * Client endpoint of the communication socket.
     */
-   private BufferedReader clientConnectionPoint;
+   private DataInputStream clientConnectionPoint;
    
    /**
     * Server endpoint of the communication socket.
     */
-   private PrintWriter serverConnectionPoint;
+   private DataOutputStream serverConnectionPoint;
+
+   /**
+    * Channel of the server endpoint, used for zero-copy transfers.
+    * Null if the socket does not provide a channel.
+    */
+   private WritableByteChannel serverChannel;
+
+   /**
+    * Line separator used for text mode messages.
+    */
+   private final byte[] lineSeparator = System.getProperty("line.separator").getBytes();
+
+   /**
+    * Reused buffer for reading text lines.
+    */
+   private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+   /**
+    * Indicates if this endpoint reads or writes binary frames.
+    */
+   private volatile boolean binaryMode;
+
+   /**
+    * Codec the remote peer accepted for compressed content, null if none.
+    */
+   private volatile String compression;
+
+   /**
+    * The endpoint that owns the stream, this instance for everything except
+    * request views. Its mode and write lock are used.
+    */
+   private final MessageFileProtocol root;
+
+   /**
+    * Serializes the writes of the endpoint and its request views. A lock
+    * instead of a monitor, so writers that block on the socket do not pin
+    * the carrier of a virtual thread.
+    */
+   private final ReentrantLock writeLock = new ReentrantLock();
+
+   /**
+    * Converts the content of the file that is sent in text mode, keeps the
+    * state of a character that is split across two chunks.
+    */
+   private final CharsetDecoder textDecoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+   /**
+    * Bytes of an incomplete character at the end of the last text chunk.
+    */
+   private byte[] textRemainder = EMPTY_PAYLOAD;
+
+   /**
+    * Request id that is written into every binary frame.
+    */
+   private final int requestId;
+
+   /**
+    * Already decoded messages that are handed out before reading again.
+    */
+   private final LinkedList<ProtocolMessage> pendingMessages = new LinkedList<ProtocolMessage>();
+
+   /**
+    * Source of the client endpoint of incremental decoders, null otherwise.
+    */
+   private BufferInputStream incrementalInput;
 
    /**
     * Constructor for client usage.
@@ -102,7 +326,21 @@ public class MessageFileProtocol
     */
    public MessageFileProtocol(InputStream inputstream)
    {
-      this.clientConnectionPoint = new BufferedReader(new InputStreamReader(inputstream));
+      this.root = this;
+      this.requestId = 0;
+      this.clientConnectionPoint = new DataInputStream(new BufferedInputStream(inputstream));
+   }
+
+   /**
+    * Constructor for an incremental decoder that reads messages from
+    * received byte buffers, see {@link #decodeMessage(ByteBuffer)}.
+    */
+   public MessageFileProtocol()
+   {
+      this.root = this;
+      this.requestId = 0;
+      this.incrementalInput = new BufferInputStream();
+      this.clientConnectionPoint = new DataInputStream(incrementalInput);
    }
    
    /**
@@ -112,9 +350,235 @@ public class MessageFileProtocol
     */
    public MessageFileProtocol(OutputStream outputStream)
    {
-      this.serverConnectionPoint = new PrintWriter(outputStream, true);
+      this.root = this;
+      this.requestId = 0;
+      this.serverConnectionPoint = new DataOutputStream(new BufferedOutputStream(outputStream));
+   }
+
+   /**
+    * Constructor for server usage with zero-copy support.
+    * 
+    * @param outputStream The output stream.
+    * @param channel The channel of the same socket, may be null.
+    */
+   public MessageFileProtocol(OutputStream outputStream, WritableByteChannel channel)
+   {
+      this(outputStream);
+      this.serverChannel = channel;
+   }
+
+   /**
+    * Creates a request view of an outgoing endpoint.
+    * 
+    * @param root The outgoing endpoint.
+    * @param requestId Request id of the view.
+    */
+   private MessageFileProtocol(MessageFileProtocol root, int requestId)
+   {
+      this.root = root;
+      this.requestId = requestId;
+      this.serverConnectionPoint = root.serverConnectionPoint;
+      this.serverChannel = root.serverChannel;
+   }
+
+   /**
+    * Creates a view of this outgoing endpoint that tags all binary frames
+    * with the given request id. Frames of different views never interleave.
+    * 
+    * @param requestId The request id, must not be 0.
+    * @return The request view.
+    */
+   public MessageFileProtocol forRequest(int requestId)
+   {
+      return new MessageFileProtocol(root, requestId);
+   }
+
+   /**
+    * Gets the request id that is written into binary frames.
+    * 
+    * @return The request id, 0 for untagged messages.
+    */
+   public int getRequestId()
+   {
+      return requestId;
+   }
+
+   /**
+    * Gets the lock that serializes all writes to the underlying stream.
+    * Text mode messages carry no request id, holding this lock keeps a
+    * text mode file transfer in one piece.
+    * 
+    * @return The write lock, shared by all request views.
+    */
+   public Lock getWriteLock()
+   {
+      return root.writeLock;
+   }
+
+   /**
+    * Indicates if this endpoint reads or writes binary frames.
+    * 
+    * @return True if binary framing is active.
+    */
+   public boolean isBinaryMode()
+   {
+      return root.binaryMode;
+   }
+
+   /**
+    * Offers the binary framing mode to the remote peer. Peers that support
+    * it answer with a binary mode message.
+    */
+   public void sendBinaryModeOffer()
+   {
+      root.writeLock.lock();
+      try
+      {
+         println(PROT_BINARY_OFFER);
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Switches this (outgoing) endpoint into binary mode. Must only be called
+    * after the remote peer offered or accepted the binary mode.
+    * Calling it on an endpoint that is already binary has no effect.
+    */
+   public void switchToBinaryMode()
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (!root.binaryMode)
+         {
+            println(PROT_BINARY_MODE);
+            root.binaryMode = true;
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Offers the binary mode to the remote peer and waits for its answer.
+    * Switches this (outgoing) endpoint and the given incoming endpoint
+    * into binary mode if the peer accepts.
+    * 
+    * @param responseProtocol The incoming endpoint of the same connection.
+    * @return True if the binary mode is active afterwards.
+    * @throws IOException
+    */
+   public boolean negotiateBinaryMode(MessageFileProtocol responseProtocol) throws IOException
+   {
+      sendBinaryModeOffer();
+
+      ProtocolMessage response = responseProtocol.readMessage();
+      if (response.getResultType() == MessageType.BinaryMode)
+      {
+         switchToBinaryMode();
+      }
+
+      return root.binaryMode;
    }
    
+   /**
+    * Gets the codec the remote peer accepted for compressed content.
+    * 
+    * @return The codec name, null if content must be sent uncompressed.
+    */
+   public String getCompression()
+   {
+      return root.compression;
+   }
+
+   /**
+    * Offers the remote peer to send compressed content to this peer. Only
+    * possible in binary mode, the peer answers with a compression message.
+    */
+   public void sendCompressionOffer()
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_COMPRESSION_OFFER, EMPTY_PAYLOAD, COMPRESSION_DEFLATE);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Answers a compression offer of the remote peer. Content sent through
+    * this (outgoing) endpoint is compressed with the accepted codec.
+    * 
+    * @param encoding The offered codec that is supported, null to decline.
+    */
+   public void acceptCompression(String encoding)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            root.compression = encoding;
+            if (encoding != null)
+            {
+               writeFrame(FRAME_COMPRESSION, EMPTY_PAYLOAD, encoding);
+            }
+            else
+            {
+               writeFrame(FRAME_COMPRESSION, EMPTY_PAYLOAD);
+            }
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Applies the answer to an own compression offer. The remote peer is
+    * able to read the codec it accepted, so content sent through this
+    * (outgoing) endpoint is compressed with it as well.
+    * 
+    * @param encoding The accepted codec, null if the offer was declined.
+    */
+   public void useCompression(String encoding)
+   {
+      root.compression = encoding;
+   }
+
+   /**
+    * Offers compression to the remote peer and waits for its answer. Must
+    * only be called in binary mode.
+    * 
+    * @param responseProtocol The incoming endpoint of the same connection.
+    * @return True if a codec was accepted.
+    * @throws IOException
+    */
+   public boolean negotiateCompression(MessageFileProtocol responseProtocol) throws IOException
+   {
+      sendCompressionOffer();
+
+      ProtocolMessage response = responseProtocol.readMessage();
+      if (response.getResultType() == MessageType.Compression)
+      {
+         useCompression(response.getEncoding());
+      }
+
+      return root.compression != null;
+   }
+
    /**
     * Writes text into the socket.
     * 
@@ -122,7 +586,22 @@ public class MessageFileProtocol
     */
    public void writeText(String text)
    {
-      serverConnectionPoint.println(encode(text));
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_TEXT, text.getBytes());
+         }
+         else
+         {
+            println(encode(text));
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
    /**
@@ -130,7 +609,22 @@ public class MessageFileProtocol
     */
    public void sendForceLogoff()
    {
-      serverConnectionPoint.println(PROT_FORCE_LOGOFF);
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_FORCE_LOGOFF, EMPTY_PAYLOAD);
+         }
+         else
+         {
+            println(PROT_FORCE_LOGOFF);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
    /**
@@ -138,15 +632,62 @@ public class MessageFileProtocol
     */
    public void sendFileNamesRequest()
    {  
-      serverConnectionPoint.println(PROT_REQUEST_FILENAMES);
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_REQUEST_FILENAMES, EMPTY_PAYLOAD);
+         }
+         else
+         {
+            println(PROT_REQUEST_FILENAMES);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
    /**
-    * Sends a list filenames request.
+    * Sends a download request. Binary frames carry the file name, text mode
+    * peers refer to the preceding download info request.
+    * 
+    * @param fileName The requested file.
+    */
+   public void sendDownloadRequest(String fileName)
+   {
+      sendDownloadRequest(fileName, 0, -1);
+   }
+   
+   /**
+    * Sends a download request for a byte range of a file. Ranges are only
+    * supported in binary mode, text mode peers always send the whole file.
+    * 
+    * @param fileName The requested file.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes, -1 up to the end of the file.
     */
-   public void sendDownloadRequest()
+   public void sendDownloadRequest(String fileName, long offset, long length)
    {  
-      serverConnectionPoint.println(PROT_REQUEST_DOWNLOAD);
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_REQUEST_DOWNLOAD, EMPTY_PAYLOAD, fileName,
+                     String.valueOf(offset), String.valueOf(length));
+         }
+         else
+         {
+            println(PROT_REQUEST_DOWNLOAD);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
    /**
@@ -156,18 +697,331 @@ public class MessageFileProtocol
     */
    public void sendFileSizeInfo(long size)
    {
-      serverConnectionPoint.println(PROT_REQUEST_FILESIZE);
-      serverConnectionPoint.println(encode(String.valueOf(size)));
-      serverConnectionPoint.println(PROT_REQUEST_FILESIZE_END);
+      sendFileSizeInfo(size, 0);
+   }
+   
+   /**
+    * Sends a file size request together with the modification time of the
+    * file. The modification time is only sent in binary mode.
+    * 
+    * @param size The file size, -1 if the file was not found.
+    * @param lastModified The modification time, 0 if unknown.
+    */
+   public void sendFileSizeInfo(long size, long lastModified)
+   {
+      sendFileSizeInfo(size, lastModified, null);
+   }
+
+   /**
+    * Sends a file size request together with the modification time and
+    * the checksum of the file. Both are only sent in binary mode.
+    * 
+    * @param size The file size, -1 if the file was not found.
+    * @param lastModified The modification time, 0 if unknown.
+    * @param checksum The hex encoded SHA-256 checksum, null if unknown.
+    */
+   public void sendFileSizeInfo(long size, long lastModified, String checksum)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_FILESIZE, EMPTY_PAYLOAD, String.valueOf(size),
+                     String.valueOf(lastModified), checksum != null ? checksum : "");
+         }
+         else
+         {
+            println(PROT_REQUEST_FILESIZE, encode(String.valueOf(size)),
+                     PROT_REQUEST_FILESIZE_END);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
-   public void sendFile(String fileName, String fileContent)
+   /**
+    * Sends the header of a file, must be followed by the file content
+    * chunks and the file trailer.
+    * 
+    * @param fileName The file name.
+    * @param size The file size.
+    */
+   public void sendFileStart(String fileName, long size)
+   {
+      sendFileStart(fileName, size, null);
+   }
+
+   /**
+    * Sends the header of a file whose content chunks are compressed. The
+    * codec must have been accepted by the remote peer (see
+    * {@link #getCompression()}), compressed files cannot be sent in text mode.
+    * 
+    * @param fileName The file name.
+    * @param size The uncompressed file size.
+    * @param encoding The codec of the content chunks, null if uncompressed.
+    */
+   public void sendFileStart(String fileName, long size, String encoding)
+   {
+      sendFileStart(fileName, size, encoding, 0, size);
+   }
+
+   /**
+    * Sends the header of a byte range of a file. The content chunks that
+    * follow only contain the range. Text mode peers cannot be told about
+    * the range, they receive the content as if it was the whole file.
+    * 
+    * @param fileName The file name.
+    * @param size The uncompressed size of the whole file.
+    * @param encoding The codec of the content chunks, null if uncompressed.
+    * @param offset Position of the range in the file.
+    * @param length Uncompressed length of the range.
+    */
+   public void sendFileStart(String fileName, long size, String encoding, long offset, long length)
    {
-      serverConnectionPoint.println(PROT_FILE_NAME);
-      serverConnectionPoint.println(encode(fileName));
-      serverConnectionPoint.println(PROT_FILE_CONTENT);
-      serverConnectionPoint.println(encode(fileContent));
-      serverConnectionPoint.println(PROT_TEXT_END);
+      sendFileStart(fileName, size, encoding, offset, length, null);
+   }
+
+   /**
+    * Sends the header of a byte range of a file together with the checksum
+    * of the whole file. The checksum is only sent in binary mode.
+    * 
+    * @param fileName The file name.
+    * @param size The uncompressed size of the whole file.
+    * @param encoding The codec of the content chunks, null if uncompressed.
+    * @param offset Position of the range in the file.
+    * @param length Uncompressed length of the range.
+    * @param checksum The hex encoded SHA-256 checksum of the whole file,
+    *           null if unknown.
+    */
+   public void sendFileStart(String fileName, long size, String encoding, long offset,
+            long length, String checksum)
+   {
+      sendFileStart(fileName, size, encoding, offset, length, checksum, 0);
+   }
+
+   /**
+    * Sends the header of a byte range of a file together with the checksum
+    * and the modification time of the whole file, which tell a resuming
+    * peer if its partial copy is still up to date. Both are only sent in
+    * binary mode.
+    * 
+    * @param fileName The file name.
+    * @param size The uncompressed size of the whole file.
+    * @param encoding The codec of the content chunks, null if uncompressed.
+    * @param offset Position of the range in the file.
+    * @param length Uncompressed length of the range.
+    * @param checksum The hex encoded SHA-256 checksum of the whole file,
+    *           null if unknown.
+    * @param lastModified The modification time, 0 if unknown.
+    */
+   public void sendFileStart(String fileName, long size, String encoding, long offset,
+            long length, String checksum, long lastModified)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_FILE_START, EMPTY_PAYLOAD, 0, 0, fileName, String.valueOf(size),
+                     encoding != null ? encoding : "", String.valueOf(offset), String.valueOf(length),
+                     checksum != null ? checksum : "", String.valueOf(lastModified));
+         }
+         else
+         {
+            root.textDecoder.reset();
+            root.textRemainder = EMPTY_PAYLOAD;
+            println(PROT_FILE_NAME, encode(fileName), PROT_FILE_CONTENT);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+   
+   /**
+    * Sends a chunk of file content. In binary mode the content is sent as
+    * raw payload, in text mode it is converted into encoded text.
+    * 
+    * @param buffer The buffer that holds the content.
+    * @param offset Offset of the content in the buffer.
+    * @param length Length of the content, at most FILE_CHUNK_SIZE.
+    */
+   public void sendFileChunk(byte[] buffer, int offset, int length)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_FILE_DATA, buffer, offset, length);
+         }
+         else
+         {
+            print(encode(decodeTextChunk(buffer, offset, length, false)));
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+   
+   /**
+    * Sends a chunk of file content from a buffer. In binary mode with a
+    * socket channel direct buffers are written to the socket without being
+    * copied into the heap.
+    * 
+    * @param content The content between position and limit, at most
+    *           FILE_CHUNK_SIZE bytes. The position is moved to the limit.
+    * @throws IOException If the content cannot be sent.
+    */
+   public void sendFileChunk(ByteBuffer content) throws IOException
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode && serverChannel != null)
+         {
+            // the frame header still goes through the buffered stream
+            writeFrameHeader(FRAME_FILE_DATA, content.remaining());
+            serverConnectionPoint.flush();
+
+            while (content.hasRemaining())
+            {
+               serverChannel.write(content);
+            }
+         }
+         else
+         {
+            byte[] chunk = new byte[content.remaining()];
+            content.get(chunk);
+            sendFileChunk(chunk, 0, chunk.length);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Sends a chunk of file content directly from a file channel.In binary
+    * mode with a socket channel the payload is transferred by the operating
+    * system (sendfile) without being copied into user space, otherwise the
+    * chunk is read into memory and sent as usual.
+    * 
+    * @param source The file channel.
+    * @param position Position of the chunk in the file.
+    * @param length Length of the chunk, at most FILE_CHUNK_SIZE.
+    * @throws IOException If the file cannot be read.
+    */
+   public void sendFileChunk(FileChannel source, long position, int length) throws IOException
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode && serverChannel != null)
+         {
+            // the frame header still goes through the buffered stream
+            writeFrameHeader(FRAME_FILE_DATA, length);
+            serverConnectionPoint.flush();
+
+            long transferred = 0;
+            while (transferred < length)
+            {
+               long count = source.transferTo(position + transferred, length - transferred, serverChannel);
+               if (count <= 0)
+               {
+                  throw new EOFException("File is shorter than announced!");
+               }
+               transferred += count;
+            }
+         }
+         else
+         {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining())
+            {
+               if (source.read(buffer, position + buffer.position()) == -1)
+               {
+                  throw new EOFException("File is shorter than announced!");
+               }
+            }
+            sendFileChunk(buffer.array(), 0, length);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+   
+   /**
+    * Converts a chunk of file content into text. Bytes of a character that
+    * continues in the next chunk are kept until it arrives. Must be called
+    * with the write lock held.
+    * 
+    * @param buffer The buffer that holds the content.
+    * @param offset Offset of the content in the buffer.
+    * @param length Length of the content.
+    * @param endOfInput True after the last chunk of the file.
+    * @return The text.
+    */
+   private String decodeTextChunk(byte[] buffer, int offset, int length, boolean endOfInput)
+   {
+      ByteBuffer input;
+      if (root.textRemainder.length > 0)
+      {
+         input = ByteBuffer.allocate(root.textRemainder.length + length);
+         input.put(root.textRemainder).put(buffer, offset, length).flip();
+      }
+      else
+      {
+         input = ByteBuffer.wrap(buffer, offset, length);
+      }
+
+      CharBuffer output = CharBuffer.allocate((int) ((input.remaining() + 1)
+               * root.textDecoder.maxCharsPerByte()) + 1);
+      root.textDecoder.decode(input, output, endOfInput);
+      if (endOfInput)
+      {
+         root.textDecoder.flush(output);
+      }
+
+      root.textRemainder = new byte[input.remaining()];
+      input.get(root.textRemainder);
+      output.flip();
+      return output.toString();
+   }
+
+   /**
+    * Sends the trailer of a file.
+    */
+   public void sendFileEnd()
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_FILE_END, EMPTY_PAYLOAD);
+         }
+         else
+         {
+            // an incomplete character at the end of the file is replaced
+            print(encode(decodeTextChunk(EMPTY_PAYLOAD, 0, 0, true)));
+            // terminate the last content line, the reader strips it again
+            println("", PROT_TEXT_END);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
    /**
@@ -177,11 +1031,94 @@ public class MessageFileProtocol
     */
    public void sendDownloadInfoRequest(String fileName)
    {
-      serverConnectionPoint.println(PROT_REQUEST_DOWNLOADINFO);
-      serverConnectionPoint.println(encode(fileName));
-      serverConnectionPoint.println(PROT_REQUEST_DOWNLOADINFO_END);
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_REQUEST_DOWNLOADINFO, EMPTY_PAYLOAD, fileName);
+         }
+         else
+         {
+            println(PROT_REQUEST_DOWNLOADINFO, encode(fileName),
+                     PROT_REQUEST_DOWNLOADINFO_END);
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
    }
    
+   /**
+    * Sends a request for the catalog changes since a known catalog version.
+    * 
+    * @param epoch The fileserver run the known version belongs to, 0 if
+    *           no version is known.
+    * @param version The known catalog version.
+    */
+   public void sendCatalogChangesRequest(long epoch, long version)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            writeFrame(FRAME_REQUEST_CATALOG, EMPTY_PAYLOAD, String.valueOf(epoch),
+                     String.valueOf(version));
+         }
+         else
+         {
+            System.out.println("Catalog changes can only be requested in binary mode!");
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Sends catalog changes.
+    * 
+    * @param epoch The fileserver run the catalog version belongs to.
+    * @param version The catalog version after the changes.
+    * @param fullCatalog True if the changes contain the whole catalog.
+    * @param changes The changes.
+    */
+   public void sendCatalogChanges(long epoch, long version, boolean fullCatalog,
+            Vector<CatalogChange> changes)
+   {
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            byte[] payload = encodeCatalogChanges(changes);
+            String full = fullCatalog ? "1" : "0";
+
+            if (root.compression != null && payload.length >= MIN_COMPRESSED_PAYLOAD)
+            {
+               writeFrame(FRAME_CATALOG, compress(payload), String.valueOf(epoch),
+                        String.valueOf(version), full, root.compression);
+            }
+            else
+            {
+               writeFrame(FRAME_CATALOG, payload, String.valueOf(epoch),
+                        String.valueOf(version), full);
+            }
+         }
+         else
+         {
+            System.out.println("Catalog changes can only be sent in binary mode!");
+         }
+      }
+      finally
+      {
+         root.writeLock.unlock();
+      }
+   }
+
    /**
     * Sends a filenames message.
     * 
@@ -189,14 +1126,41 @@ public class MessageFileProtocol
     */
    public void sendFileNames(Vector<String> fileNames)
    {
-      serverConnectionPoint.println(PROT_FILENAMES_START);
+      root.writeLock.lock();
+      try
+      {
+         if (root.binaryMode)
+         {
+            byte[] payload = encodeFileNames(fileNames);
+
+            if (root.compression != null && payload.length >= MIN_COMPRESSED_PAYLOAD)
+            {
+               writeFrame(FRAME_FILENAMES, compress(payload), root.compression);
+            }
+            else
+            {
+               writeFrame(FRAME_FILENAMES, payload);
+            }
+         }
+         else
+         {
+            String[] lines = new String[fileNames.size() + 2];
+            int index = 0;
       
-      for (String filename : fileNames)
+            lines[index++] = PROT_FILENAMES_START;
+            for (String filename : fileNames)
+            {
+               lines[index++] = encode(filename);
+            }
+            lines[index] = PROT_FILENAMES_END;
+
+            println(lines);
+         }
+      }
+      finally
       {
-         serverConnectionPoint.println(encode(filename));
+         root.writeLock.unlock();
       }
-      
-      serverConnectionPoint.println(PROT_FILENAMES_END);
    }
    
    /**
@@ -207,8 +1171,18 @@ public class MessageFileProtocol
     */
    public ProtocolMessage readMessage() throws IOException
    {
+      if (!pendingMessages.isEmpty())
+      {
+         return pendingMessages.removeFirst();
+      }
+
+      if (binaryMode)
+      {
+         return readFrame();
+      }
+
       ProtocolMessage result;
-      String incomingLine = clientConnectionPoint.readLine();
+      String incomingLine = readLine();
       
       // also treat End of Stream as an IO exception
       if (incomingLine == null)
@@ -220,10 +1194,14 @@ public class MessageFileProtocol
       {
          // received file header element, try to read the filename
          String fileName = readFileName();
-         String fileContent = readFileContent();
+         byte[] fileContent = readFileContent().getBytes();
          
-         // fill return value with file information
-         result = new ProtocolMessage(fileName, fileContent);
+         // text mode files can only be read as a whole, hand them out
+         // in the same header / chunk / trailer parts as binary files
+         result = new ProtocolMessage(MessageType.File, fileName, fileContent.length);
+         result.setRange(0, fileContent.length);
+         pendingMessages.add(new ProtocolMessage(fileContent));
+         pendingMessages.add(new ProtocolMessage(MessageType.FileEnd));
       }
       else if (incomingLine.equals(PROT_FILENAMES_START))
       {
@@ -257,6 +1235,17 @@ public class MessageFileProtocol
          // return force logoff message
          result = new ProtocolMessage(MessageType.FileNamesRequest);
       }
+      else if (incomingLine.equals(PROT_BINARY_OFFER))
+      {
+         // the remote peer would like to switch to binary mode
+         result = new ProtocolMessage(MessageType.BinaryModeOffer);
+      }
+      else if (incomingLine.equals(PROT_BINARY_MODE))
+      {
+         // the remote peer sends binary frames from now on
+         binaryMode = true;
+         result = new ProtocolMessage(MessageType.BinaryMode);
+      }
       else
       {
          // normal text message received, fill return value with text information
@@ -265,6 +1254,435 @@ public class MessageFileProtocol
       
       return result;
    }
+
+   /**
+    * Decodes the next complete message of received input. Must only be
+    * called on incremental decoders.
+    * 
+    * @param input The received bytes between position and limit. The
+    *           position is advanced behind the decoded message.
+    * @return The message, null if the input ends with an incomplete one.
+    * @throws IOException If the input is invalid.
+    */
+   public ProtocolMessage decodeMessage(ByteBuffer input) throws IOException
+   {
+      if (!pendingMessages.isEmpty())
+      {
+         return pendingMessages.removeFirst();
+      }
+
+      if (binaryMode ? !isFrameComplete(input) : !containsLine(input))
+      {
+         return null;
+      }
+
+      // decode from a copy, so an incomplete message consumes nothing
+      ByteBuffer source = input.duplicate();
+      incrementalInput.setSource(source);
+      try
+      {
+         ProtocolMessage result = readMessage();
+         input.position(source.position());
+         return result;
+      }
+      catch (EOFException e)
+      {
+         // multi line text message, the rest has not been received yet
+         return null;
+      }
+      finally
+      {
+         incrementalInput.setSource(null);
+      }
+   }
+
+   /**
+    * Indicates if the input starts with a complete binary frame.
+    * 
+    * @param input The received bytes between position and limit.
+    * @return True if the whole frame was received.
+    */
+   private boolean isFrameComplete(ByteBuffer input)
+   {
+      // type and request id
+      int position = input.position() + 5;
+
+      if (position >= input.limit())
+      {
+         return false;
+      }
+      int headerCount = input.get(position++) & 0xff;
+
+      for (int i = 0; i < headerCount; i++)
+      {
+         if (position + 2 > input.limit())
+         {
+            return false;
+         }
+         position += 2 + (input.getShort(position) & 0xffff);
+      }
+
+      if (position + 4 > input.limit())
+      {
+         return false;
+      }
+      int payloadLength = input.getInt(position);
+
+      // invalid lengths are reported by the decoder
+      return payloadLength < 0 || (long) position + 4 + payloadLength <= input.limit();
+   }
+
+   /**
+    * Indicates if the input contains a line terminator.
+    * 
+    * @param input The received bytes between position and limit.
+    * @return True if at least one line was received.
+    */
+   private boolean containsLine(ByteBuffer input)
+   {
+      for (int i = input.position(); i < input.limit(); i++)
+      {
+         if (input.get(i) == '\n')
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Reads and decodes one binary frame.
+    * 
+    * @return The decoded message.
+    * @throws IOException
+    */
+   private ProtocolMessage readFrame() throws IOException
+   {
+      ProtocolMessage result;
+
+      // read the frame header, End of Stream results in an EOFException
+      byte type = clientConnectionPoint.readByte();
+      int frameRequestId = clientConnectionPoint.readInt();
+      String[] headers = new String[clientConnectionPoint.readUnsignedByte()];
+      for (int i = 0; i < headers.length; i++)
+      {
+         headers[i] = clientConnectionPoint.readUTF();
+      }
+
+      // read the raw payload
+      int payloadLength = clientConnectionPoint.readInt();
+      if (payloadLength < 0)
+      {
+         throw new IOException("Received frame with negative payload length!");
+      }
+      if (payloadLength > (type == FRAME_FILE_DATA ? FILE_CHUNK_SIZE
+               : MAX_FRAME_PAYLOAD))
+      {
+         // do not let a bogus length allocate huge buffers
+         throw new IOException("Received frame with too large payload length: "
+                  + payloadLength);
+      }
+      byte[] payload = payloadLength == 0 ? EMPTY_PAYLOAD : new byte[payloadLength];
+      clientConnectionPoint.readFully(payload);
+
+      switch (type)
+      {
+         case FRAME_TEXT:
+            result = new ProtocolMessage(new String(payload));
+            break;
+         case FRAME_FORCE_LOGOFF:
+            result = new ProtocolMessage(MessageType.ForceLogoff);
+            break;
+         case FRAME_REQUEST_FILENAMES:
+            result = new ProtocolMessage(MessageType.FileNamesRequest);
+            break;
+         case FRAME_FILENAMES:
+            if (headers.length > 0)
+            {
+               // compressed list, the header names the codec
+               payload = ContentDecoder.decodeAll(headers[0], payload);
+            }
+            result = new ProtocolMessage(decodeFileNames(payload));
+            break;
+         case FRAME_REQUEST_DOWNLOADINFO:
+            result = new ProtocolMessage(MessageType.DownloadInfoRequest, getHeader(headers, 0));
+            break;
+         case FRAME_FILESIZE:
+            result = new ProtocolMessage(MessageType.FileSizeInfo, parseSize(getHeader(headers, 0)));
+            if (headers.length > 1)
+            {
+               result.setLastModified(parseSize(headers[1]));
+            }
+            if (headers.length > 2 && headers[2].length() > 0)
+            {
+               result.setChecksum(headers[2]);
+            }
+            break;
+         case FRAME_REQUEST_DOWNLOAD:
+            result = new ProtocolMessage(MessageType.DownloadRequest, getHeader(headers, 0));
+            if (headers.length > 2)
+            {
+               result.setRange(parseSize(headers[1]), parseSize(headers[2]));
+            }
+            break;
+         case FRAME_FILE_START:
+            result = new ProtocolMessage(MessageType.File, getHeader(headers, 0),
+                     parseSize(getHeader(headers, 1)));
+            if (headers.length > 2 && headers[2].length() > 0)
+            {
+               result.setEncoding(headers[2]);
+            }
+            if (headers.length > 4)
+            {
+               result.setRange(parseSize(headers[3]), parseSize(headers[4]));
+            }
+            else
+            {
+               result.setRange(0, result.getFileSize());
+            }
+            if (headers.length > 5 && headers[5].length() > 0)
+            {
+               result.setChecksum(headers[5]);
+            }
+            if (headers.length > 6)
+            {
+               result.setLastModified(parseSize(headers[6]));
+            }
+            break;
+         case FRAME_FILE_DATA:
+            result = new ProtocolMessage(payload);
+            break;
+         case FRAME_FILE_END:
+            result = new ProtocolMessage(MessageType.FileEnd);
+            break;
+         case FRAME_COMPRESSION_OFFER:
+            result = new ProtocolMessage(MessageType.CompressionOffer);
+            for (String encoding : headers)
+            {
+               // pick the first offered codec that is supported
+               if (COMPRESSION_DEFLATE.equals(encoding))
+               {
+                  result.setEncoding(encoding);
+                  break;
+               }
+            }
+            break;
+         case FRAME_COMPRESSION:
+            result = new ProtocolMessage(MessageType.Compression);
+            if (headers.length > 0)
+            {
+               result.setEncoding(headers[0]);
+            }
+            break;
+         case FRAME_REQUEST_CATALOG:
+            result = new ProtocolMessage(MessageType.CatalogChangesRequest);
+            result.setCatalogVersion(parseSize(getHeader(headers, 0)),
+                     parseSize(getHeader(headers, 1)));
+            break;
+         case FRAME_CATALOG:
+            if (headers.length > 3)
+            {
+               // compressed changes, the header names the codec
+               payload = ContentDecoder.decodeAll(headers[3], payload);
+            }
+            result = new ProtocolMessage(MessageType.CatalogChanges);
+            result.setCatalogVersion(parseSize(getHeader(headers, 0)),
+                     parseSize(getHeader(headers, 1)));
+            result.setCatalogChanges(decodeCatalogChanges(payload),
+                     "1".equals(getHeader(headers, 2)));
+            break;
+         default:
+            throw new IOException("Received frame with unknown type: " + type);
+      }
+
+      result.setRequestId(frameRequestId);
+      return result;
+   }
+
+   /**
+    * Writes one binary frame and flushes it.
+    * 
+    * @param type The frame type.
+    * @param payload The raw payload.
+    * @param headers The header strings.
+    */
+   private void writeFrame(byte type, byte[] payload, String... headers)
+   {
+      writeFrame(type, payload, 0, payload.length, headers);
+   }
+
+   /**
+    * Writes one binary frame and flushes it.
+    * 
+    * @param type The frame type.
+    * @param buffer The buffer that holds the raw payload.
+    * @param offset Offset of the payload in the buffer.
+    * @param length Length of the payload.
+    * @param headers The header strings.
+    */
+   private void writeFrame(byte type, byte[] buffer, int offset, int length, String... headers)
+   {
+      try
+      {
+         writeFrameHeader(type, length, headers);
+         serverConnectionPoint.write(buffer, offset, length);
+         serverConnectionPoint.flush();
+      }
+      catch (IOException e)
+      {
+         // same behaviour as the text mode, errors show up on the reading side
+         System.out.println("Could not write protocol frame!");
+      }
+   }
+
+   /**
+    * Writes everything of a binary frame except the payload.
+    * 
+    * @param type The frame type.
+    * @param length Length of the payload that follows.
+    * @param headers The header strings.
+    * @throws IOException
+    */
+   private void writeFrameHeader(byte type, int length, String... headers) throws IOException
+   {
+      serverConnectionPoint.writeByte(type);
+      serverConnectionPoint.writeInt(requestId);
+      serverConnectionPoint.writeByte(headers.length);
+      for (String header : headers)
+      {
+         serverConnectionPoint.writeUTF(header);
+      }
+      serverConnectionPoint.writeInt(length);
+   }
+
+   /**
+    * Compresses a self-contained buffer with the deflate codec.
+    * 
+    * @param data The uncompressed buffer.
+    * @return The compressed buffer.
+    */
+   private byte[] compress(byte[] data)
+   {
+      Deflater deflater = new Deflater();
+      ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2);
+      byte[] buffer = new byte[4096];
+
+      try
+      {
+         deflater.setInput(data);
+         deflater.finish();
+         while (!deflater.finished())
+         {
+            int count = deflater.deflate(buffer);
+            result.write(buffer, 0, count);
+         }
+      }
+      finally
+      {
+         deflater.end();
+      }
+
+      return result.toByteArray();
+   }
+
+   /**
+    * Writes text lines and flushes them.
+    * 
+    * @param lines The lines to write.
+    */
+   private void println(String... lines)
+   {
+      try
+      {
+         for (String line : lines)
+         {
+            serverConnectionPoint.write(line.getBytes());
+            serverConnectionPoint.write(lineSeparator);
+         }
+         serverConnectionPoint.flush();
+      }
+      catch (IOException e)
+      {
+         // same behaviour as the former PrintWriter, errors show up on the reading side
+         System.out.println("Could not write protocol message!");
+      }
+   }
+
+   /**
+    * Writes text without line separator and flushes it.
+    * 
+    * @param text The text to write.
+    */
+   private void print(String text)
+   {
+      try
+      {
+         serverConnectionPoint.write(text.getBytes());
+         serverConnectionPoint.flush();
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not write protocol message!");
+      }
+   }
+
+   /**
+    * Reads one text line from the connection point.
+    * 
+    * @return The line without line terminator, null at End of Stream.
+    * @throws IOException
+    */
+   private String readLine() throws IOException
+   {
+      lineBuffer.reset();
+      int current;
+
+      while ((current = clientConnectionPoint.read()) != '\n')
+      {
+         if (current == -1)
+         {
+            if (incrementalInput != null)
+            {
+               // the line continues in input that was not received yet
+               throw new EOFException();
+            }
+            if (lineBuffer.size() == 0)
+            {
+               return null;
+            }
+            break;
+         }
+         lineBuffer.write(current);
+      }
+
+      // strip the carriage return of \r\n line terminators
+      int length = lineBuffer.size();
+      byte[] line = lineBuffer.toByteArray();
+      if (length > 0 && line[length - 1] == '\r')
+      {
+         length--;
+      }
+
+      return new String(line, 0, length);
+   }
+
+   /**
+    * Reads one text line, End of Stream results in an IOException.
+    * 
+    * @return The line without line terminator.
+    * @throws IOException
+    */
+   private String readRequiredLine() throws IOException
+   {
+      String line = readLine();
+
+      if (line == null)
+      {
+         throw new EOFException();
+      }
+
+      return line;
+   }
    
    /**
     * Tries to read the filename from the connection point
@@ -282,7 +1700,7 @@ public class MessageFileProtocol
       // are not allowed to contain line breaks
       // if line breaks are present the last line before PROT_FILE_CONTENT
       // will be used as filename
-      while (!(currentLine = clientConnectionPoint.readLine()).equals(PROT_FILE_CONTENT))
+      while (!(currentLine = readRequiredLine()).equals(PROT_FILE_CONTENT))
       {
          fileName = currentLine;
       }
@@ -306,7 +1724,7 @@ public class MessageFileProtocol
       // are not allowed to contain line breaks
       // if line breaks are present the last line before PROT_FILE_CONTENT
       // will be used as filename
-      while (!(currentLine = clientConnectionPoint.readLine()).equals(PROT_REQUEST_DOWNLOADINFO_END))
+      while (!(currentLine = readRequiredLine()).equals(PROT_REQUEST_DOWNLOADINFO_END))
       {
          fileName = currentLine;
       }
@@ -330,20 +1748,32 @@ public class MessageFileProtocol
       // are not allowed to contain line breaks
       // if line breaks are present the last line before PROT_REQUEST_FILESIZE_END
       // will be used as filename
-      while (!(currentLine = clientConnectionPoint.readLine()).equals(PROT_REQUEST_FILESIZE_END))
+      while (!(currentLine = readRequiredLine()).equals(PROT_REQUEST_FILESIZE_END))
       {
-         try
-         {
-            size = Long.valueOf(decode(currentLine)).longValue();
-         }
-         catch (NumberFormatException e)
-         {
-            System.out.println("Received filesize has unexpected format!");
-         }
+         size = parseSize(decode(currentLine));
       }
       
       return size;
    }
+
+   /**
+    * Parses a transmitted file size.
+    * 
+    * @param size The textual file size.
+    * @return The file size or -1 if it has an unexpected format.
+    */
+   private long parseSize(String size)
+   {
+      try
+      {
+         return Long.valueOf(size).longValue();
+      }
+      catch (NumberFormatException e)
+      {
+         System.out.println("Received filesize has unexpected format!");
+         return -1;
+      }
+   }
    
    /**
     * Tries to read the file content from the connection point
@@ -357,7 +1787,7 @@ public class MessageFileProtocol
       String currentLine;
       
       // read until PROT_FILE_END is found
-      while(!(currentLine = clientConnectionPoint.readLine()).equals(PROT_TEXT_END))
+      while(!(currentLine = readRequiredLine()).equals(PROT_TEXT_END))
       {
          fileContent.append(currentLine).append(System.getProperty("line.separator"));
       }
@@ -380,14 +1810,131 @@ public class MessageFileProtocol
       String currentLine;
       
       // read until PROT_FILENAMES_END is found
-      while(!(currentLine = clientConnectionPoint.readLine()).equals(PROT_FILENAMES_END))
+      while(!(currentLine = readRequiredLine()).equals(PROT_FILENAMES_END))
       {
          fileList.add(currentLine);
       }
       
       return fileList;
    }
+
+   /**
+    * Gets a header of a binary frame.
+    * 
+    * @param headers The received headers.
+    * @param index The header index.
+    * @return The header.
+    * @throws IOException If the frame does not contain the header.
+    */
+   private String getHeader(String[] headers, int index) throws IOException
+   {
+      if (index >= headers.length)
+      {
+         throw new IOException("Received frame with missing header!");
+      }
+
+      return headers[index];
+   }
+
+   /**
+    * Encodes a list of file names as binary payload.
+    * 
+    * @param fileNames The file names.
+    * @return The payload.
+    */
+   private byte[] encodeFileNames(Vector<String> fileNames)
+   {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream payloadWriter = new DataOutputStream(payload);
+
+      try
+      {
+         payloadWriter.writeInt(fileNames.size());
+         for (String fileName : fileNames)
+         {
+            payloadWriter.writeUTF(fileName);
+         }
+      }
+      catch (IOException e)
+      {
+         // cannot happen when writing into memory
+      }
+
+      return payload.toByteArray();
+   }
+
+   /**
+    * Decodes a list of file names from a binary payload.
+    * 
+    * @param payload The payload.
+    * @return The file names.
+    * @throws IOException If the payload is malformed.
+    */
+   private Vector<String> decodeFileNames(byte[] payload) throws IOException
+   {
+      DataInputStream payloadReader = new DataInputStream(new ByteArrayInputStream(payload));
+      int count = payloadReader.readInt();
+      Vector<String> fileNames = new Vector<String>(count);
+
+      for (int i = 0; i < count; i++)
+      {
+         fileNames.add(payloadReader.readUTF());
+      }
+
+      return fileNames;
+   }
    
+   /**
+    * Encodes catalog changes as binary payload.
+    * 
+    * @param changes The changes.
+    * @return The payload.
+    */
+   private byte[] encodeCatalogChanges(Vector<CatalogChange> changes)
+   {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream payloadWriter = new DataOutputStream(payload);
+
+      try
+      {
+         payloadWriter.writeInt(changes.size());
+         for (CatalogChange change : changes)
+         {
+            payloadWriter.writeUTF(change.getFileName());
+            payloadWriter.writeLong(change.getSize());
+            payloadWriter.writeLong(change.getLastModified());
+         }
+      }
+      catch (IOException e)
+      {
+         // cannot happen when writing into memory
+      }
+
+      return payload.toByteArray();
+   }
+
+   /**
+    * Decodes catalog changes from a binary payload.
+    * 
+    * @param payload The payload.
+    * @return The changes.
+    * @throws IOException If the payload is malformed.
+    */
+   private Vector<CatalogChange> decodeCatalogChanges(byte[] payload) throws IOException
+   {
+      DataInputStream payloadReader = new DataInputStream(new ByteArrayInputStream(payload));
+      int count = payloadReader.readInt();
+      Vector<CatalogChange> changes = new Vector<CatalogChange>(count);
+
+      for (int i = 0; i < count; i++)
+      {
+         changes.add(new CatalogChange(payloadReader.readUTF(), payloadReader
+                  .readLong(), payloadReader.readLong()));
+      }
+
+      return changes;
+   }
+
    /**
     * Encodes text to avoid
     * conflicting with Protocol constants.
@@ -411,4 +1958,60 @@ public class MessageFileProtocol
    {
       return encodedText.replaceAll(PROTOCOL_ENCODE_MARKER, PROTOCOL_PLAIN_MARKER);
    }
+
+   /**
+    * Reads the received input of an incremental decoder.
+    */
+   private class BufferInputStream extends InputStream
+   {
+      /**
+       * The input that is read, null between decodings.
+       */
+      private ByteBuffer source;
+
+      /**
+       * Sets the input that is read.
+       * 
+       * @param source The input.
+       */
+      public void setSource(ByteBuffer source)
+      {
+         this.source = source;
+      }
+
+      /**
+       * Reads one byte.
+       */
+      public int read()
+      {
+         return source.hasRemaining() ? source.get() & 0xff : -1;
+      }
+
+      /**
+       * Reads bytes.
+       */
+      public int read(byte[] buffer, int offset, int length)
+      {
+         if (length == 0)
+         {
+            return 0;
+         }
+         if (!source.hasRemaining())
+         {
+            return -1;
+         }
+
+         length = Math.min(length, source.remaining());
+         source.get(buffer, offset, length);
+         return length;
+      }
+
+      /**
+       * Number of bytes that can be read.
+       */
+      public int available()
+      {
+         return source.remaining();
+      }
+   }
 }
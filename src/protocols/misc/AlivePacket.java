@@ -1,38 +1,157 @@
 package protocols.misc;
 
+import java.net.InetAddress;
+
 /**
- * Contains data of an alive packet.
+ * Contains data of an alive packet. Instances are reused by the receiver,
+ * so parsing a packet does not allocate.
  * 
  * @author RaphM
  */
 public class AlivePacket
 {
    /**
-    * Textual IP representation of the messages originator.
+    * Address of the messages originator.
     */
-   private final String address;
+   private InetAddress address;
    
    /**
     * TCP port on which the originator is listening.
     */
-   private final int tcpPort;
+   private int tcpPort;
    
    /**
-    * Creates a new alive packet instance.
+    * Digest of the files the originator provides.
+    */
+   private long catalogDigest;
+
+   /**
+    * Indicates that the packet carries a catalog digest, packets of older
+    * fileservers do not.
+    */
+   private boolean hasCatalogDigest;
+
+   /**
+    * Indicates that the packet carries a sequence number and load metrics,
+    * packets of older fileservers do not.
+    */
+   private boolean hasMetrics;
+
+   /**
+    * Sequence number, incremented with every packet of the originator.
+    */
+   private int sequence;
+
+   /**
+    * Number of open connections of the originator.
+    */
+   private int activeConnections;
+
+   /**
+    * Bytes per second the originator sent recently.
+    */
+   private long bytesPerSecond;
+
+   /**
+    * Number of requests the originator is working on or has queued.
+    */
+   private int queueDepth;
+
+   /**
+    * Capacity of the originator relative to other fileservers.
+    */
+   private int capacityWeight;
+
+   /**
+    * Creates an empty alive packet that is filled by the receiver.
+    */
+   public AlivePacket()
+   {
+   }
+
+   /**
+    * Creates a new alive packet instance that carries load metrics.
     * 
-    * @param address Textual IP representation of the messages originator.
     * @param tcpPort TCP port on which the originator is listening.
+    * @param catalogDigest Digest of the files the originator provides.
+    * @param sequence Sequence number of the packet.
+    * @param activeConnections Number of open connections.
+    * @param bytesPerSecond Bytes per second sent recently.
+    * @param queueDepth Number of requests in progress or queued.
+    * @param capacityWeight Capacity relative to other fileservers.
     */
-   public AlivePacket(String address, int tcpPort)
+   public AlivePacket(int tcpPort, long catalogDigest, int sequence,
+            int activeConnections, long bytesPerSecond, int queueDepth,
+            int capacityWeight)
    {
-      this.address = address;
-      this.tcpPort = tcpPort;
+      Set(tcpPort, catalogDigest);
+      SetMetrics(sequence, activeConnections, bytesPerSecond, queueDepth,
+               capacityWeight);
    }
    
    /**
-    * Textual IP representation of the messages originator.
+    * Fills the fields of a packet without a catalog digest, clears the
+    * metrics.
+    * 
+    * @param tcpPort TCP port on which the originator is listening.
     */
-   public String getAddress()
+   public void Set(int tcpPort)
+   {
+      this.tcpPort = tcpPort;
+      this.catalogDigest = 0;
+      this.hasCatalogDigest = false;
+      this.hasMetrics = false;
+   }
+
+   /**
+    * Fills the fields of a packet with a catalog digest, clears the
+    * metrics.
+    * 
+    * @param tcpPort TCP port on which the originator is listening.
+    * @param catalogDigest Digest of the files the originator provides.
+    */
+   public void Set(int tcpPort, long catalogDigest)
+   {
+      this.tcpPort = tcpPort;
+      this.catalogDigest = catalogDigest;
+      this.hasCatalogDigest = true;
+      this.hasMetrics = false;
+   }
+
+   /**
+    * Fills the sequence number and the load metrics.
+    * 
+    * @param sequence Sequence number of the packet.
+    * @param activeConnections Number of open connections.
+    * @param bytesPerSecond Bytes per second sent recently.
+    * @param queueDepth Number of requests in progress or queued.
+    * @param capacityWeight Capacity relative to other fileservers.
+    */
+   public void SetMetrics(int sequence, int activeConnections,
+            long bytesPerSecond, int queueDepth, int capacityWeight)
+   {
+      this.hasMetrics = true;
+      this.sequence = sequence;
+      this.activeConnections = activeConnections;
+      this.bytesPerSecond = bytesPerSecond;
+      this.queueDepth = queueDepth;
+      this.capacityWeight = capacityWeight;
+   }
+
+   /**
+    * Sets the address of the messages originator.
+    * 
+    * @param address The address.
+    */
+   public void setAddress(InetAddress address)
+   {
+      this.address = address;
+   }
+
+   /**
+    * Address of the messages originator.
+    */
+   public InetAddress getAddress()
    {
       return address;
    }
@@ -45,6 +164,72 @@ public class AlivePacket
       return tcpPort;
    }
    
+   /**
+    * Digest of the files the originator provides, only valid if the packet
+    * carries one.
+    */
+   public long getCatalogDigest()
+   {
+      return catalogDigest;
+   }
+
+   /**
+    * Indicates that the packet carries a catalog digest. Every value of the
+    * digest is valid, an empty catalog included.
+    */
+   public boolean hasCatalogDigest()
+   {
+      return hasCatalogDigest;
+   }
+
+   /**
+    * Indicates that the packet carries a sequence number and load metrics.
+    */
+   public boolean hasMetrics()
+   {
+      return hasMetrics;
+   }
+
+   /**
+    * Sequence number, incremented with every packet of the originator.
+    */
+   public int getSequence()
+   {
+      return sequence;
+   }
+
+   /**
+    * Number of open connections of the originator.
+    */
+   public int getActiveConnections()
+   {
+      return activeConnections;
+   }
+
+   /**
+    * Bytes per second the originator sent recently.
+    */
+   public long getBytesPerSecond()
+   {
+      return bytesPerSecond;
+   }
+
+   /**
+    * Number of requests the originator is working on or has queued.
+    */
+   public int getQueueDepth()
+   {
+      return queueDepth;
+   }
+
+   /**
+    * Capacity of the originator relative to other fileservers.
+    */
+   public int getCapacityWeight()
+   {
+      return capacityWeight;
+   }
+
    /**
     * Gets a unique server id (address + port)
     * 
@@ -52,6 +237,6 @@ public class AlivePacket
     */
    public String getServerIdentifier()
    {
-      return address + ":" + tcpPort;
+      return address.getHostAddress() + ":" + tcpPort;
    }
 }
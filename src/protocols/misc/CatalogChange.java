@@ -0,0 +1,74 @@
+package protocols.misc;
+
+/**
+ * A change of a fileserver catalog: a file that was added, modified or
+ * removed. Added and modified files carry their new size and modification
+ * time, removed files have a size of -1.
+ * 
+ * @author RaphM
+ */
+public class CatalogChange
+{
+   /**
+    * Name of the file.
+    */
+   private final String fileName;
+
+   /**
+    * Size of the file, -1 if it was removed.
+    */
+   private final long size;
+
+   /**
+    * Modification time of the file, 0 if it was removed.
+    */
+   private final long lastModified;
+
+   /**
+    * Creates a new catalog change.
+    * 
+    * @param fileName Name of the file.
+    * @param size Size of the file, -1 if it was removed.
+    * @param lastModified Modification time of the file, 0 if it was removed.
+    */
+   public CatalogChange(String fileName, long size, long lastModified)
+   {
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+   }
+
+   /**
+    * Name of the file.
+    */
+   public String getFileName()
+   {
+      return fileName;
+   }
+
+   /**
+    * Size of the file, -1 if it was removed.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Modification time of the file, 0 if it was removed.
+    */
+   public long getLastModified()
+   {
+      return lastModified;
+   }
+
+   /**
+    * Indicates if the file was removed.
+    * 
+    * @return True if the file was removed.
+    */
+   public boolean isRemoval()
+   {
+      return size < 0;
+   }
+}
@@ -0,0 +1,120 @@
+package protocols.misc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import protocols.MessageFileProtocol;
+
+/**
+ * Decompresses the content chunks of one compressed file. The chunks are
+ * consecutive parts of a single compressed stream, so one decoder has to
+ * be used per file.
+ * 
+ * @author RaphM
+ */
+public class ContentDecoder
+{
+   /**
+    * The decompressor.
+    */
+   private final Inflater inflater = new Inflater();
+
+   /**
+    * Reused output buffer.
+    */
+   private final byte[] buffer = new byte[MessageFileProtocol.FILE_CHUNK_SIZE];
+
+   /**
+    * Creates a decoder for the given codec.
+    * 
+    * @param encoding The codec name.
+    * @throws IOException If the codec is not supported.
+    */
+   public ContentDecoder(String encoding) throws IOException
+   {
+      if (!MessageFileProtocol.COMPRESSION_DEFLATE.equals(encoding))
+      {
+         inflater.end();
+         throw new IOException("Unsupported content encoding: " + encoding);
+      }
+   }
+
+   /**
+    * Decompresses the next chunk of the stream.
+    * 
+    * @param data The compressed chunk.
+    * @return The decompressed content, may be empty.
+    * @throws IOException If the data is corrupt.
+    */
+   public byte[] decode(byte[] data) throws IOException
+   {
+      ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 4);
+      inflater.setInput(data);
+
+      try
+      {
+         while (!inflater.finished() && !inflater.needsInput())
+         {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && inflater.needsDictionary())
+            {
+               throw new IOException("Compressed content needs a dictionary!");
+            }
+            result.write(buffer, 0, count);
+         }
+      }
+      catch (DataFormatException e)
+      {
+         throw new IOException("Corrupt compressed content: " + e.getMessage());
+      }
+
+      return result.toByteArray();
+   }
+
+   /**
+    * Indicates if the end of the compressed stream was reached.
+    * 
+    * @return True if the stream is complete.
+    */
+   public boolean isFinished()
+   {
+      return inflater.finished();
+   }
+
+   /**
+    * Releases the decompressor.
+    */
+   public void close()
+   {
+      inflater.end();
+   }
+
+   /**
+    * Decompresses a self-contained compressed buffer.
+    * 
+    * @param encoding The codec name.
+    * @param data The compressed buffer.
+    * @return The decompressed content.
+    * @throws IOException If the codec is not supported or the data is corrupt.
+    */
+   public static byte[] decodeAll(String encoding, byte[] data) throws IOException
+   {
+      ContentDecoder decoder = new ContentDecoder(encoding);
+
+      try
+      {
+         byte[] result = decoder.decode(data);
+         if (!decoder.isFinished())
+         {
+            throw new IOException("Compressed content is truncated!");
+         }
+         return result;
+      }
+      finally
+      {
+         decoder.close();
+      }
+   }
+}
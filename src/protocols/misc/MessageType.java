@@ -13,10 +13,21 @@ public enum MessageType
    Console,
    
    /**
-    * Read message is a file
+    * Read message is a file header, followed by FileChunk messages
+    * and a FileEnd message
     */
    File,
    
+   /**
+    * Read message is a chunk of file content
+    */
+   FileChunk,
+   
+   /**
+    * Read message is the end of a file
+    */
+   FileEnd,
+   
    /**
     * Read message is a force logoff message
     */
@@ -46,4 +57,34 @@ public enum MessageType
     * Download request message.
     */
    DownloadRequest,
+   
+   /**
+    * The remote peer offers the binary framing mode.
+    */
+   BinaryModeOffer,
+   
+   /**
+    * The remote peer sends binary frames from now on.
+    */
+   BinaryMode,
+   
+   /**
+    * The remote peer offers to receive compressed content.
+    */
+   CompressionOffer,
+   
+   /**
+    * The remote peer answered a compression offer.
+    */
+   Compression,
+
+   /**
+    * Request for the catalog changes since a known catalog version.
+    */
+   CatalogChangesRequest,
+
+   /**
+    * Changes of a fileserver catalog, or the whole catalog.
+    */
+   CatalogChanges,
 }
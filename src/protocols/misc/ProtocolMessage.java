@@ -14,6 +14,11 @@ public class ProtocolMessage
     */
    private String content;
    
+   /**
+    * The received raw file content if this instance is a file chunk.
+    */
+   private byte[] data;
+   
    /**
     * The received filename if this instance is a file.
     */
@@ -35,17 +40,66 @@ public class ProtocolMessage
    private long fileSize;
    
    /**
-    * Creates a ClientReadResult that represents a file.
+    * Id of the request this message belongs to, 0 for untagged messages.
+    */
+   private int requestId;
+   
+   /**
+    * Compression codec of a file or the negotiated codec, null if none.
+    */
+   private String encoding;
+   
+   /**
+    * Modification time of the file, 0 if unknown.
+    */
+   private long lastModified;
+   
+   /**
+    * Hex encoded SHA-256 checksum of the whole file, null if unknown.
+    */
+   private String checksum;
+
+   /**
+    * Position of the requested or transferred byte range in the file.
+    */
+   private long rangeOffset;
+   
+   /**
+    * Length of the requested or transferred byte range, -1 up to the end
+    * of the file.
+    */
+   private long rangeLength = -1;
+
+   /**
+    * Identifies the run of the fileserver a catalog version belongs to.
+    */
+   private long catalogEpoch;
+
+   /**
+    * Catalog version of a catalog changes message or request.
+    */
+   private long catalogVersion;
+
+   /**
+    * Indicates that the catalog changes contain the whole catalog.
+    */
+   private boolean fullCatalog;
+
+   /**
+    * The catalog changes.
+    */
+   private Vector<CatalogChange> catalogChanges;
+   
+   /**
+    * Creates a ClientReadResult that represents a chunk of a file.
     * 
-    * @param fileName The file name.
-    * @param content The file content.
+    * @param data The raw file content chunk.
     */
-   public ProtocolMessage(String fileName, String content)
+   public ProtocolMessage(byte[] data)
    {
-      // init a file result
-      this.content = content;
-      this.fileName = fileName;
-      this.resultType = MessageType.File;
+      // init a file chunk result
+      this.data = data;
+      this.resultType = MessageType.FileChunk;
    }
    
    /**
@@ -104,6 +158,19 @@ public class ProtocolMessage
       this.fileSize = size;
    }
    
+   /**
+    * Creates a ClientReadResult that represents another type.
+    * Also sets the filename and the file size
+    * 
+    * @param type The custom message type.
+    */
+   public ProtocolMessage(MessageType type, String filename, long size)
+   {
+      this.resultType = type;
+      this.fileName = filename;
+      this.fileSize = size;
+   }
+   
    /**
     * @return The received textual content.
     */
@@ -112,6 +179,14 @@ public class ProtocolMessage
       return content;
    }
    
+   /**
+    * @return The received raw file content chunk.
+    */
+   public byte[] getData()
+   {
+      return data;
+   }
+   
    /**
     * @return The received filelist.
     */
@@ -145,4 +220,184 @@ public class ProtocolMessage
    {
       return fileSize;
    }
+   
+   /**
+    * Gets the id of the request this message belongs to.
+    * 
+    * @return The request id, 0 for untagged messages.
+    */
+   public int getRequestId()
+   {
+      return requestId;
+   }
+   
+   /**
+    * Sets the id of the request this message belongs to.
+    * 
+    * @param requestId The request id.
+    */
+   public void setRequestId(int requestId)
+   {
+      this.requestId = requestId;
+   }
+   
+   /**
+    * Gets the compression codec. For files it is the encoding of the
+    * content chunks, for compression negotiation messages the codec that
+    * was offered or accepted.
+    * 
+    * @return The codec name, null if uncompressed.
+    */
+   public String getEncoding()
+   {
+      return encoding;
+   }
+   
+   /**
+    * Sets the compression codec.
+    * 
+    * @param encoding The codec name, null if uncompressed.
+    */
+   public void setEncoding(String encoding)
+   {
+      this.encoding = encoding;
+   }
+   
+   /**
+    * Gets the position of the byte range of a download request or file.
+    * 
+    * @return The range offset.
+    */
+   public long getRangeOffset()
+   {
+      return rangeOffset;
+   }
+   
+   /**
+    * Gets the length of the byte range of a download request or file.
+    * 
+    * @return The range length, -1 up to the end of the file.
+    */
+   public long getRangeLength()
+   {
+      return rangeLength;
+   }
+   
+   /**
+    * Sets the byte range of a download request or file.
+    * 
+    * @param offset The range offset.
+    * @param length The range length, -1 up to the end of the file.
+    */
+   public void setRange(long offset, long length)
+   {
+      this.rangeOffset = offset;
+      this.rangeLength = length;
+   }
+   
+   /**
+    * Gets the modification time of the file of a file size message or a
+    * file header.
+    * 
+    * @return The modification time, 0 if unknown.
+    */
+   public long getLastModified()
+   {
+      return lastModified;
+   }
+   
+   /**
+    * Sets the modification time of the file.
+    * 
+    * @param lastModified The modification time, 0 if unknown.
+    */
+   public void setLastModified(long lastModified)
+   {
+      this.lastModified = lastModified;
+   }
+
+   /**
+    * Gets the checksum of the whole file of a file size message or file
+    * header.
+    * 
+    * @return The hex encoded SHA-256 checksum, null if unknown.
+    */
+   public String getChecksum()
+   {
+      return checksum;
+   }
+
+   /**
+    * Sets the checksum of the whole file.
+    * 
+    * @param checksum The hex encoded SHA-256 checksum, null if unknown.
+    */
+   public void setChecksum(String checksum)
+   {
+      this.checksum = checksum;
+   }
+
+   /**
+    * Gets the fileserver run the catalog version belongs to.
+    * 
+    * @return The catalog epoch.
+    */
+   public long getCatalogEpoch()
+   {
+      return catalogEpoch;
+   }
+
+   /**
+    * Gets the catalog version of a catalog changes message or request.
+    * 
+    * @return The catalog version.
+    */
+   public long getCatalogVersion()
+   {
+      return catalogVersion;
+   }
+
+   /**
+    * Sets the catalog version of a catalog changes message or request.
+    * 
+    * @param epoch The fileserver run the version belongs to.
+    * @param version The catalog version.
+    */
+   public void setCatalogVersion(long epoch, long version)
+   {
+      this.catalogEpoch = epoch;
+      this.catalogVersion = version;
+   }
+
+   /**
+    * Indicates that the catalog changes contain the whole catalog.
+    * 
+    * @return True for the whole catalog.
+    */
+   public boolean isFullCatalog()
+   {
+      return fullCatalog;
+   }
+
+   /**
+    * Gets the catalog changes.
+    * 
+    * @return The catalog changes.
+    */
+   public Vector<CatalogChange> getCatalogChanges()
+   {
+      return catalogChanges;
+   }
+
+   /**
+    * Sets the catalog changes.
+    * 
+    * @param changes The catalog changes.
+    * @param fullCatalog True if the changes contain the whole catalog.
+    */
+   public void setCatalogChanges(Vector<CatalogChange> changes, boolean fullCatalog)
+   {
+      this.catalogChanges = changes;
+      this.fullCatalog = fullCatalog;
+   }
 }
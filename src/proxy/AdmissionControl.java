@@ -0,0 +1,330 @@
+package proxy;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the client connections and the commands in flight. Clients over
+ * a limit are told at once to retry later instead of being queued, so a
+ * spike of logins or downloads cannot exhaust threads or memory.
+ * 
+ * List and download commands are in flight until their workflow finished.
+ * The other commands only touch memory and are answered by the bounded
+ * worker pool, they are not limited here.
+ * 
+ * @author RaphM
+ */
+public class AdmissionControl
+{
+   /**
+    * Delay in milliseconds rejected clients are asked to wait.
+    */
+   private final int RETRY_DELAY = 500;
+
+   /**
+    * Maximum number of client connections.
+    */
+   private final int maxConnections;
+
+   /**
+    * Maximum number of client connections from one address.
+    */
+   private final int maxConnectionsPerAddress;
+
+   /**
+    * Maximum number of commands in flight.
+    */
+   private final int maxCommands;
+
+   /**
+    * Protects the connection counters.
+    */
+   private final Lock lock = new ReentrantLock();
+
+   /**
+    * Number of client connections.
+    */
+   private int connections;
+
+   /**
+    * Number of client connections by address, addresses without
+    * connections are removed.
+    */
+   private final HashMap<InetAddress, Integer> connectionsPerAddress = new HashMap<InetAddress, Integer>();
+
+   /**
+    * Number of commands in flight.
+    */
+   private final AtomicInteger commands = new AtomicInteger();
+
+   /**
+    * Number of connections that were rejected.
+    */
+   private final AtomicLong rejectedConnections = new AtomicLong();
+
+   /**
+    * Number of commands that were rejected, over the limit or by a full
+    * lane or pool.
+    */
+   private final AtomicLong rejectedCommands = new AtomicLong();
+
+   /**
+    * Creates a new admission control.
+    * 
+    * @param maxConnections
+    *           Maximum number of client connections.
+    * @param maxConnectionsPerAddress
+    *           Maximum number of client connections from one address.
+    * @param maxCommands
+    *           Maximum number of commands in flight.
+    */
+   public AdmissionControl(int maxConnections, int maxConnectionsPerAddress,
+            int maxCommands)
+   {
+      this.maxConnections = maxConnections;
+      this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+      this.maxCommands = maxCommands;
+   }
+
+   /**
+    * Admits a new connection if neither the total nor the limit of its
+    * address is reached.
+    * 
+    * @param address
+    *           The address of the client.
+    * @return True if admitted, the connection has to be released when it
+    *         is closed.
+    */
+   public boolean TryAdmitConnection(InetAddress address)
+   {
+      lock.lock();
+      try
+      {
+         Integer addressConnections = connectionsPerAddress.get(address);
+         int count = addressConnections == null ? 0 : addressConnections.intValue();
+
+         if (connections >= maxConnections || count >= maxConnectionsPerAddress)
+         {
+            rejectedConnections.incrementAndGet();
+            return false;
+         }
+
+         connections++;
+         connectionsPerAddress.put(address, Integer.valueOf(count + 1));
+         return true;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Releases an admitted connection.
+    * 
+    * @param address
+    *           The address of the client.
+    */
+   public void ReleaseConnection(InetAddress address)
+   {
+      lock.lock();
+      try
+      {
+         Integer addressConnections = connectionsPerAddress.get(address);
+
+         if (addressConnections != null)
+         {
+            connections--;
+            if (addressConnections.intValue() <= 1)
+            {
+               connectionsPerAddress.remove(address);
+            }
+            else
+            {
+               connectionsPerAddress.put(address, Integer
+                        .valueOf(addressConnections.intValue() - 1));
+            }
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Starts a command if the limit of commands in flight is not reached.
+    * 
+    * @return True if started, the command has to be finished.
+    */
+   private boolean TryStartCommand()
+   {
+      while (true)
+      {
+         int current = commands.get();
+
+         if (current >= maxCommands)
+         {
+            rejectedCommands.incrementAndGet();
+            return false;
+         }
+
+         if (commands.compareAndSet(current, current + 1))
+         {
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Finishes a started command.
+    */
+   private void FinishCommand()
+   {
+      commands.decrementAndGet();
+   }
+
+   /**
+    * Runs a workflow as a command in flight, which is finished when the
+    * workflow returns.
+    * 
+    * @param pool
+    *           The pool that runs the workflow.
+    * @param workflow
+    *           The workflow.
+    * @return False if the limit is reached or the pool rejected the
+    *         workflow.
+    */
+   public boolean TryExecute(Executor pool, Runnable workflow)
+   {
+      return TryStartCommand() && Submit(pool, workflow);
+   }
+
+   /**
+    * Runs the next part of an admitted workflow on another pool. The
+    * command is counted again before the admitted part returns, so it
+    * stays in flight and is not limited twice.
+    * 
+    * @param pool
+    *           The pool that runs the part.
+    * @param part
+    *           The next part of the workflow.
+    * @return False if the pool rejected the part.
+    */
+   public boolean TryContinue(Executor pool, Runnable part)
+   {
+      commands.incrementAndGet();
+      return Submit(pool, part);
+   }
+
+   /**
+    * Submits a started command, which is finished when the workflow
+    * returns or was rejected.
+    * 
+    * @param pool
+    *           The pool that runs the workflow.
+    * @param workflow
+    *           The workflow.
+    * @return False if the pool rejected the workflow.
+    */
+   private boolean Submit(Executor pool, final Runnable workflow)
+   {
+      try
+      {
+         pool.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  workflow.run();
+               }
+               finally
+               {
+                  FinishCommand();
+               }
+            }
+         });
+         return true;
+      }
+      catch (RejectedExecutionException e)
+      {
+         // a full lane or pool is an overload as well
+         rejectedCommands.incrementAndGet();
+         FinishCommand();
+         return false;
+      }
+   }
+
+   /**
+    * Gets the answer for rejected connections and commands.
+    * 
+    * @return The message.
+    */
+   public String getBusyMessage()
+   {
+      return "Proxy is busy, retry after " + RETRY_DELAY + " ms!";
+   }
+
+   /**
+    * Number of client connections.
+    */
+   public int getConnections()
+   {
+      lock.lock();
+      try
+      {
+         return connections;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Number of commands in flight.
+    */
+   public int getCommands()
+   {
+      return commands.get();
+   }
+
+   /**
+    * Number of connections that were rejected.
+    */
+   public long getRejectedConnections()
+   {
+      return rejectedConnections.get();
+   }
+
+   /**
+    * Number of commands that were rejected.
+    */
+   public long getRejectedCommands()
+   {
+      return rejectedCommands.get();
+   }
+
+   /**
+    * Maximum number of client connections.
+    */
+   public int getMaxConnections()
+   {
+      return maxConnections;
+   }
+
+   /**
+    * Maximum number of commands in flight.
+    */
+   public int getMaxCommands()
+   {
+      return maxCommands;
+   }
+}
@@ -1,6 +1,12 @@
 package proxy;
 
 import common.InitFailedException;
+import common.ThreadMode;
+import proxy.serverHandling.CapacityWeightedStrategy;
+import proxy.serverHandling.DecayedLoadStrategy;
+import proxy.serverHandling.IBalancingStrategy;
+import proxy.serverHandling.LeastOutstandingStrategy;
+import proxy.serverHandling.ResponseTimeStrategy;
 
 /**
  * Parses command line arguments for the proxy.
@@ -29,6 +35,37 @@ public class Arguments
     */
    private int checkPeriod;
    
+   /**
+    * Directory of the downloaded file cache.
+    */
+   private String cacheDirectory = new java.io.File(System
+            .getProperty("java.io.tmpdir"), "fds-proxy-cache").getPath();
+   
+   /**
+    * Decides which fileserver serves a request.
+    */
+   private IBalancingStrategy balancingStrategy = new DecayedLoadStrategy();
+
+   /**
+    * Threads that handle client commands and run the workflows.
+    */
+   private ThreadMode threadMode = ThreadMode.Pooled;
+
+   /**
+    * Maximum number of client connections.
+    */
+   private int maxConnections = 4096;
+
+   /**
+    * Maximum number of client connections from one address.
+    */
+   private int maxConnectionsPerAddress = 512;
+
+   /**
+    * Maximum number of client commands in flight.
+    */
+   private int maxCommands = 1024;
+
    
    /**
     * Parses the given arguments.
@@ -41,7 +78,7 @@ public class Arguments
    public Arguments(String[] arguments) throws InitFailedException
    {
       // validate command line arguments
-      if (arguments == null || arguments.length != 4)
+      if (arguments == null || arguments.length < 4 || arguments.length > 10)
       {
          Usage();
       }
@@ -52,6 +89,36 @@ public class Arguments
          udpPort = Integer.valueOf(arguments[1]).intValue();
          fileserverTimeout = Integer.valueOf(arguments[2]).intValue();
          checkPeriod = Integer.valueOf(arguments[3]).intValue();
+         
+         if (arguments.length >= 5)
+         {
+            cacheDirectory = arguments[4];
+         }
+
+         if (arguments.length >= 6)
+         {
+            balancingStrategy = CreateBalancingStrategy(arguments[5]);
+         }
+
+         if (arguments.length >= 7)
+         {
+            threadMode = ThreadMode.Parse(arguments[6]);
+         }
+
+         if (arguments.length >= 8)
+         {
+            maxConnections = Integer.valueOf(arguments[7]).intValue();
+         }
+
+         if (arguments.length >= 9)
+         {
+            maxConnectionsPerAddress = Integer.valueOf(arguments[8]).intValue();
+         }
+
+         if (arguments.length == 10)
+         {
+            maxCommands = Integer.valueOf(arguments[9]).intValue();
+         }
       }
       catch (NumberFormatException e)
       {
@@ -59,12 +126,46 @@ public class Arguments
       }
       
       if (tcpPort < 1 || tcpPort > 65535 || udpPort < 1 || udpPort > 65535 
-                      || fileserverTimeout < 1 || checkPeriod < 1)
+                      || fileserverTimeout < 1 || checkPeriod < 1 || threadMode == null
+                      || maxConnections < 1 || maxConnectionsPerAddress < 1 || maxCommands < 1)
       {
          Usage();
       }
+
+      if (!threadMode.isSupported())
+      {
+         System.out.println("Virtual threads require Java 21 or newer!");
+         throw new InitFailedException();
+      }
    }
    
+   /**
+    * Creates the balancing strategy with the given name.
+    * 
+    * @param name The strategy name.
+    * @return The strategy.
+    * 
+    * @throws InitFailedException Exception that gets thrown when the name
+    *                             is unknown.
+    */
+   private IBalancingStrategy CreateBalancingStrategy(String name) throws InitFailedException
+   {
+      IBalancingStrategy[] strategies = new IBalancingStrategy[] {
+               new DecayedLoadStrategy(), new LeastOutstandingStrategy(),
+               new ResponseTimeStrategy(), new CapacityWeightedStrategy() };
+
+      for (IBalancingStrategy strategy : strategies)
+      {
+         if (strategy.getIdentifier().equals(name))
+         {
+            return strategy;
+         }
+      }
+
+      Usage();
+      return null;
+   }
+
    /**
     * Prints out a usage message and terminates the program.
     * 
@@ -73,7 +174,7 @@ public class Arguments
     */
    private void Usage() throws InitFailedException
    {
-      System.out.println("Usage: FDS_Proxy <tcpPort> <udpPort> <fileserverTimeout> <checkPeriod>");
+      System.out.println("Usage: FDS_Proxy <tcpPort> <udpPort> <fileserverTimeout> <checkPeriod> [<cacheDirectory> [decayed|p2c|ewma|weighted [pooled|virtual [<maxConnections> [<maxConnectionsPerAddress> [<maxCommands>]]]]]]");
       throw new InitFailedException();
    }
    
@@ -108,4 +209,52 @@ public class Arguments
    {
       return checkPeriod;
    }
+   
+   /**
+    * Directory of the downloaded file cache.
+    */
+   public String getCacheDirectory()
+   {
+      return cacheDirectory;
+   }
+
+   /**
+    * Decides which fileserver serves a request.
+    */
+   public IBalancingStrategy getBalancingStrategy()
+   {
+      return balancingStrategy;
+   }
+
+   /**
+    * Threads that handle client commands and run the workflows.
+    */
+   public ThreadMode getThreadMode()
+   {
+      return threadMode;
+   }
+
+   /**
+    * Maximum number of client connections.
+    */
+   public int getMaxConnections()
+   {
+      return maxConnections;
+   }
+
+   /**
+    * Maximum number of client connections from one address.
+    */
+   public int getMaxConnectionsPerAddress()
+   {
+      return maxConnectionsPerAddress;
+   }
+
+   /**
+    * Maximum number of client commands in flight.
+    */
+   public int getMaxCommands()
+   {
+      return maxCommands;
+   }
 }
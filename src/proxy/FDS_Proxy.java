@@ -2,11 +2,16 @@ package proxy;
 
 import commandHandling.*;
 import common.InitFailedException;
+import common.ThreadMode;
 
 import proxy.Arguments;
+import proxy.cacheHandling.ContentCache;
+import proxy.commands.AdmissionCommand;
 import proxy.commands.ExitCommand;
 import proxy.commands.FileserversCommand;
+import proxy.commands.HeartbeatsCommand;
 import proxy.commands.UserCommand;
+import proxy.commands.WorkflowsCommand;
 import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserManager;
 import tcpConnections.TcpServerConnectionPoint;
@@ -54,6 +59,16 @@ public class FDS_Proxy
     */
    private static ServerManager serverManager;
 
+   /**
+    * Cache of downloaded files.
+    */
+   private static ContentCache contentCache;
+
+   /**
+    * Limits the client connections and commands in flight.
+    */
+   private static AdmissionControl admissionControl;
+
    /**
     * Main entry point
     * 
@@ -69,16 +84,25 @@ public class FDS_Proxy
 
          // start the serverManager with command line parameters
          serverManager = new ServerManager(parsedArguments
-                  .getFileserverTimeout(), parsedArguments.getCheckPeriod());
+                  .getFileserverTimeout(), parsedArguments.getCheckPeriod(),
+                  parsedArguments.getBalancingStrategy());
 
          // init the userManager
          userManager = new UserManager();
 
+         // init the cache of downloaded files
+         contentCache = new ContentCache(parsedArguments.getCacheDirectory());
+
+         // limit the clients, so spikes are rejected instead of queued
+         admissionControl = new AdmissionControl(parsedArguments
+                  .getMaxConnections(), parsedArguments
+                  .getMaxConnectionsPerAddress(), parsedArguments.getMaxCommands());
+
          // initialize the TCP server port
          tcpServer = new TcpServerConnectionPoint(parsedArguments.getTcpPort());
 
          // start listening for messages from TCP clients
-         StartTcpListener();
+         StartTcpListener(parsedArguments.getThreadMode());
 
          // initialize the UDP server port
          udpServer = new UdpServerConnectionPoint(parsedArguments.getUdpPort());
@@ -99,6 +123,7 @@ public class FDS_Proxy
          if (serverManager != null)
          {
             serverManager.StopOnlineCheck();
+            serverManager.CloseServerConnections();
          }
 
          if (tcpServer != null)
@@ -130,12 +155,18 @@ public class FDS_Proxy
 
    /**
     * Listens for messages from TCP clients.
+    * 
+    * @param threadMode
+    *           Threads that handle client commands and run the workflows.
+    * @throws InitFailedException
+    *           Gets thrown when the event loops cannot be opened.
     */
-   private static void StartTcpListener()
+   private static void StartTcpListener(ThreadMode threadMode)
+            throws InitFailedException
    {
       // create a new client connection listener
       tcpListener = new TcpConnectionListener(tcpServer, userManager,
-               serverManager);
+               serverManager, contentCache, admissionControl, threadMode);
 
       // run as a thread
       Thread listenerThread = new Thread(tcpListener);
@@ -165,11 +196,28 @@ public class FDS_Proxy
       consoleCommandHandler.RegisterCommand(fileCommand.getIdentifier(),
                fileCommand);
 
+      // register the heartbeats command
+      HeartbeatsCommand heartbeatsCommand = new HeartbeatsCommand(udpListener
+               .getPacketHandler());
+      consoleCommandHandler.RegisterCommand(heartbeatsCommand.getIdentifier(),
+               heartbeatsCommand);
+
       // register the users command
-      UserCommand usersCommand = new UserCommand(userManager);
+      UserCommand usersCommand= new UserCommand(userManager);
       consoleCommandHandler.RegisterCommand(usersCommand.getIdentifier(),
                usersCommand);
 
+      // register the admission command
+      AdmissionCommand admissionCommand = new AdmissionCommand(admissionControl);
+      consoleCommandHandler.RegisterCommand(admissionCommand.getIdentifier(),
+               admissionCommand);
+
+      // register the workflows command
+      WorkflowsCommand workflowsCommand = new WorkflowsCommand(tcpListener
+               .getWorkflowScheduler());
+      consoleCommandHandler.RegisterCommand(workflowsCommand.getIdentifier(),
+               workflowsCommand);
+
       // register the exit command
       ExitCommand exitCommand = new ExitCommand(consoleCommandHandler,
                tcpServer, tcpListener, udpListener, udpServer, serverManager);
@@ -1,6 +1,11 @@
 package proxy;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import commandHandling.CommandHandler;
 import commandHandling.ICommandHandler;
@@ -8,6 +13,7 @@ import commandHandling.ICommandHandler;
 import protocols.MessageFileProtocol;
 import protocols.misc.ProtocolMessage;
 import protocols.misc.MessageType;
+import proxy.cacheHandling.ContentCache;
 import proxy.commands.ClientBuyCommand;
 import proxy.commands.ClientCreditsCommand;
 import proxy.commands.ClientDownloadCommand;
@@ -18,15 +24,24 @@ import proxy.commands.ClientUnknownCommand;
 import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserData;
 import proxy.userHandling.UserManager;
+import tcpConnections.IInputHandler;
+import tcpConnections.NonBlockingConnection;
 import tcpConnections.TcpConnection;
 
 /**
- * Handles client connections.
+ * Handles client connections. The input is decoded by the event loop that
+ * owns the connection, the messages are handled one after another by a
+ * task of the shared worker pool.
  * 
  * @author RaphM
  */
-public class TcpConnectionHandler implements Runnable
+public class TcpConnectionHandler implements IInputHandler
 {
+   /**
+    * Reading is suspended while this many messages wait to be handled.
+    */
+   private final int MAX_PENDING_MESSAGES = 16;
+
    /**
     * Communication object between client and proxy.
     */
@@ -42,11 +57,41 @@ public class TcpConnectionHandler implements Runnable
     */
    private final TcpConnection connection;
 
+   /**
+    * The non-blocking connection the input is read from.
+    */
+   private final NonBlockingConnection nonBlockingConnection;
+
+   /**
+    * Worker pool that handles the received messages.
+    */
+   private final Executor workerPool;
+
+   /**
+    * Decoded messages that wait to be handled, guards the handling state.
+    */
+   private final LinkedList<ProtocolMessage> pendingMessages = new LinkedList<ProtocolMessage>();
+
+   /**
+    * Indicates that a task of the worker pool handles the pending messages.
+    */
+   private boolean isHandling;
+
+   /**
+    * Indicates that reading was suspended because too many messages wait.
+    */
+   private boolean isReadingSuspended;
+
    /**
     * The TCP connection listener.
     */
    private final TcpConnectionListener listener;
 
+   /**
+    * Address of the client.
+    */
+   private final InetAddress address;
+
    /**
     * User manager reference.
     */
@@ -58,45 +103,62 @@ public class TcpConnectionHandler implements Runnable
    private final ServerManager serverManager;
 
    /**
-    * Command handler for incoming TCP commands.
+    * Cache of downloaded files.
     */
-   private final ICommandHandler messageCommandHandler = new CommandHandler();
+   private final ContentCache contentCache;
 
    /**
-    * Indicates if this instance is running currently.
+    * Command handler for incoming TCP commands.
     */
-   private Boolean isRunning;
+   private final ICommandHandler messageCommandHandler = new CommandHandler();
 
    /**
     * Handles a new client connection.
     * 
+    * @param nonBlockingConnection
+    *           The non-blocking connection.
     * @param connection
     *           The connection object.
     * @param userManager
     *           User manager reference.
     * @param serverManager
     *           Server manager reference.
+    * @param contentCache
+    *           Cache of downloaded files.
     * @param listener
     *           Connection listener reference.
+    * @param workerPool
+    *           Worker pool that handles the received messages.
+    * @param scheduler
+    *           Runs the list and download workflows.
     */
-   public TcpConnectionHandler(TcpConnection connection,
-            UserManager userManager, ServerManager serverManager,
-            TcpConnectionListener listener)
+   public TcpConnectionHandler(NonBlockingConnection nonBlockingConnection,
+            TcpConnection connection, UserManager userManager,
+            ServerManager serverManager, ContentCache contentCache,
+            TcpConnectionListener listener, Executor workerPool,
+            WorkflowScheduler scheduler)
    {
-      incomingProtocol = new MessageFileProtocol(connection.getInputStream());
+      incomingProtocol = new MessageFileProtocol();
       outgoingProtocol = new MessageFileProtocol(connection.getOutputStream());
+      this.nonBlockingConnection = nonBlockingConnection;
       this.connection = connection;
+      this.workerPool = workerPool;
       this.userManager = userManager;
       this.serverManager = serverManager;
+      this.contentCache = contentCache;
       this.listener = listener;
+      this.address = nonBlockingConnection.getChannel().socket().getInetAddress();
 
-      RegisterCommands();
+      RegisterCommands(scheduler);
    }
 
    /**
     * Registers all commands that will be triggered via TCP/IP messages.
+    * 
+    * @param scheduler
+    *           Runs the list and download workflows.
     */
-   private void RegisterCommands()
+   private void RegisterCommands(WorkflowScheduler scheduler)
    {
       // register the unknown command as default
       ClientUnknownCommand unknownCommand = new ClientUnknownCommand(
@@ -123,13 +185,14 @@ public class TcpConnectionHandler implements Runnable
 
       // register the list command
       ClientListCommand listCommand = new ClientListCommand(userManager,
-               outgoingProtocol, serverManager, connection);
+               outgoingProtocol, serverManager, connection, scheduler);
       messageCommandHandler.RegisterCommand(listCommand.getIdentifier(),
                listCommand);
 
       // register the download command
       ClientDownloadCommand downloadCommand = new ClientDownloadCommand(
-               userManager, outgoingProtocol, serverManager, connection);
+               userManager, outgoingProtocol, serverManager, contentCache,
+               connection, scheduler);
       messageCommandHandler.RegisterCommand(downloadCommand.getIdentifier(),
                downloadCommand);
 
@@ -141,46 +204,172 @@ public class TcpConnectionHandler implements Runnable
    }
 
    /**
-    * Executed as a thread.
+    * Decodes the received messages, called by the event loop.
+    */
+   public void HandleInput(ByteBuffer input) throws IOException
+   {
+      ProtocolMessage message = incomingProtocol.decodeMessage(input);
+
+      // the decoder switches to binary frames itself after the marker
+      while (message != null)
+      {
+         AddMessage(message);
+         message = incomingProtocol.decodeMessage(input);
+      }
+   }
+
+   /**
+    * Logs off the user and forgets the connection, called once when the
+    * connection was closed.
+    */
+   public void HandleClose()
+   {
+      // try to log off the user (if authenticated over this connection)
+      LogoffUser();
+
+      // remove from the listeners list
+      RemoveFromConnectionList();
+
+      System.out
+               .println("<TcpConnectionHandler Thread>: Input stream was closed, terminating!");
+   }
+
+   /**
+    * Queues a decoded message and makes sure a task handles it. Suspends
+    * reading while too many messages wait.
+    * 
+    * @param message
+    *           The message.
     */
-   public void run()
+   private void AddMessage(ProtocolMessage message)
    {
-      isRunning = true;
+      boolean startHandling;
 
-      while (isRunning)
+      synchronized (pendingMessages)
+      {
+         pendingMessages.add(message);
+
+         if (!isReadingSuspended && pendingMessages.size() >= MAX_PENDING_MESSAGES)
+         {
+            isReadingSuspended = true;
+            nonBlockingConnection.SuspendReading();
+         }
+
+         startHandling = !isHandling;
+         isHandling = true;
+      }
+
+      if (startHandling)
       {
          try
          {
-            ProtocolMessage result = incomingProtocol.readMessage();
+            workerPool.execute(new Runnable()
+            {
+               public void run()
+               {
+                  HandlePendingMessages();
+               }
+            });
+         }
+         catch (RejectedExecutionException e)
+         {
+            // the proxy is shutting down
+            nonBlockingConnection.Abort();
+         }
+      }
+   }
+
+   /**
+    * Handles the pending messages one after another, so the messages of a
+    * connection keep their order.
+    */
+   private void HandlePendingMessages()
+   {
+      while (true)
+      {
+         ProtocolMessage message;
 
-            if (result.getResultType() == MessageType.Console)
+         synchronized (pendingMessages)
+         {
+            if (isReadingSuspended && pendingMessages.size() <= MAX_PENDING_MESSAGES / 2)
             {
-               messageCommandHandler.HandleCommand(result.getContent());
+               isReadingSuspended = false;
+               nonBlockingConnection.ResumeReading();
             }
-            else
+
+            if (pendingMessages.isEmpty() || nonBlockingConnection.isClosed())
             {
-               System.out
-                        .println("<TcpConnectionHandler Thread>: Received unknown protocol message type: "
-                                 + result.getResultType());
+               // messages received before closing are not handled anymore
+               pendingMessages.clear();
+               isHandling = false;
+               return;
             }
+            message = pendingMessages.removeFirst();
          }
-         catch (IOException e)
-         {
-            // close the connection
-            connection.Disconnect();
 
-            // try to log off the user (if authenticated over this connection)
-            LogoffUser();
-
-            // remove from the listeners list
-            RemoveFromConnectionList();
+         HandleMessage(message);
+      }
+   }
 
-            // close resources and let the thread time out
-            isRunning = false;
-            System.out
-                     .println("<TcpConnectionHandler Thread>: Input stream was closed, terminating!");
-         }
+   /**
+    * Handles one received message.
+    * 
+    * @param result
+    *           The message.
+    */
+   private void HandleMessage(ProtocolMessage result)
+   {
+      if (result.getResultType() == MessageType.Console)
+      {
+         messageCommandHandler.HandleCommand(result.getContent());
       }
+      else if (result.getResultType() == MessageType.BinaryModeOffer
+               || result.getResultType() == MessageType.BinaryMode)
+      {
+         // accept the offer, the client switches after receiving our
+         // marker
+         outgoingProtocol.switchToBinaryMode();
+      }
+      else if (result.getResultType() == MessageType.CompressionOffer)
+      {
+         // relay compressed files unchanged if the client can read them
+         outgoingProtocol.acceptCompression(result.getEncoding());
+      }
+      else
+      {
+         System.out
+                  .println("<TcpConnectionHandler Thread>: Received unknown protocol message type: "
+                           + result.getResultType());
+      }
+   }
+
+   /**
+    * Gets the connection object that is being handled.
+    * 
+    * @return The connection.
+    */
+   public TcpConnection getConnection()
+   {
+      return connection;
+   }
+
+   /**
+    * Gets the address of the client.
+    * 
+    * @return The address.
+    */
+   public InetAddress getAddress()
+   {
+      return address;
+   }
+
+   /**
+    * Forces the client to perform a logoff and closes the connection.
+    */
+   public void ForceLogoff()
+   {
+      outgoingProtocol.sendForceLogoff();
+      connection.Disconnect();
    }
 
    /**
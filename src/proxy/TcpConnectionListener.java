@@ -3,31 +3,39 @@ package proxy;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import common.InitFailedException;
+import common.ThreadMode;
 
 import protocols.MessageFileProtocol;
+import proxy.cacheHandling.ContentCache;
 import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserManager;
+import tcpConnections.EventLoop;
+import tcpConnections.NonBlockingConnection;
 import tcpConnections.TcpConnection;
 import tcpConnections.TcpServerConnectionPoint;
 
 /**
- * Listens for client connections.
+ * Listens for client connections. Accepted connections are switched to
+ * non-blocking mode and spread over a few event loops, so idle clients do
+ * not occupy a thread. Received commands are handled by a bounded worker
+ * pool, list and download workflows by the lanes of a workflow scheduler.
+ * In the virtual thread mode both start a virtual thread per task.
+ * Connections and commands over the limits of the admission control are
+ * answered with a busy message right away.
  * 
  * @author RaphM
  */
 public class TcpConnectionListener implements Runnable
 {
    /**
-    * Lock to avoid access from multiple threads to the internal vector of
-    * connections.
+    * Number of threads that handle received commands.
     */
-   private final Lock lock = new ReentrantLock();
+   private final int WORKER_THREADS = 16;
 
    /**
     * The encapsulated server socket.
@@ -35,9 +43,24 @@ public class TcpConnectionListener implements Runnable
    private final TcpServerConnectionPoint tcpServer;
 
    /**
-    * Thread pool that provides threads that run incoming requests.
+    * Event loops that read from and write to the client connections.
     */
-   private final ExecutorService threadPool = Executors.newCachedThreadPool();
+   private final EventLoop[] eventLoops;
+
+   /**
+    * Event loop of the next accepted connection.
+    */
+   private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+   /**
+    * Thread pool that handles received commands.
+    */
+   private final ExecutorService workerPool;
+
+   /**
+    * Runs the list and download workflows, which wait for fileservers.
+    */
+   private final WorkflowScheduler scheduler;
 
    /**
     * User manager reference.
@@ -50,9 +73,19 @@ public class TcpConnectionListener implements Runnable
    private final ServerManager serverManager;
 
    /**
-    * Stores all active connections.
+    * Cache of downloaded files.
+    */
+   private final ContentCache contentCache;
+
+   /**
+    * Limits the client connections and commands in flight.
+    */
+   private final AdmissionControl admissionControl;
+
+   /**
+    * Stores the handlers of all active connections.
     */
-   private Vector<TcpConnection> activeConnections = new Vector<TcpConnection>();
+   private final ConcurrentHashMap<TcpConnection, TcpConnectionHandler> activeConnections = new ConcurrentHashMap<TcpConnection, TcpConnectionHandler>();
 
    /**
     * Indicates if this instance is currently running.
@@ -68,13 +101,45 @@ public class TcpConnectionListener implements Runnable
     *           User manager reference.
     * @param serverManager
     *           Server manager reference.
+    * @param contentCache
+    *           Cache of downloaded files.
+    * @param admissionControl
+    *           Limits the client connections and commands in flight.
+    * @param threadMode
+    *           Threads that handle client commands and run the workflows.
+    * @throws InitFailedException
+    *           Gets thrown when the event loops cannot be opened.
     */
    public TcpConnectionListener(TcpServerConnectionPoint connection,
-            UserManager userManager, ServerManager serverManager)
+            UserManager userManager, ServerManager serverManager,
+            ContentCache contentCache, AdmissionControl admissionControl,
+            ThreadMode threadMode)
+            throws InitFailedException
    {
       this.tcpServer = connection;
       this.userManager = userManager;
       this.serverManager = serverManager;
+      this.contentCache = contentCache;
+      this.admissionControl = admissionControl;
+      this.workerPool = threadMode.CreateExecutor(WORKER_THREADS);
+      this.scheduler = new WorkflowScheduler(admissionControl, threadMode
+               .CreateExecutor());
+
+      eventLoops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+      for (int i = 0; i < eventLoops.length; i++)
+      {
+         try
+         {
+            eventLoops[i] = new EventLoop();
+         }
+         catch (IOException e)
+         {
+            System.out.println("Could not open the TCP event loops!");
+            CloseAllConnections();
+            throw new InitFailedException();
+         }
+         new Thread(eventLoops[i]).start();
+      }
    }
 
    /**
@@ -89,20 +154,30 @@ public class TcpConnectionListener implements Runnable
          try
          {
             Socket incomingSocket = tcpServer.WaitForConnection();
-            TcpConnection connection = new TcpConnection(incomingSocket);
 
-            lock.lock();
-            activeConnections.add(connection);
-            lock.unlock();
+            if (!admissionControl.TryAdmitConnection(incomingSocket.getInetAddress()))
+            {
+               Reject(incomingSocket);
+               continue;
+            }
 
-            // handle connection communication in a separate thread
-            threadPool.execute(new TcpConnectionHandler(connection,
-                     userManager, serverManager, this));
-         }
-         catch (InitFailedException e)
-         {
-            System.out
-            .println("<TcpConnectionListener Thread>: Failed to get inbound TCP connection socket!");
+            incomingSocket.getChannel().configureBlocking(false);
+            incomingSocket.setTcpNoDelay(true);
+
+            // spread the connections over the event loops
+            EventLoop eventLoop = eventLoops[Math.floorMod(
+                     nextEventLoop.getAndIncrement(), eventLoops.length)];
+            NonBlockingConnection nonBlockingConnection = new NonBlockingConnection(
+                     incomingSocket.getChannel(), eventLoop);
+            TcpConnection connection = new TcpConnection(nonBlockingConnection);
+            TcpConnectionHandler handler = new TcpConnectionHandler(
+                     nonBlockingConnection, connection, userManager,
+                     serverManager, contentCache, this, workerPool, scheduler);
+
+            activeConnections.put(connection, handler);
+
+            // the event loop handles the connection communication from now on
+            nonBlockingConnection.Start(handler);
          }
          catch (IOException e)
          {
@@ -122,12 +197,45 @@ public class TcpConnectionListener implements Runnable
     */
    public void RemoveConnection(TcpConnection connection)
    {
-      lock.lock();
-      if (activeConnections.contains(connection))
+      TcpConnectionHandler handler = activeConnections.remove(connection);
+
+      if (handler != null)
+      {
+         admissionControl.ReleaseConnection(handler.getAddress());
+      }
+   }
+
+   /**
+    * Tells a client that was not admitted to retry later and closes its
+    * socket. The socket is still blocking, the short answer fits into the
+    * empty send buffer.
+    * 
+    * @param socket
+    *           The socket of the client.
+    */
+   private void Reject(Socket socket)
+   {
+      try
+      {
+         new MessageFileProtocol(socket.getOutputStream())
+                  .writeText(admissionControl.getBusyMessage());
+         socket.close();
+      }
+      catch (IOException e)
       {
-         activeConnections.remove(connection);
+         System.out
+                  .println("<TcpConnectionListener Thread>: Could not reject connection!");
       }
-      lock.unlock();
+   }
+
+   /**
+    * Gets the scheduler of the list and download workflows.
+    * 
+    * @return The scheduler.
+    */
+   public WorkflowScheduler getWorkflowScheduler()
+   {
+      return scheduler;
    }
 
    /**
@@ -135,21 +243,27 @@ public class TcpConnectionListener implements Runnable
     */
    public void CloseAllConnections()
    {
-      threadPool.shutdown();
+      workerPool.shutdown();
+      scheduler.Shutdown();
       isRunning = false;
-      lock.lock();
-      for (TcpConnection connection : activeConnections)
-      {
-         // force the clients to perform a logoff
-         MessageFileProtocol protocol = new MessageFileProtocol(connection
-                  .getOutputStream());
-         protocol.sendForceLogoff();
 
-         // also close the local connection sockets
-         connection.Disconnect();
+      for (TcpConnectionHandler handler : new Vector<TcpConnectionHandler>(
+               activeConnections.values()))
+      {
+         // force the clients to perform a logoff, uses the handlers protocol
+         // object as it knows the negotiated framing mode, also closes the
+         // local connection sockets
+         handler.ForceLogoff();
       }
 
       activeConnections.clear();
-      lock.unlock();
+
+      for (EventLoop eventLoop : eventLoops)
+      {
+         if (eventLoop != null)
+         {
+            eventLoop.Stop();
+         }
+      }
    }
 }
@@ -1,6 +1,8 @@
 package proxy;
 
-import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import protocols.AliveProtocol;
 import protocols.misc.AlivePacket;
@@ -8,73 +10,119 @@ import proxy.serverHandling.ServerData;
 import proxy.serverHandling.ServerManager;
 
 /**
- * Class that handles incoming UDP packets.
+ * Class that handles incoming UDP packets. One instance handles all packets
+ * of a listener, the parsed packet data is reused, so handling a packet of
+ * a known server does not allocate.
  * 
  * @author RaphM
  */
-public class UdpPacketHandler implements Runnable
+public class UdpPacketHandler
 {
    /**
-    * Reference to the received datagram packet.
+    * Protocol used to process the incoming packet.
     */
-   private final DatagramPacket packet;
+   private final AliveProtocol protocol = new AliveProtocol();
 
    /**
-    * Protocol used to process the incoming packet.
+    * Receives the data of the handled packet.
     */
-   private final AliveProtocol protocol = new AliveProtocol();
+   private final AlivePacket convertedPacket = new AlivePacket();
 
    /**
     * Server manager reference.
     */
    private final ServerManager serverManager;
 
+   /**
+    * Number of received packets.
+    */
+   private final AtomicLong receivedPackets = new AtomicLong();
+
+   /**
+    * Number of packets that were dropped because they were older than the
+    * last accepted packet of their server.
+    */
+   private final AtomicLong droppedPackets = new AtomicLong();
+
+   /**
+    * Number of packets that could not be parsed.
+    */
+   private final AtomicLong malformedPackets = new AtomicLong();
+
    /**
     * Initializes a new UdpPacketHandler.
     * 
-    * @param incomingPacket
-    *           The incoming datagram packet to handle.
     * @param serverManager
     *           Server manager reference.
     */
-   public UdpPacketHandler(DatagramPacket incomingPacket,
-            ServerManager serverManager)
+   public UdpPacketHandler(ServerManager serverManager)
    {
-      this.packet = incomingPacket;
       this.serverManager = serverManager;
    }
 
    /**
-    * Executed as a thread.
+    * Handles a received packet.
+    * 
+    * @param packet
+    *           The content of the incoming packet.
+    * @param address
+    *           The address of the originator.
     */
-   public void run()
+   public void Handle(ByteBuffer packet, InetAddress address)
    {
-      // use protocol to extract packet data
-      AlivePacket convertedPacket = protocol.ExtractPacketData(packet);
+      receivedPackets.incrementAndGet();
 
-      if (convertedPacket != null)
+      // use protocol to extract packet data
+      if (!protocol.ExtractPacketData(packet, address, convertedPacket))
       {
-         // get the unique identifier of the packets originator
-         String serverIdentifier = convertedPacket.getServerIdentifier();
-
-         ServerData serverData = serverManager.getServerById(serverIdentifier);
+         malformedPackets.incrementAndGet();
+      }
+      else
+      {
+         // registers new servers, updates the timestamp of known ones
+         ServerData serverData = serverManager.RecordHeartbeat(convertedPacket
+                  .getAddress(), convertedPacket.getTcpPort());
 
-         if (serverData == null)
+         // packets of older fileservers carry no metrics and no sequence
+         // number, reordered packets must not overwrite newer data
+         if (!convertedPacket.hasMetrics() || serverData.updateMetrics(convertedPacket))
          {
-            // create server data object with the received data
-            serverData = new ServerData(convertedPacket.getAddress(),
-                     convertedPacket.getTcpPort());
-
-            // add the new data object
-            serverManager.addServer(serverData);
+            // a changed catalog invalidates the cached file list
+            serverData.updateCatalogDigest(convertedPacket);
          }
          else
          {
-            // update the existing object with the new load and update the
-            // timestamp
-            serverData.renewActivityTimestamp();
+            droppedPackets.incrementAndGet();
          }
+
+         // fetch the catalog changes if the digest changed
+         serverManager.getFileCatalog().Update(serverData);
       }
    }
 
+   /**
+    * Number of received packets.
+    */
+   public long getReceivedPackets()
+   {
+      return receivedPackets.get();
+   }
+
+   /**
+    * Number of packets that were dropped because they were older than the
+    * last accepted packet of their server.
+    */
+   public long getDroppedPackets()
+   {
+      return droppedPackets.get();
+   }
+
+   /**
+    * Number of packets that could not be parsed.
+    */
+   public long getMalformedPackets()
+   {
+      return malformedPackets.get();
+   }
+
 }
@@ -1,13 +1,16 @@
 package proxy;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
 import proxy.serverHandling.ServerManager;
 
 /**
- * Listens for UDP packets.
+ * Listens for UDP packets. A single thread waits until packets arrive and
+ * then drains them from the non-blocking channel in batches, one reused
+ * buffer holds the current packet.
  * 
  * @author RaphM
  */
@@ -19,19 +22,21 @@ public class UdpPacketListener implements Runnable
    private final UdpServerConnectionPoint connection;
 
    /**
-    * Reference to the server manager.
+    * Handles the received packets. Handling a packet is cheap, so packets
+    * are handled by the listening thread.
     */
-   private final ServerManager serverManager;
+   private final UdpPacketHandler packetHandler;
 
    /**
-    * Thread pool that provides threads that run incoming requests.
+    * Maximum number of packets received before checking if the listener
+    * was stopped.
     */
-   private final ExecutorService threadPool = Executors.newCachedThreadPool();
+   private final int MAX_BATCH_SIZE = 1024;
 
    /**
     * Indicates if this instance is currently running.
     */
-   private Boolean isRunning;
+   private volatile boolean isRunning;
 
    /**
     * Initializes this instance.
@@ -45,7 +50,7 @@ public class UdpPacketListener implements Runnable
             ServerManager serverManager)
    {
       this.connection = connection;
-      this.serverManager = serverManager;
+      this.packetHandler = new UdpPacketHandler(serverManager);
    }
 
    /**
@@ -55,25 +60,46 @@ public class UdpPacketListener implements Runnable
    {
       isRunning = true;
       
+      // the buffer is reused for all alive messages
+      ByteBuffer buffer = connection.CreateReceiveBuffer();
+
       while (isRunning)
       {
          // wait for incoming isAlive packages
          try
          {
-            DatagramPacket receivedPacket = connection.ReceiveAliveMessage();
+            connection.WaitForAliveMessages();
             
-            // handle connection communication in a separate thread
-            threadPool.execute(new UdpPacketHandler(receivedPacket, serverManager));
+            for (int i = 0; i < MAX_BATCH_SIZE; i++)
+            {
+               SocketAddress address = connection.ReceiveAliveMessage(buffer);
+               if (address == null)
+               {
+                  // drained
+                  break;
+               }
+
+               packetHandler.Handle(buffer, ((InetSocketAddress) address).getAddress());
+            }
          }
          catch (IOException e)
          {
             isRunning = false;
-            threadPool.shutdown();
             connection.CloseServerSocket();
             System.out.println("<UdpPacketListener Thread>: Server socket was closed, terminating!");
          }
       }
    }
+
+   /**
+    * Gets the handler of the received packets, it counts them.
+    * 
+    * @return The packet handler.
+    */
+   public UdpPacketHandler getPacketHandler()
+   {
+      return packetHandler;
+   }
    
    /**
     * Stops listening to new UDP packets.
@@ -81,7 +107,6 @@ public class UdpPacketListener implements Runnable
    public void StopListening()
    {
       isRunning = false;
-      threadPool.shutdown();
       connection.CloseServerSocket();
    }
 }
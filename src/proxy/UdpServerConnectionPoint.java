@@ -1,24 +1,34 @@
 package proxy;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import common.InitFailedException;
 
 import protocols.AliveProtocol;
 
 /**
- * Encapsulates a UDP server socket.
+ * Encapsulates a non-blocking UDP server channel.
  * 
  * @author RaphM
  */
 public class UdpServerConnectionPoint
 {
    /**
-    * The UDP server socket
+    * The UDP server channel
     */
-   private DatagramSocket serverSocket;
+   private DatagramChannel serverChannel;
+
+   /**
+    * Waits until packets can be received.
+    */
+   private Selector selector;
    
    /**
     * The protocol used for incoming packets.
@@ -38,7 +48,12 @@ public class UdpServerConnectionPoint
    {
       try
       {
-         serverSocket = new DatagramSocket(port);
+         serverChannel = DatagramChannel.open();
+         serverChannel.bind(new InetSocketAddress(port));
+         serverChannel.configureBlocking(false);
+
+         selector = Selector.open();
+         serverChannel.register(selector, SelectionKey.OP_READ);
       }
       catch (IOException e)
       {
@@ -55,22 +70,64 @@ public class UdpServerConnectionPoint
     */
    public void CloseServerSocket()
    {
-      if (serverSocket != null && !serverSocket.isClosed())
+      try
       {
-         serverSocket.close();
+         if (selector != null && selector.isOpen())
+         {
+            // wakes up the listener
+            selector.close();
+         }
+
+         if (serverChannel != null && serverChannel.isOpen())
+         {
+            serverChannel.close();
 
-         System.out.println("Closed UDP server socket succesfully!");
+            System.out.println("Closed UDP server socket succesfully!");
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error closing UDP server socket!");
       }
    }
    
    /**
-    * Exposes the receive() method of the datagram socket.
+    * Creates a buffer that can be reused for receiving alive messages.
+    * 
+    * @return The buffer.
+    */
+   public ByteBuffer CreateReceiveBuffer()
+   {
+      return protocol.CreateReceiveBuffer();
+   }
+
+   /**
+    * Waits until alive messages can be received (blocking).
+    * 
+    * @throws IOException If the channel was closed.
+    */
+   public void WaitForAliveMessages() throws IOException
+   {
+      try
+      {
+         selector.select();
+         selector.selectedKeys().clear();
+      }
+      catch (ClosedSelectorException e)
+      {
+         throw new IOException("UDP server socket was closed");
+      }
+   }
+
+   /**
+    * Receives an alive message if one is waiting (non-blocking).
     * 
-    * @return The received packet content.
+    * @param buffer Receives the message content.
+    * @return The address of the originator, null if no message was waiting.
     * @throws IOException IO exception.
     */
-   public DatagramPacket ReceiveAliveMessage() throws IOException
+   public SocketAddress ReceiveAliveMessage(ByteBuffer buffer) throws IOException
    {
-      return protocol.ReceivePacket(serverSocket);
+      return protocol.ReceivePacket(serverChannel, buffer);
    }
 }
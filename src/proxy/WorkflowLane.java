@@ -0,0 +1,250 @@
+package proxy;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs workflows of one kind on a shared pool, at most a fixed number at
+ * once. Further workflows wait in a bounded queue and are run by the
+ * thread of a finished workflow, workflows over the queue limit are
+ * rejected.
+ * 
+ * @author RaphM
+ */
+public class WorkflowLane implements Executor
+{
+   /**
+    * Name of the lane on the console.
+    */
+   private final String name;
+
+   /**
+    * Maximum number of workflows that run at once.
+    */
+   private final int maxRunning;
+
+   /**
+    * Maximum number of workflows that wait.
+    */
+   private final int maxQueued;
+
+   /**
+    * The pool that runs the workflows.
+    */
+   private final Executor pool;
+
+   /**
+    * Protects the queue and the number of running workflows.
+    */
+   private final Lock lock = new ReentrantLock();
+
+   /**
+    * Workflows that wait for a running one to finish.
+    */
+   private final LinkedList<Runnable> queuedWorkflows = new LinkedList<Runnable>();
+
+   /**
+    * Number of running workflows.
+    */
+   private int running;
+
+   /**
+    * Creates a new lane.
+    * 
+    * @param name
+    *           Name of the lane on the console.
+    * @param maxRunning
+    *           Maximum number of workflows that run at once.
+    * @param maxQueued
+    *           Maximum number of workflows that wait.
+    * @param pool
+    *           The pool that runs the workflows.
+    */
+   public WorkflowLane(String name, int maxRunning, int maxQueued, Executor pool)
+   {
+      this.name = name;
+      this.maxRunning = maxRunning;
+      this.maxQueued = maxQueued;
+      this.pool = pool;
+   }
+
+   /**
+    * Runs a workflow as soon as the lane has room for it.
+    * 
+    * @param workflow
+    *           The workflow.
+    * @throws RejectedExecutionException
+    *           Gets thrown when the queue is full or the pool was shut down.
+    */
+   public void execute(Runnable workflow)
+   {
+      lock.lock();
+      try
+      {
+         if (running >= maxRunning)
+         {
+            if (queuedWorkflows.size() >= maxQueued)
+            {
+               throw new RejectedExecutionException("Lane " + name + " is full!");
+            }
+
+            queuedWorkflows.add(workflow);
+            return;
+         }
+
+         running++;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      try
+      {
+         pool.execute(new LaneWorker(workflow));
+      }
+      catch (RejectedExecutionException e)
+      {
+         // give back the place only, the waiting workflows must stay queued
+         lock.lock();
+         try
+         {
+            running--;
+         }
+         finally
+         {
+            lock.unlock();
+         }
+         throw e;
+      }
+   }
+
+   /**
+    * Takes the next waiting workflow or gives back the place of a finished
+    * one.
+    * 
+    * @return The workflow, null if none waits.
+    */
+   private Runnable TakeNext()
+   {
+      lock.lock();
+      try
+      {
+         Runnable next = queuedWorkflows.poll();
+         if (next == null)
+         {
+            running--;
+         }
+         return next;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Gets the name of the lane on the console.
+    * 
+    * @return The name.
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Gets the number of running workflows.
+    * 
+    * @return The number.
+    */
+   public int getRunning()
+   {
+      lock.lock();
+      try
+      {
+         return running;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Gets the number of waiting workflows.
+    * 
+    * @return The number.
+    */
+   public int getQueued()
+   {
+      lock.lock();
+      try
+      {
+         return queuedWorkflows.size();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Gets the maximum number of workflows that run at once.
+    * 
+    * @return The maximum.
+    */
+   public int getMaxRunning()
+   {
+      return maxRunning;
+   }
+
+   /**
+    * Runs a workflow and then the waiting ones until the queue is empty.
+    */
+   private class LaneWorker implements Runnable
+   {
+      /**
+       * The first workflow.
+       */
+      private final Runnable workflow;
+
+      /**
+       * Creates a new worker.
+       * 
+       * @param workflow
+       *           The first workflow.
+       */
+      public LaneWorker(Runnable workflow)
+      {
+         this.workflow = workflow;
+      }
+
+      /**
+       * Executed as a thread.
+       */
+      public void run()
+      {
+         Runnable current = workflow;
+
+         while (current != null)
+         {
+            try
+            {
+               current.run();
+            }
+            catch (RuntimeException e)
+            {
+               // the waiting workflows must not be lost with this one
+               System.out.println("<WorkflowLane " + name + ">: Workflow failed: "
+                        + e.getMessage());
+            }
+
+            current = TakeNext();
+         }
+      }
+   }
+}
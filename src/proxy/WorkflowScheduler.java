@@ -0,0 +1,152 @@
+package proxy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Schedules the list and download workflows of the clients in separate
+ * lanes, so bulk downloads cannot hold up cheap requests. List workflows
+ * and the size lookup of downloads run in the control lane. A download
+ * is handed to the lane of small or large transfers once its size is
+ * known, only a few large transfers run at once.
+ * 
+ * @author RaphM
+ */
+public class WorkflowScheduler
+{
+   /**
+    * Transfers up to this size are small.
+    */
+   private final long SMALL_TRANSFER_SIZE = 1024 * 1024;
+
+   /**
+    * Maximum number of control workflows that run at once.
+    */
+   private final int CONTROL_WORKFLOWS = 64;
+
+   /**
+    * Maximum number of small transfers that run at once.
+    */
+   private final int SMALL_TRANSFERS = 32;
+
+   /**
+    * Maximum number of large transfers that run at once.
+    */
+   private final int LARGE_TRANSFERS = 8;
+
+   /**
+    * Maximum number of workflows that wait in a lane.
+    */
+   private final int MAX_QUEUED = 1024;
+
+   /**
+    * Counts the workflows in flight.
+    */
+   private final AdmissionControl admissionControl;
+
+   /**
+    * The pool that runs the lanes and the requests of the workflows.
+    */
+   private final ExecutorService pool;
+
+   /**
+    * Lane of list workflows and size lookups.
+    */
+   private final WorkflowLane controlLane;
+
+   /**
+    * Lane of small transfers.
+    */
+   private final WorkflowLane smallTransferLane;
+
+   /**
+    * Lane of large transfers.
+    */
+   private final WorkflowLane largeTransferLane;
+
+   /**
+    * Creates a new scheduler.
+    * 
+    * @param admissionControl
+    *           Limits the workflows in flight.
+    * @param pool
+    *           The pool that runs the lanes and the requests of the
+    *           workflows.
+    */
+   public WorkflowScheduler(AdmissionControl admissionControl, ExecutorService pool)
+   {
+      this.admissionControl = admissionControl;
+      this.pool = pool;
+      controlLane = new WorkflowLane("Control", CONTROL_WORKFLOWS, MAX_QUEUED, pool);
+      smallTransferLane = new WorkflowLane("Small transfers", SMALL_TRANSFERS,
+               MAX_QUEUED, pool);
+      largeTransferLane = new WorkflowLane("Large transfers", LARGE_TRANSFERS,
+               MAX_QUEUED, pool);
+   }
+
+   /**
+    * Runs a new workflow in the control lane if it is admitted.
+    * 
+    * @param workflow
+    *           The workflow.
+    * @return False if the workflow was rejected.
+    */
+   public boolean TrySubmit(Runnable workflow)
+   {
+      return admissionControl.TryExecute(controlLane, workflow);
+   }
+
+   /**
+    * Hands the transfer of an admitted download to the lane of its size.
+    * 
+    * @param size
+    *           Number of bytes that are transferred.
+    * @param transfer
+    *           The transfer.
+    * @return False if the lane is full.
+    */
+   public boolean TryHandOff(long size, Runnable transfer)
+   {
+      return admissionControl.TryContinue(size <= SMALL_TRANSFER_SIZE
+               ? smallTransferLane : largeTransferLane, transfer);
+   }
+
+   /**
+    * Gets the answer for rejected workflows.
+    * 
+    * @return The message.
+    */
+   public String getBusyMessage()
+   {
+      return admissionControl.getBusyMessage();
+   }
+
+   /**
+    * Gets the pool that runs the requests of the workflows, like the
+    * workers of striped downloads.
+    * 
+    * @return The pool.
+    */
+   public Executor getPool()
+   {
+      return pool;
+   }
+
+   /**
+    * Gets the lanes.
+    * 
+    * @return The lanes.
+    */
+   public WorkflowLane[] getLanes()
+   {
+      return new WorkflowLane[] { controlLane, smallTransferLane, largeTransferLane };
+   }
+
+   /**
+    * Stops running new workflows.
+    */
+   public void Shutdown()
+   {
+      pool.shutdown();
+   }
+}
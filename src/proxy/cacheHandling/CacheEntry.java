@@ -0,0 +1,129 @@
+package proxy.cacheHandling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import common.ICachedFile;
+
+/**
+ * A file in the content cache. Every entry is stored on disk, frequently
+ * requested small entries are held in memory as well.
+ * 
+ * @author RaphM
+ */
+public class CacheEntry implements ICachedFile
+{
+   /**
+    * Name of the cached file.
+    */
+   private final String fileName;
+
+   /**
+    * Size of the cached file.
+    */
+   private final long size;
+
+   /**
+    * Modification time of the cached file on the fileserver.
+    */
+   private final long lastModified;
+
+   /**
+    * The file that holds the content on disk.
+    */
+   private final File diskFile;
+
+   /**
+    * The content in (off-heap) memory, null if only stored on disk.
+    */
+   private ByteBuffer memoryContent;
+
+   /**
+    * Creates a new entry.
+    * 
+    * @param fileName Name of the cached file.
+    * @param size Size of the cached file.
+    * @param lastModified Modification time of the cached file.
+    * @param diskFile The file that holds the content on disk.
+    */
+   public CacheEntry(String fileName, long size, long lastModified, File diskFile)
+   {
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.diskFile = diskFile;
+   }
+
+   /**
+    * @return Name of the cached file.
+    */
+   public String getFileName()
+   {
+      return fileName;
+   }
+
+   /**
+    * @return Size of the cached file.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return The file that holds the content on disk.
+    */
+   public File getDiskFile()
+   {
+      return diskFile;
+   }
+
+   /**
+    * @return The content in memory, null if only stored on disk.
+    */
+   public ByteBuffer getMemoryContent()
+   {
+      return memoryContent;
+   }
+
+   /**
+    * Sets the content in memory.
+    * 
+    * @param memoryContent The content, null to drop it from memory.
+    */
+   public void setMemoryContent(ByteBuffer memoryContent)
+   {
+      this.memoryContent = memoryContent;
+   }
+
+   /**
+    * Indicates if this entry still matches the file on the fileserver.
+    * 
+    * @param size Current size of the file.
+    * @param lastModified Current modification time of the file.
+    * @return True if the file has not changed since caching it.
+    */
+   public boolean isValid(long size, long lastModified)
+   {
+      return this.size == size && this.lastModified == lastModified;
+   }
+
+   /**
+    * Opens the content for reading, from memory if possible. The content
+    * stays readable even if the entry is evicted meanwhile.
+    * 
+    * @return The opened content, has to be closed by the caller.
+    * @throws IOException If the disk file cannot be opened.
+    */
+   public CachedContent Open() throws IOException
+   {
+      if (memoryContent != null)
+      {
+         return new CachedContent(memoryContent.duplicate());
+      }
+
+      return new CachedContent(new FileInputStream(diskFile).getChannel());
+   }
+}
@@ -0,0 +1,454 @@
+package proxy.cacheHandling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A file that is being written into the content cache while it is relayed
+ * to a client. The content goes to a temporary file first and is only
+ * added to the cache once it is complete.
+ * 
+ * Identical downloads that start meanwhile read the temporary file while
+ * it is written, so the file is only transferred from the fileservers
+ * once. The temporary file is deleted when neither the writer nor a
+ * reader needs it any more.
+ * 
+ * If the fileserver sent a checksum, the content is only added to the
+ * cache if it matches.
+ * 
+ * @author RaphM
+ */
+public class CacheInsertion
+{
+   /**
+    * The cache the file is added to.
+    */
+   private final ContentCache cache;
+
+   /**
+    * Name of the file.
+    */
+   private final String fileName;
+
+   /**
+    * Size of the file.
+    */
+   private final long size;
+
+   /**
+    * Modification time of the file on the fileserver.
+    */
+   private final long lastModified;
+
+   /**
+    * The temporary file.
+    */
+   private final File tempFile;
+
+   /**
+    * Channel to the temporary file, null after an error or when finished.
+    */
+   private FileChannel out;
+
+   /**
+    * Guards the state shared with readers.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signalled when content was written or the insertion finished.
+    */
+   private final Condition contentWritten = lock.newCondition();
+
+   /**
+    * Number of bytes written so far.
+    */
+   private long writtenBytes;
+
+   /**
+    * Indicates that no more content will be written.
+    */
+   private boolean isFinished;
+
+   /**
+    * Indicates that the content is incomplete.
+    */
+   private boolean isFailed;
+
+   /**
+    * Indicates that the temporary file became a cache entry.
+    */
+   private boolean isCommitted;
+
+   /**
+    * Number of open readers.
+    */
+   private int readers;
+
+   /**
+    * Hex encoded SHA-256 checksum the content must match, null if unknown.
+    */
+   private String expectedChecksum;
+
+   /**
+    * Computes the checksum of the written content, null if not checked.
+    */
+   private MessageDigest contentDigest;
+
+   /**
+    * Creates the temporary file.
+    * 
+    * @param cache The cache the file is added to.
+    * @param fileName Name of the file.
+    * @param size Size of the file.
+    * @param lastModified Modification time of the file.
+    * @param tempFile The temporary file.
+    * @throws IOException If the temporary file cannot be created.
+    */
+   CacheInsertion(ContentCache cache, String fileName, long size,
+            long lastModified, File tempFile) throws IOException
+   {
+      this.cache = cache;
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.tempFile = tempFile;
+      this.out = new RandomAccessFile(tempFile, "rw").getChannel();
+   }
+
+   /**
+    * @return Name of the file.
+    */
+   public String getFileName()
+   {
+      return fileName;
+   }
+
+   /**
+    * @return Size of the file.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return Modification time of the file.
+    */
+   public long getLastModified()
+   {
+      return lastModified;
+   }
+
+   /**
+    * @return The temporary file.
+    */
+   File getTempFile()
+   {
+      return tempFile;
+   }
+
+   /**
+    * Sets the checksum the content must match. Has to be called before
+    * content is written.
+    * 
+    * @param checksum The hex encoded SHA-256 checksum of the file.
+    */
+   public void ExpectChecksum(String checksum)
+   {
+      if (writtenBytes > 0 || expectedChecksum != null)
+      {
+         return;
+      }
+
+      try
+      {
+         contentDigest = MessageDigest.getInstance("SHA-256");
+         expectedChecksum = checksum;
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // content is cached unchecked
+      }
+   }
+
+   /**
+    * Appends content to the temporary file. Errors cancel the insertion
+    * and the readers, the download of the writer itself is not affected.
+    * 
+    * @param data The buffer that holds the content.
+    * @param offset Offset of the content in the buffer.
+    * @param length Length of the content.
+    */
+   public void Write(byte[] data, int offset, int length)
+   {
+      if (out != null)
+      {
+         try
+         {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining())
+            {
+               out.write(buffer);
+            }
+
+            if (contentDigest != null)
+            {
+               contentDigest.update(data, offset, length);
+            }
+         }
+         catch (IOException e)
+         {
+            System.out.println("Could not write to content cache: " + tempFile);
+            Abort();
+            return;
+         }
+
+         lock.lock();
+         try
+         {
+            writtenBytes += length;
+            contentWritten.signalAll();
+         }
+         finally
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Adds the file to the cache if it was received completely, otherwise
+    * discards it.
+    */
+   public void Finish()
+   {
+      if (out == null)
+      {
+         return;
+      }
+
+      boolean isComplete = writtenBytes == size;
+
+      try
+      {
+         out.close();
+         out = null;
+      }
+      catch (IOException e)
+      {
+         isComplete = false;
+      }
+
+      if (isComplete && contentDigest != null
+               && !expectedChecksum.equals(getChecksum(contentDigest.digest())))
+      {
+         System.out.println("Checksum mismatch, not caching: " + fileName);
+         isComplete = false;
+      }
+
+      if (!isComplete)
+      {
+         Abort();
+         return;
+      }
+
+      // open readers keep reading the file even if it is renamed
+      boolean committed = cache.Commit(this);
+
+      lock.lock();
+      try
+      {
+         isCommitted = committed;
+         isFinished = true;
+         contentWritten.signalAll();
+         DeleteUnused();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Discards the file, readers fail once they reach the missing content.
+    */
+   public void Abort()
+   {
+      if (out != null)
+      {
+         try
+         {
+            out.close();
+         }
+         catch (IOException e)
+         {
+            // deleted anyway
+         }
+         out = null;
+      }
+
+      cache.Cancel(this);
+
+      lock.lock();
+      try
+      {
+         isFailed = true;
+         isFinished = true;
+         contentWritten.signalAll();
+         DeleteUnused();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Discards the file if nobody reads it, downloads that look up the file
+    * afterwards do not find it any more.
+    * 
+    * @return True if the file was discarded.
+    */
+   public boolean AbortIfUnread()
+   {
+      if (!cache.Abandon(this))
+      {
+         return false;
+      }
+
+      Abort();
+      return true;
+   }
+
+   /**
+    * Indicates that the content is read by a download.
+    * 
+    * @return True if a reader is open.
+    */
+   boolean hasReaders()
+   {
+      lock.lock();
+      try
+      {
+         return readers > 0;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Opens the content written so far for reading, reads wait for content
+    * that has not been written yet.
+    * 
+    * @return The opened content, has to be closed by the caller.
+    * @throws IOException If the temporary file cannot be opened.
+    */
+   CachedContent Open() throws IOException
+   {
+      lock.lock();
+      try
+      {
+         CachedContent content = new CachedContent(new FileInputStream(tempFile)
+                  .getChannel(), this);
+         readers++;
+         return content;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits until content at a certain position was written.
+    * 
+    * @param position Position of the wanted byte.
+    * @return Number of bytes that can be read from the file.
+    * @throws IOException If the content will never be written.
+    */
+   long AwaitContent(long position) throws IOException
+   {
+      lock.lock();
+      try
+      {
+         while (writtenBytes <= position && !isFinished)
+         {
+            try
+            {
+               contentWritten.await();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while waiting for " + fileName);
+            }
+         }
+
+         if (writtenBytes <= position && isFailed)
+         {
+            throw new IOException("Shared download of " + fileName + " failed!");
+         }
+
+         return writtenBytes;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Unregisters a closed reader.
+    */
+   void Release()
+   {
+      lock.lock();
+      try
+      {
+         readers--;
+         DeleteUnused();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Hex encodes a checksum.
+    * 
+    * @param digest The checksum bytes.
+    * @return The hex encoded checksum.
+    */
+   private String getChecksum(byte[] digest)
+   {
+      StringBuilder checksum = new StringBuilder();
+      for (byte b : digest)
+      {
+         checksum.append(String.format("%02x", b & 0xff));
+      }
+      return checksum.toString();
+   }
+
+   /**
+    * Deletes the temporary file once it is not needed any more.
+    */
+   private void DeleteUnused()
+   {
+      if (isFinished && !isCommitted && readers == 0)
+      {
+         tempFile.delete();
+      }
+   }
+}
@@ -0,0 +1,128 @@
+package proxy.cacheHandling;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read access to the content of a cache entry, either in memory or on
+ * disk, or to the content of a file that is still being downloaded.
+ * 
+ * @author RaphM
+ */
+public class CachedContent
+{
+   /**
+    * The content in memory, null if read from disk.
+    */
+   private final ByteBuffer memoryContent;
+
+   /**
+    * The content on disk, null if read from memory.
+    */
+   private final FileChannel diskContent;
+
+   /**
+    * The download that writes the disk file, null if it is complete.
+    */
+   private final CacheInsertion source;
+
+   /**
+    * Creates read access to content in memory.
+    * 
+    * @param memoryContent A buffer of its own for this reader.
+    */
+   public CachedContent(ByteBuffer memoryContent)
+   {
+      this.memoryContent = memoryContent;
+      this.diskContent = null;
+      this.source = null;
+   }
+
+   /**
+    * Creates read access to content on disk.
+    * 
+    * @param diskContent The opened disk file.
+    */
+   public CachedContent(FileChannel diskContent)
+   {
+      this(diskContent, null);
+   }
+
+   /**
+    * Creates read access to a disk file that is still being written.
+    * 
+    * @param diskContent The opened disk file.
+    * @param source The download that writes the file, null if it is
+    *           complete.
+    */
+   CachedContent(FileChannel diskContent, CacheInsertion source)
+   {
+      this.memoryContent = null;
+      this.diskContent = diskContent;
+      this.source = source;
+   }
+
+   /**
+    * Reads content from a certain position, waits for content that is
+    * still being downloaded.
+    * 
+    * @param position Position of the first byte to read.
+    * @param buffer The buffer to fill.
+    * @param length Maximum number of bytes to read.
+    * @return Number of bytes read, -1 at the end of the content.
+    * @throws IOException If the disk file cannot be read or the download
+    *            failed.
+    */
+   public int Read(long position, byte[] buffer, int length) throws IOException
+   {
+      if (memoryContent != null)
+      {
+         if (position >= memoryContent.limit())
+         {
+            return -1;
+         }
+
+         int count = (int) Math.min(length, memoryContent.limit() - position);
+         memoryContent.position((int) position);
+         memoryContent.get(buffer, 0, count);
+         return count;
+      }
+
+      if (source != null)
+      {
+         long available = source.AwaitContent(position);
+         if (position >= available)
+         {
+            return -1;
+         }
+
+         length = (int) Math.min(length, available - position);
+      }
+
+      return diskContent.read(ByteBuffer.wrap(buffer, 0, length), position);
+   }
+
+   /**
+    * Releases the content.
+    */
+   public void Close()
+   {
+      if (diskContent != null)
+      {
+         try
+         {
+            diskContent.close();
+         }
+         catch (IOException e)
+         {
+            System.out.println("Could not close cached file!");
+         }
+      }
+
+      if (source != null)
+      {
+         source.Release();
+      }
+   }
+}
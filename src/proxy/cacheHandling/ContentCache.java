@@ -0,0 +1,531 @@
+package proxy.cacheHandling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.FrequencyAdmission;
+import common.InitFailedException;
+
+/**
+ * Two-tiered cache for downloaded files. Every entry is stored in the
+ * cache directory, small entries that are requested again are also held
+ * in off-heap memory. Both tiers are bounded by their size in bytes.
+ * 
+ * A new entry is only admitted into a full tier if it was requested more
+ * often than every entry it would evict (least recently used first), so
+ * large files that are downloaded once cannot flush frequently requested
+ * ones.
+ * 
+ * Files that are still being downloaded can already be read, so
+ * identical downloads that run at the same time share one transfer from
+ * the fileservers.
+ * 
+ * @author RaphM
+ */
+public class ContentCache
+{
+   /**
+    * Maximum number of bytes held in memory.
+    */
+   private final long MEMORY_CAPACITY = 32 * 1024 * 1024;
+
+   /**
+    * Larger entries are only stored on disk.
+    */
+   private final long MAX_MEMORY_ENTRY_SIZE = 4 * 1024 * 1024;
+
+   /**
+    * Maximum number of bytes stored on disk.
+    */
+   private final long DISK_CAPACITY = 1024L * 1024 * 1024;
+
+   /**
+    * Larger files are not cached, only shared while they are downloaded.
+    */
+   private final long MAX_DISK_ENTRY_SIZE = 256 * 1024 * 1024;
+
+   /**
+    * File name suffix of cached files.
+    */
+   private final String CACHE_FILE_SUFFIX = ".cache";
+
+   /**
+    * File name suffix of files that are being written.
+    */
+   private final String TEMP_FILE_SUFFIX = ".tmp";
+
+   /**
+    * The cache directory.
+    */
+   private final File directory;
+
+   /**
+    * All entries (stored on disk), in least recently used order.
+    */
+   private final LinkedHashMap<String, CacheEntry> diskEntries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+
+   /**
+    * Entries that are also held in memory, in least recently used order.
+    */
+   private final LinkedHashMap<String, CacheEntry> memoryEntries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+
+   /**
+    * Files that are being downloaded, by file name.
+    */
+   private final Map<String, CacheInsertion> insertions = new HashMap<String, CacheInsertion>();
+
+   /**
+    * Entries that are being loaded into memory, by file name.
+    */
+   private final Set<String> loadingEntries = new HashSet<String>();
+
+   /**
+    * Counts the requests and decides which entries are admitted.
+    */
+   private final FrequencyAdmission admission = new FrequencyAdmission(0);
+
+   /**
+    * Number of bytes stored on disk.
+    */
+   private long diskSize;
+
+   /**
+    * Number of bytes held in memory.
+    */
+   private long memorySize;
+
+   /**
+    * Number used for the next temporary file name.
+    */
+   private final AtomicLong nextTempFileId = new AtomicLong();
+
+   /**
+    * Creates an empty cache, leftovers of earlier runs are deleted.
+    * 
+    * @param directory The cache directory, created if it does not exist.
+    * @throws InitFailedException If the directory cannot be used.
+    */
+   public ContentCache(String directory) throws InitFailedException
+   {
+      this.directory = new File(directory);
+
+      if (!this.directory.isDirectory() && !this.directory.mkdirs())
+      {
+         System.out.println("Cannot create cache directory: "
+                  + this.directory.getAbsolutePath());
+         throw new InitFailedException();
+      }
+
+      for (File file : this.directory.listFiles())
+      {
+         if (file.getName().endsWith(CACHE_FILE_SUFFIX)
+                  || file.getName().endsWith(TEMP_FILE_SUFFIX))
+         {
+            file.delete();
+         }
+      }
+
+      System.out.println("Caching files in directory: "
+               + this.directory.getAbsolutePath());
+   }
+
+   /**
+    * Looks up a file and records the request. Entries that do not match
+    * the current size and modification time are dropped. A file that is
+    * still being downloaded is returned as well, reads wait for its
+    * content.
+    * 
+    * A small entry that is admitted to the memory tier is loaded after
+    * the lookup, outside of the cache lock. This request still reads it
+    * from disk.
+    * 
+    * @param fileName The file name.
+    * @param size Current size of the file.
+    * @param lastModified Current modification time of the file.
+    * @return The opened content, null on a cache miss. Has to be closed by
+    *         the caller.
+    */
+   public CachedContent Lookup(String fileName, long size, long lastModified)
+   {
+      CacheEntry promotedEntry = null;
+      CachedContent content;
+
+      synchronized (this)
+      {
+         admission.RecordRequest(fileName);
+
+         CacheEntry entry = diskEntries.get(fileName);
+         if (entry == null)
+         {
+            return Join(fileName, size, lastModified);
+         }
+
+         if (!entry.isValid(size, lastModified))
+         {
+            // the file changed on the fileserver
+            Remove(entry);
+            return Join(fileName, size, lastModified);
+         }
+
+         if (entry.getMemoryContent() != null)
+         {
+            // update the memory tier order as well
+            memoryEntries.get(fileName);
+         }
+         else if (size <= MAX_MEMORY_ENTRY_SIZE && !loadingEntries.contains(fileName)
+                  && FindMemoryVictims(entry) != null)
+         {
+            loadingEntries.add(fileName);
+            promotedEntry = entry;
+         }
+
+         try
+         {
+            content = entry.Open();
+         }
+         catch (IOException e)
+         {
+            System.out.println("Could not open cached file: " + entry.getDiskFile());
+            loadingEntries.remove(fileName);
+            Remove(entry);
+            return null;
+         }
+      }
+
+      if (promotedEntry != null)
+      {
+         Promote(promotedEntry);
+      }
+
+      return content;
+   }
+
+   /**
+    * Reads a file that is still being downloaded, without recording a
+    * request.
+    * 
+    * @param fileName The file name.
+    * @param size Current size of the file.
+    * @param lastModified Current modification time of the file.
+    * @return The opened content, null if no matching download is running.
+    *         Has to be closed by the caller.
+    */
+   public synchronized CachedContent Join(String fileName, long size, long lastModified)
+   {
+      CacheInsertion insertion = insertions.get(fileName);
+      if (insertion == null || insertion.getSize() != size
+               || insertion.getLastModified() != lastModified)
+      {
+         return null;
+      }
+
+      try
+      {
+         return insertion.Open();
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not open shared download: " + insertion.getTempFile());
+         return null;
+      }
+   }
+
+   /**
+    * Starts writing a file into the cache, other downloads of the same file
+    * can read it meanwhile.
+    * 
+    * @param fileName The file name.
+    * @param size Size of the file.
+    * @param lastModified Modification time of the file, 0 if unknown.
+    * @return The insertion, null if the file cannot be cached or is already
+    *         being downloaded.
+    */
+   public synchronized CacheInsertion BeginInsert(String fileName, long size, long lastModified)
+   {
+      if (lastModified == 0 || insertions.containsKey(fileName))
+      {
+         // cannot be validated later or already being written
+         return null;
+      }
+
+      File tempFile = new File(directory, nextTempFileId.incrementAndGet()
+               + TEMP_FILE_SUFFIX);
+
+      try
+      {
+         CacheInsertion insertion = new CacheInsertion(this, fileName, size,
+                  lastModified, tempFile);
+         insertions.put(fileName, insertion);
+         return insertion;
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not create cache file: " + tempFile);
+         return null;
+      }
+   }
+
+   /**
+    * Gets the number of bytes held in memory.
+    * 
+    * @return Number of bytes.
+    */
+   public synchronized long getMemorySize()
+   {
+      return memorySize;
+   }
+
+   /**
+    * Gets the number of bytes stored on disk.
+    * 
+    * @return Number of bytes.
+    */
+   public synchronized long getDiskSize()
+   {
+      return diskSize;
+   }
+
+   /**
+    * Adds a completely written file, if it is admitted.
+    * 
+    * @param insertion The finished insertion.
+    * @return True if the file was added, otherwise the caller deletes the
+    *         temporary file.
+    */
+   synchronized boolean Commit(CacheInsertion insertion)
+   {
+      String fileName = insertion.getFileName();
+      insertions.remove(fileName);
+
+      if (insertion.getSize() > MAX_DISK_ENTRY_SIZE || insertion.getSize() > DISK_CAPACITY)
+      {
+         // too large to be cached
+         return false;
+      }
+
+      CacheEntry previous = diskEntries.get(fileName);
+      if (previous != null)
+      {
+         // replaced by the newer content
+         Remove(previous);
+      }
+
+      Vector<CacheEntry> victims = admission.FindVictims(diskEntries.values(),
+               DISK_CAPACITY - diskSize, fileName, insertion.getSize());
+      if (victims == null)
+      {
+         return false;
+      }
+
+      for (CacheEntry victim : victims)
+      {
+         Remove(victim);
+      }
+
+      File diskFile = getDiskFile(fileName);
+      if (!insertion.getTempFile().renameTo(diskFile))
+      {
+         System.out.println("Could not store cache file: " + diskFile);
+         return false;
+      }
+
+      CacheEntry entry = new CacheEntry(fileName, insertion.getSize(),
+               insertion.getLastModified(), diskFile);
+      diskEntries.put(fileName, entry);
+      diskSize += entry.getSize();
+
+      return true;
+   }
+
+   /**
+    * Unregisters a discarded insertion.
+    * 
+    * @param insertion The insertion.
+    */
+   synchronized void Cancel(CacheInsertion insertion)
+   {
+      if (insertions.get(insertion.getFileName()) == insertion)
+      {
+         insertions.remove(insertion.getFileName());
+      }
+   }
+
+   /**
+    * Unregisters an insertion nobody reads, so no download can join it
+    * any more.
+    * 
+    * @param insertion The insertion.
+    * @return False if the insertion has readers and was kept.
+    */
+   synchronized boolean Abandon(CacheInsertion insertion)
+   {
+      if (insertion.hasReaders())
+      {
+         return false;
+      }
+
+      Cancel(insertion);
+      return true;
+   }
+
+   /**
+    * Loads an entry into memory. The disk file is read without holding the
+    * cache lock, the admission is checked again before the content is
+    * added, the cache may have changed meanwhile.
+    * 
+    * @param entry The entry, marked as loading.
+    */
+   private void Promote(CacheEntry entry)
+   {
+      ByteBuffer content = ReadContent(entry);
+
+      synchronized (this)
+      {
+         loadingEntries.remove(entry.getFileName());
+
+         if (content == null || diskEntries.get(entry.getFileName()) != entry
+                  || entry.getMemoryContent() != null)
+         {
+            // unreadable, removed or replaced meanwhile
+            return;
+         }
+
+         Vector<CacheEntry> victims = FindMemoryVictims(entry);
+         if (victims == null)
+         {
+            return;
+         }
+
+         for (CacheEntry victim : victims)
+         {
+            Evict(victim);
+         }
+
+         entry.setMemoryContent(content);
+         memoryEntries.put(entry.getFileName(), entry);
+         memorySize += entry.getSize();
+      }
+   }
+
+   /**
+    * Finds the entries that have to be evicted from memory to make room
+    * for an entry.
+    * 
+    * @param entry The entry.
+    * @return The entries to evict, null if the entry is not admitted.
+    */
+   private Vector<CacheEntry> FindMemoryVictims(CacheEntry entry)
+   {
+      return admission.FindVictims(memoryEntries.values(),
+               MEMORY_CAPACITY - memorySize, entry.getFileName(), entry.getSize());
+   }
+
+   /**
+    * Reads the disk file of an entry into a direct buffer.
+    * 
+    * @param entry The entry.
+    * @return The content, null if the disk file cannot be read or is
+    *         shorter than expected.
+    */
+   private ByteBuffer ReadContent(CacheEntry entry)
+   {
+      ByteBuffer content = ByteBuffer.allocateDirect((int) entry.getSize());
+      try
+      {
+         FileChannel channel = new FileInputStream(entry.getDiskFile()).getChannel();
+         try
+         {
+            while (content.hasRemaining() && channel.read(content) != -1)
+            {
+               // read the whole file
+            }
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not load cached file: " + entry.getDiskFile());
+         return null;
+      }
+
+      if (content.hasRemaining())
+      {
+         // the disk file is shorter than expected
+         return null;
+      }
+
+      content.flip();
+      return content;
+   }
+
+   /**
+    * Drops an entry from memory, it stays on disk.
+    * 
+    * @param entry The entry.
+    */
+   private void Evict(CacheEntry entry)
+   {
+      if (memoryEntries.remove(entry.getFileName()) != null)
+      {
+         memorySize -= entry.getSize();
+      }
+      entry.setMemoryContent(null);
+   }
+
+   /**
+    * Removes an entry from both tiers and deletes its disk file.
+    * 
+    * @param entry The entry.
+    */
+   private void Remove(CacheEntry entry)
+   {
+      Evict(entry);
+
+      if (diskEntries.remove(entry.getFileName()) != null)
+      {
+         diskSize -= entry.getSize();
+      }
+      entry.getDiskFile().delete();
+   }
+
+   /**
+    * Gets the disk file of an entry. File names are hex encoded, so they
+    * cannot leave the cache directory.
+    * 
+    * @param fileName The file name.
+    * @return The disk file.
+    */
+   private File getDiskFile(String fileName)
+   {
+      StringBuilder encodedName = new StringBuilder();
+
+      try
+      {
+         for (byte b : fileName.getBytes("UTF-8"))
+         {
+            encodedName.append(String.format("%02x", b));
+         }
+      }
+      catch (java.io.UnsupportedEncodingException e)
+      {
+         // UTF-8 is always supported
+      }
+
+      return new File(directory, encodedName + CACHE_FILE_SUFFIX);
+   }
+}
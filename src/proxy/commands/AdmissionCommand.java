@@ -0,0 +1,63 @@
+package proxy.commands;
+
+import proxy.AdmissionControl;
+import commandHandling.ICommand;
+
+/**
+ * Console command that shows the admitted connections and commands in
+ * flight and how many of them were rejected because of overload.
+ * 
+ * @author RaphM
+ */
+public class AdmissionCommand implements ICommand
+{
+   /**
+    * Command identifier of this instance.
+    */
+   private final String COMMAND = "!admission";
+
+   /**
+    * Admission control of the client connections, counts them.
+    */
+   private final AdmissionControl admissionControl;
+
+   /**
+    * Initializes a new AdmissionCommand instance.
+    * 
+    * @param admissionControl Admission control of the client connections.
+    */
+   public AdmissionCommand(AdmissionControl admissionControl)
+   {
+      this.admissionControl = admissionControl;
+   }
+
+   /**
+    * Performs the command logic
+    */
+   public void Execute(String[] parameters)
+   {
+      if (parameters.length == 0)
+      {
+         System.out.println("Connections: " + admissionControl.getConnections()
+                  + "/" + admissionControl.getMaxConnections()
+                  + " Commands: " + admissionControl.getCommands()
+                  + "/" + admissionControl.getMaxCommands()
+                  + " Rejected connections: " + admissionControl.getRejectedConnections()
+                  + " Rejected commands: " + admissionControl.getRejectedCommands());
+      }
+      else
+      {
+         System.out.println("Wrong parameters - Usage: !admission");
+      }
+   }
+
+   /**
+    * Gets the command identifier of this instance.
+    * 
+    * @return Command identifier.
+    */
+   public String getIdentifier()
+   {
+      return COMMAND;
+   }
+}
@@ -1,6 +1,13 @@
 package proxy.commands;
 
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import protocols.MessageFileProtocol;
+import protocols.misc.CatalogChange;
+import proxy.WorkflowScheduler;
+import proxy.cacheHandling.ContentCache;
+import proxy.serverHandling.FileLocationCatalog;
 import proxy.serverHandling.ServerData;
 import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserData;
@@ -35,6 +42,18 @@ public class ClientDownloadCommand implements ICommand
     * Server manager reference.
     */
    private final ServerManager serverManager;
+   /**
+    * Runs the workflows in the lanes of their size.
+    */
+   private final WorkflowScheduler scheduler;
+   /**
+    * Cache of downloaded files.
+    */
+   private final ContentCache contentCache;
+   /**
+    * Request id of the next download, tags its response frames.
+    */
+   private final AtomicInteger nextRequestId = new AtomicInteger(1);
 
    /**
     * Creates a new client download command.
@@ -45,17 +64,24 @@ public class ClientDownloadCommand implements ICommand
     *           Reference to server manager.
     * @param responseProtocol
     *           Reference to response protocol object.
+    * @param contentCache
+    *           Cache of downloaded files.
     * @param connection
     *           The used connection.
+    * @param scheduler
+    *           Runs the workflows in the lanes of their size.
     */
    public ClientDownloadCommand(UserManager userManager,
             MessageFileProtocol responseProtocol, ServerManager serverManager,
-            TcpConnection connection)
+            ContentCache contentCache, TcpConnection connection,
+            WorkflowScheduler scheduler)
    {
       this.userManager = userManager;
       this.responseProtocol = responseProtocol;
       this.serverManager = serverManager;
+      this.contentCache = contentCache;
       this.connection = connection;
+      this.scheduler = scheduler;
    }
 
    /**
@@ -63,63 +89,126 @@ public class ClientDownloadCommand implements ICommand
     */
    public void Execute(String[] parameters)
    {
-      if (parameters.length == 1)
+      long offset = 0;
+      long length = -1;
+      CatalogChange resumeInfo = null;
+
+      if (parameters.length >= 2 && parameters.length <= 5)
+      {
+         // optional byte range
+         try
+         {
+            offset = Long.valueOf(parameters[1]).longValue();
+            if (parameters.length >= 3)
+            {
+               length = Long.valueOf(parameters[2]).longValue();
+            }
+            if (parameters.length == 5)
+            {
+               // the range continues a partial copy of this version
+               resumeInfo = new CatalogChange(parameters[0], Long.valueOf(
+                        parameters[3]).longValue(), Long.valueOf(parameters[4])
+                        .longValue());
+            }
+         }
+         catch (NumberFormatException e)
+         {
+            offset = -1;
+         }
+      }
+
+      if (parameters.length < 1 || parameters.length == 4 || parameters.length > 5
+               || offset < 0 || (parameters.length == 3 && length <= 0)
+               || (parameters.length == 5 && (length == 0 || length < -1)))
+      {
+         responseProtocol
+                  .writeText("Wrong parameters - Usage: !download <filename> [<offset> [<length> [<size> <modified>]]]");
+      }
+      else
       {
          // check if user is logged in
          UserData user = userManager.FindUserByConnection(connection);
          if (user != null && user.isLoggedIn())
          {
-            ServerData leastUsedServer = serverManager.getLeastUsedServer();
-            if (leastUsedServer != null)
+            FileLocationCatalog catalog = serverManager.getFileCatalog();
+            Vector<ServerData> onlineServers = serverManager.getOnlineServers();
+            Vector<ServerData> holders = catalog.getOnlineHolders(parameters[0], -1);
+
+            if (!holders.isEmpty())
             {
-               // server available, forward the request
-               SendRequestToServer(leastUsedServer.getAddress(),
-                        leastUsedServer.getTcpPort(), parameters[0], user,
-                        leastUsedServer);
+               // a server that holds the file
+               ServerData server = serverManager.SelectServer(holders);
+               SendRequestToServer(parameters[0], offset, length, resumeInfo,
+                        user, server, catalog.getFileInfo(parameters[0], server));
             }
-            else
+            else if (onlineServers.isEmpty())
             {
                responseProtocol.writeText("No fileservers available!");
             }
+            else if (catalog.isComplete(onlineServers))
+            {
+               responseProtocol.writeText("File not found on any fileserver!");
+            }
+            else
+            {
+               // the catalog is not up to date, try any server
+               SendRequestToServer(parameters[0], offset, length, resumeInfo,
+                        user, serverManager.SelectServer(onlineServers), null);
+            }
          }
          else
          {
             responseProtocol.writeText("User not authenticated!");
          }
       }
-      else
-      {
-         responseProtocol
-                  .writeText("Wrong parameters - Usage: !download <filename>");
-      }
    }
 
    /**
     * Sends a download request to a specific fileserver.
     * 
-    * @param serverAddress
-    *           Fileserver address.
-    * @param serverPort
-    *           Fileserver port.
     * @param fileName
     *           The requested fileName
+    * @param offset
+    *           Position of the first requested byte.
+    * @param length
+    *           Number of requested bytes, -1 up to the end of the file.
+    * @param resumeInfo
+    *           Size and modification time of the file the range continues,
+    *           null if it does not continue a partial copy.
     * @param user
     *           User data object
     * @param server
     *           Server data object.
+    * @param fileInfo
+    *           Size and modification time of the file on the server, null
+    *           if unknown.
     */
-   private void SendRequestToServer(String serverAddress, int serverPort,
-            String fileName, UserData user, ServerData server)
+   private void SendRequestToServer(String fileName, long offset, long length,
+            CatalogChange resumeInfo, UserData user, ServerData server,
+            CatalogChange fileInfo)
    {
+      // tag the responses of this download, so the client can receive
+      // several files at the same time
+      int requestId = nextRequestId.getAndIncrement();
+      if (requestId == 0)
+      {
+         // skip the untagged id after an overflow
+         requestId = nextRequestId.getAndIncrement();
+      }
+
       // create a new workflow runner and execute the rest of the communication
       // in a separate thread to avoid
       // blocking the client from performing other commands meanwhile
       DownloadCommandWorkflowRunner runner = new DownloadCommandWorkflowRunner(
-               responseProtocol, serverAddress, serverPort, fileName, user,
-               server);
-      // run as a thread
-      Thread downloadThread = new Thread(runner);
-      downloadThread.start();
+               responseProtocol.forRequest(requestId), fileName, user, server,
+               serverManager, contentCache, fileInfo, offset, length,
+               resumeInfo, scheduler);
+      if (!scheduler.TrySubmit(runner))
+      {
+         // the striped workers of admitted downloads are not limited, so
+         // a download is never rejected halfway
+         responseProtocol.writeText(scheduler.getBusyMessage());
+      }
    }
 
    /**
@@ -1,6 +1,9 @@
 package proxy.commands;
 
+import java.util.Vector;
+
 import protocols.MessageFileProtocol;
+import proxy.WorkflowScheduler;
 import proxy.serverHandling.ServerData;
 import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserData;
@@ -35,6 +38,10 @@ public class ClientListCommand implements ICommand
     * Server manager reference.
     */
    private final ServerManager serverManager;
+   /**
+    * Runs the workflows and their requests to the fileservers.
+    */
+   private final WorkflowScheduler scheduler;
 
    /**
     * Creates a new client list command.
@@ -47,15 +54,18 @@ public class ClientListCommand implements ICommand
     *           Reference to response protocol object.
     * @param connection
     *           The used connection.
+    * @param scheduler
+    *           Runs the workflows and their requests to the fileservers.
     */
    public ClientListCommand(UserManager userManager,
             MessageFileProtocol responseProtocol, ServerManager serverManager,
-            TcpConnection connection)
+            TcpConnection connection, WorkflowScheduler scheduler)
    {
       this.userManager = userManager;
       this.responseProtocol = responseProtocol;
       this.serverManager = serverManager;
       this.connection = connection;
+      this.scheduler = scheduler;
    }
 
    /**
@@ -69,12 +79,11 @@ public class ClientListCommand implements ICommand
          UserData user = userManager.FindUserByConnection(connection);
          if (user != null && user.isLoggedIn())
          {
-            ServerData leastUsedServer = serverManager.getLeastUsedServer();
-            if (leastUsedServer != null)
+            Vector<ServerData> onlineServers = serverManager.getOnlineServers();
+            if (!onlineServers.isEmpty())
             {
-               // server available, forward the request
-               SendRequestToServer(leastUsedServer.getAddress(),
-                        leastUsedServer.getTcpPort());
+               // servers available, forward the request to all of them
+               SendRequestToServers(onlineServers);
             }
             else
             {
@@ -93,23 +102,22 @@ public class ClientListCommand implements ICommand
    }
 
    /**
-    * Sends a list request to a specific fileserver.
+    * Sends a list request to several fileservers.
     * 
-    * @param serverAddress
-    *           Fileserver address.
-    * @param serverPort
-    *           Fileserver port.
+    * @param servers
+    *           The fileservers.
     */
-   private void SendRequestToServer(String serverAddress, int serverPort)
+   private void SendRequestToServers(Vector<ServerData> servers)
    {
       // create a new workflow runner and execute the rest of the communication
       // in a separate thread to avoid
       // blocking the client from performing other commands meanwhile
       ListCommandWorkflowRunner runner = new ListCommandWorkflowRunner(
-               responseProtocol, serverAddress, serverPort);
-      // run as a thread
-      Thread downloadThread = new Thread(runner);
-      downloadThread.start();
+               responseProtocol, servers, scheduler.getPool());
+      if (!scheduler.TrySubmit(runner))
+      {
+         responseProtocol.writeText(scheduler.getBusyMessage());
+      }
    }
 
    /**
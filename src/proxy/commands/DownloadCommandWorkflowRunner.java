@@ -1,13 +1,21 @@
 package proxy.commands;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.Vector;
+import java.util.concurrent.RejectedExecutionException;
 
 import protocols.MessageFileProtocol;
+import protocols.misc.CatalogChange;
+import protocols.misc.ContentDecoder;
 import protocols.misc.MessageType;
 import protocols.misc.ProtocolMessage;
+import proxy.WorkflowScheduler;
+import proxy.cacheHandling.CacheInsertion;
+import proxy.cacheHandling.CachedContent;
+import proxy.cacheHandling.ContentCache;
 import proxy.serverHandling.ServerData;
+import proxy.serverHandling.ServerExchange;
+import proxy.serverHandling.ServerManager;
 import proxy.userHandling.UserData;
 
 /**
@@ -21,14 +29,6 @@ public class DownloadCommandWorkflowRunner implements Runnable
     * Protocol object to communicate with the client.
     */
    private final MessageFileProtocol clientResponseProtocol;
-   /**
-    * Address of the target fileserver.
-    */
-   private final String serverAddress;
-   /**
-    * Port of the target fileserver
-    */
-   private final int serverPort;
    /**
     * The requested file.
     */
@@ -41,71 +41,156 @@ public class DownloadCommandWorkflowRunner implements Runnable
     * The server that provides the file.
     */
    private final ServerData server;
+   /**
+    * Server manager reference.
+    */
+   private final ServerManager serverManager;
+   /**
+    * Cache of downloaded files.
+    */
+   private final ContentCache contentCache;
+   /**
+    * Runs the transfer in the lane of its size and the workers of striped
+    * downloads.
+    */
+   private final WorkflowScheduler scheduler;
+   /**
+    * Size and modification time of the file from the catalog, null if
+    * they have to be requested from the server.
+    */
+   private final CatalogChange fileInfo;
+   /**
+    * Position of the first requested byte, reset to 0 if the file changed
+    * since the partial copy the range continues was downloaded.
+    */
+   private long offset;
+   /**
+    * Number of requested bytes, -1 up to the end of the file.
+    */
+   private long length;
+   /**
+    * Size and modification time of the file the range continues, null if
+    * it does not continue a partial copy.
+    */
+   private final CatalogChange resumeInfo;
+   /**
+    * Modification time of the file, known once its size was looked up.
+    */
+   private long lastModified;
+   /**
+    * Number of (uncompressed) bytes relayed to the client so far.
+    */
+   private long transferredBytes;
+   /**
+    * Downloads of at least this size are striped across all online servers.
+    */
+   private final long MIN_STRIPED_SIZE = 8 * StripedDownload.STRIPE_SIZE;
+   /**
+    * Time the fileserver has to answer the info request, a stalled server
+    * must not hold a place in the control lane.
+    */
+   private final long INFO_DEADLINE_MS = 5000;
 
    /**
-    * Initializes a new DownloadCommandWorkflowRunner.
+    * Initializes a new DownloadCommandWorkflowRunner for a byte range.
     * 
     * @param clientResponseProtocol
     *           Protocol object to communicate with the client.
-    * @param serverAddress
-    *           Address of the target fileserver.
-    * @param serverPort
-    *           Port of the target fileserver
     * @param fileName
     *           The requested file.
     * @param user
     *           The user that requested the file.
     * @param server
     *           The server that provides the file.
+    * @param serverManager
+    *           Server manager, provides further servers for striped
+    *           downloads.
+    * @param contentCache
+    *           Cache of downloaded files.
+    * @param fileInfo
+    *           Size and modification time of the file from the catalog,
+    *           null if they have to be requested from the server.
+    * @param offset
+    *           Position of the first requested byte.
+    * @param length
+    *           Number of requested bytes, -1 up to the end of the file.
+    * @param resumeInfo
+    *           Size and modification time of the file the range continues,
+    *           null if it does not continue a partial copy.
+    * @param scheduler
+    *           Runs the transfer in the lane of its size and the workers of
+    *           striped downloads.
     */
    public DownloadCommandWorkflowRunner(
-            MessageFileProtocol clientResponseProtocol, String serverAddress,
-            int serverPort, String fileName, UserData user, ServerData server)
+            MessageFileProtocol clientResponseProtocol, String fileName,
+            UserData user, ServerData server, ServerManager serverManager,
+            ContentCache contentCache, CatalogChange fileInfo, long offset,
+            long length, CatalogChange resumeInfo, WorkflowScheduler scheduler)
    {
       this.clientResponseProtocol = clientResponseProtocol;
-      this.serverAddress = serverAddress;
-      this.serverPort = serverPort;
       this.fileName = fileName;
       this.user = user;
       this.server = server;
+      this.serverManager = serverManager;
+      this.contentCache = contentCache;
+      this.fileInfo = fileInfo;
+      this.offset = offset;
+      this.length = length;
+      this.resumeInfo = resumeInfo;
+      this.scheduler = scheduler;
    }
 
    /**
-    * Executed as a thread.
+    * Looks up the size of the file and hands the transfer to the lane of
+    * its size. Runs in the control lane, which transfers never occupy.
     */
    public void run()
    {
       try
       {
-         Socket serverConnection = new Socket(serverAddress, serverPort);
-         MessageFileProtocol outgoingServerProtocol = new MessageFileProtocol(
-                  serverConnection.getOutputStream());
-         MessageFileProtocol incomingServerProtocol = new MessageFileProtocol(
-                  serverConnection.getInputStream());
-         // request info about the wanted file
-         outgoingServerProtocol.sendDownloadInfoRequest(fileName);
-         // now listen for the response
-         ProtocolMessage message = incomingServerProtocol.readMessage();
+         ProtocolMessage message = RequestFileInfo();
          if (message != null
                   && message.getResultType() == MessageType.FileSizeInfo)
          {
             long size = message.getFileSize();
-            if (size > -1)
+            lastModified = message.getLastModified();
+            if (size > -1 && resumeInfo != null
+                     && (size != resumeInfo.getSize() || lastModified != resumeInfo
+                              .getLastModified()))
             {
-               // check credits
-               if (user.getCredits() > size)
+               // the file changed since the partial copy was downloaded,
+               // send it from the start
+               offset = 0;
+               length = -1;
+            }
+
+            if (size > -1 && offset > size)
+            {
+               clientResponseProtocol.writeText("Invalid range, filesize is "
+                        + size);
+            }
+            else if (size > -1 && offset == size)
+            {
+               clientResponseProtocol.writeText("Nothing to download, file "
+                        + fileName + " is already complete");
+            }
+            else if (size > -1)
+            {
+               long rangeLength = length < 0 ? size - offset : Math.min(
+                        length, size - offset);
+
+               // check and reserve credits for the requested bytes
+               if (user.ReserveCredits(rangeLength))
                {
-                  // finally request the file and update server and user objects
-                  // if everything went ok
-                  DownloadFile(outgoingServerProtocol, incomingServerProtocol, size);
+                  HandOffTransfer(size, message.getLastModified(), rangeLength);
                }
                else
                {
                   // error, not enough credits
                   clientResponseProtocol
                            .writeText("Not enough credits (you have "
-                                    + user.getCredits() + ", filesize is "
-                                    + size);
+                                    + user.getCredits() + ", download size is "
+                                    + rangeLength);
                }
             }
             else
@@ -121,52 +206,594 @@ public class DownloadCommandWorkflowRunner implements Runnable
                      .writeText("Received unexpected message from fileserver: "
                               + message.getResultType());
          }
-         serverConnection.close();
       }
-      catch (UnknownHostException e)
+      catch (IOException e)
+      {
+         System.out.println("Info request to " + server.getServerIdentifier()
+                  + " failed: " + e.getMessage());
+         clientResponseProtocol.writeText("Fileserver did not answer, try again later!");
+      }
+   }
+
+   /**
+    * Gets the size and modification time of the file from the catalog, or
+    * from the server if the catalog does not know the file.
+    * 
+    * @return The file size info.
+    * 
+    * @throws IOException
+    *            If the connection was closed or the server did not answer
+    *            in time.
+    */
+   private ProtocolMessage RequestFileInfo() throws IOException
+   {
+      if (fileInfo != null)
+      {
+         // the catalog knows the file, no info round trip needed
+         ProtocolMessage message = new ProtocolMessage(
+                  MessageType.FileSizeInfo, fileInfo.getSize());
+         message.setLastModified(fileInfo.getLastModified());
+         return message;
+      }
+
+      // run the exchange over a pooled connection
+      ServerExchange exchange = server.getConnectionPool().OpenExchange();
+      try
+      {
+         // request info about the wanted file
+         exchange.getProtocol().sendDownloadInfoRequest(fileName);
+         // now listen for the response
+         return exchange.readMessage(System.currentTimeMillis() + INFO_DEADLINE_MS);
+      }
+      finally
+      {
+         exchange.Close();
+      }
+   }
+
+   /**
+    * Hands the transfer to the lane of small or large transfers. The
+    * credits are already reserved, they are refunded if the lane is full.
+    * 
+    * @param fileSize
+    *           The size of the whole file.
+    * @param lastModified
+    *           The modification time of the file.
+    * @param size
+    *           The size of the requested range.
+    */
+   private void HandOffTransfer(final long fileSize, final long lastModified,
+            final long size)
+   {
+      Runnable transfer = new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               Transfer(fileSize, lastModified, size);
+            }
+            catch (IOException e)
+            {
+               System.out.println("Connection was closed: "
+                        + server.getServerIdentifier());
+            }
+         }
+      };
+
+      if (!scheduler.TryHandOff(size, transfer))
+      {
+         user.AddCredits(size);
+         clientResponseProtocol.writeText(scheduler.getBusyMessage());
+      }
+   }
+
+   /**
+    * Transfers the requested range from the cache or from the servers.
+    * 
+    * @param fileSize
+    *           The size of the whole file.
+    * @param lastModified
+    *           The modification time of the file.
+    * @param size
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void Transfer(long fileSize, long lastModified, long size)
+            throws IOException
+   {
+      // the size and modification time tell if a cached copy is still up
+      // to date
+      CachedContent content = contentCache.Lookup(fileName, fileSize,
+               lastModified);
+      if (content == null && offset == 0 && size == fileSize)
+      {
+         // identical downloads that start meanwhile share this one
+         CacheInsertion insertion = contentCache.BeginInsert(fileName, fileSize,
+                  lastModified);
+         if (insertion != null)
+         {
+            content = StartSharedFetch(insertion, fileSize);
+         }
+         else
+         {
+            // another download of the file may have started
+            content = contentCache.Join(fileName, fileSize, lastModified);
+         }
+      }
+
+      if (content != null)
+      {
+         DownloadCached(content, fileSize, size);
+      }
+      else
+      {
+         DownloadFromServers(fileSize, size);
+      }
+   }
+
+   /**
+    * Starts fetching the whole file into the cache as a task of its own
+    * and opens it for reading. This download then reads the file like
+    * every download that joins later, so the fetch does not depend on its
+    * client.
+    * 
+    * @param insertion
+    *           The started insertion.
+    * @param fileSize
+    *           The size of the whole file.
+    * @return The opened content, null if the fetch could not be started.
+    */
+   private CachedContent StartSharedFetch(CacheInsertion insertion, long fileSize)
+   {
+      // open before the fetch starts, it stops once nobody reads the file
+      CachedContent content = contentCache.Join(fileName, fileSize,
+               insertion.getLastModified());
+      if (content == null)
+      {
+         insertion.Abort();
+         return null;
+      }
+
+      try
+      {
+         scheduler.getPool().execute(new SharedFetch(insertion, server,
+                  getStripeSources(fileSize, fileSize), scheduler.getPool()));
+         return content;
+      }
+      catch (RejectedExecutionException e)
+      {
+         content.Close();
+         insertion.Abort();
+         return null;
+      }
+   }
+
+   /**
+    * Gets the servers a range is downloaded from in stripes.
+    * 
+    * @param fileSize
+    *           The size of the whole file.
+    * @param size
+    *           The size of the requested range.
+    * @return The servers, null if the range is downloaded from a single
+    *         server.
+    */
+   private Vector<ServerData> getStripeSources(long fileSize, long size)
+   {
+      // only servers that hold the same file, all if the catalog does not
+      // know the file
+      Vector<ServerData> sources = serverManager.getFileCatalog()
+               .getOnlineHolders(fileName, fileSize);
+      if (sources.isEmpty())
+      {
+         sources = serverManager.getOnlineServers();
+      }
+
+      return size >= MIN_STRIPED_SIZE && sources.size() > 1 ? sources : null;
+   }
+
+   /**
+    * Downloads the requested range of a file from the servers.
+    * 
+    * @param fileSize
+    *           The size of the whole file.
+    * @param size
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void DownloadFromServers(long fileSize, long size)
+            throws IOException
+   {
+      // finally request the file and update server and user objects
+      // if everything went ok
+      Vector<ServerData> sources = getStripeSources(fileSize, size);
+      if (sources != null)
+      {
+         DownloadStriped(fileSize, size, sources);
+      }
+      else
       {
-         System.out.println("Could not find host " + serverAddress);
+         DownloadFile(size);
+      }
+   }
+
+   /**
+    * Relays the requested range of a file from the cache or from a running
+    * download of the same file, no fileserver is charged with the
+    * transfer. The user has already been charged for the whole range,
+    * bytes that are not relayed to the client are refunded.
+    * 
+    * @param content
+    *           The cached content.
+    * @param fileSize
+    *           The size of the whole file.
+    * @param size
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void DownloadCached(CachedContent content, long fileSize, long size)
+            throws IOException
+   {
+      try
+      {
+         if (clientResponseProtocol.isBinaryMode())
+         {
+            // tagged frames, other downloads may be relayed meanwhile
+            RelayCachedContent(content, fileSize, size);
+         }
+         else
+         {
+            // untagged text, keep other writers out until the file is complete
+            clientResponseProtocol.getWriteLock().lock();
+            try
+            {
+               RelayCachedContent(content, fileSize, size);
+            }
+            finally
+            {
+               clientResponseProtocol.getWriteLock().unlock();
+            }
+         }
+      }
+      finally
+      {
+         content.Close();
+
+         if (transferredBytes < size)
+         {
+            user.AddCredits(size - transferredBytes);
+         }
+      }
+   }
+
+   /**
+    * Relays the requested range of a cached file to the client.
+    * 
+    * @param content
+    *           The cached content.
+    * @param fileSize
+    *           The size of the whole file.
+    * @param size
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void RelayCachedContent(CachedContent content, long fileSize,
+            long size) throws IOException
+   {
+      byte[] buffer = new byte[MessageFileProtocol.FILE_CHUNK_SIZE];
+
+      clientResponseProtocol.sendFileStart(fileName, fileSize, null, offset,
+               size, null, lastModified);
+
+      try
+      {
+         while (transferredBytes < size)
+         {
+            int count = content.Read(offset + transferredBytes, buffer,
+                     (int) Math.min(buffer.length, size - transferredBytes));
+            if (count == -1)
+            {
+               throw new IOException("Cached file is incomplete: " + fileName);
+            }
+
+            clientResponseProtocol.sendFileChunk(buffer, 0, count);
+            transferredBytes += count;
+         }
+      }
+      finally
+      {
+         // always terminate the file towards the client, it detects
+         // incomplete files by their size
+         clientResponseProtocol.sendFileEnd();
+      }
+   }
+
+   /**
+    * Downloads the requested range of a file from the server. The user has
+    * already been charged for the whole range, bytes that are not relayed
+    * to the client are refunded.
+    * 
+    * @param size
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void DownloadFile(long size) throws IOException
+   {
+      server.TransferStarted();
+      try
+      {
+         // the stream is relayed at the pace of the client, so it gets a
+         // connection of its own
+         long requestTime = System.nanoTime();
+         ServerExchange exchange = server.getConnectionPool().OpenDownload(
+                  fileName, offset, size);
+         server.RecordResponseTime(System.nanoTime() - requestTime);
+         try
+         {
+            // the file response was already received
+            ProtocolMessage response = exchange.readMessage();
+            if (response != null && response.getResultType() == MessageType.File)
+            {
+               server.addLoad(size);
+               RelayFile(response, exchange);
+            }
+            else
+            {
+               clientResponseProtocol
+                        .writeText("Received unexpected message type from fileserver: "
+                                 + response.getResultType());
+            }
+         }
+         finally
+         {
+            exchange.Close();
+         }
+      }
+      finally
+      {
+         server.TransferFinished();
+
+         if (transferredBytes < size)
+         {
+            user.AddCredits(size - transferredBytes);
+         }
+      }
+   }
+
+   /**
+    * Downloads the requested range of a file in stripes from several
+    * servers in parallel. The user has already been charged for the whole
+    * range, bytes that are not relayed to the client are refunded.
+    * 
+    * @param fileSize
+    *           The size of the whole file.
+    * @param size
+    *           The size of the requested range.
+    * @param sources
+    *           The servers to download from.
+    */
+   private void DownloadStriped(long fileSize, long size,
+            Vector<ServerData> sources)
+   {
+      StripedDownload download = new StripedDownload(fileName, offset, size,
+               sources);
+
+      try
+      {
+         download.Start(scheduler.getPool());
+
+         if (clientResponseProtocol.isBinaryMode())
+         {
+            // tagged frames, other downloads may be relayed meanwhile
+            RelayStripes(download, fileSize, size);
+         }
+         else
+         {
+            // untagged text, keep other writers out until the file is complete
+            clientResponseProtocol.getWriteLock().lock();
+            try
+            {
+               RelayStripes(download, fileSize, size);
+            }
+            finally
+            {
+               clientResponseProtocol.getWriteLock().unlock();
+            }
+         }
       }
       catch (IOException e)
       {
-         System.out.println("Socket was closed: " + serverAddress);
+         System.out.println("Striped download failed: " + e.getMessage());
+      }
+      finally
+      {
+         download.Close();
+
+         if (transferredBytes < size)
+         {
+            user.AddCredits(size - transferredBytes);
+         }
       }
    }
 
    /**
-    * Downloads a file from the server.
+    * Relays the stripes of a striped download to the client in order.
     * 
-    * @param outgoingServerProtocol
-    *           Protocol object used for communication towards the server.
-    * @param incomingServerProtocol
-    *           Protocol object used for incoming communication from the server.
+    * @param download
+    *           The striped download.
+    * @param fileSize
+    *           The size of the whole file.
     * @param size
-    *           The size of the file.
+    *           The size of the requested range.
+    * 
+    * @throws IOException
+    */
+   private void RelayStripes(StripedDownload download, long fileSize,
+            long size) throws IOException
+   {
+      clientResponseProtocol.sendFileStart(fileName, fileSize, null, offset,
+               size, null, lastModified);
+
+      try
+      {
+         Vector<byte[]> stripe = download.TakeNextStripe();
+         while (stripe != null)
+         {
+            for (byte[] data : stripe)
+            {
+               // decompressed chunks may exceed the chunk size
+               for (int position = 0; position < data.length; position += MessageFileProtocol.FILE_CHUNK_SIZE)
+               {
+                  clientResponseProtocol.sendFileChunk(data, position, Math.min(
+                           MessageFileProtocol.FILE_CHUNK_SIZE, data.length - position));
+               }
+               transferredBytes += data.length;
+            }
+            stripe = download.TakeNextStripe();
+         }
+      }
+      finally
+      {
+         // always terminate the file towards the client, it detects
+         // incomplete files by their size
+         clientResponseProtocol.sendFileEnd();
+      }
+   }
+
+   /**
+    * Relays a file from the server to the client, in text mode without
+    * letting other writers in.
+    * 
+    * @param header
+    *           The file header received from the server.
+    * @param exchange
+    *           The exchange with the server.
     * 
     * @throws IOException
     */
-   private void DownloadFile(MessageFileProtocol outgoingServerProtocol,
-            MessageFileProtocol incomingServerProtocol, long size)
+   private void RelayFile(ProtocolMessage header, ServerExchange exchange)
             throws IOException
    {
-      // send the download request
-      outgoingServerProtocol.sendDownloadRequest();
-      // wait for the file response
-      ProtocolMessage response = incomingServerProtocol.readMessage();
-      if (response != null && response.getResultType() == MessageType.File)
+      // everything ok, forward file to client chunk by chunk as it arrives
+      if (clientResponseProtocol.isBinaryMode())
       {
-         // update credits and load
-         user.RemoveCredits(size);
-         server.addLoad(size);
-         // everything ok, forward file to client
-         clientResponseProtocol.sendFile(response.getFileName(), response
-                  .getContent());
+         // tagged frames, other downloads may be relayed meanwhile
+         RelayFileChunks(header, exchange);
       }
       else
       {
-         clientResponseProtocol
-                  .writeText("Received unexpected message type from fileserver: "
-                           + response.getResultType());
+         // untagged text, keep other writers out until the file is complete
+         clientResponseProtocol.getWriteLock().lock();
+         try
+         {
+            RelayFileChunks(header, exchange);
+         }
+         finally
+         {
+            clientResponseProtocol.getWriteLock().unlock();
+         }
+      }
+   }
+
+   /**
+    * Relays the file header and content from the server to the client.
+    * Compressed files are passed through unchanged if the client accepted
+    * the same codec, otherwise they are decompressed on the fly. They are
+    * decompressed in both cases to count the transferred bytes.
+    * 
+    * @param header
+    *           The file header received from the server.
+    * @param exchange
+    *           The exchange with the server.
+    * 
+    * @throws IOException
+    */
+   private void RelayFileChunks(ProtocolMessage header, ServerExchange exchange)
+            throws IOException
+   {
+      String encoding = header.getEncoding();
+      ContentDecoder decoder = encoding == null ? null : new ContentDecoder(encoding);
+      boolean passThrough = encoding == null
+               || encoding.equals(clientResponseProtocol.getCompression());
+
+      try
+      {
+         clientResponseProtocol.sendFileStart(header.getFileName(), header
+                  .getFileSize(), passThrough ? encoding : null, header
+                  .getRangeOffset(), header.getRangeLength(), header.getChecksum(),
+                  lastModified);
+         RelayFileContent(exchange, decoder, passThrough);
+      }
+      finally
+      {
+         if (decoder != null)
+         {
+            decoder.close();
+         }
+      }
+   }
+
+   /**
+    * Forwards the file content chunks from the server to the client until
+    * the file trailer arrives. Only one chunk is held in memory at a time.
+    * 
+    * @param exchange
+    *           The exchange with the server.
+    * @param decoder
+    *           Decompresses the chunks, null for uncompressed files.
+    * @param passThrough
+    *           True to forward the chunks unchanged.
+    * 
+    * @throws IOException
+    */
+   private void RelayFileContent(ServerExchange exchange, ContentDecoder decoder,
+            boolean passThrough)
+            throws IOException
+   {
+      ProtocolMessage chunk;
+
+      try
+      {
+         chunk = exchange.readMessage();
+         while (chunk.getResultType() == MessageType.FileChunk)
+         {
+            byte[] data = chunk.getData();
+            byte[] content = decoder != null ? decoder.decode(data) : data;
+
+            if (passThrough)
+            {
+               clientResponseProtocol.sendFileChunk(data, 0, data.length);
+            }
+            else
+            {
+               // decompressed chunks may exceed the chunk size
+               for (int position = 0; position < content.length; position += MessageFileProtocol.FILE_CHUNK_SIZE)
+               {
+                  clientResponseProtocol.sendFileChunk(content, position, Math.min(
+                           MessageFileProtocol.FILE_CHUNK_SIZE, content.length - position));
+               }
+            }
+            transferredBytes += content.length;
+            chunk = exchange.readMessage();
+         }
+      }
+      finally
+      {
+         // always terminate the file towards the client, it detects
+         // incomplete files by their size
+         clientResponseProtocol.sendFileEnd();
+      }
+
+      if (chunk.getResultType() != MessageType.FileEnd)
+      {
+         System.out.println("Received unexpected message type from fileserver: "
+                  + chunk.getResultType());
       }
    }
 }
@@ -95,6 +95,7 @@ public class ExitCommand implements ICommand
          udpConnectionPoint.CloseServerSocket();
          udpListener.StopListening();
          serverManager.StopOnlineCheck();
+         serverManager.CloseServerConnections();
          System.out.println("Exit success!");
       }
       else
@@ -40,13 +40,25 @@ public class FileserversCommand implements ICommand
 
          if (servers != null && servers.size() > 0)
          {
+            System.out.println("Balancing: "
+                     + serverManager.getBalancingStrategy().getIdentifier());
+
             // print out data for each server
             for (ServerData server : servers)
             {
                String onlineStatus = server.isOnline() ? "online" : "offline";
+               String metrics = " Transfers: " + server.getActiveTransfers()
+                        + " Response: " + Math.round(server.getResponseTime() / 1000000) + " ms";
+               if (server.hasMetrics())
+               {
+                  metrics += " Connections: " + server.getActiveConnections()
+                           + " Bytes/s: " + server.getBytesPerSecond()
+                           + " Queue: " + server.getQueueDepth() + " Weight: "
+                           + server.getCapacityWeight();
+               }
                System.out.println("IP:" + server.getAddress() + " Port:"
                         + server.getTcpPort() + " " + onlineStatus + " Usage: "
-                        + server.getLoad());
+                        + server.getLoad() + metrics);
             }
          }
          else
@@ -0,0 +1,60 @@
+package proxy.commands;
+
+import proxy.UdpPacketHandler;
+import commandHandling.ICommand;
+
+/**
+ * Console command that shows how many alive packets were received,
+ * dropped and malformed.
+ * 
+ * @author RaphM
+ */
+public class HeartbeatsCommand implements ICommand
+{
+   /**
+    * Command identifier of this instance.
+    */
+   private final String COMMAND = "!heartbeats";
+
+   /**
+    * Handler of the alive packets, counts them.
+    */
+   private final UdpPacketHandler packetHandler;
+
+   /**
+    * Initializes a new HeartbeatsCommand instance.
+    * 
+    * @param packetHandler Handler of the alive packets.
+    */
+   public HeartbeatsCommand(UdpPacketHandler packetHandler)
+   {
+      this.packetHandler = packetHandler;
+   }
+
+   /**
+    * Performs the command logic
+    */
+   public void Execute(String[] parameters)
+   {
+      if (parameters.length == 0)
+      {
+         System.out.println("Received: " + packetHandler.getReceivedPackets()
+                  + " Dropped: " + packetHandler.getDroppedPackets()
+                  + " Malformed: " + packetHandler.getMalformedPackets());
+      }
+      else
+      {
+         System.out.println("Wrong parameters - Usage: !heartbeats");
+      }
+   }
+
+   /**
+    * Gets the command identifier of this instance.
+    * 
+    * @return Command identifier.
+    */
+   public String getIdentifier()
+   {
+      return COMMAND;
+   }
+}
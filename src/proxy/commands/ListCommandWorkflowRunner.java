@@ -1,47 +1,68 @@
 package proxy.commands;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import protocols.MessageFileProtocol;
 import protocols.misc.MessageType;
 import protocols.misc.ProtocolMessage;
+import proxy.serverHandling.ServerData;
+import proxy.serverHandling.ServerExchange;
 
 /**
- * Handles the list-command workflow towards the fileserver
+ * Handles the list-command workflow towards the fileservers. All servers
+ * are asked in parallel, the merged list is sent to the client while the
+ * answers arrive and servers that miss the deadline are left out. Servers
+ * whose catalog did not change since their last list are not asked again.
  * 
  * @author RaphM
  */
 public class ListCommandWorkflowRunner implements Runnable
 {
+   /**
+    * Time the fileservers have to answer.
+    */
+   private final long LIST_DEADLINE_MS = 2000;
+
    /**
     * Protocol object to communicate with the client.
     */
    private final MessageFileProtocol clientResponseProtocol;
    
    /**
-    * Address of the target fileserver.
+    * The target fileservers.
     */
-   private final String serverAddress;
-   
+   private final Vector<ServerData> servers;
+
+   /**
+    * Runs the requests to the fileservers.
+    */
+   private final Executor requestPool;
+
    /**
-    * Port of the target fileserver
+    * Finished requests, in the order they finished.
     */
-   private final int serverPort;
+   private final BlockingQueue<ServerListRequest> finishedRequests = new LinkedBlockingQueue<ServerListRequest>();
    
    /**
     * Initializes a new ListCommandWorkflowRunner.
     * 
     * @param clientResponseProtocol Protocol object to communicate with the client.
-    * @param serverAddress Address of the target fileserver.
-    * @param serverPort Port of the target fileserver
+    * @param servers The target fileservers.
+    * @param requestPool Runs the requests to the fileservers.
     */
-   public ListCommandWorkflowRunner(MessageFileProtocol clientResponseProtocol, String serverAddress, int serverPort)
+   public ListCommandWorkflowRunner(MessageFileProtocol clientResponseProtocol, Vector<ServerData> servers,
+            Executor requestPool)
    {
       this.clientResponseProtocol = clientResponseProtocol;
-      this.serverAddress = serverAddress;
-      this.serverPort = serverPort;
+      this.servers = servers;
+      this.requestPool = requestPool;
    }
    
    /**
@@ -49,41 +70,158 @@ public class ListCommandWorkflowRunner implements Runnable
     */
    public void run()
    {
+      long deadline = System.currentTimeMillis() + LIST_DEADLINE_MS;
+      Set<String> sentFileNames = new HashSet<String>();
+      Set<ServerData> missingServers = new HashSet<ServerData>(servers);
+
+      int requestCount = 0;
+
+      // ask all servers without an up to date list at once
+      for (ServerData server : servers)
+      {
+         Vector<String> cachedFileList = server.getFileList();
+         if (cachedFileList != null)
+         {
+            missingServers.remove(server);
+            SendFileNames(cachedFileList, sentFileNames);
+         }
+         else
+         {
+            requestPool.execute(new ServerListRequest(server, deadline));
+            requestCount++;
+         }
+      }
+
       try
       {
-         Socket serverConnection = new Socket(serverAddress, serverPort);   
-         MessageFileProtocol outgoingServerProtocol = new MessageFileProtocol(serverConnection.getOutputStream());
-         MessageFileProtocol incomingServerProtocol = new MessageFileProtocol(serverConnection.getInputStream());
-         
-         // send file names request to server
-         outgoingServerProtocol.sendFileNamesRequest();
-         
-         // now listen for the response
-         ProtocolMessage message = incomingServerProtocol.readMessage();
-         
-         if (message != null && message.getResultType() == MessageType.FileList)
+         for (int i = 0; i < requestCount; i++)
          {
-            // success, forward filenames to client
-            for (String fileName : message.getFileList())
+            ServerListRequest request = finishedRequests.poll(deadline
+                     - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (request == null)
+            {
+               // deadline passed, go on with what we have
+               break;
+            }
+         
+            if (request.fileList != null)
             {
-               clientResponseProtocol.writeText(fileName);
+               missingServers.remove(request.server);
+               request.server.setFileList(request.fileList, request.catalogDigest);
+               SendFileNames(request.fileList, sentFileNames);
             }
          }
-         else
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+
+      for (ServerData server : missingServers)
+      {
+         clientResponseProtocol.writeText("Fileserver " + server.getServerIdentifier()
+                  + " did not answer, the list may be incomplete!");
+      }
+   }
+
+   /**
+    * Forwards the file names that were not sent yet to the client.
+    * 
+    * @param fileList The file names of a server.
+    * @param sentFileNames The file names sent so far.
+    */
+   private void SendFileNames(Vector<String> fileList, Set<String> sentFileNames)
+   {
+      for (String fileName : fileList)
+      {
+         if (sentFileNames.add(fileName))
          {
-            // error, received malformed response
-            clientResponseProtocol.writeText("Received unexpected message from fileserver: " + message.getResultType());         
-         }     
-         
-         serverConnection.close();
+            clientResponseProtocol.writeText(fileName);
+         }
       }
-      catch (UnknownHostException e)
+   }
+
+   /**
+    * Requests the file list of one server.
+    */
+   private class ServerListRequest implements Runnable
+   {
+      /**
+       * The target fileserver.
+       */
+      private final ServerData server;
+
+      /**
+       * Time after which the server is not waited for any more.
+       */
+      private final long deadline;
+
+      /**
+       * The catalog digest of the server when the list was requested.
+       */
+      private final long catalogDigest;
+
+      /**
+       * The received file names, null if the request failed.
+       */
+      private Vector<String> fileList;
+
+      /**
+       * Creates a new request.
+       * 
+       * @param server The target fileserver.
+       * @param deadline Time after which the server is not waited for any more.
+       */
+      public ServerListRequest(ServerData server, long deadline)
       {
-         System.out.println("Could not find host " + serverAddress);
+         this.server = server;
+         this.deadline = deadline;
+         this.catalogDigest = server.getCatalogDigest();
       }
-      catch (IOException e)
+
+      /**
+       * Executed as a thread.
+       */
+      public void run()
       {
-         System.out.println("Socket was closed: " + serverAddress);
+         try
+         {
+            // run the exchange over a pooled connection
+            ServerExchange exchange = server.getConnectionPool().OpenExchange();
+         
+            try
+            {
+               // send file names request to server
+               exchange.getProtocol().sendFileNamesRequest();
+         
+               // now listen for the response
+               ProtocolMessage message = exchange.readMessage(deadline);
+
+               if (message != null && message.getResultType() == MessageType.FileList)
+               {
+                  fileList = message.getFileList();
+               }
+               else
+               {
+                  // error, received malformed response
+                  System.out.println("Received unexpected message from fileserver: "
+                           + message.getResultType());
+               }
+            }
+            finally
+            {
+               exchange.Close();
+            }
+         }
+         catch (IOException e)
+         {
+            System.out.println("List request failed: " + server.getServerIdentifier()
+                     + " (" + e.getMessage() + ")");
+         }
+         finally
+         {
+            finishedRequests.add(this);
+         }     
       }   
    }
 }
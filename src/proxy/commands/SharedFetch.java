@@ -0,0 +1,255 @@
+package proxy.commands;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+
+import protocols.misc.ContentDecoder;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+import proxy.cacheHandling.CacheInsertion;
+import proxy.serverHandling.ServerData;
+import proxy.serverHandling.ServerExchange;
+
+/**
+ * Fetches a whole file from the fileservers into a cache insertion. It
+ * runs on its own, every download of the file reads the insertion, the
+ * one that started the fetch included. A client that disconnects does
+ * not affect the others, the fetch only stops once no download reads the
+ * insertion any more.
+ * 
+ * @author RaphM
+ */
+public class SharedFetch implements Runnable
+{
+   /**
+    * The insertion the content is written to.
+    */
+   private final CacheInsertion insertion;
+
+   /**
+    * The server the file is fetched from, unless it is striped.
+    */
+   private final ServerData server;
+
+   /**
+    * The servers the file is fetched from in stripes, null to fetch it
+    * from a single server.
+    */
+   private final Vector<ServerData> stripeSources;
+
+   /**
+    * Runs the workers of a striped fetch.
+    */
+   private final Executor executor;
+
+   /**
+    * Number of (uncompressed) bytes written to the insertion so far.
+    */
+   private long fetchedBytes;
+
+   /**
+    * Indicates that the fetch stopped because nobody reads the insertion.
+    */
+   private boolean isAbandoned;
+
+   /**
+    * Creates a new fetch.
+    * 
+    * @param insertion
+    *           The insertion the content is written to.
+    * @param server
+    *           The server the file is fetched from, unless it is striped.
+    * @param stripeSources
+    *           The servers the file is fetched from in stripes, null to
+    *           fetch it from a single server.
+    * @param executor
+    *           Runs the workers of a striped fetch.
+    */
+   public SharedFetch(CacheInsertion insertion, ServerData server,
+            Vector<ServerData> stripeSources, Executor executor)
+   {
+      this.insertion = insertion;
+      this.server = server;
+      this.stripeSources = stripeSources;
+      this.executor = executor;
+   }
+
+   /**
+    * Executed as a thread.
+    */
+   public void run()
+   {
+      try
+      {
+         if (stripeSources != null)
+         {
+            FetchStriped();
+         }
+         else
+         {
+            FetchFile();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Shared download of " + insertion.getFileName()
+                  + " failed: " + e.getMessage());
+      }
+      finally
+      {
+         if (!isAbandoned && fetchedBytes == insertion.getSize())
+         {
+            insertion.Finish();
+         }
+         else
+         {
+            insertion.Abort();
+         }
+      }
+   }
+
+   /**
+    * Fetches the file from a single server.
+    * 
+    * @throws IOException
+    */
+   private void FetchFile() throws IOException
+   {
+      server.TransferStarted();
+      try
+      {
+         // the stream is written at the pace of the disk, but it stops in
+         // the middle if it is abandoned
+         long requestTime = System.nanoTime();
+         ServerExchange exchange = server.getConnectionPool().OpenDownload(
+                  insertion.getFileName(), 0, insertion.getSize());
+         server.RecordResponseTime(System.nanoTime() - requestTime);
+         try
+         {
+            ProtocolMessage header = exchange.readMessage();
+            if (header.getResultType() != MessageType.File)
+            {
+               throw new IOException("Received unexpected message type from fileserver: "
+                        + header.getResultType());
+            }
+
+            server.addLoad(insertion.getSize());
+            FetchFileContent(header, exchange);
+         }
+         finally
+         {
+            exchange.Close();
+         }
+      }
+      finally
+      {
+         server.TransferFinished();
+      }
+   }
+
+   /**
+    * Writes the file content chunks to the insertion until the file
+    * trailer arrives.
+    * 
+    * @param header
+    *           The file header received from the server.
+    * @param exchange
+    *           The exchange with the server.
+    * 
+    * @throws IOException
+    */
+   private void FetchFileContent(ProtocolMessage header, ServerExchange exchange)
+            throws IOException
+   {
+      ContentDecoder decoder = header.getEncoding() == null ? null
+               : new ContentDecoder(header.getEncoding());
+
+      if (header.getChecksum() != null)
+      {
+         // do not cache content that was corrupted on the way
+         insertion.ExpectChecksum(header.getChecksum());
+      }
+
+      try
+      {
+         ProtocolMessage chunk = exchange.readMessage();
+         while (chunk.getResultType() == MessageType.FileChunk)
+         {
+            byte[] data = decoder != null ? decoder.decode(chunk.getData())
+                     : chunk.getData();
+            if (!Store(data))
+            {
+               return;
+            }
+            chunk = exchange.readMessage();
+         }
+
+         if (chunk.getResultType() != MessageType.FileEnd)
+         {
+            System.out.println("Received unexpected message type from fileserver: "
+                     + chunk.getResultType());
+         }
+      }
+      finally
+      {
+         if (decoder != null)
+         {
+            decoder.close();
+         }
+      }
+   }
+
+   /**
+    * Fetches the file in stripes from several servers in parallel.
+    * 
+    * @throws IOException
+    */
+   private void FetchStriped() throws IOException
+   {
+      StripedDownload download = new StripedDownload(insertion.getFileName(), 0,
+               insertion.getSize(), stripeSources);
+
+      try
+      {
+         download.Start(executor);
+
+         Vector<byte[]> stripe = download.TakeNextStripe();
+         while (stripe != null)
+         {
+            for (byte[] data : stripe)
+            {
+               if (!Store(data))
+               {
+                  return;
+               }
+            }
+            stripe = download.TakeNextStripe();
+         }
+      }
+      finally
+      {
+         download.Close();
+      }
+   }
+
+   /**
+    * Writes content to the insertion, unless nobody reads it any more.
+    * 
+    * @param data
+    *           The content.
+    * @return False if the fetch was abandoned.
+    */
+   private boolean Store(byte[] data)
+   {
+      if (insertion.AbortIfUnread())
+      {
+         isAbandoned = true;
+         return false;
+      }
+
+      insertion.Write(data, 0, data.length);
+      fetchedBytes += data.length;
+      return true;
+   }
+}
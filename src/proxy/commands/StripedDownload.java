@@ -0,0 +1,489 @@
+package proxy.commands;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocols.misc.ContentDecoder;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+import proxy.serverHandling.ServerData;
+import proxy.serverHandling.ServerExchange;
+
+/**
+ * Fetches a byte range of a file from several fileservers in parallel.
+ * The range is split into stripes, one worker per server fetches
+ * stripes as ranged downloads and the consumer takes them back in order.
+ * Stripes of a failed server are handed to the remaining ones, a stripe
+ * that holds up the consumer for too long is requested a second time.
+ * 
+ * @author RaphM
+ */
+public class StripedDownload
+{
+   /**
+    * Size of a stripe, a multiple of the file chunk size.
+    */
+   public static final long STRIPE_SIZE = 1024 * 1024;
+
+   /**
+    * Number of stripes per server that may be fetched ahead of the
+    * consumer, limits the memory held by one download.
+    */
+   private final int STRIPES_AHEAD_PER_SERVER = 2;
+
+   /**
+    * Time after which a stripe the consumer waits for is requested again.
+    */
+   private final long SLOW_STRIPE_TIMEOUT_MS = 5000;
+
+   /**
+    * Interval in which waiting threads re-check the state.
+    */
+   private final long POLL_INTERVAL_MS = 500;
+
+   /**
+    * Guards the state of the download, shared by the workers and the
+    * consumer.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signalled whenever the state of the download changes.
+    */
+   private final Condition stateChanged = lock.newCondition();
+
+   /**
+    * The requested file.
+    */
+   private final String fileName;
+
+   /**
+    * Position of the first requested byte.
+    */
+   private final long offset;
+
+   /**
+    * Number of requested bytes.
+    */
+   private final long length;
+
+   /**
+    * Number of stripes the range is split into.
+    */
+   private final int stripeCount;
+
+   /**
+    * Number of stripes that may be fetched ahead of the consumer.
+    */
+   private final int window;
+
+   /**
+    * The servers to fetch from.
+    */
+   private final Vector<ServerData> sources;
+
+   /**
+    * Stripes that still have to be fetched, in ascending order except for
+    * reassigned ones at the front.
+    */
+   private final LinkedList<Integer> pendingStripes = new LinkedList<Integer>();
+
+   /**
+    * Fetched stripes that have not been taken by the consumer yet.
+    */
+   private final Map<Integer, Vector<byte[]>> completedStripes = new HashMap<Integer, Vector<byte[]>>();
+
+   /**
+    * Start times of the stripes that are being fetched.
+    */
+   private final Map<Integer, Long> assignedStripes = new HashMap<Integer, Long>();
+
+   /**
+    * Stripes that have already been requested a second time.
+    */
+   private final Set<Integer> reassignedStripes = new HashSet<Integer>();
+
+   /**
+    * The stripe the consumer takes next.
+    */
+   private int nextStripe;
+
+   /**
+    * Number of workers that are still running.
+    */
+   private int activeWorkers;
+
+   /**
+    * Indicates that the download was finished or cancelled.
+    */
+   private boolean isClosed;
+
+   /**
+    * Creates a new striped download, workers are started with Start().
+    * 
+    * @param fileName The requested file.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes.
+    * @param sources The servers to fetch from.
+    */
+   public StripedDownload(String fileName, long offset, long length,
+            Vector<ServerData> sources)
+   {
+      this.fileName = fileName;
+      this.offset = offset;
+      this.length = length;
+      this.sources = sources;
+      this.stripeCount = (int) ((length + STRIPE_SIZE - 1) / STRIPE_SIZE);
+      this.window = STRIPES_AHEAD_PER_SERVER * sources.size();
+
+      for (int i = 0; i < stripeCount; i++)
+      {
+         pendingStripes.add(i);
+      }
+   }
+
+   /**
+    * Starts one worker per server.
+    * 
+    * @param executor Runs the workers.
+    */
+   public void Start(Executor executor)
+   {
+      lock.lock();
+      try
+      {
+         for (ServerData server : sources)
+         {
+            activeWorkers++;
+
+            executor.execute(new StripeWorker(server));
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits for the next stripe in order.
+    * 
+    * @return The content chunks of the stripe, null after the last one.
+    * @throws IOException If no server is left to fetch the stripe from.
+    */
+   public Vector<byte[]> TakeNextStripe() throws IOException
+   {
+      lock.lock();
+      try
+      {
+         if (nextStripe == stripeCount)
+         {
+            return null;
+         }
+
+         while (!completedStripes.containsKey(nextStripe))
+         {
+            if (activeWorkers == 0 || isClosed)
+            {
+               throw new IOException("No fileserver left to download " + fileName
+                        + " from!");
+            }
+
+            Long startTime = assignedStripes.get(nextStripe);
+            if (startTime != null
+                     && System.currentTimeMillis() - startTime > SLOW_STRIPE_TIMEOUT_MS
+                     && !reassignedStripes.contains(nextStripe))
+            {
+               // the source is slow, let another one race it
+               reassignedStripes.add(nextStripe);
+               pendingStripes.addFirst(nextStripe);
+               stateChanged.signalAll();
+            }
+
+            Wait();
+         }
+
+         Vector<byte[]> stripe = completedStripes.remove(nextStripe);
+         nextStripe++;
+
+         // the window moved on, workers may fetch further stripes
+         stateChanged.signalAll();
+
+         return stripe;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Stops all workers after their current stripe.
+    */
+   public void Close()
+   {
+      lock.lock();
+      try
+      {
+         isClosed = true;
+         completedStripes.clear();
+         stateChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits for the next unfetched stripe inside the window.
+    * 
+    * @return The stripe index, -1 if the worker should stop.
+    */
+   private int TakeWork()
+   {
+      lock.lock();
+      try
+      {
+         while (!isClosed && nextStripe < stripeCount)
+         {
+            while (!pendingStripes.isEmpty()
+                     && (pendingStripes.getFirst() < nextStripe || completedStripes
+                              .containsKey(pendingStripes.getFirst())))
+            {
+               // already taken by the consumer or fetched by another worker
+               pendingStripes.removeFirst();
+            }
+
+            if (!pendingStripes.isEmpty()
+                     && pendingStripes.getFirst() < nextStripe + window)
+            {
+               int stripe = pendingStripes.removeFirst();
+               assignedStripes.put(stripe, System.currentTimeMillis());
+               return stripe;
+            }
+
+            Wait();
+         }
+
+         return -1;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Stores a fetched stripe, duplicates of reassigned stripes are dropped.
+    * 
+    * @param stripe The stripe index.
+    * @param chunks The content chunks.
+    */
+   private void CompleteStripe(int stripe, Vector<byte[]> chunks)
+   {
+      lock.lock();
+      try
+      {
+         assignedStripes.remove(stripe);
+
+         if (!isClosed && stripe >= nextStripe && !completedStripes.containsKey(stripe))
+         {
+            completedStripes.put(stripe, chunks);
+            stateChanged.signalAll();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Hands the stripe of a failed worker to the others.
+    * 
+    * @param stripe The stripe index.
+    */
+   private void FailStripe(int stripe)
+   {
+      lock.lock();
+      try
+      {
+         assignedStripes.remove(stripe);
+
+         if (stripe >= nextStripe && !completedStripes.containsKey(stripe)
+                  && !pendingStripes.contains(stripe))
+         {
+            pendingStripes.addFirst(stripe);
+         }
+         stateChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Unregisters a stopped worker.
+    */
+   private void StopWorker()
+   {
+      lock.lock();
+      try
+      {
+         activeWorkers--;
+         stateChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits for a state change or the poll interval.
+    */
+   private void Wait()
+   {
+      try
+      {
+         stateChanged.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         isClosed = true;
+      }
+   }
+
+   /**
+    * Fetches stripes from one server until the download is complete or
+    * the server fails.
+    */
+   private class StripeWorker implements Runnable
+   {
+      /**
+       * The server this worker fetches from.
+       */
+      private final ServerData server;
+
+      /**
+       * Creates a new worker.
+       * 
+       * @param server The server to fetch from.
+       */
+      public StripeWorker(ServerData server)
+      {
+         this.server = server;
+      }
+
+      /**
+       * Executed as a thread.
+       */
+      public void run()
+      {
+         try
+         {
+            int stripe = TakeWork();
+
+            while (stripe != -1)
+            {
+               try
+               {
+                  CompleteStripe(stripe, FetchStripe(stripe));
+               }
+               catch (IOException e)
+               {
+                  System.out.println("Stripe download failed, reassigning it: "
+                           + server.getServerIdentifier());
+                  FailStripe(stripe);
+                  break;
+               }
+
+               stripe = TakeWork();
+            }
+         }
+         finally
+         {
+            StopWorker();
+         }
+      }
+
+      /**
+       * Fetches one stripe as a ranged download.
+       * 
+       * @param stripe The stripe index.
+       * @return The content chunks of the stripe.
+       * @throws IOException If the stripe cannot be fetched completely.
+       */
+      private Vector<byte[]> FetchStripe(int stripe) throws IOException
+      {
+         long stripeOffset = offset + stripe * STRIPE_SIZE;
+         long stripeLength = Math.min(STRIPE_SIZE, offset + length - stripeOffset);
+         Vector<byte[]> chunks = new Vector<byte[]>();
+         long receivedBytes = 0;
+
+         ServerExchange exchange = server.getConnectionPool().OpenExchange();
+         server.TransferStarted();
+         try
+         {
+            long requestTime = System.nanoTime();
+            exchange.getProtocol().sendDownloadRequest(fileName, stripeOffset, stripeLength);
+
+            ProtocolMessage message = exchange.readMessage();
+            server.RecordResponseTime(System.nanoTime() - requestTime);
+            if (message.getResultType() != MessageType.File)
+            {
+               throw new IOException("Unexpected stripe response: "
+                        + message.getResultType());
+            }
+
+            ContentDecoder decoder = message.getEncoding() == null ? null
+                     : new ContentDecoder(message.getEncoding());
+            try
+            {
+               message = exchange.readMessage();
+               while (message.getResultType() == MessageType.FileChunk)
+               {
+                  byte[] data = decoder != null ? decoder.decode(message.getData())
+                           : message.getData();
+                  chunks.add(data);
+                  receivedBytes += data.length;
+                  message = exchange.readMessage();
+               }
+            }
+            finally
+            {
+               if (decoder != null)
+               {
+                  decoder.close();
+               }
+            }
+         }
+         finally
+         {
+            server.TransferFinished();
+            exchange.Close();
+         }
+
+         if (receivedBytes != stripeLength)
+         {
+            throw new IOException("Stripe is incomplete: " + receivedBytes
+                     + " of " + stripeLength + " bytes");
+         }
+
+         server.addLoad(stripeLength);
+         return chunks;
+      }
+   }
+}
@@ -0,0 +1,63 @@
+package proxy.commands;
+
+import proxy.WorkflowLane;
+import proxy.WorkflowScheduler;
+import commandHandling.ICommand;
+
+/**
+ * Console command that shows the running and waiting workflows of every
+ * lane of the workflow scheduler.
+ * 
+ * @author RaphM
+ */
+public class WorkflowsCommand implements ICommand
+{
+   /**
+    * Command identifier of this instance.
+    */
+   private final String COMMAND = "!workflows";
+
+   /**
+    * Scheduler of the list and download workflows.
+    */
+   private final WorkflowScheduler scheduler;
+
+   /**
+    * Initializes a new WorkflowsCommand instance.
+    * 
+    * @param scheduler Scheduler of the list and download workflows.
+    */
+   public WorkflowsCommand(WorkflowScheduler scheduler)
+   {
+      this.scheduler = scheduler;
+   }
+
+   /**
+    * Performs the command logic
+    */
+   public void Execute(String[] parameters)
+   {
+      if (parameters.length == 0)
+      {
+         for (WorkflowLane lane : scheduler.getLanes())
+         {
+            System.out.println(lane.getName() + ": Running: " + lane.getRunning()
+                     + "/" + lane.getMaxRunning() + " Waiting: " + lane.getQueued());
+         }
+      }
+      else
+      {
+         System.out.println("Wrong parameters - Usage: !workflows");
+      }
+   }
+
+   /**
+    * Gets the command identifier of this instance.
+    * 
+    * @return Command identifier.
+    */
+   public String getIdentifier()
+   {
+      return COMMAND;
+   }
+}
@@ -0,0 +1,33 @@
+package proxy.serverHandling;
+
+/**
+ * Prefers the server with the fewest outstanding requests relative to the
+ * capacity weight it declared, so stronger servers get more requests.
+ * 
+ * @author RaphM
+ */
+public class CapacityWeightedStrategy extends ScoredStrategy
+{
+   /**
+    * Strategy name.
+    */
+   private final String IDENTIFIER = "weighted";
+
+   /**
+    * Rates a server by its outstanding requests per capacity.
+    */
+   protected double Score(ServerData server, long now)
+   {
+      // the request to place counts as well, otherwise idle servers tie
+      return (server.getOutstandingRequests() + 1.0)
+               / Math.max(1, server.getCapacityWeight());
+   }
+
+   /**
+    * Gets the name of the strategy.
+    */
+   public String getIdentifier()
+   {
+      return IDENTIFIER;
+   }
+}
@@ -0,0 +1,48 @@
+package proxy.serverHandling;
+
+/**
+ * Prefers the server with the fewest recently downloaded bytes. Past load
+ * is forgotten over time, so long running servers are not starved. A
+ * server that just came online is ramped up slowly: its load counts more
+ * until SLOW_START_PERIOD passed, so it is not flooded with requests.
+ * 
+ * @author RaphM
+ */
+public class DecayedLoadStrategy extends ScoredStrategy
+{
+   /**
+    * Strategy name.
+    */
+   private final String IDENTIFIER = "decayed";
+
+   /**
+    * Time until a server that came online is fully used, in milliseconds.
+    */
+   private final double SLOW_START_PERIOD = 30000;
+
+   /**
+    * Share of its capacity a server gets right after it came online.
+    */
+   private final double SLOW_START_MINIMUM = 0.1;
+
+   /**
+    * Rates a server by its decayed load, divided by the share of its
+    * capacity it gets during the slow start.
+    */
+   protected double Score(ServerData server, long now)
+   {
+      double share = Math.min(1, Math.max(SLOW_START_MINIMUM,
+               (now - server.getOnlineSince()) / SLOW_START_PERIOD));
+
+      // idle servers still differ by their share
+      return (server.getDecayedLoad(now) + 1) / share;
+   }
+
+   /**
+    * Gets the name of the strategy.
+    */
+   public String getIdentifier()
+   {
+      return IDENTIFIER;
+   }
+}
@@ -0,0 +1,444 @@
+package proxy.serverHandling;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import protocols.misc.CatalogChange;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+
+/**
+ * Knows which fileservers hold which files, with their sizes and
+ * modification times. The catalog of a fileserver is synchronized when
+ * the digest in its alive packets changes: only the changes since the
+ * last known catalog version are transferred.
+ * 
+ * Lookups do not block, updates are serialized.
+ * 
+ * @author RaphM
+ */
+public class FileLocationCatalog
+{
+   /**
+    * Time a fileserver has to answer a catalog request.
+    */
+   private final long SYNC_TIMEOUT_MS = 5000;
+
+   /**
+    * Maximum number of catalogs that are synchronized at once, further
+    * synchronizations wait.
+    */
+   private final int SYNC_THREADS = 4;
+
+   /**
+    * Time after which an idle synchronization thread ends.
+    */
+   private final long SYNC_THREAD_KEEP_ALIVE_MS = 30000;
+
+   /**
+    * The servers holding a file and their version of it, by file name.
+    */
+   private final ConcurrentMap<String, ConcurrentMap<ServerData, CatalogChange>> locations = new ConcurrentHashMap<String, ConcurrentMap<ServerData, CatalogChange>>();
+
+   /**
+    * Synchronization state by server.
+    */
+   private final ConcurrentMap<ServerData, SyncState> states = new ConcurrentHashMap<ServerData, SyncState>();
+
+   /**
+    * Runs the synchronizations. Only one runs per server at a time, so
+    * the queue holds at most one per server.
+    */
+   private final ThreadPoolExecutor syncPool;
+
+   /**
+    * Creates an empty catalog.
+    */
+   public FileLocationCatalog()
+   {
+      syncPool = new ThreadPoolExecutor(SYNC_THREADS, SYNC_THREADS,
+               SYNC_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+               new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+               {
+                  public Thread newThread(Runnable task)
+                  {
+                     // must not keep the proxy from exiting
+                     Thread thread = Executors.defaultThreadFactory().newThread(task);
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      syncPool.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * Starts synchronizing the catalog of a server if its digest changed
+    * since the last synchronization.
+    * 
+    * @param server The server an alive packet was received from.
+    */
+   public void Update(ServerData server)
+   {
+      if (!server.hasCatalogDigest())
+      {
+         // fileservers without a digest do not know catalog requests
+         return;
+      }
+
+      if (server.isEvicted())
+      {
+         // removed meanwhile
+         return;
+      }
+
+      SyncState state = states.get(server);
+      if (state == null)
+      {
+         states.putIfAbsent(server, new SyncState());
+         state = states.get(server);
+      }
+
+      if (state.BeginSync(server.getCatalogDigest()))
+      {
+         try
+         {
+            syncPool.execute(new CatalogSync(server, state));
+         }
+         catch (RejectedExecutionException e)
+         {
+            // shut down meanwhile
+            state.FinishSync(server.getCatalogDigest(), null);
+         }
+      }
+   }
+
+   /**
+    * Stops synchronizing catalogs, running synchronizations end with
+    * their request.
+    */
+   public void Shutdown()
+   {
+      syncPool.shutdown();
+   }
+
+   /**
+    * Gets the online servers that hold a file.
+    * 
+    * @param fileName The file name.
+    * @param size Only servers with this file size are returned, -1 for
+    *           any size.
+    * @return The servers.
+    */
+   public Vector<ServerData> getOnlineHolders(String fileName, long size)
+   {
+      Vector<ServerData> holders = new Vector<ServerData>();
+
+      Map<ServerData, CatalogChange> fileLocations = locations.get(fileName);
+      if (fileLocations == null)
+      {
+         return holders;
+      }
+
+      for (Map.Entry<ServerData, CatalogChange> location : fileLocations.entrySet())
+      {
+         ServerData server = location.getKey();
+         if (server.isOnline() && (size < 0 || location.getValue().getSize() == size))
+         {
+            holders.add(server);
+         }
+      }
+
+      return holders;
+   }
+
+   /**
+    * Gets the size and modification time of a file on a server.
+    * 
+    * @param fileName The file name.
+    * @param server The server.
+    * @return The catalog entry, null if the server is not known to hold
+    *         the file.
+    */
+   public CatalogChange getFileInfo(String fileName, ServerData server)
+   {
+      Map<ServerData, CatalogChange> fileLocations = locations.get(fileName);
+      return fileLocations == null ? null : fileLocations.get(server);
+   }
+
+   /**
+    * Indicates if the catalogs of some servers are up to date, so files
+    * that are missing in the catalog do not exist on them.
+    * 
+    * @param servers The servers.
+    * @return True if all catalogs are up to date.
+    */
+   public boolean isComplete(Collection<ServerData> servers)
+   {
+      for (ServerData server : servers)
+      {
+         SyncState state = states.get(server);
+         if (state == null || !state.isSynced(server.getCatalogDigest()))
+         {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Forgets everything known about a server that was removed.
+    * 
+    * @param server The server.
+    */
+   public synchronized void Remove(ServerData server)
+   {
+      Forget(server);
+      states.remove(server);
+   }
+
+   /**
+    * Removes a server from the locations of all files.
+    * 
+    * @param server The server.
+    */
+   private void Forget(ServerData server)
+   {
+      Iterator<ConcurrentMap<ServerData, CatalogChange>> iterator = locations.values().iterator();
+      while (iterator.hasNext())
+      {
+         ConcurrentMap<ServerData, CatalogChange> fileLocations = iterator.next();
+         fileLocations.remove(server);
+         if (fileLocations.isEmpty())
+         {
+            iterator.remove();
+         }
+      }
+   }
+
+   /**
+    * Applies received catalog changes of a server.
+    * 
+    * @param server The server.
+    * @param changes The catalog changes message.
+    */
+   private synchronized void Apply(ServerData server, ProtocolMessage changes)
+   {
+      if (server.isEvicted())
+      {
+         // the synchronization was still running when the server was removed
+         return;
+      }
+
+      if (changes.isFullCatalog())
+      {
+         // forget everything known about the server
+         Forget(server);
+      }
+
+      for (CatalogChange change : changes.getCatalogChanges())
+      {
+         ConcurrentMap<ServerData, CatalogChange> fileLocations = locations.get(change.getFileName());
+
+         if (change.isRemoval())
+         {
+            if (fileLocations != null)
+            {
+               fileLocations.remove(server);
+               if (fileLocations.isEmpty())
+               {
+                  locations.remove(change.getFileName());
+               }
+            }
+         }
+         else
+         {
+            if (fileLocations == null)
+            {
+               fileLocations = new ConcurrentHashMap<ServerData, CatalogChange>();
+               locations.put(change.getFileName(), fileLocations);
+            }
+            fileLocations.put(server, change);
+         }
+      }
+   }
+
+   /**
+    * Synchronization state of the catalog of one server.
+    */
+   private class SyncState
+   {
+      /**
+       * The fileserver run the known version belongs to, 0 if unknown.
+       */
+      private long epoch;
+
+      /**
+       * The known catalog version.
+       */
+      private long version;
+
+      /**
+       * The server digest the catalog was synchronized with.
+       */
+      private long syncedDigest;
+
+      /**
+       * Indicates that the catalog was synchronized at least once.
+       */
+      private boolean hasSynced;
+
+      /**
+       * Indicates that a synchronization is running.
+       */
+      private boolean isSyncing;
+
+      /**
+       * Marks a synchronization as running if one is needed.
+       * 
+       * @param digest The current digest of the server.
+       * @return True if the caller has to synchronize.
+       */
+      public synchronized boolean BeginSync(long digest)
+      {
+         if (isSyncing || isSynced(digest))
+         {
+            return false;
+         }
+
+         isSyncing = true;
+         return true;
+      }
+
+      /**
+       * Records the end of a synchronization.
+       * 
+       * @param digest The server digest when the synchronization started.
+       * @param changes The received changes, null if it failed.
+       */
+      public synchronized void FinishSync(long digest, ProtocolMessage changes)
+      {
+         if (changes != null)
+         {
+            epoch = changes.getCatalogEpoch();
+            version = changes.getCatalogVersion();
+            syncedDigest = digest;
+            hasSynced = true;
+         }
+
+         isSyncing = false;
+      }
+
+      /**
+       * Indicates if the catalog matches a server digest.
+       * 
+       * @param digest The current digest of the server.
+       * @return True if the catalog is up to date.
+       */
+      public synchronized boolean isSynced(long digest)
+      {
+         return hasSynced && syncedDigest == digest;
+      }
+
+      /**
+       * The fileserver run the known version belongs to.
+       */
+      public synchronized long getEpoch()
+      {
+         return epoch;
+      }
+
+      /**
+       * The known catalog version.
+       */
+      public synchronized long getVersion()
+      {
+         return version;
+      }
+   }
+
+   /**
+    * Fetches and applies the catalog changes of one server.
+    */
+   private class CatalogSync implements Runnable
+   {
+      /**
+       * The server.
+       */
+      private final ServerData server;
+
+      /**
+       * Synchronization state of the server.
+       */
+      private final SyncState state;
+
+      /**
+       * Creates a new synchronization.
+       * 
+       * @param server The server.
+       * @param state Synchronization state of the server.
+       */
+      public CatalogSync(ServerData server, SyncState state)
+      {
+         this.server = server;
+         this.state = state;
+      }
+
+      /**
+       * Executed as a thread.
+       */
+      public void run()
+      {
+         // the server answers with a catalog at least as new as this digest
+         long digest = server.getCatalogDigest();
+         ProtocolMessage changes = null;
+
+         try
+         {
+            ServerExchange exchange = server.getConnectionPool().OpenExchange();
+            try
+            {
+               exchange.getProtocol().sendCatalogChangesRequest(state.getEpoch(),
+                        state.getVersion());
+
+               ProtocolMessage message = exchange.readMessage(System
+                        .currentTimeMillis() + SYNC_TIMEOUT_MS);
+               if (message.getResultType() == MessageType.CatalogChanges)
+               {
+                  Apply(server, message);
+                  changes = message;
+               }
+               else
+               {
+                  System.out.println("Received unexpected message from fileserver: "
+                           + message.getResultType());
+               }
+            }
+            finally
+            {
+               exchange.Close();
+            }
+         }
+         catch (IOException e)
+         {
+            System.out.println("Catalog synchronization failed: "
+                     + server.getServerIdentifier() + " (" + e.getMessage() + ")");
+         }
+         finally
+         {
+            state.FinishSync(digest, changes);
+         }
+      }
+   }
+}
@@ -0,0 +1,27 @@
+package proxy.serverHandling;
+
+import java.util.List;
+
+/**
+ * Decides which fileserver serves a request.
+ * 
+ * @author RaphM
+ */
+public interface IBalancingStrategy
+{
+   /**
+    * Selects the server that should serve the next request.
+    * 
+    * @param candidates The online servers that can serve the request, a
+    *           random access list.
+    * @return The selected server, null if there are no candidates.
+    */
+   ServerData Select(List<ServerData> candidates);
+
+   /**
+    * Gets the name of the strategy, as given on the command line.
+    * 
+    * @return Strategy name.
+    */
+   String getIdentifier();
+}
@@ -0,0 +1,31 @@
+package proxy.serverHandling;
+
+/**
+ * Power of two choices: prefers the server with fewer outstanding
+ * requests.
+ * 
+ * @author RaphM
+ */
+public class LeastOutstandingStrategy extends ScoredStrategy
+{
+   /**
+    * Strategy name.
+    */
+   private final String IDENTIFIER = "p2c";
+
+   /**
+    * Rates a server by its outstanding requests.
+    */
+   protected double Score(ServerData server, long now)
+   {
+      return server.getOutstandingRequests();
+   }
+
+   /**
+    * Gets the name of the strategy.
+    */
+   public String getIdentifier()
+   {
+      return IDENTIFIER;
+   }
+}
@@ -0,0 +1,129 @@
+package proxy.serverHandling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Hashed timing wheel that schedules the liveness checks of fileservers.
+ * Every slot of the wheel holds the servers due at the ticks that map to
+ * it, so advancing the wheel only touches the servers that are due and
+ * the few that are scheduled a whole turn of the wheel later.
+ * 
+ * A server is scheduled at most once: rescheduling it leaves the old entry
+ * behind, which is dropped when its slot is reached. The wheel is not
+ * thread safe.
+ * 
+ * @author RaphM
+ */
+public class LivenessWheel
+{
+   /**
+    * Number of slots, a power of two.
+    */
+   private final int WHEEL_SIZE = 512;
+
+   /**
+    * The slots, indexed by tick modulo WHEEL_SIZE.
+    */
+   private final List<ArrayList<ServerData>> slots = new ArrayList<ArrayList<ServerData>>();
+
+   /**
+    * Duration of a tick in nanoseconds.
+    */
+   private final long tickDuration;
+
+   /**
+    * Time (System.nanoTime()) of tick 0.
+    */
+   private final long startTime = System.nanoTime();
+
+   /**
+    * The next tick that has not been processed yet.
+    */
+   private long currentTick;
+
+   /**
+    * Creates a new wheel.
+    * 
+    * @param tickDuration Duration of a tick in milliseconds, servers are
+    *           reported due at most this late.
+    */
+   public LivenessWheel(long tickDuration)
+   {
+      this.tickDuration = Math.max(1, tickDuration) * 1000000L;
+
+      for (int i = 0; i < WHEEL_SIZE; i++)
+      {
+         slots.add(new ArrayList<ServerData>());
+      }
+   }
+
+   /**
+    * Schedules a server, replacing a previous schedule.
+    * 
+    * @param server The server.
+    * @param deadline Time (System.nanoTime()) at which the server is due.
+    */
+   public void Schedule(ServerData server, long deadline)
+   {
+      // round up, a server is never due early
+      long tick = Math.max(currentTick, (deadline - startTime + tickDuration - 1)
+               / tickDuration);
+
+      if (server.getWheelTick() == tick)
+      {
+         // already scheduled there
+         return;
+      }
+
+      server.setWheelTick(tick);
+      slots.get((int) (tick & (WHEEL_SIZE - 1))).add(server);
+   }
+
+   /**
+    * Advances the wheel to the current time.
+    * 
+    * @param now The current time (System.nanoTime()).
+    * @return The servers that are due, they are no longer scheduled.
+    */
+   public Vector<ServerData> Advance(long now)
+   {
+      Vector<ServerData> dueServers = new Vector<ServerData>();
+      long nowTick = (now - startTime) / tickDuration;
+
+      while (currentTick <= nowTick)
+      {
+         ArrayList<ServerData> slot = slots.get((int) (currentTick & (WHEEL_SIZE - 1)));
+
+         int index = 0;
+         while (index < slot.size())
+         {
+            ServerData server = slot.get(index);
+            long tick = server.getWheelTick();
+
+            if (tick > currentTick && (tick & (WHEEL_SIZE - 1)) == (currentTick & (WHEEL_SIZE - 1)))
+            {
+               // due in a later turn of the wheel
+               index++;
+               continue;
+            }
+
+            if (tick == currentTick)
+            {
+               server.setWheelTick(-1);
+               dueServers.add(server);
+            }
+
+            // due or rescheduled elsewhere, the order within a slot does
+            // not matter
+            slot.set(index, slot.get(slot.size() - 1));
+            slot.remove(slot.size() - 1);
+         }
+
+         currentTick++;
+      }
+
+      return dueServers;
+   }
+}
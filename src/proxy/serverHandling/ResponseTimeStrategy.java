@@ -0,0 +1,32 @@
+package proxy.serverHandling;
+
+/**
+ * Prefers the server with the lowest moving average of its response time,
+ * multiplied by the number of requests that would be waiting for it.
+ * Servers whose response time was never measured are tried first.
+ * 
+ * @author RaphM
+ */
+public class ResponseTimeStrategy extends ScoredStrategy
+{
+   /**
+    * Strategy name.
+    */
+   private final String IDENTIFIER = "ewma";
+
+   /**
+    * Rates a server by its expected response time.
+    */
+   protected double Score(ServerData server, long now)
+   {
+      return server.getResponseTime() * (server.getOutstandingRequests() + 1);
+   }
+
+   /**
+    * Gets the name of the strategy.
+    */
+   public String getIdentifier()
+   {
+      return IDENTIFIER;
+   }
+}
@@ -0,0 +1,55 @@
+package proxy.serverHandling;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Base class of strategies that rate servers by a score. Two random
+ * candidates are compared and the one with the lower score is selected,
+ * so the selection takes constant time and a server with a low score is
+ * not flooded by all proxies and threads at once.
+ * 
+ * @author RaphM
+ */
+public abstract class ScoredStrategy implements IBalancingStrategy
+{
+   /**
+    * Selects the better of two random candidates.
+    */
+   public ServerData Select(List<ServerData> candidates)
+   {
+      int count = candidates.size();
+      if (count == 0)
+      {
+         return null;
+      }
+      if (count == 1)
+      {
+         return candidates.get(0);
+      }
+
+      // two distinct random candidates
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(count);
+      int second = random.nextInt(count - 1);
+      if (second >= first)
+      {
+         second++;
+      }
+
+      long now = System.currentTimeMillis();
+      ServerData firstServer = candidates.get(first);
+      ServerData secondServer = candidates.get(second);
+      return Score(secondServer, now) < Score(firstServer, now) ? secondServer
+               : firstServer;
+   }
+
+   /**
+    * Rates a server, servers with lower scores are preferred.
+    * 
+    * @param server The server.
+    * @param now The current time.
+    * @return The score.
+    */
+   protected abstract double Score(ServerData server, long now);
+}
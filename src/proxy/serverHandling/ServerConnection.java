@@ -0,0 +1,282 @@
+package proxy.serverHandling;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocols.MessageFileProtocol;
+import protocols.misc.ProtocolMessage;
+
+/**
+ * A long-lived connection to a fileserver. A shared connection runs
+ * several exchanges at the same time, its reader thread hands every
+ * response frame to the exchange with the matching request id and never
+ * waits for them. A dedicated connection runs one exchange at a time
+ * whose consumer reads the frames itself, so a slow consumer only slows
+ * down the fileserver of its own stream.
+ * 
+ * @author RaphM
+ */
+public class ServerConnection implements Runnable
+{
+   /**
+    * Time to establish the TCP connection.
+    */
+   private final int CONNECT_TIMEOUT_MS = 5000;
+
+   /**
+    * Time the fileserver has to answer each step of the negotiation.
+    */
+   private final int NEGOTIATION_TIMEOUT_MS = 5000;
+
+   /**
+    * Address of the fileserver.
+    */
+   private final String serverAddress;
+
+   /**
+    * The connection socket.
+    */
+   private final Socket socket;
+
+   /**
+    * Outgoing endpoint, exchanges write through request views of it.
+    */
+   private final MessageFileProtocol outgoingProtocol;
+
+   /**
+    * Incoming endpoint, only read by the reader thread or the consumer of
+    * the dedicated exchange.
+    */
+   private final MessageFileProtocol incomingProtocol;
+
+   /**
+    * Running exchanges by request id.
+    */
+   private final ConcurrentMap<Integer, ServerExchange> exchanges = new ConcurrentHashMap<Integer, ServerExchange>();
+
+   /**
+    * The next request id, 0 is reserved for untagged messages.
+    */
+   private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+   /**
+    * Indicates if this connection can still be used.
+    */
+   private volatile boolean isOpen;
+
+   /**
+    * Connects to a fileserver and negotiates the binary mode that is
+    * required for multiplexing. A server that accepts but does not answer
+    * is given up after a timeout. The reader thread has to be started by
+    * the caller.
+    * 
+    * @param serverAddress Address of the fileserver.
+    * @param serverPort Port of the fileserver.
+    * @throws IOException If the server cannot be reached or does not
+    *            support the binary mode.
+    */
+   public ServerConnection(String serverAddress, int serverPort) throws IOException
+   {
+      this.serverAddress = serverAddress;
+      this.socket = new Socket();
+
+      try
+      {
+         socket.connect(new InetSocketAddress(serverAddress, serverPort),
+                  CONNECT_TIMEOUT_MS);
+         socket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+
+         outgoingProtocol = new MessageFileProtocol(socket.getOutputStream());
+         incomingProtocol = new MessageFileProtocol(socket.getInputStream());
+
+         if (!outgoingProtocol.negotiateBinaryMode(incomingProtocol))
+         {
+            throw new IOException("Fileserver does not support binary mode: "
+                     + serverAddress);
+         }
+
+         // optional, files are sent uncompressed if the server declines
+         outgoingProtocol.negotiateCompression(incomingProtocol);
+
+         // responses of running exchanges may take arbitrarily long
+         socket.setSoTimeout(0);
+      }
+      catch (IOException e)
+      {
+         socket.close();
+         throw e;
+      }
+
+      isOpen = true;
+   }
+
+   /**
+    * Starts a new exchange on this connection.
+    * 
+    * @return The exchange.
+    */
+   public ServerExchange OpenExchange()
+   {
+      int requestId = nextRequestId.getAndIncrement();
+      if (requestId == 0)
+      {
+         // skip the reserved id after an overflow
+         requestId = nextRequestId.getAndIncrement();
+      }
+
+      ServerExchange exchange = new ServerExchange(this,
+               outgoingProtocol.forRequest(requestId));
+      exchanges.put(requestId, exchange);
+
+      return exchange;
+   }
+
+   /**
+    * Starts an exchange on this dedicated connection, the previous one
+    * must have been closed.
+    * 
+    * @param pool The pool the connection is given back to.
+    * @param isReused True if the connection served an earlier exchange.
+    * @return The exchange.
+    */
+   ServerExchange OpenDedicatedExchange(ServerConnectionPool pool, boolean isReused)
+   {
+      int requestId = nextRequestId.getAndIncrement();
+      if (requestId == 0)
+      {
+         // skip the reserved id after an overflow
+         requestId = nextRequestId.getAndIncrement();
+      }
+
+      return new ServerExchange(this, outgoingProtocol.forRequest(requestId), pool,
+               isReused);
+   }
+
+   /**
+    * Reads the next response of the exchange on this dedicated connection.
+    * The connection is closed if the read fails, the stream may have
+    * stopped in the middle of a frame.
+    * 
+    * @param requestId The request id of the exchange.
+    * @param deadline Time (in milliseconds) after which the wait is given up.
+    * @return The response message.
+    * @throws IOException If the connection was closed or the deadline passed.
+    */
+   ProtocolMessage ReadMessage(int requestId, long deadline) throws IOException
+   {
+      try
+      {
+         while (true)
+         {
+            if (deadline == Long.MAX_VALUE)
+            {
+               socket.setSoTimeout(0);
+            }
+            else
+            {
+               long remainingTime = deadline - System.currentTimeMillis();
+               if (remainingTime <= 0)
+               {
+                  throw new SocketTimeoutException("Fileserver did not answer in time!");
+               }
+               socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingTime));
+            }
+
+            ProtocolMessage message = incomingProtocol.readMessage();
+
+            // responses of earlier exchanges are dropped
+            if (message.getRequestId() == requestId)
+            {
+               return message;
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         Close();
+         throw e;
+      }
+   }
+
+   /**
+    * Removes a finished exchange.
+    * 
+    * @param exchange The exchange.
+    */
+   void RemoveExchange(ServerExchange exchange)
+   {
+      exchanges.remove(exchange.getRequestId());
+   }
+
+   /**
+    * Gets the number of running exchanges.
+    * 
+    * @return Number of running exchanges.
+    */
+   public int getActiveExchanges()
+   {
+      return exchanges.size();
+   }
+
+   /**
+    * Indicates if this connection can still be used.
+    * 
+    * @return True if the connection is open.
+    */
+   public boolean isOpen()
+   {
+      return isOpen;
+   }
+
+   /**
+    * Executed as a thread, dispatches incoming frames to their exchanges.
+    */
+   public void run()
+   {
+      try
+      {
+         while (isOpen)
+         {
+            ProtocolMessage message = incomingProtocol.readMessage();
+            ServerExchange exchange = exchanges.get(message.getRequestId());
+
+            // responses of closed exchanges are dropped
+            if (exchange != null)
+            {
+               exchange.Deliver(message);
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("<ServerConnection Thread>: Connection to "
+                  + serverAddress + " was closed!");
+      }
+      finally
+      {
+         Close();
+      }
+   }
+
+   /**
+    * Closes the connection, running exchanges get an IOException.
+    */
+   public void Close()
+   {
+      isOpen = false;
+
+      try
+      {
+         socket.close();
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not close fileserver connection socket!");
+      }
+   }
+}
@@ -0,0 +1,470 @@
+package proxy.serverHandling;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of long-lived connections to one fileserver. Exchanges are spread
+ * over the open shared connections, new connections are only opened while
+ * every existing connection is busy and the pool limit is not reached.
+ * File streams that are relayed at the pace of a client get a dedicated
+ * connection, which is kept for the next stream for a while. The number
+ * of dedicated connections is limited as well, a stream that finds all of
+ * them busy waits for one and shares a pooled connection if none gets
+ * free in time.
+ * 
+ * @author RaphM
+ */
+public class ServerConnectionPool
+{
+   /**
+    * Maximum number of connections to a single fileserver.
+    */
+   private final int MAX_CONNECTIONS = 4;
+
+   /**
+    * Maximum number of idle dedicated connections that are kept.
+    */
+   private final int MAX_IDLE_CONNECTIONS = 4;
+
+   /**
+    * Maximum number of dedicated connections to a single fileserver, busy
+    * or idle.
+    */
+   private final int MAX_DEDICATED_CONNECTIONS = 8;
+
+   /**
+    * Time a stream waits for a dedicated connection before it shares a
+    * pooled one.
+    */
+   private final long DEDICATED_WAIT_MS = 2000;
+
+   /**
+    * Idle dedicated connections are closed after this time instead of being
+    * used again.
+    */
+   private final long IDLE_TIMEOUT_MS = 10000;
+
+   /**
+    * Address of the fileserver.
+    */
+   private final String serverAddress;
+
+   /**
+    * Port of the fileserver.
+    */
+   private final int serverPort;
+
+   /**
+    * The pooled connections.
+    */
+   private final Vector<ServerConnection> connections = new Vector<ServerConnection>();
+
+   /**
+    * Protects the list of connections. Not held while a new connection is
+    * established, so a hanging server does not block the other exchanges.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Number of connections that are being established.
+    */
+   private int openingConnections;
+
+   /**
+    * Idle dedicated connections, the most recently used one last.
+    */
+   private final LinkedList<IdleConnection> idleConnections = new LinkedList<IdleConnection>();
+
+   /**
+    * Signalled when a dedicated connection becomes idle or is closed.
+    */
+   private final Condition dedicatedReleased = lock.newCondition();
+
+   /**
+    * Number of dedicated connections that are busy, idle or being
+    * established.
+    */
+   private int dedicatedConnections;
+
+   /**
+    * Creates an empty pool, connections are opened on demand.
+    * 
+    * @param serverAddress Address of the fileserver.
+    * @param serverPort Port of the fileserver.
+    */
+   public ServerConnectionPool(String serverAddress, int serverPort)
+   {
+      this.serverAddress = serverAddress;
+      this.serverPort = serverPort;
+   }
+
+   /**
+    * Starts a new exchange on the least busy pooled connection.
+    * 
+    * @return The exchange, has to be closed by the caller.
+    * @throws IOException If no connection to the fileserver can be opened.
+    */
+   public ServerExchange OpenExchange() throws IOException
+   {
+      ServerConnection leastBusy = null;
+
+      lock.lock();
+      try
+      {
+         // forget broken connections and find the least busy one
+         Iterator<ServerConnection> iterator = connections.iterator();
+         while (iterator.hasNext())
+         {
+            ServerConnection connection = iterator.next();
+
+            if (!connection.isOpen())
+            {
+               iterator.remove();
+            }
+            else if (leastBusy == null
+                     || connection.getActiveExchanges() < leastBusy.getActiveExchanges())
+            {
+               leastBusy = connection;
+            }
+         }
+
+         if (leastBusy != null
+                  && (leastBusy.getActiveExchanges() == 0 || connections.size()
+                           + openingConnections >= MAX_CONNECTIONS))
+         {
+            return leastBusy.OpenExchange();
+         }
+
+         openingConnections++;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      ServerConnection connection;
+      try
+      {
+         connection = new ServerConnection(serverAddress, serverPort);
+      }
+      catch (IOException e)
+      {
+         lock.lock();
+         try
+         {
+            openingConnections--;
+         }
+         finally
+         {
+            lock.unlock();
+         }
+
+         if (leastBusy == null)
+         {
+            throw e;
+         }
+
+         // keep sharing the existing connection
+         System.out.println("Could not open additional connection to "
+                  + serverAddress + ":" + serverPort);
+         return leastBusy.OpenExchange();
+      }
+
+      lock.lock();
+      try
+      {
+         openingConnections--;
+         connections.add(connection);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      // run the response reader as a thread
+      Thread readerThread = new Thread(connection);
+      readerThread.setDaemon(true);
+      readerThread.start();
+
+      return connection.OpenExchange();
+   }
+
+   /**
+    * Requests a byte range of a file on a dedicated connection and waits
+    * for the file header. If an idle connection was used again and the
+    * fileserver closed it meanwhile, the request is sent once more on a new
+    * connection.
+    * 
+    * @param fileName The requested file.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes, -1 up to the end of the file.
+    * @return The exchange, its first response is the file header. Has to be
+    *         closed by the caller.
+    * @throws IOException If the fileserver cannot be reached or does not
+    *            answer.
+    */
+   public ServerExchange OpenDownload(String fileName, long offset, long length)
+            throws IOException
+   {
+      ServerExchange exchange = OpenDedicatedExchange(true);
+      try
+      {
+         exchange.getProtocol().sendDownloadRequest(fileName, offset, length);
+         exchange.Push(exchange.readMessage());
+         return exchange;
+      }
+      catch (IOException e)
+      {
+         exchange.Close();
+
+         if (!exchange.isReused())
+         {
+            throw e;
+         }
+      }
+
+      // the idle connection was closed by the fileserver
+      exchange = OpenDedicatedExchange(false);
+      try
+      {
+         exchange.getProtocol().sendDownloadRequest(fileName, offset, length);
+         exchange.Push(exchange.readMessage());
+         return exchange;
+      }
+      catch (IOException e)
+      {
+         exchange.Close();
+         throw e;
+      }
+   }
+
+   /**
+    * Starts a new exchange on a dedicated connection, for streams whose
+    * consumer may be slow. Waits while all dedicated connections are busy
+    * and falls back to a pooled connection if none gets free in time.
+    * 
+    * @param useIdle True to use an idle dedicated connection again if there
+    *           is one.
+    * @return The exchange, has to be closed by the caller.
+    * @throws IOException If no connection to the fileserver can be opened.
+    */
+   private ServerExchange OpenDedicatedExchange(boolean useIdle) throws IOException
+   {
+      ServerConnection connection = null;
+      boolean isReserved = false;
+
+      lock.lock();
+      try
+      {
+         long deadline = System.currentTimeMillis() + DEDICATED_WAIT_MS;
+
+         while (connection == null && !isReserved)
+         {
+            connection = useIdle ? TakeIdleConnection() : null;
+
+            if (connection == null)
+            {
+               if (!useIdle && dedicatedConnections >= MAX_DEDICATED_CONNECTIONS
+                        && !idleConnections.isEmpty())
+               {
+                  // make room for a new connection
+                  CloseDedicatedConnection(idleConnections.removeFirst().connection);
+               }
+
+               if (dedicatedConnections < MAX_DEDICATED_CONNECTIONS)
+               {
+                  dedicatedConnections++;
+                  isReserved = true;
+               }
+               else
+               {
+                  long remainingTime = deadline - System.currentTimeMillis();
+                  if (remainingTime <= 0)
+                  {
+                     break;
+                  }
+
+                  try
+                  {
+                     dedicatedReleased.await(remainingTime, TimeUnit.MILLISECONDS);
+                  }
+                  catch (InterruptedException e)
+                  {
+                     Thread.currentThread().interrupt();
+                     break;
+                  }
+               }
+            }
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      if (connection != null)
+      {
+         return connection.OpenDedicatedExchange(this, true);
+      }
+
+      if (!isReserved)
+      {
+         // all dedicated connections are busy, share a pooled one
+         return OpenExchange();
+      }
+
+      try
+      {
+         connection = new ServerConnection(serverAddress, serverPort);
+      }
+      catch (IOException e)
+      {
+         lock.lock();
+         try
+         {
+            dedicatedConnections--;
+            dedicatedReleased.signal();
+         }
+         finally
+         {
+            lock.unlock();
+         }
+         throw e;
+      }
+
+      return connection.OpenDedicatedExchange(this, false);
+   }
+
+   /**
+    * Takes the most recently used idle dedicated connection, expired ones
+    * are closed. Must be called with the lock held.
+    * 
+    * @return The connection, null if there is none.
+    */
+   private ServerConnection TakeIdleConnection()
+   {
+      while (!idleConnections.isEmpty())
+      {
+         IdleConnection idle = idleConnections.removeLast();
+
+         if (idle.connection.isOpen()
+                  && System.currentTimeMillis() - idle.since < IDLE_TIMEOUT_MS)
+         {
+            return idle.connection;
+         }
+
+         CloseDedicatedConnection(idle.connection);
+      }
+
+      return null;
+   }
+
+   /**
+    * Closes a dedicated connection and gives its place to a waiting
+    * stream. Must be called with the lock held.
+    * 
+    * @param connection The connection.
+    */
+   private void CloseDedicatedConnection(ServerConnection connection)
+   {
+      connection.Close();
+      dedicatedConnections--;
+      dedicatedReleased.signal();
+   }
+
+   /**
+    * Takes back a dedicated connection after its exchange was closed.
+    * 
+    * @param connection The connection.
+    * @param isReusable True if the last response of the exchange was read.
+    */
+   void ReleaseDedicatedConnection(ServerConnection connection, boolean isReusable)
+   {
+      lock.lock();
+      try
+      {
+         if (isReusable && connection.isOpen()
+                  && idleConnections.size() < MAX_IDLE_CONNECTIONS)
+         {
+            idleConnections.add(new IdleConnection(connection));
+            dedicatedReleased.signal();
+         }
+         else
+         {
+            CloseDedicatedConnection(connection);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Gets the number of open connections.
+    * 
+    * @return Number of open connections.
+    */
+   public int getConnectionCount()
+   {
+      return connections.size();
+   }
+
+   /**
+    * Closes all pooled connections.
+    */
+   public void CloseAll()
+   {
+      lock.lock();
+      try
+      {
+         for (ServerConnection connection : connections)
+         {
+            connection.Close();
+         }
+
+         connections.clear();
+
+         while (!idleConnections.isEmpty())
+         {
+            CloseDedicatedConnection(idleConnections.removeFirst().connection);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * A dedicated connection that waits for its next exchange.
+    */
+   private static class IdleConnection
+   {
+      /**
+       * The connection.
+       */
+      private final ServerConnection connection;
+
+      /**
+       * Time (in milliseconds) since the connection is idle.
+       */
+      private final long since = System.currentTimeMillis();
+
+      /**
+       * Creates a new idle connection entry.
+       * 
+       * @param connection The connection.
+       */
+      private IdleConnection(ServerConnection connection)
+      {
+         this.connection = connection;
+      }
+   }
+}
@@ -1,6 +1,10 @@
 package proxy.serverHandling;
 
-import java.util.Date;
+import java.net.InetAddress;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocols.misc.AlivePacket;
 
 /**
  * Stores data for servers.
@@ -9,6 +13,11 @@ import java.util.Date;
  */
 public class ServerData
 {
+   /**
+    * The servers address.
+    */
+   private final InetAddress inetAddress;
+
    /**
     * String representation of the servers address.
     */
@@ -20,32 +29,150 @@ public class ServerData
    private final int tcpPort;
    
    /**
-    * Current load of the server.
+    * Number of bytes downloaded from the server since it was registered.
     */
    private long load;
+
+   /**
+    * Number of bytes downloaded from the server, decayed over time, as of
+    * decayedLoadTimestamp.
+    */
+   private double decayedLoad;
+
+   /**
+    * Time when decayedLoad was last updated.
+    */
+   private long decayedLoadTimestamp = System.currentTimeMillis();
+
+   /**
+    * Time after which the decayed load has halved, in milliseconds.
+    */
+   private final double LOAD_HALF_LIFE = 60000;
+
+   /**
+    * Number of downloads from this server the proxy is currently running.
+    */
+   private final AtomicInteger activeTransfers = new AtomicInteger();
+
+   /**
+    * Moving average of the time until the server answers a download
+    * request, in nanoseconds, 0 if never measured.
+    */
+   private double responseTime;
+
+   /**
+    * Weight of a new response time sample in the moving average.
+    */
+   private final double RESPONSE_TIME_SMOOTHING = 0.2;
+
+   /**
+    * Time when the server last came online.
+    */
+   private volatile long onlineSince;
    
    /**
-    * Date when this instance was created.
+    * Time (System.nanoTime()) when the last alive packet was received.
     */
-   private Date lastActivityTimestamp;
+   private volatile long lastActivity = System.nanoTime();
+
+   /**
+    * Tick of the liveness wheel at which the server is checked next, -1
+    * if it is not scheduled. Guarded by the server manager.
+    */
+   private long wheelTick = -1;
+
+   /**
+    * Indicates that the server was removed from the server manager after
+    * it had been offline for a long time. Holders of the instance must not
+    * use it any more.
+    */
+   private volatile boolean evicted;
    
    /**
     * Online status of the server.
     */
-   private boolean online;
+   private volatile boolean online;
    
+   /**
+    * Pool of connections to this server.
+    */
+   private final ServerConnectionPool connectionPool;
+
+   /**
+    * The files this server provided with its last file list, null if
+    * unknown.
+    */
+   private Vector<String> fileList;
+
+   /**
+    * Digest of the files this server provides, sent with its alive packets.
+    */
+   private long catalogDigest;
+
+   /**
+    * Indicates that the server sends a catalog digest, older fileservers do
+    * not.
+    */
+   private boolean hasCatalogDigest;
+   
+   /**
+    * Indicates that the server reported load metrics, older fileservers do
+    * not.
+    */
+   private volatile boolean hasMetrics;
+
+   /**
+    * Sequence number of the last accepted alive packet.
+    */
+   private int lastSequence;
+
+   /**
+    * Number of open connections reported by the server.
+    */
+   private volatile int activeConnections;
+
+   /**
+    * Bytes per second the server reported to have sent recently.
+    */
+   private volatile long bytesPerSecond;
+
+   /**
+    * Number of requests the server reported to be working on or queued.
+    */
+   private volatile int queueDepth;
+
+   /**
+    * Capacity of the server relative to others, as declared by the server.
+    */
+   private volatile int capacityWeight = 1;
+
+   /**
+    * Alive packets whose sequence number is at most this far behind the
+    * last accepted one are considered reordered and dropped, larger gaps
+    * indicate a restarted server.
+    */
+   private final int SEQUENCE_WINDOW = 64;
+
    /**
     * Initializes a new server data object.
     * 
-    * @param address String representation of the servers address.
+    * @param address The servers address.
     * @param tcpPort TCP port of the server.
-    * @param load Current load of the server.
     */
-   public ServerData(String address, int tcpPort)
+   public ServerData(InetAddress address, int tcpPort)
    {
-      this.address = address;
+      this.inetAddress = address;
+      this.address = address.getHostAddress();
       this.tcpPort = tcpPort;
-      this.lastActivityTimestamp = new Date();
+      this.connectionPool = new ServerConnectionPool(this.address, tcpPort);
+   }
+
+   /**
+    * The servers address.
+    */
+   public InetAddress getInetAddress()
+   {
+      return inetAddress;
    }
    
    /**
@@ -69,18 +196,104 @@ public class ServerData
     * 
     * @param load the amount to add.
     */
-   public void addLoad(long load)
+   public synchronized void addLoad(long load)
    {
       this.load += load;
+
+      long now = System.currentTimeMillis();
+      decayedLoad = getDecayedLoad(now) + load;
+      decayedLoadTimestamp = now;
    }
    
    /**
-    * Current load of the server.
+    * Number of bytes downloaded from the server since it was registered.
     */
-   public long getLoad()
+   public synchronized long getLoad()
    {
       return load;
    }
+
+   /**
+    * Gets the number of bytes downloaded from the server, where every byte
+    * counts half after LOAD_HALF_LIFE, so past load is forgotten.
+    * 
+    * @param now The current time.
+    * @return The decayed load.
+    */
+   public synchronized double getDecayedLoad(long now)
+   {
+      long elapsedTime = Math.max(0, now - decayedLoadTimestamp);
+      return decayedLoad * Math.pow(0.5, elapsedTime / LOAD_HALF_LIFE);
+   }
+
+   /**
+    * Records that a download from this server started.
+    */
+   public void TransferStarted()
+   {
+      activeTransfers.incrementAndGet();
+   }
+
+   /**
+    * Records that a download from this server finished.
+    */
+   public void TransferFinished()
+   {
+      activeTransfers.decrementAndGet();
+   }
+
+   /**
+    * Number of downloads from this server the proxy is currently running.
+    */
+   public int getActiveTransfers()
+   {
+      return activeTransfers.get();
+   }
+
+   /**
+    * Gets the number of requests the server is working on, as far as known
+    * to the proxy or reported by the server.
+    * 
+    * @return Number of outstanding requests.
+    */
+   public int getOutstandingRequests()
+   {
+      return Math.max(activeTransfers.get(), hasMetrics ? queueDepth : 0);
+   }
+
+   /**
+    * Adds a response time sample to the moving average.
+    * 
+    * @param nanoseconds Time until the server answered a download request.
+    */
+   public synchronized void RecordResponseTime(long nanoseconds)
+   {
+      if (responseTime == 0)
+      {
+         responseTime = nanoseconds;
+      }
+      else
+      {
+         responseTime += (nanoseconds - responseTime) * RESPONSE_TIME_SMOOTHING;
+      }
+   }
+
+   /**
+    * Moving average of the time until the server answers a download
+    * request, in nanoseconds, 0 if never measured.
+    */
+   public synchronized double getResponseTime()
+   {
+      return responseTime;
+   }
+
+   /**
+    * Time when the server last came online.
+    */
+   public long getOnlineSince()
+   {
+      return onlineSince;
+   }
    
    /**
     * Online status of the server.
@@ -91,13 +304,49 @@ public class ServerData
    }
    
    /**
-    * Gets the timestamp of the create date of this instance.
+    * Gets the time when the last alive packet was received.
+    * 
+    * @return Timestamp of System.nanoTime().
+    */
+   public long getLastActivity()
+   {
+      return lastActivity;
+   }
+
+   /**
+    * Tick of the liveness wheel at which the server is checked next, -1
+    * if it is not scheduled.
+    */
+   public long getWheelTick()
+   {
+      return wheelTick;
+   }
+
+   /**
+    * Sets the tick of the liveness wheel at which the server is checked
+    * next.
     * 
-    * @return Timestamp.
+    * @param wheelTick The tick, -1 if it is not scheduled.
     */
-   public Date getLastActivityTimestamp()
+   public void setWheelTick(long wheelTick)
    {
-      return lastActivityTimestamp;
+      this.wheelTick = wheelTick;
+   }
+
+   /**
+    * Indicates that the server was removed from the server manager.
+    */
+   public boolean isEvicted()
+   {
+      return evicted;
+   }
+
+   /**
+    * Marks the server as removed from the server manager.
+    */
+   public void SetEvicted()
+   {
+      evicted = true;
    }
    
    /**
@@ -105,17 +354,99 @@ public class ServerData
     */
    public void SetOnline()
    {
+      if (!online)
+      {
+         onlineSince = System.currentTimeMillis();
+      }
       online = true;
    }
    
    /**
     * Sets this server into offline status.
+    * Closes the pooled connections when the server goes offline.
     */
    public void SetOffline()
    {
+      if (online)
+      {
+         connectionPool.CloseAll();
+      }
       online = false;
    }
    
+   /**
+    * Gets the pool of connections to this server.
+    * 
+    * @return The connection pool.
+    */
+   public ServerConnectionPool getConnectionPool()
+   {
+      return connectionPool;
+   }
+   
+   /**
+    * Gets the files this server provided with its last file list.
+    * 
+    * @return The file names, null if unknown or outdated.
+    */
+   public synchronized Vector<String> getFileList()
+   {
+      return fileList;
+   }
+
+   /**
+    * Records the files this server provides, unless its catalog changed
+    * since the list was requested. Lists of servers without a catalog
+    * digest are not recorded, nothing would tell when they are outdated.
+    * 
+    * @param fileList The file names.
+    * @param requestDigest The catalog digest when the list was requested.
+    */
+   public synchronized void setFileList(Vector<String> fileList, long requestDigest)
+   {
+      if (hasCatalogDigest && requestDigest == catalogDigest)
+      {
+         this.fileList = fileList;
+      }
+   }
+
+   /**
+    * Gets the digest of the files this server provides.
+    * 
+    * @return The catalog digest, only valid if the server sends one.
+    */
+   public synchronized long getCatalogDigest()
+   {
+      return catalogDigest;
+   }
+
+   /**
+    * Indicates that the server sends a catalog digest.
+    * 
+    * @return True if the catalog digest is valid.
+    */
+   public synchronized boolean hasCatalogDigest()
+   {
+      return hasCatalogDigest;
+   }
+
+   /**
+    * Updates the catalog digest, the recorded file list is dropped when it
+    * changed.
+    * 
+    * @param packet The last alive packet.
+    */
+   public synchronized void updateCatalogDigest(AlivePacket packet)
+   {
+      if (hasCatalogDigest != packet.hasCatalogDigest()
+               || catalogDigest != packet.getCatalogDigest())
+      {
+         hasCatalogDigest = packet.hasCatalogDigest();
+         catalogDigest = packet.getCatalogDigest();
+         fileList = null;
+      }
+   }
+
    /**
     * Sets the load of this server.
     * 
@@ -127,11 +458,78 @@ public class ServerData
    }
    
    /**
-    * Updates the activity timestamp to the current date.
+    * Records the metrics of an alive packet, unless the packet is older
+    * than the last accepted one.
+    * 
+    * @param packet The received alive packet, carrying metrics.
+    * @return True if the packet was accepted.
+    */
+   public synchronized boolean updateMetrics(AlivePacket packet)
+   {
+      int sequence = packet.getSequence();
+
+      if (hasMetrics && sequence - lastSequence <= 0
+               && lastSequence - sequence < SEQUENCE_WINDOW)
+      {
+         // reordered or duplicated packet
+         return false;
+      }
+
+      lastSequence = sequence;
+      activeConnections = packet.getActiveConnections();
+      bytesPerSecond = packet.getBytesPerSecond();
+      queueDepth = packet.getQueueDepth();
+      capacityWeight = packet.getCapacityWeight();
+      hasMetrics = true;
+      return true;
+   }
+
+   /**
+    * Indicates that the server reported load metrics.
+    */
+   public boolean hasMetrics()
+   {
+      return hasMetrics;
+   }
+
+   /**
+    * Number of open connections reported by the server.
+    */
+   public int getActiveConnections()
+   {
+      return activeConnections;
+   }
+
+   /**
+    * Bytes per second the server reported to have sent recently.
+    */
+   public long getBytesPerSecond()
+   {
+      return bytesPerSecond;
+   }
+
+   /**
+    * Number of requests the server reported to be working on or queued.
+    */
+   public int getQueueDepth()
+   {
+      return queueDepth;
+   }
+
+   /**
+    * Capacity of the server relative to others, as declared by the server.
+    */
+   public int getCapacityWeight()
+   {
+      return capacityWeight;
+   }
+
+   /**
+    * Updates the activity timestamp to the current time.
     */
    public void renewActivityTimestamp()
    {
-      lastActivityTimestamp = new Date();
+      lastActivity = System.nanoTime();
    }
    
    /**
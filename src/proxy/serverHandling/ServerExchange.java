@@ -0,0 +1,234 @@
+package proxy.serverHandling;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import protocols.MessageFileProtocol;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+
+/**
+ * One request / response exchange with a fileserver. On a shared
+ * connection the responses are delivered by the connection's reader
+ * thread into a queue. It is not bounded, the reader must not wait, and
+ * the responses of shared exchanges are consumed as they arrive. On a
+ * dedicated connection the consumer reads the responses itself.
+ * 
+ * @author RaphM
+ */
+public class ServerExchange
+{
+   /**
+    * Interval in which a waiting reader re-checks the connection state.
+    */
+   private final long POLL_INTERVAL_MS = 500;
+
+   /**
+    * The connection this exchange runs on.
+    */
+   private final ServerConnection connection;
+
+   /**
+    * Protocol view that tags requests with the id of this exchange.
+    */
+   private final MessageFileProtocol protocol;
+
+   /**
+    * Responses that have been received but not yet read.
+    */
+   private final BlockingQueue<ProtocolMessage> responses = new LinkedBlockingQueue<ProtocolMessage>();
+
+   /**
+    * The pool a dedicated connection is given back to, null on a shared
+    * connection.
+    */
+   private final ServerConnectionPool dedicatedPool;
+
+   /**
+    * Indicates that the last response of a dedicated exchange was read, so
+    * the connection can be used again.
+    */
+   private boolean isComplete;
+
+   /**
+    * Indicates that the dedicated connection served an earlier exchange,
+    * the fileserver may have closed it meanwhile.
+    */
+   private final boolean isReused;
+
+   /**
+    * A response that was already read and is returned by the next read,
+    * null if there is none.
+    */
+   private ProtocolMessage pushedResponse;
+
+   /**
+    * Creates a new exchange on a shared connection.
+    * 
+    * @param connection The connection this exchange runs on.
+    * @param protocol Protocol view that tags requests with the exchange id.
+    */
+   ServerExchange(ServerConnection connection, MessageFileProtocol protocol)
+   {
+      this(connection, protocol, null, false);
+   }
+
+   /**
+    * Creates a new exchange.
+    * 
+    * @param connection The connection this exchange runs on.
+    * @param protocol Protocol view that tags requests with the exchange id.
+    * @param dedicatedPool The pool a dedicated connection is given back
+    *           to, null on a shared connection.
+    * @param isReused True if the dedicated connection served an earlier
+    *           exchange.
+    */
+   ServerExchange(ServerConnection connection, MessageFileProtocol protocol,
+            ServerConnectionPool dedicatedPool, boolean isReused)
+   {
+      this.connection = connection;
+      this.protocol = protocol;
+      this.dedicatedPool = dedicatedPool;
+      this.isReused = isReused;
+   }
+
+   /**
+    * Gets the protocol object used to send requests of this exchange.
+    * 
+    * @return The protocol object.
+    */
+   public MessageFileProtocol getProtocol()
+   {
+      return protocol;
+   }
+
+   /**
+    * Gets the request id of this exchange.
+    * 
+    * @return The request id.
+    */
+   public int getRequestId()
+   {
+      return protocol.getRequestId();
+   }
+
+   /**
+    * Waits for the next response of this exchange.
+    * 
+    * @return The response message.
+    * @throws IOException If the connection was closed or the exchange was
+    *            aborted.
+    */
+   public ProtocolMessage readMessage() throws IOException
+   {
+      return readMessage(Long.MAX_VALUE);
+   }
+
+   /**
+    * Waits for the next response of this exchange until a deadline.
+    * 
+    * @param deadline Time (in milliseconds) after which the wait is given up.
+    * @return The response message.
+    * @throws IOException If the connection was closed or the deadline
+    *            passed.
+    */
+   public ProtocolMessage readMessage(long deadline) throws IOException
+   {
+      if (pushedResponse != null)
+      {
+         ProtocolMessage message = pushedResponse;
+         pushedResponse = null;
+         return message;
+      }
+
+      if (dedicatedPool != null)
+      {
+         ProtocolMessage message = connection.ReadMessage(getRequestId(), deadline);
+
+         // only file headers and chunks are followed by more responses
+         isComplete = message.getResultType() != MessageType.File
+                  && message.getResultType() != MessageType.FileChunk;
+         return message;
+      }
+
+      try
+      {
+         while (true)
+         {
+            long remainingTime = deadline - System.currentTimeMillis();
+            if (remainingTime <= 0)
+            {
+               throw new IOException("Fileserver did not answer in time!");
+            }
+
+            ProtocolMessage message = responses.poll(Math.min(
+                     POLL_INTERVAL_MS, remainingTime), TimeUnit.MILLISECONDS);
+
+            if (message != null)
+            {
+               return message;
+            }
+
+            if (!connection.isOpen())
+            {
+               throw new IOException("Fileserver connection was closed!");
+            }
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for fileserver!");
+      }
+   }
+
+   /**
+    * Ends this exchange, later responses for it will be dropped. A
+    * dedicated connection is given back to the pool if the last response
+    * was read, otherwise it is closed.
+    */
+   public void Close()
+   {
+      if (dedicatedPool != null)
+      {
+         dedicatedPool.ReleaseDedicatedConnection(connection, isComplete);
+      }
+      else
+      {
+         connection.RemoveExchange(this);
+      }
+   }
+
+   /**
+    * Gives back a response that was read, so the next read returns it
+    * again.
+    * 
+    * @param message The response.
+    */
+   void Push(ProtocolMessage message)
+   {
+      pushedResponse = message;
+   }
+
+   /**
+    * Indicates if the dedicated connection served an earlier exchange.
+    * 
+    * @return True if the connection was used again.
+    */
+   boolean isReused()
+   {
+      return isReused;
+   }
+
+   /**
+    * Hands a received response to this exchange, never waits.
+    * 
+    * @param message The response.
+    */
+   void Deliver(ProtocolMessage message)
+   {
+      responses.add(message);
+   }
+}
@@ -1,8 +1,14 @@
 package proxy.serverHandling;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -17,36 +23,210 @@ public class ServerManager
     * Map with server names and server data.
     */
    private final ConcurrentMap<String, ServerData> serverList = new ConcurrentHashMap<String, ServerData>();
+
+   /**
+    * The servers by address, alive packets are matched without building
+    * the server identifier. The lists are never modified but replaced.
+    */
+   private final Map<InetAddress, List<ServerData>> serversByAddress = new ConcurrentHashMap<InetAddress, List<ServerData>>();
+
+   /**
+    * Schedules the liveness checks of the servers.
+    */
+   private final LivenessWheel livenessWheel;
+
+   /**
+    * Time after the last alive packet after which a server is offline, in
+    * nanoseconds.
+    */
+   private final long serverOfflineTimeout;
+
+   /**
+    * Time after the last alive packet after which a server is forgotten,
+    * in nanoseconds.
+    */
+   private final long SERVER_EVICTION_TIMEOUT = 10 * 60 * 1000000000L;
    
    /**
     * The timer that will execute the server online / offline checks.
     */
    private final Timer checkTimer = new Timer();
+
+   /**
+    * Knows which servers hold which files.
+    */
+   private final FileLocationCatalog fileCatalog = new FileLocationCatalog();
    
+   /**
+    * Decides which server serves a request.
+    */
+   private final IBalancingStrategy balancingStrategy;
+
+   /**
+    * The servers that are currently online. The list is never modified but
+    * replaced when a server goes online or offline, so routing reads it
+    * without locking.
+    */
+   private volatile List<ServerData> onlineServers = Collections.emptyList();
+
    /**
     * Creates a new ServerManager object.
     * 
     * @param fileServerTimeout The timeout value for server online / offline status
     * @param fileServerCheckInterval The interval in which online / offline
     *                            status of registered fileservers will be re-checked
+    * @param balancingStrategy Decides which server serves a request.
     */
-   public ServerManager(int fileServerTimeout, int fileServerCheckInterval)
+   public ServerManager(int fileServerTimeout, int fileServerCheckInterval,
+            IBalancingStrategy balancingStrategy)
    {   
+      this.balancingStrategy = balancingStrategy;
+      this.serverOfflineTimeout = fileServerTimeout * 1000000L;
+      this.livenessWheel = new LivenessWheel(fileServerCheckInterval);
+
       // start the online check timer for fileServers
-      TimerTask task = new ServerOnlineTimerTask(fileServerTimeout, serverList.values());
+      TimerTask task = new ServerOnlineTimerTask(this);
       checkTimer.scheduleAtFixedRate(task, 0, fileServerCheckInterval);
       
       System.out.println("Started recurring online check for registered fileservers!");
    }
    
    /**
-    * Adds a new server to the internal map
+    * Adds a new server to the internal maps.
     * 
-    * @param server
+    * @param server The server.
     */
-   public void addServer(ServerData server)
+   private void addServer(ServerData server)
    {
       serverList.put(server.getServerIdentifier(), server);
+
+      List<ServerData> servers = new ArrayList<ServerData>();
+      List<ServerData> previousServers = serversByAddress.get(server.getInetAddress());
+      if (previousServers != null)
+      {
+         servers.addAll(previousServers);
+      }
+      servers.add(server);
+      serversByAddress.put(server.getInetAddress(), servers);
+   }
+
+   /**
+    * Removes a server that has been offline for a long time. The instance
+    * is marked, so holders of it notice.
+    * 
+    * @param server The server.
+    */
+   private void EvictServer(ServerData server)
+   {
+      server.SetEvicted();
+      serverList.remove(server.getServerIdentifier());
+
+      List<ServerData> servers = new ArrayList<ServerData>(serversByAddress.get(server.getInetAddress()));
+      servers.remove(server);
+      if (servers.isEmpty())
+      {
+         serversByAddress.remove(server.getInetAddress());
+      }
+      else
+      {
+         serversByAddress.put(server.getInetAddress(), servers);
+      }
+
+      fileCatalog.Remove(server);
+
+      System.out.println("Removed fileserver that has been offline for a long time: "
+               + server.getServerIdentifier());
+   }
+
+   /**
+    * Records an alive packet of a server, registers the server if it is
+    * unknown. Packets of servers that are online only update a timestamp.
+    * 
+    * @param address The servers address.
+    * @param tcpPort TCP port of the server.
+    * @return The server object.
+    */
+   public ServerData RecordHeartbeat(InetAddress address, int tcpPort)
+   {
+      ServerData server = getServer(address, tcpPort);
+
+      if (server != null && server.isOnline())
+      {
+         // its liveness check notices the new timestamp
+         server.renewActivityTimestamp();
+         return server;
+      }
+
+      return RegisterHeartbeat(address, tcpPort);
+   }
+
+   /**
+    * Records an alive packet of a server that is unknown or offline.
+    * 
+    * @param address The servers address.
+    * @param tcpPort TCP port of the server.
+    * @return The server object.
+    */
+   private synchronized ServerData RegisterHeartbeat(InetAddress address, int tcpPort)
+   {
+      ServerData server = getServer(address, tcpPort);
+
+      if (server == null)
+      {
+         // create server data object with the received data
+         server = new ServerData(address, tcpPort);
+         addServer(server);
+      }
+
+      server.renewActivityTimestamp();
+
+      if (!server.isOnline())
+      {
+         server.SetOnline();
+         livenessWheel.Schedule(server, server.getLastActivity() + serverOfflineTimeout);
+         UpdateOnlineServers();
+      }
+
+      return server;
+   }
+
+   /**
+    * Sets the servers whose last alive packet is too old offline, and
+    * removes the servers that have been offline for a long time. Only the
+    * servers whose liveness check is due are touched.
+    */
+   public synchronized void CheckLiveness()
+   {
+      long now = System.nanoTime();
+      boolean changed = false;
+
+      for (ServerData server : livenessWheel.Advance(now))
+      {
+         long lastActivity = server.getLastActivity();
+
+         if (!server.isOnline())
+         {
+            // no alive packet since the server went offline
+            EvictServer(server);
+         }
+         else if (lastActivity + serverOfflineTimeout - now > 0)
+         {
+            // alive packets were received meanwhile
+            livenessWheel.Schedule(server, lastActivity + serverOfflineTimeout);
+         }
+         else
+         {
+            server.SetOffline();
+            livenessWheel.Schedule(server, lastActivity + SERVER_EVICTION_TIMEOUT);
+            changed = true;
+         }
+      }
+
+      if (changed)
+      {
+         // routing reads a snapshot of the online servers
+         UpdateOnlineServers();
+      }
    }
    
    /**
@@ -59,28 +239,106 @@ public class ServerManager
    {
       return serverList.get(id);
    }
+
+   /**
+    * Tries to find a server object for an address and port, without
+    * building its identifier.
+    * 
+    * @param address The servers address.
+    * @param tcpPort TCP port of the server.
+    * @return The server object if found, null otherwise.
+    */
+   public ServerData getServer(InetAddress address, int tcpPort)
+   {
+      List<ServerData> servers = serversByAddress.get(address);
+      if (servers == null)
+      {
+         return null;
+      }
+
+      for (int i = 0; i < servers.size(); i++)
+      {
+         ServerData server = servers.get(i);
+         if (server.getTcpPort() == tcpPort)
+         {
+            return server;
+         }
+      }
+
+      return null;
+   }
+   
+   /**
+    * Selects the online server that should serve the next request.
+    * 
+    * @return SeverData object if a server is online, null otherwise.
+    */
+   public ServerData SelectServer()
+   {
+      return balancingStrategy.Select(onlineServers);
+   }
+      
+   /**
+    * Selects the server that should serve the next request among some
+    * online servers.
+    * 
+    * @param candidates The online servers that can serve the request.
+    * @return SeverData object if there are candidates, null otherwise.
+    */
+   public ServerData SelectServer(List<ServerData> candidates)
+   {
+      return balancingStrategy.Select(candidates);
+   }
    
    /**
-    * Gets the server with the lowest current load.
+    * Gets all servers that are currently online.
     * 
-    * @return SeverData object if found, null otherwise.
+    * @return The online servers.
     */
-   public ServerData getLeastUsedServer()
+   public Vector<ServerData> getOnlineServers()
    {
-      ServerData leastUsedServer = null;
+      return new Vector<ServerData>(onlineServers);
+   }
+
+   /**
+    * Replaces the snapshot of the online servers, called when a server went
+    * online or offline.
+    */
+   private synchronized void UpdateOnlineServers()
+   {
+      List<ServerData> servers = new ArrayList<ServerData>();
       
-      // get the least used server
       for (ServerData server : serverList.values())
       {
-         if (server.isOnline() && (leastUsedServer == null || leastUsedServer.getLoad() > server.getLoad()))
+         if (server.isOnline())
          {
-            leastUsedServer = server;
+            servers.add(server);
          }
       }
       
-      return leastUsedServer;
+      onlineServers = Collections.unmodifiableList(servers);
+   }
+
+   /**
+    * Gets the strategy that decides which server serves a request.
+    * 
+    * @return The balancing strategy.
+    */
+   public IBalancingStrategy getBalancingStrategy()
+   {
+      return balancingStrategy;
    }
    
+   /**
+    * Gets the catalog of which servers hold which files.
+    * 
+    * @return The file location catalog.
+    */
+   public FileLocationCatalog getFileCatalog()
+   {
+      return fileCatalog;
+   }
+
    /**
     * Returns a collection of all present servers.
     * 
@@ -91,6 +349,20 @@ public class ServerManager
       return serverList.values();
    }
    
+   /**
+    * Stops synchronizing catalogs and closes the pooled connections to all
+    * fileservers.
+    */
+   public void CloseServerConnections()
+   {
+      fileCatalog.Shutdown();
+
+      for (ServerData server : serverList.values())
+      {
+         server.getConnectionPool().CloseAll();
+      }
+   }
+   
    /**
     * Stops updating the online status of fileservers.
     */
@@ -1,7 +1,5 @@
 package proxy.serverHandling;
 
-import java.util.Collection;
-import java.util.Date;
 import java.util.TimerTask;
 
 /**
@@ -13,25 +11,18 @@ import java.util.TimerTask;
 public class ServerOnlineTimerTask extends TimerTask
 {
    /**
-    * The timeout after which a server is considered as offline.
+    * The server manager whose servers are checked.
     */
-   private final int serverOfflineTimeout;
-   
-   /**
-    * The collection of servers to check.
-    */
-   private final Collection<ServerData> serversToCheck;
+   private final ServerManager serverManager;
    
    /**
     * Initializes a new ServerOnlineTimerTask
     * 
-    * @param serverOfflineTimeout The timeout after which a server is considered as offline.
-    * @param serversToCheck The collection of servers to check.
+    * @param serverManager The server manager whose servers are checked.
     */
-   public ServerOnlineTimerTask(int serverOfflineTimeout, Collection<ServerData> serversToCheck)
+   public ServerOnlineTimerTask(ServerManager serverManager)
    {
-      this.serverOfflineTimeout = serverOfflineTimeout;
-      this.serversToCheck = serversToCheck;
+      this.serverManager = serverManager;
    }
 
    
@@ -40,27 +31,7 @@ public class ServerOnlineTimerTask extends TimerTask
     */
    public void run()
    {
-      // use the time when this method was called as "base" timestamp
-      Date currentTime = new Date();
-      
-      for (ServerData server : serversToCheck)
-      {
-         // check current time against the servers last activity timestamp
-         Date lastServerActivity = server.getLastActivityTimestamp();
-         
-         long elapsedTime = currentTime.getTime() - lastServerActivity.getTime();
-         
-         if (elapsedTime > serverOfflineTimeout)
-         {
-            // set the server to offline
-            server.SetOffline();
-         }
-         else
-         {
-            // set the server to online
-            server.SetOnline();
-         }
-      }
-      
+      // only the servers whose check is due are touched
+      serverManager.CheckLiveness();
    }
 }
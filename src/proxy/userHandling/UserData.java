@@ -67,7 +67,7 @@ public class UserData
    /**
     * Credits of the user.
     */
-   public long getCredits()
+   public synchronized long getCredits()
    {
       return credits;
    }
@@ -106,7 +106,7 @@ public class UserData
     * 
     * @param credits Amount of credits to add.
     */
-   public void AddCredits(int credits)
+   public synchronized void AddCredits(long credits)
    {
       this.credits += credits;
    }
@@ -116,11 +116,30 @@ public class UserData
     * 
     * @param credits Amount of credits to remove.
     */
-   public void RemoveCredits(long credits)
+   public synchronized void RemoveCredits(long credits)
    {
       this.credits -= credits;
    }
    
+   /**
+    * Removes a certain amount of credits if the user has more than that.
+    * Check and removal happen at once, so concurrent downloads cannot
+    * overdraw the credits.
+    * 
+    * @param credits Amount of credits to remove.
+    * @return True if the credits were removed.
+    */
+   public synchronized boolean ReserveCredits(long credits)
+   {
+      if (this.credits > credits)
+      {
+         this.credits -= credits;
+         return true;
+      }
+      
+      return false;
+   }
+   
    /**
     * Sets this user into logged in state and remembers
     * the used connection socket.
@@ -1,6 +1,7 @@
 package server;
 
 import common.InitFailedException;
+import common.ThreadMode;
 
 /**
  * Parses command line arguments for the server.
@@ -34,6 +35,26 @@ public class Arguments
     */
    private int alivePeriod;
    
+   /**
+    * Memory budget of the hot file cache in megabytes.
+    */
+   private int hotCacheSize = 64;
+
+   /**
+    * Declared capacity of the fileserver relative to others.
+    */
+   private int capacityWeight = 1;
+
+   /**
+    * Threads that handle the connections of the proxy.
+    */
+   private ThreadMode threadMode = ThreadMode.Pooled;
+
+   /**
+    * Indicates if the proxy is served by the asynchronous engine.
+    */
+   private boolean asyncEngine;
+
    
    /**
     * Parses the given arguments.
@@ -46,7 +67,7 @@ public class Arguments
    public Arguments(String[] arguments) throws InitFailedException
    {
       // validate command line arguments
-      if (arguments == null || arguments.length != 5)
+      if (arguments == null || arguments.length < 5 || arguments.length > 8)
       {
          Usage();
       }
@@ -58,6 +79,28 @@ public class Arguments
          proxyHost = arguments[2];
          proxyUdpPort = Integer.valueOf(arguments[3]).intValue();
          alivePeriod = Integer.valueOf(arguments[4]).intValue();
+
+         if (arguments.length >= 6)
+         {
+            hotCacheSize = Integer.valueOf(arguments[5]).intValue();
+         }
+
+         if (arguments.length >= 7)
+         {
+            capacityWeight = Integer.valueOf(arguments[6]).intValue();
+         }
+
+         if (arguments.length == 8)
+         {
+            if (arguments[7].equals("async"))
+            {
+               asyncEngine = true;
+            }
+            else
+            {
+               threadMode = ThreadMode.Parse(arguments[7]);
+            }
+         }
       }
       catch (NumberFormatException e)
       {
@@ -65,10 +108,17 @@ public class Arguments
       }
       
       if (tcpPort < 1 || tcpPort > 65535 || proxyUdpPort < 1 || proxyUdpPort > 65535 
-                      || alivePeriod < 1)
+                      || alivePeriod < 1 || hotCacheSize < 0
+                      || capacityWeight < 1 || threadMode == null)
       {
          Usage();
       }
+
+      if (!threadMode.isSupported())
+      {
+         System.out.println("Virtual threads require Java 21 or newer!");
+         throw new InitFailedException();
+      }
    }
    
    /**
@@ -79,7 +129,7 @@ public class Arguments
     */
    private void Usage() throws InitFailedException
    {
-      System.out.println("Usage: FDS_Server <sharedFilesDir> <tcpPort> <proxyHost> <proxyUdpPort> <alivePeriod>");
+      System.out.println("Usage: FDS_Server <sharedFilesDir> <tcpPort> <proxyHost> <proxyUdpPort> <alivePeriod> [<hotCacheMegabytes> [<capacityWeight> [pooled|virtual|async]]]");
       throw new InitFailedException();
    }
    
@@ -126,4 +176,39 @@ public class Arguments
    {
       return alivePeriod;
    }
+
+   /**
+    * Memory budget of the hot file cache in bytes.
+    */
+   public long getHotCacheSize()
+   {
+      return hotCacheSize * 1024L * 1024L;
+   }
+
+   /**
+    * Declared capacity of the fileserver relative to others.
+    */
+   public int getCapacityWeight()
+   {
+      return capacityWeight;
+   }
+
+   /**
+    * Threads that handle the connections of the proxy.
+    */
+   public ThreadMode getThreadMode()
+   {
+      return threadMode;
+   }
+
+   /**
+    * Indicates if the proxy is served by the asynchronous engine instead
+    * of connection threads.
+    * 
+    * @return True for the asynchronous engine.
+    */
+   public boolean isAsyncEngine()
+   {
+      return asyncEngine;
+   }
 }
@@ -0,0 +1,507 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import commandHandling.CommandHandler;
+import commandHandling.ICommandHandler;
+
+import protocols.MessageFileProtocol;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+import server.commands.ListCommand;
+import server.fileHandling.FileManager;
+import tcpConnections.AsyncChannelWriter;
+
+/**
+ * Handles a proxy connection of the asynchronous engine. Requests are
+ * decoded in the completion handler of the socket reads, downloads are
+ * streamed by file transfers and all other requests are answered at once,
+ * since their responses only need the file index.
+ * 
+ * @author RaphM
+ */
+public class AsyncConnectionHandler
+{
+   /**
+    * Number of chunk buffers of a connection, limits the file reads in
+    * progress and the content that waits for the socket.
+    */
+   private final int MAX_OUTSTANDING_READS = 4;
+
+   /**
+    * Initial size of the read buffer.
+    */
+   private final int READ_BUFFER_SIZE = 4 * 1024;
+
+   /**
+    * Largest request that is accepted.
+    */
+   private final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+   /**
+    * The socket channel.
+    */
+   private final AsynchronousSocketChannel socket;
+
+   /**
+    * The listener that accepted the connection.
+    */
+   private final AsyncConnectionListener listener;
+
+   /**
+    * File manager reference.
+    */
+   private final FileManager fileManager;
+
+   /**
+    * Queues the responses for the socket.
+    */
+   private final AsyncChannelWriter writer;
+
+   /**
+    * Incremental decoder of the requests.
+    */
+   private final MessageFileProtocol incomingProtocol = new MessageFileProtocol();
+
+   /**
+    * Communication object between fileserver and proxy.
+    */
+   private final MessageFileProtocol outgoingProtocol;
+
+   /**
+    * Command handler for incoming TCP commands.
+    */
+   private final ICommandHandler messageCommandHandler = new CommandHandler();
+
+   /**
+    * Protects the state of the connection.
+    */
+   private final Lock lock = new ReentrantLock();
+
+   /**
+    * Transfers that have not finished yet.
+    */
+   private final LinkedList<AsyncFileTransfer> activeTransfers = new LinkedList<AsyncFileTransfer>();
+
+   /**
+    * Chunk buffers that are not in use.
+    */
+   private final LinkedList<ByteBuffer> freeBuffers = new LinkedList<ByteBuffer>();
+
+   /**
+    * Number of chunk buffers that can still be handed out.
+    */
+   private int availableBuffers = MAX_OUTSTANDING_READS;
+
+   /**
+    * Received bytes, in read mode while requests are decoded.
+    */
+   private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+   /**
+    * Indicates if a thread is decoding requests.
+    */
+   private boolean isProcessing;
+
+   /**
+    * Indicates if decoding waits for a text mode transfer, text mode
+    * responses carry no request id and must not overlap.
+    */
+   private boolean isPaused;
+
+   /**
+    * Indicates if the connection was closed.
+    */
+   private boolean isClosed;
+
+   /**
+    * File name of the last download info request of a text mode proxy.
+    */
+   private String lastInfoFileName;
+
+   /**
+    * Decodes the received bytes.
+    */
+   private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>()
+   {
+      public void completed(Integer count, Void attachment)
+      {
+         if (count.intValue() == -1)
+         {
+            System.out.println("<AsyncConnectionHandler>: Input stream was closed, terminating!");
+            Close();
+            return;
+         }
+
+         readBuffer.flip();
+         ProcessInput();
+      }
+
+      public void failed(Throwable e, Void attachment)
+      {
+         System.out.println("<AsyncConnectionHandler>: Input stream was closed, terminating!");
+         Close();
+      }
+   };
+
+   /**
+    * Handles a new proxy connection.
+    * 
+    * @param socket
+    *           The socket channel.
+    * @param fileManager
+    *           File manager reference.
+    * @param listener
+    *           The listener that accepted the connection.
+    */
+   public AsyncConnectionHandler(AsynchronousSocketChannel socket, FileManager fileManager,
+            AsyncConnectionListener listener)
+   {
+      this.socket = socket;
+      this.fileManager = fileManager;
+      this.listener = listener;
+      this.writer = new AsyncChannelWriter(socket, new Runnable()
+      {
+         public void run()
+         {
+            Close();
+         }
+      });
+      this.outgoingProtocol = new MessageFileProtocol(writer, writer);
+
+      ListCommand listCommand = new ListCommand(outgoingProtocol, fileManager);
+      messageCommandHandler.RegisterCommand(listCommand.getIdentifier(), listCommand);
+   }
+
+   /**
+    * Starts reading requests.
+    */
+   public void Start()
+   {
+      Read();
+   }
+
+   /**
+    * Hands out a chunk buffer to a transfer.
+    * 
+    * @return The cleared buffer, null if all buffers are in use.
+    */
+   public ByteBuffer AcquireChunkBuffer()
+   {
+      lock.lock();
+      try
+      {
+         if (availableBuffers == 0)
+         {
+            return null;
+         }
+         availableBuffers--;
+
+         // allocated on demand, small responses never need one
+         ByteBuffer buffer = freeBuffers.poll();
+         return buffer != null ? buffer : ByteBuffer
+                  .allocateDirect(MessageFileProtocol.FILE_CHUNK_SIZE);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Takes back a chunk buffer and lets the waiting transfers continue.
+    * The next transfer in turn is pumped first.
+    * 
+    * @param buffer The buffer.
+    */
+   public void ReleaseChunkBuffer(ByteBuffer buffer)
+   {
+      final LinkedList<AsyncFileTransfer> waitingTransfers;
+
+      lock.lock();
+      availableBuffers++;
+      freeBuffers.add(buffer);
+      if (!activeTransfers.isEmpty())
+      {
+         activeTransfers.addLast(activeTransfers.removeFirst());
+      }
+      waitingTransfers = new LinkedList<AsyncFileTransfer>(activeTransfers);
+      lock.unlock();
+
+      if (waitingTransfers.isEmpty())
+      {
+         return;
+      }
+
+      // pumping takes the locks of the transfers, the caller may hold one
+      try
+      {
+         listener.getFilePool().execute(new Runnable()
+         {
+            public void run()
+            {
+               for (AsyncFileTransfer transfer : waitingTransfers)
+               {
+                  transfer.Pump();
+               }
+            }
+         });
+      }
+      catch (RejectedExecutionException e)
+      {
+         // shutting down
+      }
+   }
+
+   /**
+    * Runs a callback after everything that was sent before was written to
+    * the socket.
+    * 
+    * @param callback The callback.
+    */
+   public void WhenWritten(Runnable callback)
+   {
+      writer.WhenWritten(callback);
+   }
+
+   /**
+    * Forgets a finished transfer, continues decoding if it was a text mode
+    * transfer.
+    * 
+    * @param transfer The transfer.
+    */
+   public void TransferFinished(AsyncFileTransfer transfer)
+   {
+      lock.lock();
+      activeTransfers.remove(transfer);
+      boolean resume = isPaused;
+      isPaused = false;
+      lock.unlock();
+
+      if (resume)
+      {
+         ProcessInput();
+      }
+   }
+
+   /**
+    * Closes the connection and aborts its transfers. Can be called more
+    * than once.
+    */
+   public void Close()
+   {
+      LinkedList<AsyncFileTransfer> abortedTransfers;
+
+      lock.lock();
+      if (isClosed)
+      {
+         lock.unlock();
+         return;
+      }
+      isClosed = true;
+      abortedTransfers = new LinkedList<AsyncFileTransfer>(activeTransfers);
+      activeTransfers.clear();
+      lock.unlock();
+
+      writer.close();
+      try
+      {
+         socket.close();
+      }
+      catch (IOException e)
+      {
+         System.out.println("<AsyncConnectionHandler>: Could not close connection socket!");
+      }
+
+      for (AsyncFileTransfer transfer : abortedTransfers)
+      {
+         transfer.Abort();
+      }
+
+      listener.RemoveConnection(socket);
+   }
+
+   /**
+    * Reads more bytes behind the undecoded ones.
+    */
+   private void Read()
+   {
+      try
+      {
+         socket.read(readBuffer, null, readHandler);
+      }
+      catch (RuntimeException e)
+      {
+         // closed channel or shut down channel group
+         readHandler.failed(e, null);
+      }
+   }
+
+   /**
+    * Handles the complete requests of the received bytes and reads again.
+    * Stops while a text mode transfer is in progress, the remaining bytes
+    * are decoded when it finished.
+    */
+   private void ProcessInput()
+   {
+      lock.lock();
+      if (isProcessing || isClosed)
+      {
+         lock.unlock();
+         return;
+      }
+      isProcessing = true;
+      lock.unlock();
+
+      try
+      {
+         while (true)
+         {
+            lock.lock();
+            if (isPaused || isClosed)
+            {
+               isProcessing = false;
+               lock.unlock();
+               return;
+            }
+            lock.unlock();
+
+            ProtocolMessage request = incomingProtocol.decodeMessage(readBuffer);
+            if (request == null)
+            {
+               break;
+            }
+            HandleRequest(request);
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("<AsyncConnectionHandler>: Received invalid request, terminating!");
+         Close();
+         return;
+      }
+
+      readBuffer.compact();
+      if (!readBuffer.hasRemaining())
+      {
+         if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE)
+         {
+            System.out.println("<AsyncConnectionHandler>: Request is too large, terminating!");
+            Close();
+            return;
+         }
+
+         // an incomplete request fills the buffer
+         ByteBuffer largerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+         readBuffer.flip();
+         largerBuffer.put(readBuffer);
+         readBuffer = largerBuffer;
+      }
+
+      lock.lock();
+      isProcessing = false;
+      lock.unlock();
+
+      Read();
+   }
+
+   /**
+    * Answers negotiation messages, console commands and requests.
+    * 
+    * @param request The decoded message.
+    */
+   private void HandleRequest(ProtocolMessage request)
+   {
+      if (request.getResultType() == MessageType.CompressionOffer)
+      {
+         // send compressed content if we support one of the offered codecs
+         outgoingProtocol.acceptCompression(request.getEncoding());
+      }
+      else if (request.getResultType() == MessageType.BinaryModeOffer
+               || request.getResultType() == MessageType.BinaryMode)
+      {
+         // accept the offer, the proxy switches after receiving our marker
+         outgoingProtocol.switchToBinaryMode();
+      }
+      else if (request.getResultType() == MessageType.Console)
+      {
+         messageCommandHandler.HandleCommand(request.getContent());
+      }
+      else if (outgoingProtocol.isBinaryMode())
+      {
+         // tagged request, its frames may interleave with the others
+         Answer(request, outgoingProtocol.forRequest(request.getRequestId()));
+      }
+      else
+      {
+         // text mode download requests do not name the file
+         if (request.getResultType() == MessageType.DownloadInfoRequest)
+         {
+            lastInfoFileName = request.getFileName();
+         }
+         else if (request.getResultType() == MessageType.DownloadRequest
+                  && request.getFileName() == null)
+         {
+            request = new ProtocolMessage(MessageType.DownloadRequest, lastInfoFileName);
+         }
+         Answer(request, outgoingProtocol);
+      }
+   }
+
+   /**
+    * Starts a transfer for a download request, answers any other request
+    * at once.
+    * 
+    * @param request The request.
+    * @param responseProtocol Protocol object used for the response.
+    */
+   private void Answer(ProtocolMessage request, MessageFileProtocol responseProtocol)
+   {
+      LoadMonitor loadMonitor = listener.getLoadMonitor();
+
+      loadMonitor.RequestQueued();
+      if (request.getResultType() != MessageType.DownloadRequest)
+      {
+         try
+         {
+            new RequestHandler(request, responseProtocol, fileManager, loadMonitor).run();
+         }
+         finally
+         {
+            loadMonitor.RequestFinished();
+         }
+         return;
+      }
+
+      AsyncFileTransfer transfer = new AsyncFileTransfer(request, responseProtocol, this,
+               fileManager, loadMonitor, listener.getFilePool());
+
+      lock.lock();
+      if (isClosed)
+      {
+         lock.unlock();
+         transfer.Abort();
+         return;
+      }
+      activeTransfers.add(transfer);
+      isPaused = !responseProtocol.isBinaryMode();
+      lock.unlock();
+
+      try
+      {
+         // opening may compress or load the file, which blocks
+         listener.getOpenPool().execute(transfer);
+      }
+      catch (RejectedExecutionException e)
+      {
+         transfer.Abort();
+      }
+   }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import common.InitFailedException;
+
+import server.fileHandling.FileManager;
+
+/**
+ * Accepts proxy connections for the asynchronous engine. All socket
+ * completion handlers run on a channel group with a fixed number of
+ * threads, file reads complete on a second fixed pool. The number of
+ * threads does not grow with the connections or requests.
+ * 
+ * @author RaphM
+ */
+public class AsyncConnectionListener implements IConnectionListener
+{
+   /**
+    * Number of threads that run the socket completion handlers.
+    */
+   private final int CHANNEL_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+   /**
+    * Number of threads that complete file reads and start further reads.
+    */
+   private final int FILE_THREADS = 4;
+
+   /**
+    * Number of threads that open transfers.
+    */
+   private final int OPEN_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+   /**
+    * The channel group of the server channel and all accepted channels.
+    */
+   private final AsynchronousChannelGroup channelGroup;
+
+   /**
+    * The server channel.
+    */
+   private AsynchronousServerSocketChannel serverChannel;
+
+   /**
+    * Threads that complete file reads and start further reads, they never
+    * block.
+    */
+   private final ExecutorService filePool = Executors.newFixedThreadPool(FILE_THREADS);
+
+   /**
+    * Threads that open transfers. Compressing a file or loading a hot file
+    * blocks, so it must not hold up the completion of file reads.
+    */
+   private final ExecutorService openPool = Executors.newFixedThreadPool(OPEN_THREADS);
+
+   /**
+    * File manager reference.
+    */
+   private final FileManager fileManager;
+
+   /**
+    * Counts connections, requests and sent bytes.
+    */
+   private final LoadMonitor loadMonitor;
+
+   /**
+    * Stores all active connections.
+    */
+   private final ConcurrentHashMap<AsynchronousSocketChannel, AsyncConnectionHandler> activeConnections = new ConcurrentHashMap<AsynchronousSocketChannel, AsyncConnectionHandler>();
+
+   /**
+    * Starts a handler for every accepted connection.
+    */
+   private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<AsynchronousSocketChannel, Void>()
+   {
+      public void completed(AsynchronousSocketChannel socket, Void attachment)
+      {
+         // accept the next connection while this one starts
+         Accept();
+
+         AsyncConnectionHandler handler = new AsyncConnectionHandler(socket, fileManager,
+                  AsyncConnectionListener.this);
+         activeConnections.put(socket, handler);
+         loadMonitor.ConnectionOpened();
+         handler.Start();
+      }
+
+      public void failed(Throwable e, Void attachment)
+      {
+         if (serverChannel.isOpen())
+         {
+            System.out
+                     .println("<AsyncConnectionListener>: Failed to get inbound TCP connection socket!");
+            Accept();
+         }
+         else
+         {
+            System.out
+                     .println("<AsyncConnectionListener>: Server socket was closed, terminating!");
+         }
+      }
+   };
+
+   /**
+    * Opens the server channel.
+    * 
+    * @param port TCP port to listen on.
+    * @param fileManager File manager reference.
+    * @param loadMonitor Counts connections, requests and sent bytes.
+    * @throws InitFailedException Gets thrown when the port cannot be opened.
+    */
+   public AsyncConnectionListener(int port, FileManager fileManager, LoadMonitor loadMonitor)
+            throws InitFailedException
+   {
+      this.fileManager = fileManager;
+      this.loadMonitor = loadMonitor;
+
+      try
+      {
+         channelGroup = AsynchronousChannelGroup.withFixedThreadPool(CHANNEL_THREADS,
+                  Executors.defaultThreadFactory());
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not create the channel group!");
+         filePool.shutdown();
+         openPool.shutdown();
+         throw new InitFailedException();
+      }
+
+      try
+      {
+         serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+         serverChannel.bind(new InetSocketAddress(port));
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not get I/O on TCP port " + port + "!");
+         CloseAllConnections();
+         throw new InitFailedException();
+      }
+
+      System.out.println("Listening on TCP port " + port + "!");
+   }
+
+   /**
+    * Starts accepting connections.
+    */
+   public void Start()
+   {
+      Accept();
+   }
+
+   /**
+    * Removes a closed connection.
+    * 
+    * @param socket The socket channel of the connection.
+    */
+   public void RemoveConnection(AsynchronousSocketChannel socket)
+   {
+      if (activeConnections.remove(socket) != null)
+      {
+         loadMonitor.ConnectionClosed();
+      }
+   }
+
+   /**
+    * Gets the threads that complete file reads and start further reads.
+    * 
+    * @return The file pool.
+    */
+   public ExecutorService getFilePool()
+   {
+      return filePool;
+   }
+
+   /**
+    * Gets the threads that open transfers.
+    * 
+    * @return The open pool.
+    */
+   public ExecutorService getOpenPool()
+   {
+      return openPool;
+   }
+
+   /**
+    * Gets the counters of connections, requests and sent bytes.
+    * 
+    * @return The load monitor.
+    */
+   public LoadMonitor getLoadMonitor()
+   {
+      return loadMonitor;
+   }
+
+   /**
+    * Closes the server channel and all active connections.
+    */
+   public void CloseAllConnections()
+   {
+      try
+      {
+         if (serverChannel != null && serverChannel.isOpen())
+         {
+            serverChannel.close();
+
+            System.out.println("Closed TCP server socket succesfully!");
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Could not close TCP server socket!");
+      }
+
+      for (AsyncConnectionHandler handler : new LinkedList<AsyncConnectionHandler>(
+               activeConnections.values()))
+      {
+         handler.Close();
+      }
+
+      filePool.shutdown();
+      openPool.shutdown();
+      channelGroup.shutdown();
+   }
+
+   /**
+    * Accepts the next connection.
+    */
+   private void Accept()
+   {
+      try
+      {
+         serverChannel.accept(null, acceptHandler);
+      }
+      catch (RuntimeException e)
+      {
+         // the channel was closed meanwhile
+         System.out.println("<AsyncConnectionListener>: Server socket was closed, terminating!");
+      }
+   }
+}
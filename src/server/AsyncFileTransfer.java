@@ -0,0 +1,505 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocols.MessageFileProtocol;
+import protocols.misc.ProtocolMessage;
+import server.fileHandling.CompressedFile;
+import server.fileHandling.FileManager;
+
+/**
+ * Answers a download request of the asynchronous engine. Chunks are read
+ * from the file without blocking and sent in order as soon as they are
+ * complete. Every chunk holds one of the chunk buffers of the connection
+ * from the read until it was written to the socket, so the connection
+ * limits the reads in progress and the content waiting for the socket.
+ * 
+ * @author RaphM
+ */
+public class AsyncFileTransfer implements Runnable
+{
+   /**
+    * The download request.
+    */
+   private final ProtocolMessage request;
+
+   /**
+    * Protocol object used for the response.
+    */
+   private final MessageFileProtocol responseProtocol;
+
+   /**
+    * The connection that received the request.
+    */
+   private final AsyncConnectionHandler connection;
+
+   /**
+    * File manager reference.
+    */
+   private final FileManager fileManager;
+
+   /**
+    * Counts the sent bytes and the finished request.
+    */
+   private final LoadMonitor loadMonitor;
+
+   /**
+    * Threads that complete the file reads.
+    */
+   private final ExecutorService filePool;
+
+   /**
+    * Protects the positions and the read chunks.
+    */
+   private final Lock lock = new ReentrantLock();
+
+   /**
+    * Chunks that were read but wait for the chunks before them, by their
+    * position.
+    */
+   private final TreeMap<Long, Chunk> readChunks = new TreeMap<Long, Chunk>();
+
+   /**
+    * The file if the content is read from disk.
+    */
+   private AsynchronousFileChannel file;
+
+   /**
+    * The content if it is held in memory, a hot or compressed file.
+    */
+   private ByteBuffer memory;
+
+   /**
+    * Position of the next chunk that is read.
+    */
+   private long readPosition;
+
+   /**
+    * Position of the next chunk that is sent.
+    */
+   private long sendPosition;
+
+   /**
+    * Position behind the last byte that is sent.
+    */
+   private long end;
+
+   /**
+    * Indicates if the transfer completed or was aborted.
+    */
+   private boolean isFinished;
+
+   /**
+    * Continues partial reads and sends complete chunks.
+    */
+   private final CompletionHandler<Integer, Chunk> readHandler = new CompletionHandler<Integer, Chunk>()
+   {
+      public void completed(Integer count, Chunk chunk)
+      {
+         if (count.intValue() == -1)
+         {
+            failed(new EOFException("File is shorter than announced!"), chunk);
+         }
+         else if (chunk.data.hasRemaining())
+         {
+            file.read(chunk.data, chunk.position + chunk.data.position(), chunk, this);
+         }
+         else
+         {
+            chunk.data.flip();
+            ChunkRead(chunk);
+         }
+      }
+
+      public void failed(Throwable e, Chunk chunk)
+      {
+         connection.ReleaseChunkBuffer(chunk.buffer);
+         Fail(e);
+      }
+   };
+
+   /**
+    * Creates a new file transfer.
+    * 
+    * @param request
+    *           The download request.
+    * @param responseProtocol
+    *           Protocol object used for the response.
+    * @param connection
+    *           The connection that received the request.
+    * @param fileManager
+    *           File manager reference.
+    * @param loadMonitor
+    *           Counts the sent bytes and the finished request.
+    * @param filePool
+    *           Threads that complete the file reads.
+    */
+   public AsyncFileTransfer(ProtocolMessage request, MessageFileProtocol responseProtocol,
+            AsyncConnectionHandler connection, FileManager fileManager,
+            LoadMonitor loadMonitor, ExecutorService filePool)
+   {
+      this.request = request;
+      this.responseProtocol = responseProtocol;
+      this.connection = connection;
+      this.fileManager = fileManager;
+      this.loadMonitor = loadMonitor;
+      this.filePool = filePool;
+   }
+
+   /**
+    * Opens the content and starts reading, runs on the open pool because
+    * compressing or loading a hot file blocks.
+    */
+   public void run()
+   {
+      lock.lock();
+      try
+      {
+         if (isFinished)
+         {
+            return;
+         }
+
+         if (!Open(request.getFileName(), request.getRangeOffset(), request.getRangeLength()))
+         {
+            responseProtocol.sendFileSizeInfo(-1);
+            Finish();
+            return;
+         }
+
+         // empty ranges are complete already
+         SendReadChunks();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      Pump();
+   }
+
+   /**
+    * Starts reads as long as the connection has chunk buffers left.
+    */
+   public void Pump()
+   {
+      while (true)
+      {
+         ByteBuffer buffer;
+         long position;
+         int length;
+
+         lock.lock();
+         try
+         {
+            if (isFinished || readPosition >= end)
+            {
+               return;
+            }
+
+            buffer = connection.AcquireChunkBuffer();
+            if (buffer == null)
+            {
+               // pumped again when a buffer was written
+               return;
+            }
+
+            position = readPosition;
+            length = (int) Math.min(MessageFileProtocol.FILE_CHUNK_SIZE, end - position);
+            readPosition += length;
+         }
+         finally
+         {
+            lock.unlock();
+         }
+
+         Read(new Chunk(position, length, buffer));
+      }
+   }
+
+   /**
+    * Stops the transfer, called when the connection was closed.
+    */
+   public void Abort()
+   {
+      lock.lock();
+      try
+      {
+         if (!isFinished)
+         {
+            Finish();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Selects the content of the requested range and sends the header. Whole
+    * files are sent compressed if the proxy accepts it, popular files are
+    * sent from memory.
+    * 
+    * @param fileName The file name.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes, -1 up to the end of the file.
+    * @return False if the file does not exist or the range is invalid.
+    */
+   private boolean Open(String fileName, long offset, long length)
+   {
+      if (fileName == null)
+      {
+         return false;
+      }
+
+      if (offset == 0 && responseProtocol.getCompression() != null)
+      {
+         CompressedFile compressed = fileManager.getCompressedFile(fileName);
+
+         if (compressed != null && (length < 0 || length >= compressed.getSize()))
+         {
+            memory = ByteBuffer.wrap(compressed.getData());
+            end = memory.limit();
+            responseProtocol.sendFileStart(fileName, compressed.getSize(),
+                     MessageFileProtocol.COMPRESSION_DEFLATE, 0, compressed.getSize(),
+                     fileManager.getChecksum(fileName, compressed.getSize()));
+            return true;
+         }
+      }
+
+      ByteBuffer hotContent = fileManager.getHotContent(fileName);
+      long size;
+
+      if (hotContent != null && offset >= 0 && offset <= hotContent.limit())
+      {
+         memory = hotContent;
+         size = hotContent.limit();
+      }
+      else
+      {
+         file = fileManager.openAsyncFile(fileName, filePool);
+
+         try
+         {
+            size = file == null ? -1 : file.size();
+         }
+         catch (IOException e)
+         {
+            size = -1;
+         }
+
+         if (offset < 0 || offset > size)
+         {
+            return false;
+         }
+      }
+
+      readPosition = offset;
+      sendPosition = offset;
+      end = length < 0 ? size : Math.min(size, offset + length);
+      responseProtocol.sendFileStart(fileName, size, null, offset, end - offset,
+               fileManager.getChecksum(fileName, size));
+      return true;
+   }
+
+   /**
+    * Reads a chunk, memory content is complete at once.
+    * 
+    * @param chunk The chunk.
+    */
+   private void Read(Chunk chunk)
+   {
+      if (memory != null)
+      {
+         ByteBuffer content = memory.duplicate();
+         content.limit((int) chunk.position + chunk.data.limit()).position((int) chunk.position);
+         chunk.data = content.slice();
+         ChunkRead(chunk);
+         return;
+      }
+
+      try
+      {
+         file.read(chunk.data, chunk.position, chunk, readHandler);
+      }
+      catch (RuntimeException e)
+      {
+         // file pool was shut down
+         readHandler.failed(e, chunk);
+      }
+   }
+
+   /**
+    * Sends a read chunk and all chunks behind it that were read already.
+    * 
+    * @param chunk The chunk.
+    */
+   private void ChunkRead(Chunk chunk)
+   {
+      lock.lock();
+      try
+      {
+         if (isFinished)
+         {
+            connection.ReleaseChunkBuffer(chunk.buffer);
+            return;
+         }
+
+         readChunks.put(Long.valueOf(chunk.position), chunk);
+         SendReadChunks();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sends the read chunks in order and the trailer after the last one.
+    * Must be called with the lock held.
+    */
+   private void SendReadChunks()
+   {
+      Chunk chunk = readChunks.remove(Long.valueOf(sendPosition));
+
+      while (chunk != null)
+      {
+         final ByteBuffer buffer = chunk.buffer;
+         int length = chunk.data.remaining();
+
+         try
+         {
+            responseProtocol.sendFileChunk(chunk.data);
+         }
+         catch (IOException e)
+         {
+            connection.ReleaseChunkBuffer(buffer);
+            Fail(e);
+            return;
+         }
+
+         // the buffer is free again once the socket took the content
+         connection.WhenWritten(new Runnable()
+         {
+            public void run()
+            {
+               connection.ReleaseChunkBuffer(buffer);
+            }
+         });
+         loadMonitor.AddSentBytes(length);
+         sendPosition += length;
+         chunk = readChunks.remove(Long.valueOf(sendPosition));
+      }
+
+      if (sendPosition >= end)
+      {
+         responseProtocol.sendFileEnd();
+         Finish();
+      }
+   }
+
+   /**
+    * Gives up on a transfer that cannot be completed. The proxy cannot
+    * tell an incomplete response from a slow one, so the connection is
+    * closed.
+    * 
+    * @param e The cause.
+    */
+   private void Fail(Throwable e)
+   {
+      lock.lock();
+      try
+      {
+         if (isFinished)
+         {
+            return;
+         }
+         Finish();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      System.out.println("<AsyncFileTransfer>: Could not send response for request "
+               + request.getRequestId() + ": " + e.getMessage());
+      connection.Close();
+   }
+
+   /**
+    * Closes the file and reports the finished request. Must be called with
+    * the lock held.
+    */
+   private void Finish()
+   {
+      isFinished = true;
+
+      // chunks that wait for a failed one are never sent
+      for (Chunk chunk : readChunks.values())
+      {
+         connection.ReleaseChunkBuffer(chunk.buffer);
+      }
+      readChunks.clear();
+
+      if (file != null)
+      {
+         try
+         {
+            file.close();
+         }
+         catch (IOException e)
+         {
+            System.out.println("<AsyncFileTransfer>: Could not close file "
+                     + request.getFileName() + "!");
+         }
+      }
+
+      loadMonitor.RequestFinished();
+      connection.TransferFinished(this);
+   }
+
+   /**
+    * A chunk of the content on its way from the file to the socket.
+    */
+   private static class Chunk
+   {
+      /**
+       * Position of the chunk in the content.
+       */
+      private final long position;
+
+      /**
+       * The chunk buffer of the connection that is held by the chunk.
+       */
+      private final ByteBuffer buffer;
+
+      /**
+       * The content, read into the chunk buffer or a view of memory content.
+       */
+      private ByteBuffer data;
+
+      /**
+       * Creates a new chunk that reads into the chunk buffer.
+       * 
+       * @param position Position of the chunk in the content.
+       * @param length Length of the chunk.
+       * @param buffer The chunk buffer of the connection.
+       */
+      private Chunk(long position, int length, ByteBuffer buffer)
+      {
+         this.position = position;
+         this.buffer = buffer;
+         buffer.clear().limit(length);
+         this.data = buffer;
+      }
+   }
+}
@@ -3,10 +3,12 @@ package server;
 import commandHandling.CommandHandler;
 import commandHandling.ICommandHandler;
 import common.InitFailedException;
+import common.ThreadMode;
 
 import server.Arguments;
 import server.TcpConnectionListener;
 import server.commands.ExitCommand;
+import server.commands.HotFilesCommand;
 import server.fileHandling.FileManager;
 import server.heartbeatHandling.HeartbeatManager;
 import tcpConnections.TcpServerConnectionPoint;
@@ -26,7 +28,7 @@ public class FDS_Server
    /**
     * TCP connection listener.
     */
-   private static TcpConnectionListener tcpListener;
+   private static IConnectionListener tcpListener;
 
    /**
     * The file manager.
@@ -44,6 +46,11 @@ public class FDS_Server
     */
    private static HeartbeatManager heartbeatManager;
 
+   /**
+    * Counts connections, requests and sent bytes.
+    */
+   private static LoadMonitor loadMonitor = new LoadMonitor();
+
    /**
     * Main entry point
     * 
@@ -58,20 +65,31 @@ public class FDS_Server
          Arguments parsedArguments = new Arguments(args);
 
          // initializes the file manager
-         fileManager = new FileManager(parsedArguments.getDirectory());
+         fileManager = new FileManager(parsedArguments.getDirectory(),
+                  parsedArguments.getHotCacheSize());
 
-         // initialize the TCP server port
-         tcpServer = new TcpServerConnectionPoint(parsedArguments.getTcpPort());
+         if (parsedArguments.isAsyncEngine())
+         {
+            // serve the proxy from completion handlers, the listener
+            // opens the TCP port itself
+            StartAsyncListener(parsedArguments.getTcpPort());
+         }
+         else
+         {
+            // initialize the TCP server port
+            tcpServer = new TcpServerConnectionPoint(parsedArguments.getTcpPort());
 
-         // start listening for messages from TCP clients
-         StartTcpListener();
+            // start listening for messages from TCP clients
+            StartTcpListener(parsedArguments.getThreadMode());
+         }
 
          // initialize and start the heartbeat manager
          heartbeatManager = new HeartbeatManager(
                   parsedArguments.getProxyHost(), parsedArguments
                            .getProxyUdpPort(),
                   parsedArguments.getalivePeriod(), parsedArguments
-                           .getTcpPort());
+                           .getTcpPort(), fileManager, loadMonitor,
+                  parsedArguments.getCapacityWeight());
 
          // register known console commands and start listening for them
          RegisterCommands();
@@ -102,22 +120,47 @@ public class FDS_Server
          {
             consoleCommandHandler.StopListening();
          }
+
+         if (fileManager != null)
+         {
+            fileManager.Close();
+         }
       }
    }
 
    /**
     * Listens for messages from TCP clients.
+    * 
+    * @param threadMode Threads that handle the connections of the proxy.
     */
-   private static void StartTcpListener()
+   private static void StartTcpListener(ThreadMode threadMode)
    {
       // create a new client connection listener
-      tcpListener = new TcpConnectionListener(tcpServer, fileManager);
+      TcpConnectionListener listener = new TcpConnectionListener(tcpServer,
+               fileManager, loadMonitor, threadMode);
+      tcpListener = listener;
 
       // run as a thread
-      Thread listenerThread = new Thread(tcpListener);
+      Thread listenerThread = new Thread(listener);
       listenerThread.start();
    }
 
+   /**
+    * Listens for messages from TCP clients with the asynchronous engine.
+    * 
+    * @param tcpPort TCP port to listen on.
+    * @throws InitFailedException Gets thrown when the port cannot be opened.
+    */
+   private static void StartAsyncListener(int tcpPort) throws InitFailedException
+   {
+      AsyncConnectionListener listener = new AsyncConnectionListener(tcpPort,
+               fileManager, loadMonitor);
+      tcpListener = listener;
+
+      // completion handlers run on the channel group, no listener thread
+      listener.Start();
+   }
+
    /**
     * Registers known console commands.
     */
@@ -128,5 +171,11 @@ public class FDS_Server
                tcpServer, tcpListener, heartbeatManager);
       consoleCommandHandler.RegisterCommand(exitCommand.getIdentifier(),
                exitCommand);
+
+      // register the hot files command
+      HotFilesCommand hotFilesCommand = new HotFilesCommand(fileManager
+               .getHotFileCache());
+      consoleCommandHandler.RegisterCommand(hotFilesCommand.getIdentifier(),
+               hotFilesCommand);
    }
 }
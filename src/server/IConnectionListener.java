@@ -0,0 +1,14 @@
+package server;
+
+/**
+ * Accepts the connections of the proxy and hands them to handlers.
+ * 
+ * @author RaphM
+ */
+public interface IConnectionListener
+{
+   /**
+    * Closes all active connections.
+    */
+   void CloseAllConnections();
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the connections, requests and sent bytes of the fileserver, so
+ * its load can be reported to the proxy.
+ * 
+ * @author RaphM
+ */
+public class LoadMonitor
+{
+   /**
+    * Number of open connections.
+    */
+   private final AtomicInteger activeConnections = new AtomicInteger();
+
+   /**
+    * Number of requests that are being answered or wait for a thread.
+    */
+   private final AtomicInteger pendingRequests = new AtomicInteger();
+
+   /**
+    * Number of file content bytes sent since the start.
+    */
+   private final AtomicLong sentBytes = new AtomicLong();
+
+   /**
+    * Records an opened connection.
+    */
+   public void ConnectionOpened()
+   {
+      activeConnections.incrementAndGet();
+   }
+
+   /**
+    * Records a closed connection.
+    */
+   public void ConnectionClosed()
+   {
+      activeConnections.decrementAndGet();
+   }
+
+   /**
+    * Records a request that was accepted.
+    */
+   public void RequestQueued()
+   {
+      pendingRequests.incrementAndGet();
+   }
+
+   /**
+    * Records a request that was answered.
+    */
+   public void RequestFinished()
+   {
+      pendingRequests.decrementAndGet();
+   }
+
+   /**
+    * Records sent file content.
+    * 
+    * @param count Number of bytes.
+    */
+   public void AddSentBytes(long count)
+   {
+      sentBytes.addAndGet(count);
+   }
+
+   /**
+    * Number of open connections.
+    */
+   public int getActiveConnections()
+   {
+      return activeConnections.get();
+   }
+
+   /**
+    * Number of requests that are being answered or wait for a thread.
+    */
+   public int getPendingRequests()
+   {
+      return pendingRequests.get();
+   }
+
+   /**
+    * Number of file content bytes sent since the start.
+    */
+   public long getSentBytes()
+   {
+      return sentBytes.get();
+   }
+}
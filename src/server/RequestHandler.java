@@ -0,0 +1,256 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import protocols.MessageFileProtocol;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+import server.fileHandling.CompressedFile;
+import server.fileHandling.FileManager;
+
+/**
+ * Answers a single request of a proxy. In binary mode every request runs
+ * as its own task and answers through a protocol view tagged with the
+ * request id, so several requests can share one connection.
+ * 
+ * @author RaphM
+ */
+public class RequestHandler implements Runnable
+{
+   /**
+    * The request that is being answered.
+    */
+   private final ProtocolMessage request;
+
+   /**
+    * Protocol object used for the response.
+    */
+   private final MessageFileProtocol responseProtocol;
+
+   /**
+    * File manager reference.
+    */
+   private final FileManager fileManager;
+
+   /**
+    * Counts the sent bytes.
+    */
+   private final LoadMonitor loadMonitor;
+
+   /**
+    * Creates a new request handler.
+    * 
+    * @param request
+    *           The request message.
+    * @param responseProtocol
+    *           Protocol object used for the response.
+    * @param fileManager
+    *           File manager reference.
+    * @param loadMonitor
+    *           Counts the sent bytes.
+    */
+   public RequestHandler(ProtocolMessage request,
+            MessageFileProtocol responseProtocol, FileManager fileManager,
+            LoadMonitor loadMonitor)
+   {
+      this.request = request;
+      this.responseProtocol = responseProtocol;
+      this.fileManager = fileManager;
+      this.loadMonitor = loadMonitor;
+   }
+
+   /**
+    * Executed as a thread.
+    */
+   public void run()
+   {
+      try
+      {
+         if (request.getResultType() == MessageType.FileNamesRequest)
+         {
+            SendFileNames();
+         }
+         else if (request.getResultType() == MessageType.DownloadInfoRequest)
+         {
+            SendDownloadInfo(request.getFileName());
+         }
+         else if (request.getResultType() == MessageType.DownloadRequest)
+         {
+            SendFile(request.getFileName(), request.getRangeOffset(),
+                     request.getRangeLength());
+         }
+         else if (request.getResultType() == MessageType.CatalogChangesRequest)
+         {
+            SendCatalogChanges(request.getCatalogEpoch(), request.getCatalogVersion());
+         }
+         else
+         {
+            System.out
+                     .println("<RequestHandler Thread>: Received unknown protocol message type: "
+                              + request.getResultType());
+         }
+      }
+      catch (IOException e)
+      {
+         System.out
+                  .println("<RequestHandler Thread>: Could not send response for request "
+                           + request.getRequestId() + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Sends file names to the connection initiator
+    */
+   private void SendFileNames()
+   {
+      responseProtocol.sendFileNames(fileManager.listFiles());
+   }
+
+   /**
+    * Sends the catalog changes since a known catalog version to the
+    * connection initiator.
+    * 
+    * @param epoch The fileserver run the known version belongs to.
+    * @param version The known catalog version.
+    */
+   private void SendCatalogChanges(long epoch, long version)
+   {
+      ProtocolMessage changes = fileManager.getCatalogChanges(epoch, version);
+      responseProtocol.sendCatalogChanges(changes.getCatalogEpoch(),
+               changes.getCatalogVersion(), changes.isFullCatalog(),
+               changes.getCatalogChanges());
+   }
+
+   /**
+    * Sends download info data to the connection initiator
+    * 
+    * @param fileName The file name.
+    */
+   private void SendDownloadInfo(String fileName)
+   {
+      long fileSize = fileManager.getFileSize(fileName);
+      responseProtocol.sendFileSizeInfo(fileSize, fileManager.getLastModified(fileName),
+               fileManager.getChecksum(fileName, fileSize));
+   }
+
+   /**
+    * Sends the compressed variant of a file in chunks.
+    * 
+    * @param fileName The file name.
+    * @param compressed The compressed variant.
+    */
+   private void SendCompressedFile(String fileName, CompressedFile compressed)
+   {
+      byte[] data = compressed.getData();
+      int position = 0;
+
+      responseProtocol.sendFileStart(fileName, compressed.getSize(),
+               MessageFileProtocol.COMPRESSION_DEFLATE, 0, compressed.getSize(),
+               fileManager.getChecksum(fileName, compressed.getSize()));
+      while (position < data.length)
+      {
+         int length = Math.min(MessageFileProtocol.FILE_CHUNK_SIZE, data.length - position);
+         responseProtocol.sendFileChunk(data, position, length);
+         loadMonitor.AddSentBytes(length);
+         position += length;
+      }
+      responseProtocol.sendFileEnd();
+   }
+
+   /**
+    * Sends a byte range of a file that is held in memory in chunks.
+    * 
+    * @param fileName The file name.
+    * @param content The whole content of the file.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes, -1 up to the end of the file.
+    * @throws IOException If the file cannot be sent.
+    */
+   private void SendHotFile(String fileName, ByteBuffer content, long offset, long length)
+            throws IOException
+   {
+      int size = content.limit();
+      int end = length < 0 ? size : (int) Math.min(size, offset + length);
+      int position = (int) offset;
+
+      responseProtocol.sendFileStart(fileName, size, null, offset, end - offset,
+               fileManager.getChecksum(fileName, size));
+      while (position < end)
+      {
+         int chunkLength = Math.min(MessageFileProtocol.FILE_CHUNK_SIZE, end - position);
+         content.limit(position + chunkLength).position(position);
+         responseProtocol.sendFileChunk(content);
+         loadMonitor.AddSentBytes(chunkLength);
+         position += chunkLength;
+      }
+      responseProtocol.sendFileEnd();
+   }
+
+   /**
+    * Streams a byte range of a file to the proxy in chunks.The chunks are
+    * transferred from the file channel to the socket channel without
+    * copying them through user space where possible. Whole files are sent
+    * compressed if the proxy accepts it. A missing file or an invalid range
+    * is answered with an invalid file size.
+    * 
+    * @param fileName The file name.
+    * @param offset Position of the first requested byte.
+    * @param length Number of requested bytes, -1 up to the end of the file.
+    * @throws IOException If the file cannot be sent.
+    */
+   private void SendFile(String fileName, long offset, long length) throws IOException
+   {
+      // prefer the cached compressed variant if the proxy accepts it
+      if (fileName != null && offset == 0 && responseProtocol.getCompression() != null)
+      {
+         CompressedFile compressed = fileManager.getCompressedFile(fileName);
+
+         if (compressed != null && (length < 0 || length >= compressed.getSize()))
+         {
+            SendCompressedFile(fileName, compressed);
+            return;
+         }
+      }
+
+      // popular files are served from memory
+      ByteBuffer hotContent = fileName == null ? null : fileManager.getHotContent(fileName);
+
+      if (hotContent != null && offset >= 0 && offset <= hotContent.limit())
+      {
+         SendHotFile(fileName, hotContent, offset, length);
+         return;
+      }
+
+      FileChannel fileContent = fileName == null ? null : fileManager.openFile(fileName, offset);
+
+      if (fileContent == null)
+      {
+         responseProtocol.sendFileSizeInfo(-1);
+         return;
+      }
+
+      try
+      {
+         long size = fileContent.size();
+         long end = length < 0 ? size : Math.min(size, offset + length);
+         long position = offset;
+
+         responseProtocol.sendFileStart(fileName, size, null, offset, end - offset,
+                  fileManager.getChecksum(fileName, size));
+         while (position < end)
+         {
+            int chunkLength = (int) Math.min(MessageFileProtocol.FILE_CHUNK_SIZE, end - position);
+            responseProtocol.sendFileChunk(fileContent, position, chunkLength);
+            loadMonitor.AddSentBytes(chunkLength);
+            position += chunkLength;
+         }
+         responseProtocol.sendFileEnd();
+      }
+      finally
+      {
+         fileContent.close();
+      }
+   }
+}
@@ -49,6 +49,11 @@ public class TcpConnectionHandler implements Runnable
     */
    private final ICommandHandler messageCommandHandler = new CommandHandler();
 
+   /**
+    * File name of the last download info request of a text mode proxy.
+    */
+   private String lastInfoFileName;
+
    /**
     * Handles a new client connection.
     * 
@@ -63,7 +68,7 @@ public class TcpConnectionHandler implements Runnable
             FileManager fileManager, TcpConnectionListener listener)
    {
       incomingProtocol = new MessageFileProtocol(connection.getInputStream());
-      outgoingProtocol = new MessageFileProtocol(connection.getOutputStream());
+      outgoingProtocol = new MessageFileProtocol(connection.getOutputStream(), connection.getChannel());
       this.connection = connection;
       this.fileManager = fileManager;
       this.listener = listener;
@@ -88,34 +93,26 @@ public class TcpConnectionHandler implements Runnable
    {
       try
       {
-         ProtocolMessage result = incomingProtocol.readMessage();
-
-         if (result.getResultType() == MessageType.Console)
+         // the connection stays open until the proxy closes it
+         while (true)
          {
-            messageCommandHandler.HandleCommand(result.getContent());
-         }
-         else if (result.getResultType() == MessageType.FileNamesRequest)
-         {
-            SendFileNames();
-         }
-         else if (result.getResultType() == MessageType.DownloadInfoRequest)
-         {
-            SendDownloadInfo(result.getFileName());
-            
-            // wait for an eventual download request, otherwise the client closes the connection
-            // and we get an IOException
-            ProtocolMessage downloadRequest = incomingProtocol.readMessage();
-            if (downloadRequest.getResultType() == MessageType.DownloadRequest)
+            ProtocolMessage request = ReadRequest();
+
+            if (request.getResultType() == MessageType.Console)
             {
-               SendFile(result.getFileName(), fileManager.getFileContent(result.getFileName()));
+               messageCommandHandler.HandleCommand(request.getContent());
+            }
+            else if (outgoingProtocol.isBinaryMode())
+            {
+               // tagged request, answer it concurrently to the others
+               listener.Execute(new RequestHandler(request, outgoingProtocol
+                        .forRequest(request.getRequestId()), fileManager, listener
+                        .getLoadMonitor()));
+            }
+            else
+            {
+               HandleTextRequest(request);
             }
-            
-         }
-         else
-         {
-            System.out
-                     .println("<TcpConnectionHandler Thread>: Received unknown protocol message type: "
-                              + result.getResultType());
          }
       }
       catch (IOException e)
@@ -135,31 +132,57 @@ public class TcpConnectionHandler implements Runnable
    }
    
    /**
-    * Sends file names to the connection initiator
-    */
-   private void SendFileNames()
-   {
-      outgoingProtocol.sendFileNames(fileManager.listFiles());
-   }
-   
-   /**
-    * Sends download info data to the connection initiator
+    * Reads the next request, answers binary mode and compression
+    * negotiation messages on the way.
+    * 
+    * @return The request message.
+    * @throws IOException
     */
-   private void SendDownloadInfo(String fileName)
+   private ProtocolMessage ReadRequest() throws IOException
    {
-      long fileSize = fileManager.getFileSize(fileName);
-      outgoingProtocol.sendFileSizeInfo(fileSize);
+      ProtocolMessage result = incomingProtocol.readMessage();
+
+      while (result.getResultType() == MessageType.BinaryModeOffer
+               || result.getResultType() == MessageType.BinaryMode
+               || result.getResultType() == MessageType.CompressionOffer)
+      {
+         if (result.getResultType() == MessageType.CompressionOffer)
+         {
+            // send compressed content if we support one of the offered codecs
+            outgoingProtocol.acceptCompression(result.getEncoding());
+         }
+         else
+         {
+            // accept the offer, the proxy switches after receiving our marker
+            outgoingProtocol.switchToBinaryMode();
+         }
+         result = incomingProtocol.readMessage();
+      }
+
+      return result;
    }
    
    /**
-    * Sends a file to the proxy.
+    * Answers a request of a text mode proxy in the connection thread. Text
+    * mode download requests do not name the file, the one of the preceding
+    * download info request is sent.
     * 
-    * @param fileName The file name.
-    * @param fileContent The file content.
+    * @param request The request message.
     */
-   private void SendFile(String fileName, String fileContent)
+   private void HandleTextRequest(ProtocolMessage request)
    {
-      outgoingProtocol.sendFile(fileName, fileContent);
+      if (request.getResultType() == MessageType.DownloadInfoRequest)
+      {
+         lastInfoFileName = request.getFileName();
+      }
+      else if (request.getResultType() == MessageType.DownloadRequest
+               && request.getFileName() == null)
+      {
+         request = new ProtocolMessage(MessageType.DownloadRequest, lastInfoFileName);
+      }
+
+      new RequestHandler(request, outgoingProtocol, fileManager, listener
+               .getLoadMonitor()).run();
    }
 
    /**
@@ -4,17 +4,17 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import common.InitFailedException;
+import common.ThreadMode;
 
 import server.fileHandling.FileManager;
 import tcpConnections.TcpConnection;
 import tcpConnections.TcpServerConnectionPoint;
 
-public class TcpConnectionListener implements Runnable
+public class TcpConnectionListener implements Runnable, IConnectionListener
 {
    /**
     * Lock to avoid access from multiple threads to the internal
@@ -28,15 +28,21 @@ public class TcpConnectionListener implements Runnable
    private final TcpServerConnectionPoint tcpServer;
    
    /**
-    * Thread pool that provides threads that run incoming requests.
+    * Thread pool that provides threads that run incoming requests, starts
+    * a virtual thread per request in the virtual thread mode.
     */
-   private final ExecutorService threadPool = Executors.newCachedThreadPool();
+   private final ExecutorService threadPool;
    
    /**
     * File manager reference.
     */
    private final FileManager fileManager;
    
+   /**
+    * Counts connections, requests and sent bytes.
+    */
+   private final LoadMonitor loadMonitor;
+
    /**
     * Stores all active connections.
     */
@@ -52,11 +58,16 @@ public class TcpConnectionListener implements Runnable
     * 
     * @param connection The client connection object.
     * @param fileManager File manager reference.
+    * @param loadMonitor Counts connections, requests and sent bytes.
+    * @param threadMode Threads that handle the connections.
     */
-   public TcpConnectionListener(TcpServerConnectionPoint connection, FileManager fileManager)
+   public TcpConnectionListener(TcpServerConnectionPoint connection, FileManager fileManager,
+            LoadMonitor loadMonitor, ThreadMode threadMode)
    {
+      this.threadPool = threadMode.CreateExecutor();
       this.tcpServer = connection;
       this.fileManager = fileManager;
+      this.loadMonitor = loadMonitor;
    }
    
    /**
@@ -76,6 +87,7 @@ public class TcpConnectionListener implements Runnable
             lock.lock();
             activeConnections.add(connection);
             lock.unlock();
+            loadMonitor.ConnectionOpened();
             
             // handle connection communication in a separate thread
             threadPool.execute(new TcpConnectionHandler(connection, fileManager, this));
@@ -105,10 +117,46 @@ public class TcpConnectionListener implements Runnable
       if (activeConnections.contains(connection))
       {
          activeConnections.remove(connection);
+         loadMonitor.ConnectionClosed();
       }
       lock.unlock();
    }
    
+   /**
+    * Runs a request task on the thread pool. Waiting and running tasks are
+    * counted as the request queue.
+    * 
+    * @param task The task.
+    */
+   public void Execute(final Runnable task)
+   {
+      loadMonitor.RequestQueued();
+      threadPool.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               task.run();
+            }
+            finally
+            {
+               loadMonitor.RequestFinished();
+            }
+         }
+      });
+   }
+
+   /**
+    * Gets the counters of connections, requests and sent bytes.
+    * 
+    * @return The load monitor.
+    */
+   public LoadMonitor getLoadMonitor()
+   {
+      return loadMonitor;
+   }
+   
    /**
     * Closes all active connections.
     */
@@ -123,6 +171,10 @@ public class TcpConnectionListener implements Runnable
          connection.Disconnect();
       }
       
+      for (int i = 0; i < activeConnections.size(); i++)
+      {
+         loadMonitor.ConnectionClosed();
+      }
       activeConnections.clear();
       lock.unlock();
    }
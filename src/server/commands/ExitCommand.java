@@ -1,6 +1,6 @@
 package server.commands;
 
-import server.TcpConnectionListener;
+import server.IConnectionListener;
 import server.heartbeatHandling.HeartbeatManager;
 import tcpConnections.TcpServerConnectionPoint;
 
@@ -27,7 +27,7 @@ public class ExitCommand implements ICommand
    /**
     * The Tcp connection listener object.
     */
-   private final TcpConnectionListener listener;
+   private final IConnectionListener listener;
    
    /**
     * The heartbeat manager reference.
@@ -42,13 +42,13 @@ public class ExitCommand implements ICommand
     *           is executed.
     * @param connection
     *           ServerConnection that should be closed when this command is
-    *           executed.
+    *           executed, null if the listener owns its channel.
     * @param listener The tcp connection listener object
     * @param heartbeatManager Heartbeat manager reference, used to stop the recurring timertask.
     */
    public ExitCommand(ICommandHandler commandHandler,
             TcpServerConnectionPoint connection,
-            TcpConnectionListener listener,
+            IConnectionListener listener,
             HeartbeatManager heartbeatManager)
    {
       this.commandHandler = commandHandler;
@@ -67,7 +67,10 @@ public class ExitCommand implements ICommand
          // stop command handling and close the server port as well
          // as all open client connections
          listener.CloseAllConnections();
-         connection.CloseServerSocket();
+         if (connection != null)
+         {
+            connection.CloseServerSocket();
+         }
          heartbeatManager.StopAliveMessages();
          commandHandler.StopListening();
          System.out.println("Exit success!");
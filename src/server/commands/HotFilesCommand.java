@@ -0,0 +1,67 @@
+package server.commands;
+
+import java.util.Vector;
+
+import server.fileHandling.HotFileCache;
+import commandHandling.ICommand;
+
+/**
+ * Console command that shows the files held in the hot file cache with
+ * their hit counters.
+ * 
+ * @author RaphM
+ */
+public class HotFilesCommand implements ICommand
+{
+   /**
+    * Command identifier of this instance.
+    */
+   private final String COMMAND = "!hotfiles";
+
+   /**
+    * The hot file cache.
+    */
+   private final HotFileCache hotFiles;
+
+   /**
+    * Initializes a new HotFilesCommand instance.
+    * 
+    * @param hotFiles The hot file cache.
+    */
+   public HotFilesCommand(HotFileCache hotFiles)
+   {
+      this.hotFiles = hotFiles;
+   }
+
+   /**
+    * Performs the command logic
+    */
+   public void Execute(String[] parameters)
+   {
+      if (parameters.length == 0)
+      {
+         Vector<String> lines = hotFiles.getStatistics();
+
+         System.out.println("Hot file cache: " + hotFiles.getSize() + " of "
+                  + hotFiles.getCapacity() + " bytes used");
+         for (String line : lines)
+         {
+            System.out.println(line);
+         }
+      }
+      else
+      {
+         System.out.println("Wrong parameters - Usage: !hotfiles");
+      }
+   }
+
+   /**
+    * Gets the command identifier of this instance.
+    * 
+    * @return Command identifier.
+    */
+   public String getIdentifier()
+   {
+      return COMMAND;
+   }
+}
@@ -0,0 +1,154 @@
+package server.fileHandling;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import protocols.misc.CatalogChange;
+import protocols.misc.MessageType;
+import protocols.misc.ProtocolMessage;
+
+/**
+ * Tracks the changes of the file index as a versioned catalog. Every added,
+ * modified or removed file increments the version, the most recent changes
+ * are kept so a proxy that knows an earlier version only needs the changes
+ * since then instead of the whole catalog.
+ * 
+ * @author RaphM
+ */
+public class CatalogTracker
+{
+   /**
+    * Maximum number of changes that are kept, older versions are answered
+    * with the whole catalog.
+    */
+   private final int MAX_LOGGED_CHANGES = 1000;
+
+   /**
+    * Identifies this run, versions of other runs are unknown.
+    */
+   private final long epoch = System.currentTimeMillis();
+
+   /**
+    * The current catalog version.
+    */
+   private long version;
+
+   /**
+    * The most recent changes, the last one belongs to the current version.
+    */
+   private final LinkedList<CatalogChange> changes = new LinkedList<CatalogChange>();
+
+   /**
+    * Digest of the current files.
+    */
+   private long digest;
+
+   /**
+    * Records a changed index entry as a new version.
+    * 
+    * @param previous The previous entry, null if the file was added.
+    * @param current The current entry, null if the file was removed.
+    */
+   public synchronized void Record(IndexedFile previous, IndexedFile current)
+   {
+      // the digest is a sum, so it can be updated without the other files
+      if (previous != null)
+      {
+         digest -= getDigest(previous);
+      }
+
+      if (current != null)
+      {
+         digest += getDigest(current);
+         AddChange(new CatalogChange(current.getFileName(), current.getSize(),
+                  current.getLastModified()));
+      }
+      else
+      {
+         AddChange(new CatalogChange(previous.getFileName(), -1, 0));
+      }
+   }
+
+   /**
+    * Gets the digest of the catalog. It changes whenever a file is added,
+    * removed or modified, the order of the directory listing does not
+    * matter.
+    * 
+    * @return The catalog digest.
+    */
+   public synchronized long getDigest()
+   {
+      return digest;
+   }
+
+   /**
+    * Gets the changes since a known catalog version.
+    * 
+    * @param knownEpoch The run the known version belongs to.
+    * @param knownVersion The known catalog version.
+    * @param currentFiles The current index entries, sent if the changes
+    *           since the known version are not available.
+    * @return A catalog changes message, with the whole catalog if the
+    *         changes since the known version are not available.
+    */
+   public synchronized ProtocolMessage getChangesSince(long knownEpoch, long knownVersion,
+            Collection<IndexedFile> currentFiles)
+   {
+      ProtocolMessage result = new ProtocolMessage(MessageType.CatalogChanges);
+      result.setCatalogVersion(epoch, version);
+
+      long oldestVersion = version - changes.size();
+      if (knownEpoch == epoch && knownVersion >= oldestVersion && knownVersion <= version)
+      {
+         // skip the changes the peer already knows
+         int knownChanges = (int) (knownVersion - oldestVersion);
+         result.setCatalogChanges(new Vector<CatalogChange>(changes.subList(
+                  knownChanges, changes.size())), false);
+      }
+      else
+      {
+         Vector<CatalogChange> catalogFiles = new Vector<CatalogChange>(currentFiles.size());
+         for (IndexedFile file : currentFiles)
+         {
+            catalogFiles.add(new CatalogChange(file.getFileName(), file.getSize(),
+                     file.getLastModified()));
+         }
+         result.setCatalogChanges(catalogFiles, true);
+      }
+
+      return result;
+   }
+
+   /**
+    * Records a change as a new version.
+    * 
+    * @param change The change.
+    */
+   private void AddChange(CatalogChange change)
+   {
+      version++;
+      changes.add(change);
+      if (changes.size() > MAX_LOGGED_CHANGES)
+      {
+         changes.removeFirst();
+      }
+   }
+
+   /**
+    * Computes the digest of a single file.
+    * 
+    * @param file The index entry of the file.
+    * @return The digest of the file.
+    */
+   private long getDigest(IndexedFile file)
+   {
+      long fileDigest = file.getFileName().hashCode();
+      fileDigest = fileDigest * 31 + file.getSize();
+      fileDigest = fileDigest * 31 + file.getLastModified();
+
+      // spread the bits, so the sum does not cancel out changes
+      fileDigest *= 0x9E3779B97F4A7C15L;
+      return fileDigest ^ (fileDigest >>> 32);
+   }
+}
@@ -0,0 +1,66 @@
+package server.fileHandling;
+
+/**
+ * The precompressed variant of a file, as cached by the file manager.
+ * 
+ * @author RaphM
+ */
+public class CompressedFile
+{
+   /**
+    * Size of the uncompressed file.
+    */
+   private final long size;
+
+   /**
+    * Modification time of the file the variant was created from.
+    */
+   private final long lastModified;
+
+   /**
+    * The compressed content, null if the file does not compress well.
+    */
+   private final byte[] data;
+
+   /**
+    * Creates a new compressed variant.
+    * 
+    * @param size Size of the uncompressed file.
+    * @param lastModified Modification time of the file.
+    * @param data The compressed content, null if not worth compressing.
+    */
+   public CompressedFile(long size, long lastModified, byte[] data)
+   {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.data = data;
+   }
+
+   /**
+    * @return Size of the uncompressed file.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return The compressed content, null if not worth compressing.
+    */
+   public byte[] getData()
+   {
+      return data;
+   }
+
+   /**
+    * Indicates if this variant still matches the file.
+    * 
+    * @param size Current size of the file.
+    * @param lastModified Current modification time of the file.
+    * @return True if the file has not changed since compressing it.
+    */
+   public boolean isValid(long size, long lastModified)
+   {
+      return this.size == size && this.lastModified == lastModified;
+   }
+}
@@ -0,0 +1,696 @@
+package server.fileHandling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import protocols.misc.ProtocolMessage;
+
+/**
+ * In-memory index of the files of a directory. It is built once at startup
+ * and kept current by the file system change notifications of the
+ * directory, so listings and size queries do not touch the disk. The whole
+ * directory is compared with the index periodically to catch changes whose
+ * notifications were lost.
+ * 
+ * The SHA-256 checksums of the files are computed in the background and
+ * stored in a manifest in the directory. After a restart only files whose
+ * size or modification time changed are hashed again. Scans and checksums
+ * run in parallel on a fork-join pool.
+ * 
+ * Lookups do not block, updates are serialized.
+ * 
+ * @author RaphM
+ */
+public class FileIndex
+{
+   /**
+    * Period of the comparison of the directory with the index.
+    */
+   private final long RECONCILE_PERIOD_MS = 5 * 60 * 1000;
+
+   /**
+    * Period of saving the manifest if it changed.
+    */
+   private final long MANIFEST_SAVE_PERIOD_MS = 30 * 1000;
+
+   /**
+    * Name of the manifest file in the directory, it is not indexed.
+    */
+   private final String MANIFEST_FILE_NAME = ".fds-manifest";
+
+   /**
+    * Number of files a single scan task stats.
+    */
+   private final int SCAN_BATCH_SIZE = 256;
+
+   /**
+    * Number of bytes read at once while computing a checksum.
+    */
+   private final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+   /**
+    * The indexed directory.
+    */
+   private final Path directory;
+
+   /**
+    * The indexed files by name.
+    */
+   private final ConcurrentMap<String, IndexedFile> files = new ConcurrentHashMap<String, IndexedFile>();
+
+   /**
+    * Versioned catalog of the indexed files.
+    */
+   private final CatalogTracker catalog = new CatalogTracker();
+
+   /**
+    * Timer that runs the periodic comparison and saves the manifest.
+    */
+   private final Timer maintenanceTimer = new Timer(true);
+
+   /**
+    * Runs the scans and checksum computations.
+    */
+   private final ForkJoinPool workers = new ForkJoinPool();
+
+   /**
+    * The manifest of the directory.
+    */
+   private final FileManifest manifest;
+
+   /**
+    * The manifest entries of the previous run, only used by the first scan.
+    */
+   private Map<String, IndexedFile> manifestFiles;
+
+   /**
+    * Names of the files whose checksum is being computed.
+    */
+   private final Set<String> pendingChecksums = new HashSet<String>();
+
+   /**
+    * Number of entries removed from the index, lets an update notice that
+    * a file was added and removed again since it was read. Only written
+    * under the lock.
+    */
+   private volatile long removedFiles;
+
+   /**
+    * Indicates that the index changed since the manifest was saved.
+    */
+   private volatile boolean isManifestChanged;
+
+   /**
+    * Change notifications of the directory, null if not available.
+    */
+   private WatchService watcher;
+
+   /**
+    * Creates a new file index.
+    * 
+    * @param directory The indexed directory.
+    */
+   public FileIndex(File directory)
+   {
+      this.directory = directory.toPath();
+      this.manifest = new FileManifest(new File(directory, MANIFEST_FILE_NAME));
+   }
+
+   /**
+    * Builds the index and starts keeping it current.
+    */
+   public void Start()
+   {
+      manifestFiles = manifest.Load();
+
+      try
+      {
+         // watch first, so no change after the scan is missed
+         watcher = directory.getFileSystem().newWatchService();
+         directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                  StandardWatchEventKinds.ENTRY_DELETE,
+                  StandardWatchEventKinds.ENTRY_MODIFY);
+
+         Thread watchThread = new Thread(new DirectoryWatch());
+         watchThread.setDaemon(true);
+         watchThread.start();
+      }
+      catch (IOException e)
+      {
+         System.out.println("Cannot watch directory, changes are detected periodically: "
+                  + directory.toAbsolutePath());
+         watcher = null;
+      }
+
+      Reconcile();
+
+      int checksums;
+      synchronized (this)
+      {
+         checksums = pendingChecksums.size();
+
+         // later changes always need new checksums
+         manifestFiles = null;
+      }
+
+      System.out.println("Indexed " + files.size() + " files, computing "
+               + checksums + " checksums");
+
+      maintenanceTimer.schedule(new TimerTask()
+      {
+         public void run()
+         {
+            Reconcile();
+         }
+      }, RECONCILE_PERIOD_MS, RECONCILE_PERIOD_MS);
+
+      maintenanceTimer.schedule(new TimerTask()
+      {
+         public void run()
+         {
+            SaveManifest();
+         }
+      }, MANIFEST_SAVE_PERIOD_MS, MANIFEST_SAVE_PERIOD_MS);
+   }
+
+   /**
+    * Stops keeping the index current.
+    */
+   public void Close()
+   {
+      maintenanceTimer.cancel();
+      workers.shutdownNow();
+
+      if (watcher != null)
+      {
+         try
+         {
+            watcher.close();
+         }
+         catch (IOException e)
+         {
+            // nothing left to do
+         }
+      }
+
+      SaveManifest();
+   }
+
+   /**
+    * Gets a file from the index.
+    * 
+    * @param fileName The file name.
+    * @return The index entry, null if there is no such file.
+    */
+   public IndexedFile getFile(String fileName)
+   {
+      return files.get(fileName);
+   }
+
+   /**
+    * Gets the names of all indexed files.
+    * 
+    * @return The file names.
+    */
+   public Vector<String> getFileNames()
+   {
+      return new Vector<String>(files.keySet());
+   }
+
+   /**
+    * Gets the digest of the catalog, it changes whenever a file is added,
+    * removed or modified.
+    * 
+    * @return The catalog digest.
+    */
+   public long getCatalogDigest()
+   {
+      return catalog.getDigest();
+   }
+
+   /**
+    * Gets the catalog changes since a known catalog version.
+    * 
+    * @param knownEpoch The run the known version belongs to.
+    * @param knownVersion The known catalog version.
+    * @return A catalog changes message, with the whole catalog if the
+    *         changes since the known version are not available.
+    */
+   public synchronized ProtocolMessage getCatalogChanges(long knownEpoch, long knownVersion)
+   {
+      return catalog.getChangesSince(knownEpoch, knownVersion, files.values());
+   }
+
+   /**
+    * Compares the whole directory with the index and updates the entries
+    * that differ. The files are checked in parallel.
+    */
+   public void Reconcile()
+   {
+      List<String> listedFiles = new ArrayList<String>();
+
+      try
+      {
+         DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+         try
+         {
+            for (Path path : stream)
+            {
+               listedFiles.add(path.getFileName().toString());
+            }
+         }
+         finally
+         {
+            stream.close();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error listing directory: " + directory.toAbsolutePath());
+         return;
+      }
+
+      workers.invoke(new ScanTask(listedFiles, 0, listedFiles.size()));
+
+      Set<String> listedFileNames = new HashSet<String>(listedFiles);
+      for (String fileName : files.keySet())
+      {
+         if (!listedFileNames.contains(fileName))
+         {
+            // checks the file again, it may have been created meanwhile
+            Refresh(fileName);
+         }
+      }
+   }
+
+   /**
+    * Saves the manifest if the index changed since it was saved.
+    */
+   private void SaveManifest()
+   {
+      if (isManifestChanged)
+      {
+         isManifestChanged = false;
+         manifest.Save(files.values());
+      }
+   }
+
+   /**
+    * Reads the attributes of a file from the disk.
+    * 
+    * @param fileName The file name.
+    * @return The index entry without checksum, null if there is no such
+    *         regular file or it is not indexed.
+    */
+   private IndexedFile ReadFile(String fileName)
+   {
+      if (fileName.startsWith(MANIFEST_FILE_NAME))
+      {
+         return null;
+      }
+
+      try
+      {
+         BasicFileAttributes attributes = Files.readAttributes(
+                  directory.resolve(fileName), BasicFileAttributes.class);
+         if (attributes.isRegularFile())
+         {
+            return new IndexedFile(fileName, attributes.size(), attributes
+                     .lastModifiedTime().toMillis(), attributes.fileKey());
+         }
+      }
+      catch (IOException e)
+      {
+         // the file does not exist (any more)
+      }
+
+      return null;
+   }
+
+   /**
+    * Updates the index entry of a file from the disk. The file is read
+    * without the lock, the lock is only taken to apply a change. If the
+    * entry was changed by someone else meanwhile, the file is read again.
+    * 
+    * @param fileName The file name.
+    */
+   private void Refresh(String fileName)
+   {
+      while (true)
+      {
+         // read the entry before the file, so a newer entry is noticed
+         long knownRemovedFiles = removedFiles;
+         IndexedFile previous = files.get(fileName);
+         IndexedFile scanned = ReadFile(fileName);
+
+         // unchanged files are checked without the lock
+         if (previous == null ? scanned == null : scanned != null
+                  && previous.isSameVersion(scanned))
+         {
+            return;
+         }
+
+         if (Update(fileName, previous, knownRemovedFiles, scanned))
+         {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Replaces the index entry of a file with the scanned one, unless the
+    * entry changed since the file was scanned. Concurrent updates cannot
+    * apply outdated attributes this way.
+    * 
+    * @param fileName The file name.
+    * @param previous The entry when the file was scanned, null if none.
+    * @param knownRemovedFiles The number of removed entries when the file
+    *           was scanned.
+    * @param current The scanned entry, null if the file does not exist.
+    * @return False if the entry changed meanwhile and nothing was updated.
+    */
+   private synchronized boolean Update(String fileName, IndexedFile previous,
+            long knownRemovedFiles, IndexedFile current)
+   {
+      if (files.get(fileName) != previous
+               || (previous == null && removedFiles != knownRemovedFiles))
+      {
+         // updated, or added and removed again, since the file was scanned
+         return false;
+      }
+
+      if (current == null)
+      {
+         files.remove(fileName);
+         removedFiles++;
+         catalog.Record(previous, null);
+         isManifestChanged = true;
+      }
+      else
+      {
+         IndexedFile known = manifestFiles != null ? manifestFiles.get(fileName) : null;
+         if (known != null && known.getSize() == current.getSize()
+                  && known.getLastModified() == current.getLastModified())
+         {
+            // unchanged since the previous run
+            current = current.withChecksum(known.getChecksum());
+         }
+         else
+         {
+            ScheduleChecksum(fileName);
+         }
+
+         files.put(fileName, current);
+         catalog.Record(previous, current);
+         isManifestChanged = true;
+      }
+
+      return true;
+   }
+
+   /**
+    * Computes the checksum of a file in the background, unless that is
+    * already going on. Has to be called under the lock.
+    * 
+    * @param fileName The file name.
+    */
+   private void ScheduleChecksum(String fileName)
+   {
+      if (pendingChecksums.add(fileName) && !workers.isShutdown())
+      {
+         workers.execute(new ChecksumComputation(fileName));
+      }
+   }
+
+   /**
+    * Stats a range of the listed files.
+    */
+   private class ScanTask extends RecursiveAction
+   {
+      /**
+       * Serialization version.
+       */
+      private static final long serialVersionUID = 1L;
+
+      /**
+       * The listed file names.
+       */
+      private final List<String> fileNames;
+
+      /**
+       * Index of the first file of the range.
+       */
+      private final int from;
+
+      /**
+       * Index after the last file of the range.
+       */
+      private final int to;
+
+      /**
+       * Creates a new scan task.
+       * 
+       * @param fileNames The listed file names.
+       * @param from Index of the first file of the range.
+       * @param to Index after the last file of the range.
+       */
+      public ScanTask(List<String> fileNames, int from, int to)
+      {
+         this.fileNames = fileNames;
+         this.from = from;
+         this.to = to;
+      }
+
+      /**
+       * Stats the files or splits the range.
+       */
+      protected void compute()
+      {
+         if (to - from <= SCAN_BATCH_SIZE)
+         {
+            for (int i = from; i < to; i++)
+            {
+               Refresh(fileNames.get(i));
+            }
+         }
+         else
+         {
+            int middle = (from + to) >>> 1;
+            invokeAll(new ScanTask(fileNames, from, middle), new ScanTask(
+                     fileNames, middle, to));
+         }
+      }
+   }
+
+   /**
+    * Computes the checksum of a file and stores it in the index.
+    */
+   private class ChecksumComputation implements Runnable
+   {
+      /**
+       * The file name.
+       */
+      private final String fileName;
+
+      /**
+       * Creates a new checksum computation.
+       * 
+       * @param fileName The file name.
+       */
+      public ChecksumComputation(String fileName)
+      {
+         this.fileName = fileName;
+      }
+
+      /**
+       * Executed by the worker pool.
+       */
+      public void run()
+      {
+         IndexedFile hashed = files.get(fileName);
+         String checksum = null;
+
+         if (hashed != null && hashed.getChecksum() == null)
+         {
+            checksum = ComputeChecksum(hashed);
+         }
+
+         synchronized (FileIndex.this)
+         {
+            pendingChecksums.remove(fileName);
+
+            IndexedFile current = files.get(fileName);
+            if (current != null && current.getChecksum() == null)
+            {
+               if (checksum != null && current.isSameVersion(hashed))
+               {
+                  files.put(fileName, current.withChecksum(checksum));
+                  isManifestChanged = true;
+               }
+               else if (hashed == null || !current.isSameVersion(hashed))
+               {
+                  // the file changed while it was hashed
+                  ScheduleChecksum(fileName);
+               }
+            }
+
+            if (pendingChecksums.isEmpty() && !workers.isShutdown())
+            {
+               // keep the work of a long hashing pass
+               workers.execute(new Runnable()
+               {
+                  public void run()
+                  {
+                     SaveManifest();
+                  }
+               });
+            }
+         }
+      }
+
+      /**
+       * Computes the SHA-256 checksum of a file.
+       * 
+       * @param hashed The index entry of the hashed version.
+       * @return The hex encoded checksum, null if the file cannot be read
+       *         or changed meanwhile.
+       */
+      private String ComputeChecksum(IndexedFile hashed)
+      {
+         try
+         {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            FileChannel channel = new FileInputStream(directory.resolve(fileName)
+                     .toFile()).getChannel();
+            try
+            {
+               ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+               while (channel.read(buffer) != -1)
+               {
+                  buffer.flip();
+                  digest.update(buffer);
+                  buffer.clear();
+               }
+            }
+            finally
+            {
+               channel.close();
+            }
+
+            IndexedFile current = ReadFile(fileName);
+            if (current == null || !current.isSameVersion(hashed))
+            {
+               return null;
+            }
+
+            StringBuilder checksum = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+               checksum.append(String.format("%02x", b & 0xff));
+            }
+            return checksum.toString();
+         }
+         catch (IOException e)
+         {
+            // the file was removed meanwhile
+            return null;
+         }
+         catch (NoSuchAlgorithmException e)
+         {
+            System.out.println("SHA-256 is not available, files are not checksummed!");
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Applies the change notifications of the directory.
+    */
+   private class DirectoryWatch implements Runnable
+   {
+      /**
+       * Executed as a thread.
+       */
+      public void run()
+      {
+         try
+         {
+            while (true)
+            {
+               WatchKey key = watcher.take();
+
+               // a file that is being written reports many modifications
+               Set<String> changedFiles = new LinkedHashSet<String>();
+               boolean isOverflowed = false;
+
+               for (WatchEvent<?> event : key.pollEvents())
+               {
+                  if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                  {
+                     isOverflowed = true;
+                  }
+                  else
+                  {
+                     changedFiles.add(((Path) event.context()).toString());
+                  }
+               }
+
+               if (isOverflowed)
+               {
+                  // notifications were lost
+                  Reconcile();
+               }
+               else
+               {
+                  for (String fileName : changedFiles)
+                  {
+                     Refresh(fileName);
+                  }
+               }
+
+               if (!key.reset())
+               {
+                  System.out.println("Stopped watching directory: "
+                           + directory.toAbsolutePath());
+                  return;
+               }
+            }
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         catch (ClosedWatchServiceException e)
+         {
+            // the index was closed
+         }
+      }
+   }
+}
@@ -1,15 +1,29 @@
 package server.fileHandling;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.DeflaterOutputStream;
+
+import protocols.misc.ProtocolMessage;
 
 import common.InitFailedException;
 
 /**
- * Manages files.
+ * Manages files. Listings and file attributes are answered from an
+ * in-memory index of the directory.
  * 
  * @author RaphM
  */
@@ -20,15 +34,55 @@ public class FileManager
     */
    private final File fileLocation;
 
+   /**
+    * Files above this size are never compressed in advance.
+    */
+   private final long MAX_COMPRESSED_FILE_SIZE = 16 * 1024 * 1024;
+
+   /**
+    * Maximum number of compressed bytes kept in the cache.
+    */
+   private final long MAX_CACHE_SIZE = 64 * 1024 * 1024;
+
+   /**
+    * Compressed variants that do not save at least this share of the file
+    * size are not used.
+    */
+   private final double MIN_COMPRESSION_SAVINGS = 0.1;
+
+   /**
+    * Precompressed file variants by file name, in least recently used order.
+    */
+   private final LinkedHashMap<String, CompressedFile> compressedFiles = new LinkedHashMap<String, CompressedFile>(
+            16, 0.75f, true);
+
+   /**
+    * Number of compressed bytes in the cache.
+    */
+   private long cacheSize;
+
+   /**
+    * Index of the provided files.
+    */
+   private final FileIndex index;
+
+   /**
+    * Contents of frequently requested files.
+    */
+   private final HotFileCache hotFiles;
+
    /**
     * Initializes a new file manager.
     * 
     * @param directory
     *           The directory where files are located.
+    * @param hotCacheSize
+    *           Maximum number of bytes of frequently requested files kept in
+    *           memory.
     *           
     * @throws InitFailedException Gets thrown when the directory cannot be found.
     */
-   public FileManager(String directory) throws InitFailedException
+   public FileManager(String directory, long hotCacheSize) throws InitFailedException
    {
       fileLocation = new File(directory);
 
@@ -44,24 +98,70 @@ public class FileManager
                   + fileLocation.getAbsolutePath());
          throw new InitFailedException();
       }
+
+      index = new FileIndex(fileLocation);
+      index.Start();
+
+      hotFiles = new HotFileCache(hotCacheSize);
+   }
+
+   /**
+    * Stops keeping the file index current.
+    */
+   public void Close()
+   {
+      index.Close();
    }
 
-   public String getFileContent(String fileName)
+   /**
+    * Opens a given file for streaming its content.
+    * 
+    * @param fileName
+    *           The file to read.
+    * 
+    * @return Read only channel of the file or null if the file cannot be
+    *         opened. The caller has to close it.
+    */
+   public FileChannel openFile(String fileName)
+   {
+      return openFile(fileName, 0);
+   }
+
+   /**
+    * Opens a given file for streaming its content from a certain position.
+    * 
+    * @param fileName
+    *           The file to read.
+    * @param offset
+    *           Position of the first byte that will be read.
+    * 
+    * @return Read only channel of the file positioned at the offset or null
+    *         if the file cannot be opened or is shorter than the offset. The
+    *         caller has to close it.
+    */
+   public FileChannel openFile(String fileName, long offset)
    {
-      byte[] bytes = null;
+      FileChannel channel = null;
 
       File file = new File(fileLocation.getAbsolutePath() + File.separatorChar
                + fileName);
 
-      if (file.isFile())
+      // only indexed files are served, so no other paths can be opened
+      if (index.getFile(fileName) != null)
       {
-         BufferedInputStream bis;
          try
          {
-            bis = new BufferedInputStream(new FileInputStream(file));
-            bytes = new byte[(int) file.length()];
-            bis.read(bytes);
-            bis.close();
+            channel = new FileInputStream(file).getChannel();
+
+            if (offset < 0 || offset > channel.size())
+            {
+               channel.close();
+               channel = null;
+            }
+            else
+            {
+               channel.position(offset);
+            }
          }
          catch (IOException e)
          {
@@ -69,48 +169,348 @@ public class FileManager
          }
       }
 
-      return new String(bytes, 0, bytes.length);
+      return channel;
    }
 
    /**
-    * Requests the size of a given file.
+    * Opens a given file for asynchronous reads.
     * 
     * @param fileName
-    *           The file to check.
+    *           The file to read.
+    * @param executor
+    *           Threads that complete the reads.
     * 
-    * @return size The filesize or -1 if file not found.
+    * @return Read only channel of the file or null if the file cannot be
+    *         opened. The caller has to close it.
     */
-   public long getFileSize(String fileName)
+   public AsynchronousFileChannel openAsyncFile(String fileName, ExecutorService executor)
    {
-      long size = -1;
+      AsynchronousFileChannel channel = null;
 
       File file = new File(fileLocation.getAbsolutePath() + File.separatorChar
                + fileName);
 
-      if (file.isFile())
+      // only indexed files are served, so no other paths can be opened
+      if (index.getFile(fileName) != null)
       {
-         size = file.length();
+         try
+         {
+            channel = AsynchronousFileChannel.open(file.toPath(), EnumSet
+                     .of(StandardOpenOption.READ), executor);
+         }
+         catch (IOException e)
+         {
+            System.out.println("Error reading from file: " + file.getAbsolutePath());
+         }
       }
 
-      return size;
+      return channel;
    }
 
    /**
-    * Returns a collection of all filenames in the current directory.
+    * Gets the content of a frequently requested file from memory. Files
+    * that became popular are read into memory on this request.
     * 
-    * @return Collection of filenames
+    * @param fileName
+    *           The file to read.
+    * 
+    * @return Read only view of the whole content or null if the file is not
+    *         popular enough or cannot be read.
     */
-   public Vector<String> listFiles()
+   public ByteBuffer getHotContent(String fileName)
+   {
+      IndexedFile indexed = index.getFile(fileName);
+
+      if (indexed == null)
+      {
+         return null;
+      }
+
+      ByteBuffer content = hotFiles.Lookup(indexed);
+
+      if (content == null && hotFiles.isAdmitted(indexed))
+      {
+         // read outside of the cache lock, other files can be served meanwhile
+         content = ReadContent(indexed);
+
+         if (content != null)
+         {
+            hotFiles.Insert(indexed, content);
+            content = content.asReadOnlyBuffer();
+         }
+      }
+
+      return content;
+   }
+
+   /**
+    * Reads the whole content of a file into a direct buffer.
+    * 
+    * @param indexed The index entry of the file.
+    * @return The content or null if the file cannot be read or does not
+    *         match the index entry any more.
+    */
+   private ByteBuffer ReadContent(IndexedFile indexed)
+   {
+      FileChannel channel = openFile(indexed.getFileName());
+
+      if (channel == null)
+      {
+         return null;
+      }
+
+      try
+      {
+         try
+         {
+            if (channel.size() != indexed.getSize())
+            {
+               // changed since it was indexed
+               return null;
+            }
+
+            ByteBuffer content = ByteBuffer.allocateDirect((int) indexed.getSize());
+            while (content.hasRemaining())
+            {
+               if (channel.read(content) == -1)
+               {
+                  return null;
+               }
+            }
+            content.flip();
+            return content;
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error reading from file: " + indexed.getFileName());
+         return null;
+      }
+   }
+
+   /**
+    * Gets the cache of frequently requested files.
+    * 
+    * @return The cache.
+    */
+   public HotFileCache getHotFileCache()
+   {
+      return hotFiles;
+   }
+
+   /**
+    * Gets the deflate compressed variant of a file.Variants are created on
+    * the first request and cached until the file changes.
+    * 
+    * @param fileName
+    *           The file to read.
+    * 
+    * @return The compressed variant or null if the file cannot be read, is
+    *         too large or does not compress well.
+    */
+   public CompressedFile getCompressedFile(String fileName)
+   {
+      IndexedFile indexed = index.getFile(fileName);
+
+      if (indexed == null || indexed.getSize() > MAX_COMPRESSED_FILE_SIZE)
+      {
+         return null;
+      }
+
+      File file = new File(fileLocation.getAbsolutePath() + File.separatorChar
+               + fileName);
+      long size = indexed.getSize();
+      long lastModified = indexed.getLastModified();
+      CompressedFile compressed;
+
+      synchronized (compressedFiles)
+      {
+         compressed = compressedFiles.get(fileName);
+      }
+
+      if (compressed == null || !compressed.isValid(size, lastModified))
+      {
+         // compress outside of the lock, other files can be served meanwhile
+         compressed = CompressFile(file, size, lastModified);
+
+         if (compressed != null)
+         {
+            CacheCompressedFile(fileName, compressed);
+         }
+      }
+
+      return compressed != null && compressed.getData() != null ? compressed : null;
+   }
+
+   /**
+    * Compresses a file.
+    * 
+    * @param file The file.
+    * @param size The file size.
+    * @param lastModified The modification time of the file.
+    * @return The compressed variant, without data if the file does not
+    *         compress well; null if the file cannot be read.
+    */
+   private CompressedFile CompressFile(File file, long size, long lastModified)
    {
-      Vector<String> fileNames = new Vector<String>();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) (size / 2));
+
+      try
+      {
+         InputStream in = new FileInputStream(file);
+         try
+         {
+            DeflaterOutputStream out = new DeflaterOutputStream(buffer);
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) != -1)
+            {
+               out.write(chunk, 0, count);
+            }
+            out.close();
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error compressing file: " + file.getAbsolutePath());
+         return null;
+      }
 
-      File[] files = fileLocation.listFiles();
+      if (buffer.size() > size * (1 - MIN_COMPRESSION_SAVINGS))
+      {
+         // remember that this version is not worth compressing
+         return new CompressedFile(size, lastModified, null);
+      }
+
+      return new CompressedFile(size, lastModified, buffer.toByteArray());
+   }
 
-      for (File file : files)
+   /**
+    * Stores a compressed variant, evicts the least recently used ones if
+    * the cache gets too large.
+    * 
+    * @param fileName The file name.
+    * @param compressed The compressed variant.
+    */
+   private void CacheCompressedFile(String fileName, CompressedFile compressed)
+   {
+      synchronized (compressedFiles)
       {
-         fileNames.add(file.getName());
+         CompressedFile previous = compressedFiles.put(fileName, compressed);
+         cacheSize += getCachedSize(compressed) - getCachedSize(previous);
+
+         Iterator<Map.Entry<String, CompressedFile>> iterator = compressedFiles
+                  .entrySet().iterator();
+         while (cacheSize > MAX_CACHE_SIZE && iterator.hasNext())
+         {
+            Map.Entry<String, CompressedFile> eldest = iterator.next();
+            if (eldest.getValue() != compressed)
+            {
+               cacheSize -= getCachedSize(eldest.getValue());
+               iterator.remove();
+            }
+         }
       }
+   }
 
-      return fileNames;
+   /**
+    * Gets the number of cached bytes of a compressed variant.
+    * 
+    * @param compressed The compressed variant, may be null.
+    * @return The number of bytes.
+    */
+   private long getCachedSize(CompressedFile compressed)
+   {
+      return compressed == null || compressed.getData() == null ? 0
+               : compressed.getData().length;
+   }
+
+   /**
+    * Requests the size of a given file.
+    * 
+    * @param fileName
+    *           The file to check.
+    * 
+    * @return size The filesize or -1 if file not found.
+    */
+   public long getFileSize(String fileName)
+   {
+      IndexedFile indexed = index.getFile(fileName);
+
+      return indexed != null ? indexed.getSize() : -1;
+   }
+
+   /**
+    * Requests the modification time of a given file.
+    * 
+    * @param fileName
+    *           The file to check.
+    * 
+    * @return The modification time or 0 if file not found.
+    */
+   public long getLastModified(String fileName)
+   {
+      IndexedFile indexed = index.getFile(fileName);
+
+      return indexed != null ? indexed.getLastModified() : 0;
+   }
+
+   /**
+    * Requests the checksum of a given file.
+    * 
+    * @param fileName
+    *           The file to check.
+    * @param size
+    *           The size of the version the checksum is needed for.
+    * 
+    * @return The hex encoded SHA-256 checksum or null if the file was not
+    *         found, has another size or was not hashed yet.
+    */
+   public String getChecksum(String fileName, long size)
+   {
+      IndexedFile indexed = index.getFile(fileName);
+
+      return indexed != null && indexed.getSize() == size ? indexed.getChecksum() : null;
+   }
+
+   /**
+    * Returns a collection of all filenames in the current directory.
+    * 
+    * @return Collection of filenames
+    */
+   public Vector<String> listFiles()
+   {
+      return index.getFileNames();
+   }
+
+   /**
+    * Gets the digest of the file catalog.
+    * 
+    * @return The catalog digest, it changes whenever a file is added,
+    *         removed or modified.
+    */
+   public long getCatalogDigest()
+   {
+      return index.getCatalogDigest();
+   }
+
+   /**
+    * Gets the catalog changes since a known catalog version.
+    * 
+    * @param epoch The fileserver run the known version belongs to.
+    * @param version The known catalog version.
+    * @return A catalog changes message.
+    */
+   public ProtocolMessage getCatalogChanges(long epoch, long version)
+   {
+      return index.getCatalogChanges(epoch, version);
    }
 }
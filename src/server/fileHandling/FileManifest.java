@@ -0,0 +1,163 @@
+package server.fileHandling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The file index as stored on disk, so checksums of unchanged files do not
+ * have to be computed again after a restart.
+ * 
+ * @author RaphM
+ */
+public class FileManifest
+{
+   /**
+    * Identifies manifest files of this format.
+    */
+   private final int MANIFEST_MAGIC = 0x46445331;
+
+   /**
+    * The manifest file.
+    */
+   private final File manifestFile;
+
+   /**
+    * Creates a new manifest.
+    * 
+    * @param manifestFile The manifest file.
+    */
+   public FileManifest(File manifestFile)
+   {
+      this.manifestFile = manifestFile;
+   }
+
+   /**
+    * Reads the entries of the manifest.
+    * 
+    * @return The entries by file name, empty if there is no readable
+    *         manifest. The entries carry no file keys.
+    */
+   public Map<String, IndexedFile> Load()
+   {
+      Map<String, IndexedFile> entries = new HashMap<String, IndexedFile>();
+
+      try
+      {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(
+                  new FileInputStream(manifestFile)));
+         try
+         {
+            if (in.readInt() != MANIFEST_MAGIC)
+            {
+               System.out.println("Ignoring unknown manifest: " + manifestFile);
+               return entries;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+               String fileName = in.readUTF();
+               long size = in.readLong();
+               long lastModified = in.readLong();
+               String checksum = in.readUTF();
+
+               entries.put(fileName, new IndexedFile(fileName, size, lastModified,
+                        null, checksum));
+            }
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+      catch (FileNotFoundException e)
+      {
+         // first start, everything is hashed
+      }
+      catch (EOFException e)
+      {
+         System.out.println("Ignoring truncated manifest: " + manifestFile);
+         entries.clear();
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error reading manifest: " + manifestFile);
+         entries.clear();
+      }
+
+      return entries;
+   }
+
+   /**
+    * Replaces the manifest with the given entries. Entries without a
+    * checksum are left out. The manifest is written to a temporary file
+    * first, so a crash never leaves a broken manifest behind.
+    * 
+    * @param files The index entries.
+    */
+   public void Save(Collection<IndexedFile> files)
+   {
+      // the index may change while the manifest is written
+      List<IndexedFile> hashedFiles = new ArrayList<IndexedFile>();
+      for (IndexedFile file : files)
+      {
+         if (file.getChecksum() != null)
+         {
+            hashedFiles.add(file);
+         }
+      }
+
+      File tempFile = null;
+
+      try
+      {
+         tempFile = File.createTempFile(manifestFile.getName() + ".", ".tmp",
+                  manifestFile.getAbsoluteFile().getParentFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                  new FileOutputStream(tempFile)));
+         try
+         {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(hashedFiles.size());
+
+            for (IndexedFile file : hashedFiles)
+            {
+               out.writeUTF(file.getFileName());
+               out.writeLong(file.getSize());
+               out.writeLong(file.getLastModified());
+               out.writeUTF(file.getChecksum());
+            }
+         }
+         finally
+         {
+            out.close();
+         }
+
+         Files.move(tempFile.toPath(), manifestFile.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.out.println("Error writing manifest: " + manifestFile);
+         if (tempFile != null)
+         {
+            tempFile.delete();
+         }
+      }
+   }
+}
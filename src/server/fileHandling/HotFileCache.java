@@ -0,0 +1,275 @@
+package server.fileHandling;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+
+import common.FrequencyAdmission;
+import common.ICachedFile;
+
+/**
+ * Keeps the contents of frequently requested small files in direct
+ * (off-heap) buffers, so downloads of popular files neither open nor read
+ * the file. The cache is bounded by a byte budget.
+ * 
+ * Requests are counted per file and the counts are halved regularly, so a
+ * file is only admitted if it was requested before and is requested more
+ * often than the entries it would evict. Entries are validated against
+ * the size and modification time of the file on every lookup.
+ * 
+ * @author RaphM
+ */
+public class HotFileCache
+{
+   /**
+    * Larger files are never cached.
+    */
+   private final long MAX_ENTRY_SIZE = 1024 * 1024;
+
+   /**
+    * Maximum number of bytes held by the cache.
+    */
+   private final long capacity;
+
+   /**
+    * Cached files by name, in least recently used order.
+    */
+   private final LinkedHashMap<String, HotFile> entries = new LinkedHashMap<String, HotFile>(
+            16, 0.75f, true);
+
+   /**
+    * Counts the requests, files requested once are not worth caching.
+    */
+   private final FrequencyAdmission admission = new FrequencyAdmission(2);
+
+   /**
+    * Number of cached bytes.
+    */
+   private long size;
+
+   /**
+    * Creates a new cache.
+    * 
+    * @param capacity Maximum number of bytes held by the cache, 0 disables
+    *           it.
+    */
+   public HotFileCache(long capacity)
+   {
+      this.capacity = capacity;
+   }
+
+   /**
+    * Looks up the content of a file and counts the request.
+    * 
+    * @param file The index entry of the current version of the file.
+    * @return A read only view of the content, null on a cache miss.
+    */
+   public synchronized ByteBuffer Lookup(IndexedFile file)
+   {
+      if (capacity == 0)
+      {
+         // disabled, do not count requests either
+         return null;
+      }
+
+      admission.RecordRequest(file.getFileName());
+
+      HotFile entry = entries.get(file.getFileName());
+      if (entry == null)
+      {
+         return null;
+      }
+
+      if (entry.size != file.getSize() || entry.lastModified != file.getLastModified())
+      {
+         // the file changed
+         Remove(entry);
+         return null;
+      }
+
+      entry.hits++;
+      return entry.content.duplicate();
+   }
+
+   /**
+    * Indicates if the content of a file would be admitted, so it is worth
+    * reading it.
+    * 
+    * @param file The index entry of the file.
+    * @return True if the content would be admitted.
+    */
+   public synchronized boolean isAdmitted(IndexedFile file)
+   {
+      if (capacity == 0)
+      {
+         // disabled, not even empty files are cached
+         return false;
+      }
+
+      return file.getSize() <= MAX_ENTRY_SIZE && file.getSize() <= capacity
+               && FindVictims(file) != null;
+   }
+
+   /**
+    * Adds the content of a file, evicting less frequently requested files
+    * if necessary.
+    * 
+    * @param file The index entry of the version that was read.
+    * @param content The content, a direct buffer.
+    */
+   public synchronized void Insert(IndexedFile file, ByteBuffer content)
+   {
+      if (entries.containsKey(file.getFileName()) || !isAdmitted(file))
+      {
+         // another download was faster or the cache changed meanwhile
+         return;
+      }
+
+      for (HotFile victim : FindVictims(file))
+      {
+         Remove(victim);
+      }
+
+      HotFile entry = new HotFile(file.getFileName(), file.getSize(),
+               file.getLastModified(), content.asReadOnlyBuffer());
+      entries.put(entry.fileName, entry);
+      size += entry.size;
+   }
+
+   /**
+    * Gets the number of cached bytes.
+    * 
+    * @return Number of bytes.
+    */
+   public synchronized long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Gets the maximum number of cached bytes.
+    * 
+    * @return Number of bytes.
+    */
+   public long getCapacity()
+   {
+      return capacity;
+   }
+
+   /**
+    * Describes the cached files with their hit counters, most hits first.
+    * 
+    * @return One line per cached file.
+    */
+   public synchronized Vector<String> getStatistics()
+   {
+      List<HotFile> hotFiles = new ArrayList<HotFile>(entries.values());
+      Collections.sort(hotFiles, new Comparator<HotFile>()
+      {
+         public int compare(HotFile first, HotFile second)
+         {
+            return first.hits < second.hits ? 1 : first.hits > second.hits ? -1 : 0;
+         }
+      });
+
+      Vector<String> lines = new Vector<String>();
+      for (HotFile hotFile : hotFiles)
+      {
+         lines.add(hotFile.fileName + " Size: " + hotFile.size + " Hits: "
+                  + hotFile.hits + " Requests: " + admission.getFrequency(hotFile.fileName));
+      }
+      return lines;
+   }
+
+   /**
+    * Finds the entries that have to be evicted to make room for a file.
+    * 
+    * @param file The index entry of the file.
+    * @return The entries to evict, null if the file is not admitted.
+    */
+   private Vector<HotFile> FindVictims(IndexedFile file)
+   {
+      return admission.FindVictims(entries.values(), capacity - size,
+               file.getFileName(), file.getSize());
+   }
+
+   /**
+    * Removes an entry.
+    * 
+    * @param entry The entry.
+    */
+   private void Remove(HotFile entry)
+   {
+      if (entries.remove(entry.fileName) != null)
+      {
+         size -= entry.size;
+      }
+   }
+
+   /**
+    * The cached content of a file.
+    */
+   private class HotFile implements ICachedFile
+   {
+      /**
+       * Name of the file.
+       */
+      private final String fileName;
+
+      /**
+       * Size of the cached version.
+       */
+      private final long size;
+
+      /**
+       * Modification time of the cached version.
+       */
+      private final long lastModified;
+
+      /**
+       * The content.
+       */
+      private final ByteBuffer content;
+
+      /**
+       * Number of downloads served from the cache.
+       */
+      private long hits;
+
+      /**
+       * Creates a new entry.
+       * 
+       * @param fileName Name of the file.
+       * @param size Size of the cached version.
+       * @param lastModified Modification time of the cached version.
+       * @param content The content.
+       */
+      public HotFile(String fileName, long size, long lastModified, ByteBuffer content)
+      {
+         this.fileName = fileName;
+         this.size = size;
+         this.lastModified = lastModified;
+         this.content = content;
+      }
+
+      /**
+       * @return Name of the file.
+       */
+      public String getFileName()
+      {
+         return fileName;
+      }
+
+      /**
+       * @return Size of the cached version.
+       */
+      public long getSize()
+      {
+         return size;
+      }
+   }
+}
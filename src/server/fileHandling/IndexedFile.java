@@ -0,0 +1,132 @@
+package server.fileHandling;
+
+/**
+ * A file of the provided directory as recorded in the file index.
+ * 
+ * @author RaphM
+ */
+public class IndexedFile
+{
+   /**
+    * Name of the file.
+    */
+   private final String fileName;
+
+   /**
+    * Size of the file.
+    */
+   private final long size;
+
+   /**
+    * Modification time of the file.
+    */
+   private final long lastModified;
+
+   /**
+    * Identifies the file on its file system (the inode on unix systems),
+    * null if not supported.
+    */
+   private final Object fileKey;
+
+   /**
+    * Hex encoded SHA-256 checksum of the content, null if not computed yet.
+    */
+   private final String checksum;
+
+   /**
+    * Creates a new index entry without checksum.
+    * 
+    * @param fileName Name of the file.
+    * @param size Size of the file.
+    * @param lastModified Modification time of the file.
+    * @param fileKey Identifies the file on its file system, may be null.
+    */
+   public IndexedFile(String fileName, long size, long lastModified, Object fileKey)
+   {
+      this(fileName, size, lastModified, fileKey, null);
+   }
+
+   /**
+    * Creates a new index entry.
+    * 
+    * @param fileName Name of the file.
+    * @param size Size of the file.
+    * @param lastModified Modification time of the file.
+    * @param fileKey Identifies the file on its file system, may be null.
+    * @param checksum Checksum of the content, null if not computed yet.
+    */
+   public IndexedFile(String fileName, long size, long lastModified,
+            Object fileKey, String checksum)
+   {
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+      this.checksum = checksum;
+   }
+
+   /**
+    * Name of the file.
+    */
+   public String getFileName()
+   {
+      return fileName;
+   }
+
+   /**
+    * Size of the file.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Modification time of the file.
+    */
+   public long getLastModified()
+   {
+      return lastModified;
+   }
+
+   /**
+    * Identifies the file on its file system, null if not supported.
+    */
+   public Object getFileKey()
+   {
+      return fileKey;
+   }
+
+   /**
+    * Hex encoded SHA-256 checksum of the content, null if not computed yet.
+    */
+   public String getChecksum()
+   {
+      return checksum;
+   }
+
+   /**
+    * Creates a copy of this entry with a checksum.
+    * 
+    * @param checksum Checksum of the content.
+    * @return The new entry.
+    */
+   public IndexedFile withChecksum(String checksum)
+   {
+      return new IndexedFile(fileName, size, lastModified, fileKey, checksum);
+   }
+
+   /**
+    * Indicates if another entry describes the same version of the file. A
+    * file that was replaced by another one with the same size and
+    * modification time is still detected by its file key.
+    * 
+    * @param other The other entry.
+    * @return True if nothing changed.
+    */
+   public boolean isSameVersion(IndexedFile other)
+   {
+      return size == other.size && lastModified == other.lastModified
+               && (fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey));
+   }
+}
@@ -4,6 +4,9 @@ import java.net.DatagramSocket;
 import java.util.TimerTask;
 
 import protocols.AliveProtocol;
+import protocols.misc.AlivePacket;
+import server.LoadMonitor;
+import server.fileHandling.FileManager;
 
 /**
  * Sends alive messages.
@@ -37,6 +40,36 @@ public class AliveMessageTimerTask extends TimerTask
     */
    private final int localTcpPort;
    
+   /**
+    * Provides the catalog digest.
+    */
+   private final FileManager fileManager;
+
+   /**
+    * Provides the load metrics.
+    */
+   private final LoadMonitor loadMonitor;
+
+   /**
+    * Declared capacity of this fileserver relative to others.
+    */
+   private final int capacityWeight;
+
+   /**
+    * Sequence number of the next alive packet.
+    */
+   private int sequence;
+
+   /**
+    * Sent bytes when the previous alive packet was sent.
+    */
+   private long previousSentBytes;
+
+   /**
+    * Time when the previous alive packet was sent.
+    */
+   private long previousSendTime = System.currentTimeMillis();
+
    /**
     * Initializes a new AliveMessageTimerTask
     * 
@@ -44,13 +77,20 @@ public class AliveMessageTimerTask extends TimerTask
     * @param targetHostname The target hostname.
     * @param targetUdpPort The target Udp Port.
     * @param localTcpPort The local tcp port.
+    * @param fileManager Provides the catalog digest.
+    * @param loadMonitor Provides the load metrics.
+    * @param capacityWeight Declared capacity of this fileserver relative to others.
     */
-   public AliveMessageTimerTask(DatagramSocket outgoingSocket, String targetHostname, int targetUdpPort, int localTcpPort)
+   public AliveMessageTimerTask(DatagramSocket outgoingSocket, String targetHostname, int targetUdpPort, int localTcpPort, FileManager fileManager,
+            LoadMonitor loadMonitor, int capacityWeight)
    {
       this.outgoingSocket = outgoingSocket;
       this.targetHostname = targetHostname;
       this.targetUdpPort = targetUdpPort;
       this.localTcpPort = localTcpPort;
+      this.fileManager = fileManager;
+      this.loadMonitor = loadMonitor;
+      this.capacityWeight = capacityWeight;
    }
    
    /**
@@ -58,7 +98,18 @@ public class AliveMessageTimerTask extends TimerTask
     */
    public void run()
    {
-      // send alive packet to target host
-      protocol.SendAlivePacket(outgoingSocket, targetHostname, targetUdpPort, localTcpPort); 
+      long now = System.currentTimeMillis();
+      long sentBytes = loadMonitor.getSentBytes();
+      long bytesPerSecond = now > previousSendTime ? (sentBytes - previousSentBytes)
+               * 1000 / (now - previousSendTime) : 0;
+      previousSentBytes = sentBytes;
+      previousSendTime = now;
+
+      // send alive packet to target host, the digest lets the proxy notice
+      // catalog changes, the metrics tell it the current load
+      AlivePacket packet = new AlivePacket(localTcpPort, fileManager.getCatalogDigest(),
+               sequence++, loadMonitor.getActiveConnections(), bytesPerSecond,
+               loadMonitor.getPendingRequests(), capacityWeight);
+      protocol.SendAlivePacket(outgoingSocket, targetHostname, targetUdpPort, packet);
    }
 }
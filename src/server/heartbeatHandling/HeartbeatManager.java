@@ -6,6 +6,8 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import common.InitFailedException;
+import server.LoadMonitor;
+import server.fileHandling.FileManager;
 
 public class HeartbeatManager
 {
@@ -25,11 +27,16 @@ public class HeartbeatManager
     * @param proxyhostName Target hostname.
     * @param proxyUdpPort Target UDP port of the proxy.
     * @param alivePeriod Period for sending alive packets
+    * @param localTcpPort The local tcp port.
+    * @param fileManager Provides the catalog digest sent with every alive packet.
+    * @param loadMonitor Provides the load metrics sent with every alive packet.
+    * @param capacityWeight Declared capacity of this fileserver relative to others.
     * 
     * @throws InitFailedException Gets thrown when no UDP port for sending heartbeats
     *                             is available.
     */
-   public HeartbeatManager(String proxyhostName, int proxyUdpPort, int alivePeriod, int localTcpPort) throws InitFailedException
+   public HeartbeatManager(String proxyhostName, int proxyUdpPort, int alivePeriod, int localTcpPort, FileManager fileManager,
+            LoadMonitor loadMonitor, int capacityWeight) throws InitFailedException
    {
       try
       {
@@ -44,7 +51,8 @@ public class HeartbeatManager
       }
       
       // start sending alive packets check timer for fileServers
-      TimerTask task = new AliveMessageTimerTask(localSocket, proxyhostName, proxyUdpPort, localTcpPort);
+      TimerTask task = new AliveMessageTimerTask(localSocket, proxyhostName, proxyUdpPort, localTcpPort, fileManager,
+               loadMonitor, capacityWeight);
       aliveTimer.scheduleAtFixedRate(task, 0, alivePeriod);
 
       System.out.println("Started sending alive packets to target: " + proxyhostName + ":" + proxyUdpPort);
@@ -0,0 +1,276 @@
+package tcpConnections;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queues writes to an asynchronous socket channel and writes them in order,
+ * one gathering write at a time. Writers never block, so protocol objects
+ * can write from completion handlers.
+ * 
+ * Used as stream and as channel of a protocol object. Bytes written to the
+ * stream are copied, buffers written to the channel are queued as they are
+ * and must not be changed until a callback queued behind them ran.
+ * 
+ * @author RaphM
+ */
+public class AsyncChannelWriter extends OutputStream implements WritableByteChannel
+{
+   /**
+    * Maximum number of buffers that are written at once.
+    */
+   private final int MAX_GATHERED_BUFFERS = 16;
+
+   /**
+    * The socket channel.
+    */
+   private final AsynchronousSocketChannel channel;
+
+   /**
+    * Called once if a write fails.
+    */
+   private final Runnable failureHandler;
+
+   /**
+    * Protects the queue and the state flags.
+    */
+   private final Lock lock = new ReentrantLock();
+
+   /**
+    * Buffers that wait to be written and callbacks that wait for the
+    * buffers before them.
+    */
+   private final LinkedList<Object> pendingWrites = new LinkedList<Object>();
+
+   /**
+    * Indicates if a write of the channel is in progress.
+    */
+   private boolean isWriting;
+
+   /**
+    * Indicates if writes are dropped because the channel was closed.
+    */
+   private boolean isClosed;
+
+   /**
+    * Continues with the next buffers when a write completed.
+    */
+   private final CompletionHandler<Long, ByteBuffer[]> writeHandler = new CompletionHandler<Long, ByteBuffer[]>()
+   {
+      public void completed(Long count, ByteBuffer[] buffers)
+      {
+         WriteNext();
+      }
+
+      public void failed(Throwable e, ByteBuffer[] buffers)
+      {
+         lock.lock();
+         boolean notify = !isClosed;
+         isClosed = true;
+         isWriting = false;
+         pendingWrites.clear();
+         lock.unlock();
+
+         if (notify)
+         {
+            failureHandler.run();
+         }
+      }
+   };
+
+   /**
+    * Creates a new writer.
+    * 
+    * @param channel The socket channel.
+    * @param failureHandler Called once if a write fails.
+    */
+   public AsyncChannelWriter(AsynchronousSocketChannel channel, Runnable failureHandler)
+   {
+      this.channel = channel;
+      this.failureHandler = failureHandler;
+   }
+
+   /**
+    * Queues a copy of a single byte.
+    * 
+    * @param b The byte.
+    */
+   public void write(int b)
+   {
+      Enqueue(ByteBuffer.wrap(new byte[] { (byte) b }));
+   }
+
+   /**
+    * Queues a copy of the given bytes.
+    * 
+    * @param buffer The buffer that holds the bytes.
+    * @param offset Offset of the bytes in the buffer.
+    * @param length Number of bytes.
+    */
+   public void write(byte[] buffer, int offset, int length)
+   {
+      byte[] copy = new byte[length];
+      System.arraycopy(buffer, offset, copy, 0, length);
+      Enqueue(ByteBuffer.wrap(copy));
+   }
+
+   /**
+    * Queues the content of a buffer without copying it.
+    * 
+    * @param source The content between position and limit. The position is
+    *           moved to the limit.
+    * @return Number of queued bytes.
+    */
+   public int write(ByteBuffer source)
+   {
+      int count = source.remaining();
+      Enqueue(source.slice());
+      source.position(source.limit());
+      return count;
+   }
+
+   /**
+    * Runs a callback after everything that was queued before was written.
+    * The callback is dropped if the channel fails or is closed.
+    * 
+    * @param callback The callback.
+    */
+   public void WhenWritten(Runnable callback)
+   {
+      Enqueue(callback);
+   }
+
+   /**
+    * Indicates if the writer still accepts writes.
+    * 
+    * @return False once the channel was closed or a write failed.
+    */
+   public boolean isOpen()
+   {
+      lock.lock();
+      try
+      {
+         return !isClosed;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Drops all pending writes. The channel itself is closed by its owner.
+    */
+   public void close()
+   {
+      lock.lock();
+      isClosed = true;
+      pendingWrites.clear();
+      lock.unlock();
+   }
+
+   /**
+    * Queues a buffer or a callback and starts writing if the channel is
+    * idle.
+    * 
+    * @param write The buffer or callback.
+    */
+   private void Enqueue(Object write)
+   {
+      lock.lock();
+      if (isClosed)
+      {
+         lock.unlock();
+         return;
+      }
+      pendingWrites.add(write);
+      boolean start = !isWriting;
+      isWriting = true;
+      lock.unlock();
+
+      if (start)
+      {
+         WriteNext();
+      }
+   }
+
+   /**
+    * Removes the written buffers from the queue, runs the callbacks that
+    * are due and starts the next write. Must only be called by the owner
+    * of the writing flag.
+    */
+   private void WriteNext()
+   {
+      LinkedList<Runnable> dueCallbacks = new LinkedList<Runnable>();
+      ByteBuffer[] buffers = null;
+
+      lock.lock();
+      try
+      {
+         // drop written buffers and collect the callbacks behind them
+         while (!pendingWrites.isEmpty())
+         {
+            Object write = pendingWrites.getFirst();
+
+            if (write instanceof Runnable)
+            {
+               dueCallbacks.add((Runnable) write);
+            }
+            else if (((ByteBuffer) write).hasRemaining())
+            {
+               break;
+            }
+            pendingWrites.removeFirst();
+         }
+
+         if (pendingWrites.isEmpty() || isClosed)
+         {
+            isWriting = false;
+         }
+         else
+         {
+            // gather the buffers up to the next callback
+            LinkedList<ByteBuffer> gathered = new LinkedList<ByteBuffer>();
+            for (Object write : pendingWrites)
+            {
+               if (write instanceof Runnable || gathered.size() == MAX_GATHERED_BUFFERS)
+               {
+                  break;
+               }
+               gathered.add((ByteBuffer) write);
+            }
+            buffers = gathered.toArray(new ByteBuffer[gathered.size()]);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      for (Runnable callback : dueCallbacks)
+      {
+         callback.run();
+      }
+
+      if (buffers != null)
+      {
+         try
+         {
+            channel.write(buffers, 0, buffers.length, 0, TimeUnit.MILLISECONDS, buffers,
+                     writeHandler);
+         }
+         catch (RuntimeException e)
+         {
+            // closed channel or shut down channel group
+            writeHandler.failed(e, buffers);
+         }
+      }
+   }
+}
@@ -0,0 +1,172 @@
+package tcpConnections;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Owns non-blocking connections and performs their reads and queued writes
+ * in a single thread.
+ * 
+ * @author RaphM
+ */
+public class EventLoop implements Runnable
+{
+   /**
+    * Waits until a connection is ready.
+    */
+   private final Selector selector;
+
+   /**
+    * Connections that wait to be registered by the loop thread.
+    */
+   private final ConcurrentLinkedQueue<NonBlockingConnection> registrations = new ConcurrentLinkedQueue<NonBlockingConnection>();
+
+   /**
+    * Indicates if this instance is currently running.
+    */
+   private volatile boolean isRunning;
+
+   /**
+    * Creates a new event loop.
+    * 
+    * @throws IOException If no selector can be opened.
+    */
+   public EventLoop() throws IOException
+   {
+      selector = Selector.open();
+   }
+
+   /**
+    * Hands a connection to this loop, it is registered by the loop thread.
+    * 
+    * @param connection The connection.
+    */
+   public void Register(NonBlockingConnection connection)
+   {
+      registrations.add(connection);
+      selector.wakeup();
+   }
+
+   /**
+    * Wakes the loop up, so changed interests take effect.
+    */
+   public void Wakeup()
+   {
+      selector.wakeup();
+   }
+
+   /**
+    * Executed as a thread.
+    */
+   public void run()
+   {
+      isRunning = true;
+
+      while (isRunning)
+      {
+         try
+         {
+            selector.select();
+         }
+         catch (IOException e)
+         {
+            System.out.println("<EventLoop Thread>: Selector failed, terminating!");
+            break;
+         }
+         catch (ClosedSelectorException e)
+         {
+            break;
+         }
+
+         RegisterConnections();
+
+         Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+         while (iterator.hasNext())
+         {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            HandleReadyConnection(key);
+         }
+      }
+
+      isRunning = false;
+   }
+
+   /**
+    * Stops the loop. Open connections are not closed.
+    */
+   public void Stop()
+   {
+      isRunning = false;
+
+      try
+      {
+         // wakes up the loop thread
+         selector.close();
+      }
+      catch (IOException e)
+      {
+         System.out.println("<EventLoop Thread>: Could not close selector!");
+      }
+   }
+
+   /**
+    * Registers the connections handed to this loop.
+    */
+   private void RegisterConnections()
+   {
+      NonBlockingConnection connection = registrations.poll();
+      while (connection != null)
+      {
+         try
+         {
+            connection.setKey(connection.getChannel().register(selector,
+                     SelectionKey.OP_READ, connection));
+         }
+         catch (ClosedChannelException e)
+         {
+            connection.Abort();
+         }
+
+         connection = registrations.poll();
+      }
+   }
+
+   /**
+    * Performs the reads and writes of a ready connection.
+    * 
+    * @param key The selection key of the connection.
+    */
+   private void HandleReadyConnection(SelectionKey key)
+   {
+      NonBlockingConnection connection = (NonBlockingConnection) key.attachment();
+
+      try
+      {
+         if (key.isReadable())
+         {
+            connection.HandleReadable();
+         }
+         if (key.isValid() && key.isWritable())
+         {
+            connection.HandleWritable();
+         }
+      }
+      catch (IOException e)
+      {
+         connection.Abort();
+      }
+      catch (CancelledKeyException e)
+      {
+         // closed by another thread meanwhile
+         connection.Abort();
+      }
+   }
+}
@@ -0,0 +1,27 @@
+package tcpConnections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Processes the input of a non-blocking connection. Called by the event
+ * loop that owns the connection, so implementations must not block.
+ * 
+ * @author RaphM
+ */
+public interface IInputHandler
+{
+   /**
+    * Consumes the complete messages of the received input.
+    * 
+    * @param input The received bytes between position and limit, bytes
+    *           that are not consumed are passed again with the next input.
+    * @throws IOException If the input is invalid, closes the connection.
+    */
+   void HandleInput(ByteBuffer input) throws IOException;
+
+   /**
+    * Called once when the connection was closed.
+    */
+   void HandleClose();
+}
@@ -0,0 +1,495 @@
+package tcpConnections;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A non-blocking socket channel owned by an event loop. Received bytes are
+ * collected in a read buffer and handed to an input handler. Writes of
+ * other threads go through an output stream: they are written directly as
+ * far as the socket accepts them, the rest is queued and written by the
+ * event loop. Writers wait while too many bytes are queued.
+ * 
+ * @author RaphM
+ */
+public class NonBlockingConnection
+{
+   /**
+    * Initial size of the read buffer.
+    */
+   private final int INITIAL_READ_BUFFER_SIZE = 4096;
+
+   /**
+    * The read buffer never grows beyond this size, larger messages close
+    * the connection.
+    */
+   private final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+   /**
+    * Writers wait while more bytes are queued.
+    */
+   private final long MAX_QUEUED_BYTES = 256 * 1024;
+
+   /**
+    * Closing waits at most this long until the queued bytes are written.
+    */
+   private final long CLOSE_TIMEOUT_MS = 5000;
+
+   /**
+    * The socket channel.
+    */
+   private final SocketChannel channel;
+
+   /**
+    * The event loop that owns the channel.
+    */
+   private final EventLoop eventLoop;
+
+   /**
+    * Selection key of the channel, null until the loop registered it.
+    */
+   private volatile SelectionKey key;
+
+   /**
+    * Processes the received bytes.
+    */
+   private IInputHandler inputHandler;
+
+   /**
+    * Received bytes that were not consumed yet, in write mode.
+    */
+   private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+   /**
+    * Guards the write state. Writers wait on a condition, not a monitor,
+    * so they can run on virtual threads.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signalled when queued bytes were written or the connection closed.
+    */
+   private final Condition queueDrained = lock.newCondition();
+
+   /**
+    * Bytes that wait to be written.
+    */
+   private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+   /**
+    * Number of bytes in the write queue.
+    */
+   private long queuedBytes;
+
+   /**
+    * Indicates that the connection was closed.
+    */
+   private boolean closed;
+
+   /**
+    * Writes into the connection.
+    */
+   private final OutputStream outputStream = new ChannelOutputStream();
+
+   /**
+    * Creates a new connection.
+    * 
+    * @param channel The socket channel, in non-blocking mode.
+    * @param eventLoop The event loop that will own the channel.
+    */
+   public NonBlockingConnection(SocketChannel channel, EventLoop eventLoop)
+   {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+   }
+
+   /**
+    * Hands the connection to its event loop, which starts reading.
+    * 
+    * @param inputHandler Processes the received bytes.
+    */
+   public void Start(IInputHandler inputHandler)
+   {
+      this.inputHandler = inputHandler;
+      eventLoop.Register(this);
+   }
+
+   /**
+    * Gets the socket channel.
+    * 
+    * @return The channel.
+    */
+   public SocketChannel getChannel()
+   {
+      return channel;
+   }
+
+   /**
+    * Gets a stream that writes into the connection. Writes wait while too
+    * many bytes are queued, so they must not be called by the event loop.
+    * 
+    * @return The output stream.
+    */
+   public OutputStream getOutputStream()
+   {
+      return outputStream;
+   }
+
+   /**
+    * Sets the selection key, called by the event loop on registration.
+    * 
+    * @param key The selection key.
+    */
+   public void setKey(SelectionKey key)
+   {
+      lock.lock();
+      try
+      {
+         this.key = key;
+
+         if (closed)
+         {
+            key.cancel();
+         }
+         else if (!writeQueue.isEmpty())
+         {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Stops reading until ResumeReading() is called, the remote peer is
+    * slowed down by TCP flow control.
+    */
+   public void SuspendReading()
+   {
+      ChangeInterest(SelectionKey.OP_READ, false);
+   }
+
+   /**
+    * Resumes reading after SuspendReading().
+    */
+   public void ResumeReading()
+   {
+      ChangeInterest(SelectionKey.OP_READ, true);
+   }
+
+   /**
+    * Reads the available bytes and hands them to the input handler, called
+    * by the event loop.
+    * 
+    * @throws IOException If reading fails or the input is invalid.
+    */
+   public void HandleReadable() throws IOException
+   {
+      int count = channel.read(readBuffer);
+      if (count == -1)
+      {
+         // End of Stream
+         Abort();
+         return;
+      }
+
+      readBuffer.flip();
+      try
+      {
+         inputHandler.HandleInput(readBuffer);
+      }
+      finally
+      {
+         readBuffer.compact();
+      }
+
+      if (!readBuffer.hasRemaining())
+      {
+         // the buffer is full of an incomplete message
+         if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE)
+         {
+            throw new IOException("Received message is too large");
+         }
+
+         ByteBuffer largerBuffer = ByteBuffer.allocate(Math.min(MAX_READ_BUFFER_SIZE,
+                  readBuffer.capacity() * 2));
+         readBuffer.flip();
+         largerBuffer.put(readBuffer);
+         readBuffer = largerBuffer;
+      }
+   }
+
+   /**
+    * Writes queued bytes, called by the event loop.
+    * 
+    * @throws IOException If writing fails.
+    */
+   public void HandleWritable() throws IOException
+   {
+      lock.lock();
+      try
+      {
+         WriteQueue();
+
+         if (writeQueue.isEmpty() && key != null)
+         {
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Closes the connection after the queued bytes were written, or the
+    * timeout passed. Must not be called by the event loop.
+    */
+   public void Close()
+   {
+      lock.lock();
+      try
+      {
+         long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+         long remainingTime = CLOSE_TIMEOUT_MS;
+
+         while (!closed && !writeQueue.isEmpty() && remainingTime > 0)
+         {
+            try
+            {
+               queueDrained.await(remainingTime, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               break;
+            }
+            remainingTime = deadline - System.currentTimeMillis();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      Abort();
+   }
+
+   /**
+    * Closes the connection immediately, queued bytes are dropped. The input
+    * handler is notified once.
+    */
+   public void Abort()
+   {
+      lock.lock();
+      try
+      {
+         if (closed)
+         {
+            return;
+         }
+
+         closed = true;
+         writeQueue.clear();
+         queuedBytes = 0;
+
+         // wake up waiting writers
+         queueDrained.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      try
+      {
+         // also cancels the key
+         channel.close();
+      }
+      catch (IOException e)
+      {
+         System.out.println("<EventLoop Thread>: Could not close TCP connection channel!");
+      }
+
+      if (inputHandler != null)
+      {
+         inputHandler.HandleClose();
+      }
+   }
+
+   /**
+    * Indicates if the connection was closed.
+    * 
+    * @return True if closed.
+    */
+   public boolean isClosed()
+   {
+      lock.lock();
+      try
+      {
+         return closed;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Writes bytes or queues them, waits while too many bytes are queued.
+    * 
+    * @param data The bytes.
+    * @param offset Position of the first byte.
+    * @param length Number of bytes.
+    * @throws IOException If the connection was closed.
+    */
+   private void Write(byte[] data, int offset, int length) throws IOException
+   {
+      lock.lock();
+      try
+      {
+         if (closed)
+         {
+            throw new IOException("Connection was closed");
+         }
+
+         ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+         if (writeQueue.isEmpty())
+         {
+            // write directly as far as the socket accepts it
+            channel.write(buffer);
+         }
+
+         if (buffer.hasRemaining())
+         {
+            // the buffer of the caller is reused, keep a copy
+            writeQueue.add(ByteBuffer.wrap(Arrays.copyOfRange(data, buffer.position(),
+                     offset + length)));
+            queuedBytes += buffer.remaining();
+            ChangeInterest(SelectionKey.OP_WRITE, true);
+         }
+
+         while (!closed && queuedBytes > MAX_QUEUED_BYTES)
+         {
+            try
+            {
+               queueDrained.await();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while writing");
+            }
+         }
+
+         if (closed)
+         {
+            throw new IOException("Connection was closed");
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Writes queued bytes as far as the socket accepts them, wakes up
+    * waiting writers. Called with the lock held.
+    * 
+    * @throws IOException If writing fails.
+    */
+   private void WriteQueue() throws IOException
+   {
+      while (!writeQueue.isEmpty())
+      {
+         ByteBuffer buffer = writeQueue.getFirst();
+         queuedBytes -= channel.write(buffer);
+
+         if (buffer.hasRemaining())
+         {
+            break;
+         }
+         writeQueue.removeFirst();
+      }
+
+      queueDrained.signalAll();
+   }
+
+   /**
+    * Adds or removes an interest of the selection key.
+    * 
+    * @param operation The operation.
+    * @param enabled True to add it.
+    */
+   private void ChangeInterest(int operation, boolean enabled)
+   {
+      SelectionKey currentKey = key;
+      if (currentKey == null)
+      {
+         // set up on registration
+         return;
+      }
+
+      try
+      {
+         if (enabled)
+         {
+            currentKey.interestOpsOr(operation);
+         }
+         else
+         {
+            currentKey.interestOpsAnd(~operation);
+         }
+         eventLoop.Wakeup();
+      }
+      catch (CancelledKeyException e)
+      {
+         // closed meanwhile
+      }
+   }
+
+   /**
+    * Stream that writes into the connection.
+    */
+   private class ChannelOutputStream extends OutputStream
+   {
+      /**
+       * Writes one byte.
+       */
+      public void write(int value) throws IOException
+      {
+         Write(new byte[] { (byte) value }, 0, 1);
+      }
+
+      /**
+       * Writes bytes.
+       */
+      public void write(byte[] data, int offset, int length) throws IOException
+      {
+         if (length > 0)
+         {
+            Write(data, offset, length);
+         }
+      }
+
+      /**
+       * Closing the stream does not close the connection.
+       */
+      public void close()
+      {
+      }
+   }
+}
@@ -2,6 +2,7 @@ package tcpConnections;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import common.InitFailedException;
 
@@ -27,6 +28,11 @@ public class TcpConnection
     */
    private OutputStream outputStream;
 
+   /**
+    * The non-blocking connection, null for blocking sockets.
+    */
+   private NonBlockingConnection nonBlockingConnection;
+
    /**
     * Stores the socket object and extracts input
     * and output stream.
@@ -71,16 +77,42 @@ public class TcpConnection
                + socket.getInetAddress().getCanonicalHostName()+ ":" + socket.getPort() + "!");
    }
 
+   /**
+    * Encapsulates a non-blocking connection. Its input is read by an event
+    * loop, so there is no input stream.
+    * 
+    * @param nonBlockingConnection The non-blocking connection.
+    */
+   public TcpConnection(NonBlockingConnection nonBlockingConnection)
+   {
+      this.nonBlockingConnection = nonBlockingConnection;
+      connection = nonBlockingConnection.getChannel().socket();
+      outputStream = nonBlockingConnection.getOutputStream();
+
+      System.out.println("<TcpConnectionListener Thread>: Incoming connection from "
+               + connection.getInetAddress().getCanonicalHostName()+ ":" + connection.getPort() + "!");
+   }
+
    /**
     * Gets the input stream of the connection.
     * 
-    * @return The input stream.
+    * @return The input stream, null for non-blocking connections.
     */
    public InputStream getInputStream()
    {
       return inputStream;
    }
 
+   /**
+    * Gets the channel of the connection.
+    * 
+    * @return The channel or null if the socket was not created by a channel.
+    */
+   public SocketChannel getChannel()
+   {
+      return connection.getChannel();
+   }
+
    /**
     * Gets the output stream of the connection.
     * 
@@ -96,6 +128,13 @@ public class TcpConnection
     */
    public void Disconnect()
    {
+      if (nonBlockingConnection != null)
+      {
+         // writes the queued bytes first
+         nonBlockingConnection.Close();
+         return;
+      }
+
       try
       {
          if (outputStream != null)
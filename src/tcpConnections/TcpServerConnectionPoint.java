@@ -1,8 +1,10 @@
 package tcpConnections;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import common.InitFailedException;
 
@@ -30,7 +32,10 @@ public class TcpServerConnectionPoint
    {
       try
       {
-         serverSocket = new ServerSocket(port);
+         // open the socket through a channel, so accepted sockets provide
+         // a SocketChannel for zero-copy transfers
+         serverSocket = ServerSocketChannel.open().socket();
+         serverSocket.bind(new InetSocketAddress(port));
       }
       catch (IOException e)
       {